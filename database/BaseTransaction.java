@@ -5,6 +5,7 @@ import java.util.List;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.index.IndexEntry;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
 import edu.berkeley.cs186.database.query.QueryPlan;
@@ -18,6 +19,15 @@ public interface BaseTransaction {
     long getTransNum();
     boolean isActive();
     void end();
+    void abort();
+
+    /**
+     * Returns whether this is a read-only transaction, which reads tables as
+     * of its snapshot timestamp without acquiring locks.
+     */
+    boolean isReadOnly();
+
+    long getSnapshotTimestamp();
 
     /**
      * Create a new table in this database.
@@ -38,6 +48,62 @@ public interface BaseTransaction {
     void createTableWithIndices(Schema s, String tableName,
                                 List<String> indexColumns) throws DatabaseException;
 
+    /**
+     * Create a new table in this database with an index on each of the given column names,
+     * and a composite index on each of the given lists of column names.
+     *
+     * @param s the table schema
+     * @param tableName the name of the table
+     * @param indexColumns the list of unique columnNames on the maintain an index on
+     * @param compositeIndexColumns the lists of (at least two) columnNames to maintain a
+     *                              composite index on
+     * @throws DatabaseException
+     */
+    void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                List<List<String>> compositeIndexColumns) throws DatabaseException;
+
+    /**
+     * Create a new table in this database with an index on each of indexColumns, a
+     * composite index on each of compositeIndexColumns, and a hash index on each of
+     * hashIndexColumns.
+     *
+     * @param s the table schema
+     * @param tableName the name of the table
+     * @param indexColumns the list of unique columnNames on the maintain an index on
+     * @param compositeIndexColumns the lists of (at least two) columnNames to maintain a
+     *                              composite index on
+     * @param hashIndexColumns the list of unique columnNames to maintain a hash index on
+     * @throws DatabaseException
+     */
+    void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                List<List<String>> compositeIndexColumns,
+                                List<String> hashIndexColumns) throws DatabaseException;
+
+    /**
+     * Create an index on the given columns of an existing table, and add every record
+     * of the table to it. If includedColumnNames is not empty, the values of those
+     * columns are also stored in the index (a covering index).
+     *
+     * @param tableName the name of the table
+     * @param columnNames the columns to index, in key order
+     * @param includedColumnNames the non-key columns to store in the index
+     * @throws DatabaseException
+     */
+    void createIndex(String tableName, List<String> columnNames,
+                     List<String> includedColumnNames) throws DatabaseException;
+
+    /**
+     * Like createIndex above, but fills the leaves of the index up to fillFactor.
+     *
+     * @param tableName the name of the table
+     * @param columnNames the columns to index, in key order
+     * @param includedColumnNames the non-key columns to store in the index
+     * @param fillFactor the fraction of each leaf to fill, in (0, 1]
+     * @throws DatabaseException
+     */
+    void createIndex(String tableName, List<String> columnNames,
+                     List<String> includedColumnNames, float fillFactor) throws DatabaseException;
+
     /**
      * Delete a table in this database.
      *
@@ -97,6 +163,33 @@ public interface BaseTransaction {
      */
     boolean indexExists(String tableName, String columnName);
 
+    /**
+     * Perform a check to see if the database has a hash index on this (table,column).
+     *
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return boolean if the hash index exists
+     */
+    boolean hashIndexExists(String tableName, String columnName);
+
+    /**
+     * Perform a check to see if the database has a composite index on exactly these
+     * columns of this table, in this order.
+     *
+     * @param tableName the name of the table
+     * @param columnNames the names of the columns, in key order
+     * @return boolean if the index exists
+     */
+    boolean compositeIndexExists(String tableName, List<String> columnNames);
+
+    /**
+     * Returns the columns of every composite index on this table, each list in key order.
+     *
+     * @param tableName the name of the table
+     * @return the column names of each composite index
+     */
+    List<List<String>> getCompositeIndices(String tableName);
+
     Iterator<Record> sortedScan(String tableName, String columnName) throws DatabaseException;
 
     Iterator<Record> sortedScanFrom(String tableName, String columnName,
@@ -105,6 +198,21 @@ public interface BaseTransaction {
     Iterator<Record> lookupKey(String tableName, String columnName,
                                DataBox key) throws DatabaseException;
 
+    Iterator<Record> lookupPrefix(String tableName, List<String> columnNames,
+                                  List<DataBox> prefix) throws DatabaseException;
+
+    List<String> getIndexIncludedColumns(String tableName,
+                                         List<String> columnNames) throws DatabaseException;
+
+    Iterator<IndexEntry> scanIndexEntries(String tableName,
+                                          List<String> columnNames) throws DatabaseException;
+
+    Iterator<IndexEntry> scanIndexEntriesFrom(String tableName, List<String> columnNames,
+                                              DataBox startValue) throws DatabaseException;
+
+    Iterator<IndexEntry> scanIndexEntriesWithPrefix(String tableName, List<String> columnNames,
+                                                    List<DataBox> prefix) throws DatabaseException;
+
     boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException;
 
     RecordId addRecord(String tableName, List<DataBox> values) throws DatabaseException;
@@ -150,6 +258,8 @@ public interface BaseTransaction {
 
     int getNumIndexPages(String tableName, String columnName) throws DatabaseException;
 
+    int getNumIndexPages(String tableName, List<String> columnNames) throws DatabaseException;
+
     Schema getSchema(String tableName) throws DatabaseException;
 
     Schema getFullyQualifiedSchema(String tableName) throws DatabaseException;
@@ -5,14 +5,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.TupleDataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.index.BPlusTree;
 import edu.berkeley.cs186.database.index.BPlusTreeException;
+import edu.berkeley.cs186.database.index.HashIndex;
+import edu.berkeley.cs186.database.index.HashIndexException;
+import edu.berkeley.cs186.database.index.IndexBuilder;
+import edu.berkeley.cs186.database.index.IndexEntry;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.query.QueryPlanException;
@@ -20,18 +28,32 @@ import edu.berkeley.cs186.database.query.SortOperator;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.RecordIterator;
+import edu.berkeley.cs186.database.table.RecordPredicate;
+import edu.berkeley.cs186.database.table.RecordReader;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.VersionManager;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
 
 public class Database {
+    // The fraction of each leaf that createIndex fills, leaving room for
+    // inserts after the index is built.
+    public static final float DEFAULT_INDEX_FILL_FACTOR = 0.9f;
+    // The number of times runTransaction tries a transaction that conflicts
+    // with others before giving up.
+    public static final int MAX_TRANSACTION_ATTEMPTS = 10;
+
     private Map<String, Table> tableLookup;
     private Map<String, BPlusTree> indexLookup;
     private Map<String, List<String>> tableIndices;
+    private Map<String, List<String>> indexIncludedColumns;
+    private Map<String, HashIndex> hashIndexLookup;
+    private Map<String, List<String>> tableHashIndices;
     private long numTransactions;
     private String fileDir;
     private LockManager lockManager;
+    private VersionManager versionManager;
     private int numMemoryPages;
 
     /**
@@ -56,7 +78,10 @@ public class Database {
     }
 
     /**
-     * Creates a new database.
+     * Creates a new database. The lock manager decides how transactions are
+     * isolated: a LockManager uses two-phase locking, an OptimisticLockManager
+     * validates reads when transactions end instead of locking them, and a
+     * DummyLockManager disables locking.
      *
      * @param fileDir the directory to put the table files in
      * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
@@ -71,9 +96,13 @@ public class Database {
         tableLookup = new ConcurrentHashMap<>();
         indexLookup = new ConcurrentHashMap<>();
         tableIndices = new ConcurrentHashMap<>();
+        indexIncludedColumns = new ConcurrentHashMap<>();
+        hashIndexLookup = new ConcurrentHashMap<>();
+        tableHashIndices = new ConcurrentHashMap<>();
 
         File dir = new File(fileDir);
         this.lockManager = lockManager;
+        this.versionManager = new VersionManager();
 
         if (!dir.exists()) {
             dir.mkdirs();
@@ -89,14 +118,19 @@ public class Database {
             if (fName.endsWith(Table.FILENAME_EXTENSION)) {
                 int lastIndex = fName.lastIndexOf(Table.FILENAME_EXTENSION);
                 String tableName = fName.substring(0, lastIndex);
-                tableLookup.put(tableName, new Table(tableName, f.toPath().toString(),
-                                                     lockContext.childContext("table-" + tableName), initTransaction));
+                putTable(tableName, new Table(tableName, f.toPath().toString(),
+                                              lockContext.childContext("table-" + tableName), initTransaction));
                 if (!tableIndices.containsKey(tableName)) {
                     tableIndices.put(tableName, new ArrayList<>());
                 }
             } else if (fName.endsWith(BPlusTree.FILENAME_EXTENSION)) {
                 int lastIndex = fName.lastIndexOf(BPlusTree.FILENAME_EXTENSION);
                 String indexName = fName.substring(0, lastIndex);
+                if (indexName.contains(";")) {
+                    String[] parts = indexName.split(";", 2);
+                    indexName = parts[0];
+                    indexIncludedColumns.put(indexName, Arrays.asList(parts[1].split(",")));
+                }
                 String tableName = indexName.split(",", 2)[0];
                 indexLookup.put(indexName, new BPlusTree(f.toString(), getIndexContext(indexName),
                                 initTransaction));
@@ -104,6 +138,16 @@ public class Database {
                     tableIndices.put(tableName, new ArrayList<>());
                 }
                 tableIndices.get(tableName).add(indexName);
+            } else if (fName.endsWith(HashIndex.FILENAME_EXTENSION)) {
+                int lastIndex = fName.lastIndexOf(HashIndex.FILENAME_EXTENSION);
+                String indexName = fName.substring(0, lastIndex);
+                String tableName = indexName.split(",", 2)[0];
+                hashIndexLookup.put(indexName, new HashIndex(f.toString(), getIndexContext(indexName),
+                                    initTransaction));
+                if (!tableHashIndices.containsKey(tableName)) {
+                    tableHashIndices.put(tableName, new ArrayList<>());
+                }
+                tableHashIndices.get(tableName).add(indexName);
             }
         }
         initTransaction.end();
@@ -121,6 +165,11 @@ public class Database {
             t.close();
         }
 
+        for (HashIndex h : this.hashIndexLookup.values()) {
+            h.close();
+        }
+
+        this.lockManager.close();
         this.tableLookup.clear();
     }
 
@@ -128,12 +177,46 @@ public class Database {
         return tableLookup.get(tableName);
     }
 
+    /**
+     * Adds a (non-temporary) table to the database. Its records are
+     * versioned, so that read-only transactions can read them from a snapshot.
+     */
+    private void putTable(String tableName, Table table) {
+        table.setVersionStore(versionManager.createStore());
+        tableLookup.put(tableName, table);
+    }
+
     private LockContext getTableContext(String table) {
         return lockManager.databaseContext().childContext("table-" + table);
     }
 
     private LockContext getIndexContext(String index) {
-        return lockManager.databaseContext().childContext("index-" + index);
+        LockContext lockContext = lockManager.databaseContext().childContext("index-" + index);
+        lockContext.lockReads();
+        return lockContext;
+    }
+
+    /**
+     * Returns the names of the columns an index is on. Indexes are named
+     * "table,column" for an index on a single column and "table,column1,column2,..."
+     * for a composite index, in key order.
+     */
+    private static List<String> getIndexColumns(String indexName) {
+        String[] parts = indexName.split(",");
+        return Arrays.asList(parts).subList(1, parts.length);
+    }
+
+    /**
+     * Returns the name of the file an index is stored in. The included columns
+     * of a covering index are part of its file name ("table,column;included1,
+     * included2,...") so that they can be recovered when the database is reopened.
+     */
+    private String getIndexFileName(String indexName) {
+        List<String> included = indexIncludedColumns.getOrDefault(indexName, Collections.emptyList());
+        if (included.isEmpty()) {
+            return indexName + BPlusTree.FILENAME_EXTENSION;
+        }
+        return indexName + ";" + String.join(",", included) + BPlusTree.FILENAME_EXTENSION;
     }
 
     /**
@@ -148,21 +231,84 @@ public class Database {
         return t;
     }
 
+    /**
+     * Start a new read-only transaction. A read-only transaction reads the
+     * database as it was when the transaction started, and never acquires
+     * locks: it neither waits for writers nor makes them wait. It cannot
+     * modify tables (other than its own temporary tables). It can read
+     * indices, which are not versioned, by reading the records they may be
+     * out of date for as of its snapshot (see lookupKey).
+     *
+     * @return the new Transaction
+     */
+    public synchronized Transaction beginReadOnlyTransaction() {
+        Transaction t = new Transaction(this.numTransactions);
+        t.readOnly = true;
+        t.snapshotTimestamp = versionManager.beginSnapshot();
+
+        this.numTransactions++;
+        return t;
+    }
+
+    /**
+     * The work of a transaction run by runTransaction.
+     */
+    public interface TransactionBody<T> {
+        T run(Transaction transaction) throws DatabaseException;
+    }
+
+    /**
+     * Runs body in a new transaction and ends the transaction. If the
+     * transaction is aborted because it conflicts with another (it fails
+     * validation, see OptimisticLockManager, or is aborted to break a
+     * deadlock), it is rolled back and body is run again in a new transaction,
+     * up to MAX_TRANSACTION_ATTEMPTS times in all. If body throws anything
+     * else, the transaction is rolled back and the exception rethrown.
+     *
+     * @return what body returned in the transaction that committed
+     */
+    public <T> T runTransaction(TransactionBody<T> body) throws DatabaseException {
+        for (int attempt = 1; ; ++attempt) {
+            Transaction transaction = beginTransaction();
+            try {
+                T result = body.run(transaction);
+                transaction.end();
+                return result;
+            } catch (ValidationException | DeadlockException e) {
+                if (transaction.isActive()) {
+                    transaction.abort();
+                }
+                if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+                    throw e;
+                }
+            } catch (DatabaseException | RuntimeException e) {
+                if (transaction.isActive()) {
+                    transaction.abort();
+                }
+                throw e;
+            }
+        }
+    }
+
     public class Transaction implements BaseTransaction {
         long transNum;
         boolean active;
-        boolean blocked;
-        HashMap<String, Table> tempTables;
+        volatile boolean blocked;
+        boolean readOnly;
+        long snapshotTimestamp;
+        // Temporary tables may be created and written by the worker threads
+        // of a parallel operator (see SortOperator).
+        Map<String, Table> tempTables;
         HashMap<String, String> aliasMaps;
-        long tempTableCounter;
+        AtomicLong tempTableCounter;
 
         protected Transaction(long tNum) {
             this.transNum = tNum;
             this.active = true;
             this.blocked = false;
-            this.tempTables = new HashMap<String, Table>();
+            this.tempTables = new ConcurrentHashMap<String, Table>();
             this.aliasMaps = new HashMap<String, String>();
-            this.tempTableCounter = 0;
+            this.tempTableCounter = new AtomicLong();
         }
 
         public long getTransNum() {
@@ -173,15 +319,125 @@ public class Database {
             return this.active;
         }
 
+        public boolean isReadOnly() {
+            return this.readOnly;
+        }
+
+        public long getSnapshotTimestamp() {
+            return this.snapshotTimestamp;
+        }
+
+        /**
+         * Commits and ends this transaction. If the lock manager finds that
+         * what the transaction read is no longer valid (see
+         * OptimisticLockManager), the transaction is rolled back instead (see
+         * abort) and a ValidationException is thrown.
+         */
         public void end() {
             assert(this.active);
 
-            // TODO(hw5): release all locks
+            boolean valid = lockManager.validate(this);
+            finish(valid);
+            if (!valid) {
+                throw new ValidationException("Transaction " + this.transNum +
+                                              " read records written by a concurrent transaction");
+            }
+        }
+
+        /**
+         * Rolls back and ends this transaction: the records it added, updated
+         * or deleted are restored in the tables and their indices. Tables and
+         * indices it created or deleted are not.
+         */
+        public void abort() {
+            assert(this.active);
+
+            finish(false);
+        }
+
+        private void finish(boolean commit) {
+            if (this.readOnly) {
+                versionManager.endSnapshot(this.snapshotTimestamp);
+            } else if (commit) {
+                // Commit before releasing locks, so that a snapshot can never
+                // see a write that a later lock holder has already built on.
+                versionManager.commit(this.transNum);
+            } else {
+                rollback();
+            }
+            lockManager.releaseAll(this);
 
             deleteAllTempTables();
             this.active = false;
         }
 
+        /**
+         * Undoes the writes of this transaction to every table and its indices.
+         */
+        private void rollback() {
+            for (Map.Entry<String, Table> entry : Database.this.tableLookup.entrySet()) {
+                String tableName = entry.getKey();
+                Table tab = entry.getValue();
+                Schema s = tab.getSchema();
+                Map<RecordId, Pair<Record, Record>> undone = tab.rollback(this);
+                // Remove all the keys the transaction wrote before restoring
+                // the old ones, which may be the same.
+                try {
+                    for (Map.Entry<RecordId, Pair<Record, Record>> change : undone.entrySet()) {
+                        Record written = change.getValue().getFirst();
+                        if (written != null) {
+                            removeIndexEntries(tableName, s, written.getValues(), change.getKey());
+                        }
+                    }
+                    for (Map.Entry<RecordId, Pair<Record, Record>> change : undone.entrySet()) {
+                        Record restored = change.getValue().getSecond();
+                        if (restored != null) {
+                            putIndexEntries(tableName, s, restored.getValues(), change.getKey());
+                        }
+                    }
+                } catch (DatabaseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            versionManager.rollback(this.transNum);
+        }
+
+        /**
+         * Removes the entries of the record rid with the given values from every index on
+         * tableName.
+         */
+        private void removeIndexEntries(String tableName, Schema s, List<DataBox> values,
+                                        RecordId rid) throws DatabaseException {
+            for (String indexName : getIndexNames(tableName)) {
+                BPlusTree tree = Database.this.indexLookup.get(indexName);
+                tree.remove(this, getIndexEntryKey(s, indexName, values, rid));
+            }
+            for (String indexName : getHashIndexNames(tableName)) {
+                HashIndex index = Database.this.hashIndexLookup.get(indexName);
+                index.remove(this, getIndexKey(s, indexName, values), rid);
+            }
+        }
+
+        /**
+         * Adds the entries of the record rid with the given values to every index on tableName.
+         */
+        private void putIndexEntries(String tableName, Schema s, List<DataBox> values,
+                                     RecordId rid) throws DatabaseException {
+            for (String indexName : getIndexNames(tableName)) {
+                BPlusTree tree = Database.this.indexLookup.get(indexName);
+                try {
+                    tree.put(this, getIndexEntryKey(s, indexName, values, rid), rid,
+                             getIndexIncludedValues(s, indexName, values));
+                } catch (BPlusTreeException e) {
+                    throw new DatabaseException(e.getMessage());
+                }
+            }
+            for (String indexName : getHashIndexNames(tableName)) {
+                HashIndex index = Database.this.hashIndexLookup.get(indexName);
+                index.put(this, getIndexKey(s, indexName, values), rid);
+            }
+        }
+
         /**
          * Create a new table in this database.
          *
@@ -191,6 +447,7 @@ public class Database {
          */
         public void createTable(Schema s, String tableName) throws DatabaseException {
             // TODO(hw5): add locking
+            checkWritable();
 
             LockContext tableContext = getTableContext(tableName);
 
@@ -199,9 +456,9 @@ public class Database {
             }
 
             Path path = Paths.get(fileDir, tableName + Table.FILENAME_EXTENSION);
-            Database.this.tableLookup.put(tableName, new Table(tableName, s, path.toString(), tableContext,
-                                          this));
+            putTable(tableName, new Table(tableName, s, path.toString(), tableContext, this));
             Database.this.tableIndices.put(tableName, new ArrayList<>());
+            Database.this.tableHashIndices.put(tableName, new ArrayList<>());
         }
 
         /**
@@ -213,7 +470,47 @@ public class Database {
          */
         public void createTableWithIndices(Schema s, String tableName,
                                            List<String> indexColumns) throws DatabaseException {
+            createTableWithIndices(s, tableName, indexColumns, Collections.emptyList());
+        }
+
+        /**
+         * Create a new table in this database with an index on each of the given column names,
+         * and a composite index on each of the given lists of column names. A composite index
+         * orders records lexicographically by its columns, in the order they are listed, and
+         * supports lookups on any prefix of its columns (see lookupPrefix).
+         *
+         * @param s the table schema
+         * @param tableName the name of the table
+         * @param indexColumns the list of unique columnNames on the maintain an index on
+         * @param compositeIndexColumns the lists of (at least two) columnNames to maintain a
+         *                              composite index on
+         * @throws DatabaseException
+         */
+        public void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                           List<List<String>> compositeIndexColumns) throws DatabaseException {
+            createTableWithIndices(s, tableName, indexColumns, compositeIndexColumns, Collections.emptyList());
+        }
+
+        /**
+         * Create a new table in this database with a B+ tree index on each of indexColumns,
+         * a composite index on each of compositeIndexColumns, and a hash index on each of
+         * hashIndexColumns. A hash index only supports equality lookups (see lookupKey), but
+         * answers them with a single bucket page read. A column can have a B+ tree index or a
+         * hash index, but not both.
+         *
+         * @param s the table schema
+         * @param tableName the name of the table
+         * @param indexColumns the list of unique columnNames on the maintain an index on
+         * @param compositeIndexColumns the lists of (at least two) columnNames to maintain a
+         *                              composite index on
+         * @param hashIndexColumns the list of unique columnNames to maintain a hash index on
+         * @throws DatabaseException
+         */
+        public void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                           List<List<String>> compositeIndexColumns,
+                                           List<String> hashIndexColumns) throws DatabaseException {
             // TODO(hw5): add locking
+            checkWritable();
 
             LockContext tableContext = getTableContext(tableName);
 
@@ -233,31 +530,221 @@ public class Database {
                 seenColNames.add(col);
                 schemaColIndex.add(schemaColNames.indexOf(col));
             }
+            for (String col : hashIndexColumns) {
+                if (!schemaColNames.contains(col)) {
+                    throw new DatabaseException("Column desired for index does not exist");
+                }
+                if (!seenColNames.add(col)) {
+                    throw new DatabaseException("Column desired for index has been duplicated");
+                }
+            }
+
+            HashSet<List<String>> seenComposites = new HashSet<List<String>>();
+            for (List<String> cols : compositeIndexColumns) {
+                if (cols.size() < 2) {
+                    throw new DatabaseException("Composite index must have at least two columns");
+                }
+                if (new HashSet<String>(cols).size() != cols.size()) {
+                    throw new DatabaseException("Column desired for index has been duplicated");
+                }
+                if (!schemaColNames.containsAll(cols)) {
+                    throw new DatabaseException("Column desired for index does not exist");
+                }
+                if (!seenComposites.add(cols)) {
+                    throw new DatabaseException("Composite index has been duplicated");
+                }
+            }
 
             if (Database.this.tableLookup.containsKey(tableName)) {
                 throw new DatabaseException("Table name already exists");
             }
 
             Path path = Paths.get(fileDir, tableName + Table.FILENAME_EXTENSION);
-            Database.this.tableLookup.put(tableName, new Table(tableName, s, path.toString(), tableContext,
-                                          this));
+            putTable(tableName, new Table(tableName, s, path.toString(), tableContext, this));
             Database.this.tableIndices.put(tableName, new ArrayList<>());
+            Database.this.tableHashIndices.put(tableName, new ArrayList<>());
             for (int i : schemaColIndex) {
                 String colName = schemaColNames.get(i);
                 Type colType = schemaColType.get(i);
-                String indexName = tableName + "," + colName;
-                Path p = Paths.get(Database.this.fileDir, indexName + BPlusTree.FILENAME_EXTENSION);
-                LockContext indexContext = getIndexContext(indexName);
-                try {
-                    Database.this.indexLookup.put(indexName, new BPlusTree(p.toString(), colType,
-                                                  BPlusTree.maxOrder(Page.pageSize, colType), indexContext, this));
-                    Database.this.tableIndices.get(tableName).add(indexName);
-                } catch (BPlusTreeException e) {
-                    throw new DatabaseException(e.getMessage());
+                createIndexFile(tableName, tableName + "," + colName,
+                                getIndexKeyType(Collections.singletonList(colType)), null);
+            }
+            for (List<String> cols : compositeIndexColumns) {
+                List<Type> colTypes = new ArrayList<Type>();
+                for (String col : cols) {
+                    colTypes.add(schemaColType.get(schemaColNames.indexOf(col)));
                 }
+                createIndexFile(tableName, tableName + "," + String.join(",", cols),
+                                getIndexKeyType(colTypes), null);
+            }
+            for (String col : hashIndexColumns) {
+                createHashIndexFile(tableName, tableName + "," + col,
+                                    schemaColType.get(schemaColNames.indexOf(col)));
             }
         }
 
+        /**
+         * Creates an empty hash index file.
+         */
+        private HashIndex createHashIndexFile(String tableName, String indexName,
+                                              Type keyType) throws DatabaseException {
+            Path p = Paths.get(Database.this.fileDir, indexName + HashIndex.FILENAME_EXTENSION);
+            try {
+                HashIndex index = new HashIndex(p.toString(), keyType, getIndexContext(indexName), this);
+                Database.this.hashIndexLookup.put(indexName, index);
+                Database.this.tableHashIndices.get(tableName).add(indexName);
+                return index;
+            } catch (HashIndexException e) {
+                throw new DatabaseException(e.getMessage());
+            }
+        }
+
+        /**
+         * Creates an empty index file. If includedType is non-null, the index is a
+         * covering index whose leaves also store values of that (tuple) type; the
+         * names of the included columns must already be in indexIncludedColumns.
+         * Indexes whose first column is a string column store their keys compressed.
+         */
+        private BPlusTree createIndexFile(String tableName, String indexName, Type keyType,
+                                          Type includedType) throws DatabaseException {
+            Path p = Paths.get(Database.this.fileDir, getIndexFileName(indexName));
+            LockContext indexContext = getIndexContext(indexName);
+            boolean compressKeys = BPlusTree.supportsKeyCompression(keyType);
+            try {
+                BPlusTree tree = new BPlusTree(p.toString(), keyType, includedType, compressKeys,
+                                               BPlusTree.maxOrder(Page.pageSize, keyType, includedType,
+                                                       compressKeys),
+                                               indexContext, this);
+                Database.this.indexLookup.put(indexName, tree);
+                Database.this.tableIndices.get(tableName).add(indexName);
+                return tree;
+            } catch (BPlusTreeException e) {
+                throw new DatabaseException(e.getMessage());
+            }
+        }
+
+        /**
+         * Create an index on the given columns of an existing table, and add every
+         * record of the table to it. If includedColumnNames is not empty, the index
+         * is a covering index: the values of those columns are stored in the index
+         * alongside each key, so that queries that only need the key and included
+         * columns can be answered from the index alone, without fetching records
+         * from the table (see IndexOnlyScanOperator).
+         *
+         * The leaves of the index are filled up to DEFAULT_INDEX_FILL_FACTOR.
+         *
+         * The indexed columns need not be unique. The key of a record in the
+         * underlying B+ tree is the values of its indexed columns followed by the
+         * page and entry numbers of its record id (see getIndexEntryKey), which
+         * keeps the keys of records with the same indexed values apart. Lookups
+         * scan every key that starts with the values they look for.
+         *
+         * @param tableName the name of the table
+         * @param columnNames the columns to index, in key order
+         * @param includedColumnNames the non-key columns to store in the index
+         * @throws DatabaseException if the columns are invalid, or the index
+         *  already exists
+         */
+        public void createIndex(String tableName, List<String> columnNames,
+                                List<String> includedColumnNames) throws DatabaseException {
+            createIndex(tableName, columnNames, includedColumnNames, DEFAULT_INDEX_FILL_FACTOR);
+        }
+
+        /**
+         * Like createIndex above, but fills the leaves of the index up to
+         * fillFactor. The index is built bottom up rather than one record at a
+         * time: the table is scanned by several threads, its entries are sorted
+         * within numMemoryPages pages of memory (spilling sorted runs to
+         * temporary tables), and the sorted entries are bulk loaded into the
+         * index (see IndexBuilder).
+         *
+         * @param fillFactor the fraction of each leaf to fill, in (0, 1]
+         * @throws DatabaseException if the columns are invalid, the index already
+         *  exists, or fillFactor is invalid
+         */
+        public void createIndex(String tableName, List<String> columnNames,
+                                List<String> includedColumnNames,
+                                float fillFactor) throws DatabaseException {
+            assert(this.active);
+            checkWritable();
+
+            if (this.tempTables.containsKey(tableName) || this.aliasMaps.containsKey(tableName)) {
+                throw new DatabaseException("Cannot create an index on a temporary table or alias");
+            }
+            // Lock the whole table before the index is registered, so that no
+            // record is added to the table while the index is built, and up
+            // front: the builder's workers share this transaction, and must
+            // not race to lock its pages.
+            LockUtil.requestLocks(this, getTableContext(tableName), LockType.S);
+            Table tab = getTable(tableName);
+            Schema s = tab.getSchema();
+            List<String> schemaColNames = s.getFieldNames();
+            List<Type> schemaColTypes = s.getFieldTypes();
+
+            if (columnNames.isEmpty()) {
+                throw new DatabaseException("Index must have at least one column");
+            }
+            List<String> allColumns = new ArrayList<String>(columnNames);
+            allColumns.addAll(includedColumnNames);
+            if (new HashSet<String>(allColumns).size() != allColumns.size()) {
+                throw new DatabaseException("Column desired for index has been duplicated");
+            }
+            if (!schemaColNames.containsAll(allColumns)) {
+                throw new DatabaseException("Column desired for index does not exist");
+            }
+            String indexName = tableName + "," + String.join(",", columnNames);
+            if (Database.this.indexLookup.containsKey(indexName)
+                    || Database.this.hashIndexLookup.containsKey(indexName)) {
+                throw new DatabaseException("Index already exists");
+            }
+            if (!(fillFactor > 0 && fillFactor <= 1)) {
+                throw new DatabaseException("Fill factor must be in (0, 1]");
+            }
+
+            List<Type> keyTypes = new ArrayList<Type>();
+            for (String col : columnNames) {
+                keyTypes.add(schemaColTypes.get(schemaColNames.indexOf(col)));
+            }
+            Type keyType = getIndexKeyType(keyTypes);
+            Type includedType = null;
+            if (!includedColumnNames.isEmpty()) {
+                List<Type> includedTypes = new ArrayList<Type>();
+                for (String col : includedColumnNames) {
+                    includedTypes.add(schemaColTypes.get(schemaColNames.indexOf(col)));
+                }
+                includedType = Type.tupleType(includedTypes);
+                Database.this.indexIncludedColumns.put(indexName, new ArrayList<String>(includedColumnNames));
+            }
+
+            BPlusTree tree = createIndexFile(tableName, indexName, keyType, includedType);
+            try {
+                IndexBuilder builder = new IndexBuilder(this, tab,
+                                                        (values, rid) -> getIndexEntryKey(s, indexName,
+                                                                values, rid),
+                                                        values -> getIndexIncludedValues(s, indexName, values),
+                                                        keyType, includedType,
+                                                        Runtime.getRuntime().availableProcessors());
+                builder.build(tree, fillFactor);
+            } catch (BPlusTreeException e) {
+                dropIndex(tableName, indexName);
+                throw new DatabaseException("Cannot create index " + indexName + ": " + e.getMessage());
+            } catch (DatabaseException e) {
+                dropIndex(tableName, indexName);
+                throw e;
+            }
+        }
+
+        /**
+         * Removes an index and deletes its file.
+         */
+        private void dropIndex(String tableName, String indexName) {
+            String fileName = getIndexFileName(indexName);
+            Database.this.indexLookup.remove(indexName).close();
+            Database.this.tableIndices.get(tableName).remove(indexName);
+            Database.this.indexIncludedColumns.remove(indexName);
+            new File(Paths.get(Database.this.fileDir, fileName).toString()).delete();
+        }
+
         /**
          * Delete a table in this database.
          *
@@ -267,21 +754,30 @@ public class Database {
         public boolean deleteTable(String tableName) {
             // TODO(hw5): add locking
 
-            if (!Database.this.tableLookup.containsKey(tableName)) {
+            if (this.readOnly || !Database.this.tableLookup.containsKey(tableName)) {
                 return false;
             }
 
-            Database.this.tableLookup.get(tableName).close();
-            Database.this.tableLookup.remove(tableName);
+            Table table = Database.this.tableLookup.remove(tableName);
+            table.close();
+            versionManager.dropStore(table.getVersionStore());
 
             File f = new File(fileDir + tableName + Table.FILENAME_EXTENSION);
             f.delete();
 
             for (String index : Database.this.tableIndices.get(tableName)) {
-                File indexFile = new File(fileDir + index + BPlusTree.FILENAME_EXTENSION);
+                File indexFile = new File(fileDir + getIndexFileName(index));
                 indexFile.delete();
             }
 
+            for (String index : Database.this.tableHashIndices.getOrDefault(tableName,
+                    Collections.emptyList())) {
+                Database.this.hashIndexLookup.remove(index).close();
+                Path path = Paths.get(fileDir, index + HashIndex.FILENAME_EXTENSION);
+                new File(path.toString()).delete();
+            }
+            Database.this.tableHashIndices.remove(tableName);
+
             return true;
         }
 
@@ -323,8 +819,7 @@ public class Database {
 
         public String createTempTable(Schema schema) throws DatabaseException {
             assert(this.active);
-            String tempTableName = "tempTable" + tempTableCounter;
-            tempTableCounter++;
+            String tempTableName = "tempTable" + tempTableCounter.getAndIncrement();
             createTempTable(schema, tempTableName);
             return tempTableName;
         }
@@ -359,6 +854,58 @@ public class Database {
             return true;
         }
 
+        /**
+         * Perform a check to see if the database has a hash index on this column of this
+         * table. Unlike the (B+ tree) indexes of indexExists, a hash index can only be used
+         * for equality lookups.
+         *
+         * @param tableName the name of the table
+         * @param columnName the name of the column
+         * @return boolean if the hash index exists
+         */
+        public boolean hashIndexExists(String tableName, String columnName) {
+            try {
+                resolveHashIndexFromName(tableName, columnName);
+            } catch (DatabaseException e) {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Perform a check to see if the database has a composite index on exactly these
+         * columns of this table, in this order.
+         *
+         * @param tableName the name of the table
+         * @param columnNames the names of the columns, in key order
+         * @return boolean if the index exists
+         */
+        public boolean compositeIndexExists(String tableName, List<String> columnNames) {
+            try {
+                resolveIndexFromColumns(tableName, columnNames);
+            } catch (DatabaseException e) {
+                return false;
+            }
+            return columnNames.size() > 1;
+        }
+
+        /**
+         * Returns the columns of every composite index on this table, each list in key order.
+         *
+         * @param tableName the name of the table
+         * @return the column names of each composite index
+         */
+        public List<List<String>> getCompositeIndices(String tableName) {
+            List<List<String>> indices = new ArrayList<List<String>>();
+            for (String indexName : getIndexNames(tableName)) {
+                List<String> columns = getIndexColumns(indexName);
+                if (columns.size() > 1) {
+                    indices.add(columns);
+                }
+            }
+            return indices;
+        }
+
         public Iterator<Record> sortedScan(String tableName, String columnName) throws DatabaseException {
             Table tab = getTable(tableName);
             try {
@@ -366,13 +913,16 @@ public class Database {
 
                 // TODO(hw5): index locking, scan locking
 
+                if (this.readOnly) {
+                    return new RecordIterator(this, tab, getRecordIds(scanIndexEntries(tableName,
+                                              Collections.singletonList(columnName))));
+                }
                 return new RecordIterator(this, tab, index.getSecond().scanAll(this));
             } catch (DatabaseException e1) {
                 int offset = getTable(tableName).getSchema().getFieldNames().indexOf(columnName);
                 try {
                     // TODO(hw5): scan locking
-                    return new SortOperator(this, tableName,
-                                            Comparator.comparing((Record r) -> r.getValues().get(offset))).iterator();
+                    return new SortOperator(this, tableName, offset).iterator();
                 } catch (QueryPlanException e2) {
                     throw new DatabaseException(e2);
                 }
@@ -384,25 +934,165 @@ public class Database {
             Table tab = getTable(tableName);
             Pair<String, BPlusTree> index = resolveIndexFromName(tableName, columnName);
             // TODO(hw5): index locking, scan locking
-            return new RecordIterator(this, tab, index.getSecond().scanGreaterEqual(this, startValue));
+            if (this.readOnly) {
+                return new RecordIterator(this, tab, getRecordIds(scanIndexEntriesFrom(tableName,
+                                          Collections.singletonList(columnName), startValue)));
+            }
+            return new RecordIterator(this, tab, index.getSecond().scanGreaterEqual(this,
+                                      new TupleDataBox(getKeyFields(startValue))));
         }
 
+        /**
+         * Returns the records whose column columnName is equal to key, using the hash index
+         * on the column if it has one, and its B+ tree index otherwise.
+         *
+         * Read-only transactions use indexes too, even though indexes are not versioned:
+         * the records whose keys the index may not have as of the snapshot are read as of
+         * the snapshot (see getSnapshotEntries). So do the other scans of indexes below.
+         *
+         * @throws DatabaseException if the column has no index
+         */
         public Iterator<Record> lookupKey(String tableName, String columnName,
                                           DataBox key) throws DatabaseException {
             Table tab = getTable(tableName);
+            if (hashIndexExists(tableName, columnName)) {
+                Pair<String, HashIndex> index = resolveHashIndexFromName(tableName, columnName);
+
+                // TODO(hw5): index locking
+
+                Iterator<RecordId> rids = index.getSecond().scanEqual(this, key);
+                if (this.readOnly) {
+                    rids = getRecordIds(getSnapshotEntries(tableName, index.getFirst(),
+                                                           withKey(key, rids), k -> k.equals(key)));
+                }
+                return new RecordIterator(this, tab, rids);
+            }
             Pair<String, BPlusTree> index = resolveIndexFromName(tableName, columnName);
 
             // TODO(hw5): index locking
 
-            return new RecordIterator(this, tab, index.getSecond().scanEqual(this, key));
+            if (this.readOnly) {
+                return new RecordIterator(this, tab, getRecordIds(scanIndexEntriesWithPrefix(tableName,
+                                          Collections.singletonList(columnName), getKeyFields(key))));
+            }
+            return new RecordIterator(this, tab, index.getSecond().scanPrefix(this,
+                                      new TupleDataBox(getKeyFields(key))));
+        }
+
+        /**
+         * Returns the records whose first prefix.size() indexed columns are equal to prefix,
+         * using the composite index on columnNames, in index order.
+         *
+         * @param tableName the name of the table
+         * @param columnNames the columns of the composite index, in key order
+         * @param prefix the values of the leading columns of the index
+         * @throws DatabaseException if there is no such index
+         */
+        public Iterator<Record> lookupPrefix(String tableName, List<String> columnNames,
+                                             List<DataBox> prefix) throws DatabaseException {
+            Table tab = getTable(tableName);
+            Pair<String, BPlusTree> index = resolveIndexFromColumns(tableName, columnNames);
+
+            // TODO(hw5): index locking
+
+            if (this.readOnly) {
+                return new RecordIterator(this, tab, getRecordIds(scanIndexEntriesWithPrefix(tableName,
+                                          columnNames, prefix)));
+            }
+            return new RecordIterator(this, tab, index.getSecond().scanPrefix(this, new TupleDataBox(prefix)));
+        }
+
+        /**
+         * Returns the included (non-key) columns of the index on columnNames, or an
+         * empty list if the index is not a covering index.
+         *
+         * @throws DatabaseException if there is no such index
+         */
+        public List<String> getIndexIncludedColumns(String tableName,
+                List<String> columnNames) throws DatabaseException {
+            Pair<String, BPlusTree> index = resolveIndexFromColumns(tableName, columnNames);
+            return Database.this.indexIncludedColumns.getOrDefault(index.getFirst(), Collections.emptyList());
+        }
+
+        /**
+         * Returns all the entries of the index on columnNames, in index order. Unlike
+         * sortedScan, the records of the table are not fetched: each entry only has the
+         * key, record id and (for a covering index) included values of a record.
+         *
+         * @throws DatabaseException if there is no such index
+         */
+        public Iterator<IndexEntry> scanIndexEntries(String tableName,
+                List<String> columnNames) throws DatabaseException {
+            Pair<String, BPlusTree> index = resolveIndexFromColumns(tableName, columnNames);
+
+            // TODO(hw5): index locking
+
+            Iterator<IndexEntry> entries = withIndexKeys(index.getFirst(),
+                                                         index.getSecond().scanAllEntries(this));
+            if (this.readOnly) {
+                return getSnapshotEntries(tableName, index.getFirst(), entries, k -> true);
+            }
+            return entries;
+        }
+
+        /**
+         * Returns the entries of the index on columnNames whose keys are greater than or
+         * equal to startValue, in index order. See scanIndexEntries.
+         *
+         * @throws DatabaseException if there is no such index
+         */
+        public Iterator<IndexEntry> scanIndexEntriesFrom(String tableName, List<String> columnNames,
+                DataBox startValue) throws DatabaseException {
+            Pair<String, BPlusTree> index = resolveIndexFromColumns(tableName, columnNames);
+
+            // TODO(hw5): index locking
+
+            TupleDataBox start = new TupleDataBox(getKeyFields(startValue));
+            BPlusTree tree = index.getSecond();
+            Iterator<IndexEntry> entries = withIndexKeys(index.getFirst(),
+                                                         tree.scanGreaterEqualEntries(this, start));
+            if (this.readOnly) {
+                return getSnapshotEntries(tableName, index.getFirst(), entries,
+                                          k -> new TupleDataBox(getKeyFields(k)).compareTo(start) >= 0);
+            }
+            return entries;
+        }
+
+        /**
+         * Returns the entries of the composite index on columnNames whose first
+         * prefix.size() columns are equal to prefix, in index order. See
+         * scanIndexEntries.
+         *
+         * @throws DatabaseException if there is no such index
+         */
+        public Iterator<IndexEntry> scanIndexEntriesWithPrefix(String tableName, List<String> columnNames,
+                List<DataBox> prefix) throws DatabaseException {
+            Pair<String, BPlusTree> index = resolveIndexFromColumns(tableName, columnNames);
+
+            // TODO(hw5): index locking
+
+            TupleDataBox start = new TupleDataBox(prefix);
+            Iterator<IndexEntry> entries = withIndexKeys(index.getFirst(),
+                                                         index.getSecond().scanPrefixEntries(this, start));
+            if (this.readOnly) {
+                return getSnapshotEntries(tableName, index.getFirst(), entries,
+                                          k -> new TupleDataBox(getKeyFields(k)).startsWith(start));
+            }
+            return entries;
         }
 
         public boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException {
+            if (this.readOnly) {
+                return lookupKey(tableName, columnName, key).hasNext();
+            }
+            if (hashIndexExists(tableName, columnName)) {
+                return resolveHashIndexFromName(tableName, columnName).getSecond().get(this, key).isPresent();
+            }
             Pair<String, BPlusTree> index = resolveIndexFromName(tableName, columnName);
 
             // TODO(hw5): index locking
 
-            return index.getSecond().get(this, key).isPresent();
+            return index.getSecond().scanPrefix(this, new TupleDataBox(getKeyFields(key))).hasNext();
         }
 
         public RecordId addRecord(String tableName, List<DataBox> values) throws DatabaseException {
@@ -411,20 +1101,9 @@ public class Database {
             // TODO(hw5): index locking
 
             Table tab = getTable(tableName);
+            checkWritable(tab);
             RecordId rid = tab.addRecord(this, values);
-            Schema s = tab.getSchema();
-            List<String> colNames = s.getFieldNames();
-
-            for (int i = 0; i < colNames.size(); i++) {
-                String col = colNames.get(i);
-                if (indexExists(tableName, col)) {
-                    try {
-                        resolveIndexFromName(tableName, col).getSecond().put(this, values.get(i), rid);
-                    } catch (BPlusTreeException e) {
-                        throw new DatabaseException(e.getMessage());
-                    }
-                }
-            }
+            putIndexEntries(tableName, tab.getSchema(), values, rid);
             //find(tableName, "string");
             return rid;
         }
@@ -440,17 +1119,11 @@ public class Database {
             // TODO(hw5): index locking
 
             Table tab = getTable(tableName);
+            checkWritable(tab);
             Schema s = tab.getSchema();
 
             Record rec = tab.deleteRecord(this, rid);
-            List<DataBox> values = rec.getValues();
-            List<String> colNames = s.getFieldNames();
-            for (int i = 0; i < colNames.size(); i++) {
-                String col = colNames.get(i);
-                if (indexExists(tableName, col)) {
-                    resolveIndexFromName(tableName, col).getSecond().remove(this, values.get(i));
-                }
-            }
+            removeIndexEntries(tableName, s, rec.getValues(), rid);
 
             return rid;
         }
@@ -465,6 +1138,49 @@ public class Database {
             return getTable(tableName).iterator(this);
         }
 
+        /**
+         * Returns an iterator over the records of tableName that satisfy predicate, which is
+         * evaluated without decoding the records that do not.
+         */
+        public Iterator<Record> getRecordIterator(String tableName,
+                RecordPredicate predicate) throws DatabaseException {
+            assert(this.active);
+            return getTable(tableName).iterator(this, predicate);
+        }
+
+        /**
+         * Returns an iterator over what reader reads from the bytes of the records of tableName
+         * that satisfy predicate (see Table.iterator(BaseTransaction, RecordPredicate, RecordReader)).
+         */
+        public <T> Iterator<T> getRecordIterator(String tableName, RecordPredicate predicate,
+                RecordReader<T> reader) throws DatabaseException {
+            assert(this.active);
+            return getTable(tableName).iterator(this, predicate, reader);
+        }
+
+        /**
+         * Returns the data pages of tableName, whose records several workers may then read at
+         * once with readPage. The whole table is locked up front: the workers share this
+         * transaction, and must not race to lock its pages. The lock is on the table that is
+         * read, so on the table an alias names, and on the context of a temporary table.
+         */
+        public List<Page> getDataPages(String tableName) throws DatabaseException {
+            assert(this.active);
+            Table table = getTable(tableName);
+            LockUtil.requestLocks(this, table.getLockContext(), LockType.S);
+            return table.getDataPages(this);
+        }
+
+        /**
+         * Returns what reader reads from the records on page, a data page of tableName returned
+         * by getDataPages, that satisfy predicate (see Table.readPage).
+         */
+        public <T> List<T> readPage(String tableName, Page page, RecordPredicate predicate,
+                                    RecordReader<T> reader) throws DatabaseException {
+            assert(this.active);
+            return getTable(tableName).readPage(this, page, predicate, reader);
+        }
+
         public RecordId updateRecord(String tableName, List<DataBox> values,
                                      RecordId rid)  throws DatabaseException {
             // TODO(hw5): index locking
@@ -522,25 +1238,13 @@ public class Database {
                                          RecordId rid) throws DatabaseException {
             assert(this.active);
             Table tab = getTable(tableName);
+            checkWritable(tab);
             Schema s = tab.getSchema();
 
             Record rec = tab.updateRecord(this, values, rid);
 
-            List<DataBox> oldValues = rec.getValues();
-            List<String> colNames = s.getFieldNames();
-
-            for (int i = 0; i < colNames.size(); i++) {
-                String col = colNames.get(i);
-                if (indexExists(tableName, col)) {
-                    BPlusTree tree = resolveIndexFromName(tableName, col).getSecond();
-                    tree.remove(this, oldValues.get(i));
-                    try {
-                        tree.put(this, values.get(i), rid);
-                    } catch (BPlusTreeException e) {
-                        throw new DatabaseException(e.getMessage());
-                    }
-                }
-            }
+            removeIndexEntries(tableName, s, rec.getValues(), rid);
+            putIndexEntries(tableName, s, values, rid);
 
             return rid;
         }
@@ -582,9 +1286,17 @@ public class Database {
 
         public int getNumIndexPages(String tableName, String columnName) throws DatabaseException {
             assert(this.active);
+            if (hashIndexExists(tableName, columnName)) {
+                return this.resolveHashIndexFromName(tableName, columnName).getSecond().getNumPages();
+            }
             return this.resolveIndexFromName(tableName, columnName).getSecond().getNumPages();
         }
 
+        public int getNumIndexPages(String tableName, List<String> columnNames) throws DatabaseException {
+            assert(this.active);
+            return this.resolveIndexFromColumns(tableName, columnNames).getSecond().getNumPages();
+        }
+
         public Schema getSchema(String tableName) throws DatabaseException {
             assert(this.active);
             return getTable(tableName).getSchema();
@@ -604,24 +1316,314 @@ public class Database {
 
         private Pair<String, BPlusTree> resolveIndexFromName(String tableName,
                 String columnName) throws DatabaseException {
+            return resolveIndexFromColumns(tableName, Collections.singletonList(columnName));
+        }
+
+        private Pair<String, BPlusTree> resolveIndexFromColumns(String tableName,
+                List<String> columnNames) throws DatabaseException {
+            String indexName = getIndexName(tableName, columnNames);
+            if (Database.this.indexLookup.containsKey(indexName)) {
+                return new Pair<>(indexName, Database.this.indexLookup.get(indexName));
+            }
+            throw new DatabaseException("Index does not exist");
+        }
+
+        private Pair<String, HashIndex> resolveHashIndexFromName(String tableName,
+                String columnName) throws DatabaseException {
+            String indexName = getIndexName(tableName, Collections.singletonList(columnName));
+            if (Database.this.hashIndexLookup.containsKey(indexName)) {
+                return new Pair<>(indexName, Database.this.hashIndexLookup.get(indexName));
+            }
+            throw new DatabaseException("Index does not exist");
+        }
+
+        /**
+         * Returns the name an index on columnNames of tableName would have, resolving
+         * aliases of the table and of qualified column names.
+         */
+        private String getIndexName(String tableName, List<String> columnNames) throws DatabaseException {
             while (aliasMaps.containsKey(tableName)) {
                 tableName = aliasMaps.get(tableName);
             }
-            if (columnName.contains(".")) {
-                String columnPrefix = columnName.split("\\.")[0];
-                while (aliasMaps.containsKey(columnPrefix)) {
-                    columnPrefix = aliasMaps.get(columnPrefix);
+            StringBuilder indexName = new StringBuilder(tableName);
+            for (String columnName : columnNames) {
+                if (columnName.contains(".")) {
+                    String columnPrefix = columnName.split("\\.")[0];
+                    while (aliasMaps.containsKey(columnPrefix)) {
+                        columnPrefix = aliasMaps.get(columnPrefix);
+                    }
+                    if (!tableName.equals(columnPrefix)) {
+                        throw new DatabaseException("Column: " + columnName + " is not a column of " + tableName);
+                    }
+                    columnName = columnName.split("\\.")[1];
                 }
-                if (!tableName.equals(columnPrefix)) {
-                    throw new DatabaseException("Column: " + columnName + " is not a column of " + tableName);
+                indexName.append(",").append(columnName);
+            }
+            return indexName.toString();
+        }
+
+        /**
+         * Returns the names of all indexes on a table (none for temporary tables).
+         */
+        private List<String> getIndexNames(String tableName) {
+            if (this.tempTables.containsKey(tableName)) {
+                return Collections.emptyList();
+            }
+            while (aliasMaps.containsKey(tableName)) {
+                tableName = aliasMaps.get(tableName);
+            }
+            return Database.this.tableIndices.getOrDefault(tableName, Collections.emptyList());
+        }
+
+        /**
+         * Returns the names of all hash indexes on a table (none for temporary tables).
+         */
+        private List<String> getHashIndexNames(String tableName) {
+            if (this.tempTables.containsKey(tableName)) {
+                return Collections.emptyList();
+            }
+            while (aliasMaps.containsKey(tableName)) {
+                tableName = aliasMaps.get(tableName);
+            }
+            return Database.this.tableHashIndices.getOrDefault(tableName, Collections.emptyList());
+        }
+
+        /**
+         * Returns the key that a record with the given values has in the index
+         * indexName: the value of the indexed column for a single-column index, or
+         * the tuple of the values of the indexed columns for a composite index.
+         */
+        private DataBox getIndexKey(Schema s, String indexName, List<DataBox> values) {
+            List<String> columns = getIndexColumns(indexName);
+            if (columns.size() == 1) {
+                return values.get(s.getFieldNames().indexOf(columns.get(0)));
+            }
+            List<DataBox> key = new ArrayList<DataBox>();
+            for (String col : columns) {
+                key.add(values.get(s.getFieldNames().indexOf(col)));
+            }
+            return new TupleDataBox(key);
+        }
+
+        /**
+         * Returns the key that the record rid, with the given values, has in the
+         * B+ tree of the index indexName: the fields of its getIndexKey followed by
+         * the page and entry numbers of rid, which tell apart the keys of records
+         * whose indexed columns are equal.
+         */
+        private DataBox getIndexEntryKey(Schema s, String indexName, List<DataBox> values,
+                                         RecordId rid) {
+            List<DataBox> key = getKeyFields(getIndexKey(s, indexName, values));
+            key.add(new IntDataBox(rid.getPageNum()));
+            key.add(new IntDataBox(rid.getEntryNum()));
+            return new TupleDataBox(key);
+        }
+
+        /**
+         * Returns the type of the keys of the B+ tree of an index on columns of the
+         * given types (see getIndexEntryKey).
+         */
+        private Type getIndexKeyType(List<Type> columnTypes) {
+            List<Type> types = new ArrayList<Type>(columnTypes);
+            types.add(Type.intType());
+            types.add(Type.intType());
+            return Type.tupleType(types);
+        }
+
+        /**
+         * Returns the fields of a key of an index as returned by getIndexKey, or of
+         * a value being looked up in one.
+         */
+        private List<DataBox> getKeyFields(DataBox key) {
+            if (key instanceof TupleDataBox) {
+                return new ArrayList<DataBox>(((TupleDataBox) key).getValues());
+            }
+            return new ArrayList<DataBox>(Collections.singletonList(key));
+        }
+
+        /**
+         * Replaces the key of each of entries, read from the B+ tree of indexName, by
+         * its getIndexKey, leaving out the record id at its end.
+         */
+        private Iterator<IndexEntry> withIndexKeys(String indexName, Iterator<IndexEntry> entries) {
+            int numColumns = getIndexColumns(indexName).size();
+            return new Iterator<IndexEntry>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public IndexEntry next() {
+                    IndexEntry entry = entries.next();
+                    List<DataBox> fields = ((TupleDataBox) entry.getKey()).getValues();
+                    DataBox key = numColumns == 1
+                                  ? fields.get(0)
+                                  : new TupleDataBox(fields.subList(0, numColumns));
+                    return new IndexEntry(key, entry.getRecordId(), entry.getIncluded());
+                }
+            };
+        }
+
+        /**
+         * Returns the entries that the index indexName on tableName has as of the
+         * snapshot of this read-only transaction, given the entries it has now whose
+         * keys (as returned by getIndexKey) satisfy inRange, in index order.
+         *
+         * Indexes are not versioned, but the only records that the snapshot may see
+         * differently from how they are now are those with versions (see
+         * Table.getVersionedRecordIds), so the entries of every other record are
+         * returned as they are. The records with versions are instead read as of the
+         * snapshot, whether or not the index still has an entry for them, and those
+         * whose keys satisfy inRange are merged into the entries in key order. The
+         * entries of records that are written while the entries are being read are
+         * read as of the snapshot as well.
+         */
+        private Iterator<IndexEntry> getSnapshotEntries(String tableName, String indexName,
+                Iterator<IndexEntry> entries, Predicate<DataBox> inRange) throws DatabaseException {
+            Table tab = getTable(tableName);
+            Comparator<IndexEntry> order = (a, b) -> {
+                int c = a.getKey().compareTo(b.getKey());
+                return c != 0 ? c : a.getRecordId().compareTo(b.getRecordId());
+            };
+            Set<RecordId> versioned = new HashSet<RecordId>(tab.getVersionedRecordIds());
+            List<IndexEntry> snapshotEntries = new ArrayList<IndexEntry>();
+            for (RecordId rid : versioned) {
+                IndexEntry entry = getSnapshotEntry(tab, indexName, rid, inRange);
+                if (entry != null) {
+                    snapshotEntries.add(entry);
                 }
-                columnName = columnName.split("\\.")[1];
             }
-            String indexName = tableName + "," + columnName;
-            if (Database.this.indexLookup.containsKey(indexName)) {
-                return new Pair<>(indexName, Database.this.indexLookup.get(indexName));
+            Collections.sort(snapshotEntries, order);
+            Iterator<IndexEntry> others = snapshotEntries.iterator();
+
+            return new Iterator<IndexEntry>() {
+                // The next entry of entries to return, and of others.
+                private IndexEntry nextEntry = null;
+                private IndexEntry nextOther = others.hasNext() ? others.next() : null;
+
+                @Override
+                public boolean hasNext() {
+                    while (this.nextEntry == null && entries.hasNext()) {
+                        IndexEntry entry = entries.next();
+                        RecordId rid = entry.getRecordId();
+                        if (versioned.contains(rid)) {
+                            continue;
+                        }
+                        if (tab.hasVersions(rid)) {
+                            try {
+                                entry = getSnapshotEntry(tab, indexName, rid, inRange);
+                            } catch (DatabaseException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                        this.nextEntry = entry;
+                    }
+                    return this.nextEntry != null || this.nextOther != null;
+                }
+
+                @Override
+                public IndexEntry next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    IndexEntry entry;
+                    boolean fromEntries = this.nextOther == null || (this.nextEntry != null
+                                          && order.compare(this.nextEntry, this.nextOther) <= 0);
+                    if (fromEntries) {
+                        entry = this.nextEntry;
+                        this.nextEntry = null;
+                    } else {
+                        entry = this.nextOther;
+                        this.nextOther = others.hasNext() ? others.next() : null;
+                    }
+                    return entry;
+                }
+            };
+        }
+
+        /**
+         * Returns the entry of the record rid in the index indexName on tab, as of the
+         * snapshot of this read-only transaction, or null if the snapshot has no such
+         * record or its key does not satisfy inRange.
+         */
+        private IndexEntry getSnapshotEntry(Table tab, String indexName, RecordId rid,
+                                            Predicate<DataBox> inRange) throws DatabaseException {
+            Record record = tab.findRecord(this, rid);
+            if (record == null) {
+                return null;
+            }
+            Schema s = tab.getSchema();
+            DataBox key = getIndexKey(s, indexName, record.getValues());
+            if (!inRange.test(key)) {
+                return null;
+            }
+            return new IndexEntry(key, rid, getIndexIncludedValues(s, indexName, record.getValues()));
+        }
+
+        /** Returns the entries (key, rid) of rids, the records with key key in a hash index. */
+        private Iterator<IndexEntry> withKey(DataBox key, Iterator<RecordId> rids) {
+            return new Iterator<IndexEntry>() {
+                @Override
+                public boolean hasNext() {
+                    return rids.hasNext();
+                }
+
+                @Override
+                public IndexEntry next() {
+                    return new IndexEntry(key, rids.next());
+                }
+            };
+        }
+
+        /** Returns the record ids of entries. */
+        private Iterator<RecordId> getRecordIds(Iterator<IndexEntry> entries) {
+            return new Iterator<RecordId>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public RecordId next() {
+                    return entries.next().getRecordId();
+                }
+            };
+        }
+
+        /**
+         * Returns the values that a record with the given values stores in the
+         * covering index indexName, or null if the index has no included columns.
+         */
+        private DataBox getIndexIncludedValues(Schema s, String indexName, List<DataBox> values) {
+            List<String> columns = Database.this.indexIncludedColumns.get(indexName);
+            if (columns == null) {
+                return null;
+            }
+            List<DataBox> included = new ArrayList<DataBox>();
+            for (String col : columns) {
+                included.add(values.get(s.getFieldNames().indexOf(col)));
+            }
+            return new TupleDataBox(included);
+        }
+
+        /**
+         * Throws if this transaction is read-only.
+         */
+        private void checkWritable() throws DatabaseException {
+            if (this.readOnly) {
+                throw new DatabaseException("Transaction " + this.transNum + " is read-only");
+            }
+        }
+
+        /**
+         * Throws if this transaction is read-only and table is not one of its
+         * temporary tables.
+         */
+        private void checkWritable(Table table) throws DatabaseException {
+            if (!this.tempTables.containsValue(table)) {
+                checkWritable();
             }
-            throw new DatabaseException("Index does not exist");
         }
 
         private Table getTable(String tableName) throws DatabaseException {
@@ -650,7 +1652,8 @@ public class Database {
             this.tempTables.get(tempTableName).close();
             Database.this.tableLookup.remove(tempTableName);
 
-            File f = new File(Database.this.fileDir + "temp/" + tempTableName + Table.FILENAME_EXTENSION);
+            Path path = Paths.get(Database.this.fileDir, "temp", tempTableName + Table.FILENAME_EXTENSION);
+            File f = new File(path.toString());
             f.delete();
         }
 
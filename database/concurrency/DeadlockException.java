@@ -0,0 +1,24 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Thrown by a lock request of a transaction that was aborted to break (or
+ * prevent) a deadlock. The request was not granted, and the transaction
+ * still holds all of its other locks: it is expected to roll back and
+ * release them.
+ */
+public class DeadlockException extends RuntimeException {
+    private String message;
+
+    public DeadlockException(String message) {
+        this.message = message;
+    }
+
+    public DeadlockException(Exception e) {
+        this.message = e.getClass().toString() + ": " + e.getMessage();
+    }
+
+    @Override
+    public String getMessage() {
+        return this.message;
+    }
+}
@@ -0,0 +1,18 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * How a LockManager deals with deadlocks. Transaction numbers are used as
+ * timestamps: a transaction with a smaller number is older.
+ */
+public enum DeadlockPolicy {
+    // Requests wait; a background thread periodically looks for cycles in the
+    // waits-for graph and aborts the youngest transaction of each cycle.
+    DETECT,
+    // An older transaction waits for a younger one; a younger transaction that
+    // would wait for an older one is aborted instead.
+    WAIT_DIE,
+    // A younger transaction waits for an older one; an older transaction that
+    // would wait for a younger one wounds it, aborting its next (or current)
+    // lock request, and then waits.
+    WOUND_WAIT
+}
@@ -3,12 +3,15 @@ package edu.berkeley.cs186.database.concurrency;
 import edu.berkeley.cs186.database.BaseTransaction;
 
 public class DummyLockContext extends LockContext {
+    // Dummy lock managers keep no state, so every dummy context shares one.
+    private static final DummyLockManager LOCK_MANAGER = new DummyLockManager();
+
     public DummyLockContext() {
         this(null);
     }
 
     public DummyLockContext(LockContext parent) {
-        super(new DummyLockManager(), parent, null);
+        super(LOCK_MANAGER, parent, null);
     }
 
     @Override
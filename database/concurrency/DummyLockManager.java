@@ -32,6 +32,9 @@ public class DummyLockManager extends LockManager {
     public void release(BaseTransaction transaction, ResourceName name)
     throws NoLockHeldException { }
 
+    @Override
+    public void releaseAll(BaseTransaction transaction) { }
+
     @Override
     public void promote(BaseTransaction transaction, ResourceName name,
                         LockType newLockType)
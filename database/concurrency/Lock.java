@@ -2,18 +2,20 @@ package edu.berkeley.cs186.database.concurrency;
 
 class Lock {
     public ResourceName name;
-    public LockType lockType;
+    public volatile LockType lockType;
+    public long transactionNum;
 
-    public Lock(ResourceName name, LockType lockType) {
+    public Lock(ResourceName name, LockType lockType, long transactionNum) {
         this.name = name;
         this.lockType = lockType;
+        this.transactionNum = transactionNum;
     }
 
     @Override
     public boolean equals(Object other) {
         if (other instanceof Lock) {
             Lock l = (Lock) other;
-            return l.name.equals(name) && lockType == l.lockType;
+            return l.name.equals(name) && lockType == l.lockType && transactionNum == l.transactionNum;
         } else {
             return false;
         }
@@ -21,11 +23,11 @@ class Lock {
 
     @Override
     public int hashCode() {
-        return 37 * name.hashCode() + lockType.hashCode();
+        return 37 * (37 * name.hashCode() + lockType.hashCode()) + Long.hashCode(transactionNum);
     }
 
     @Override
     public String toString() {
-        return lockType.toString() + "(" + name.toString() + ")";
+        return "T" + transactionNum + ": " + lockType.toString() + "(" + name.toString() + ")";
     }
 }
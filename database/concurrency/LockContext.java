@@ -4,6 +4,7 @@ import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * LockContext wraps around LockManager to provide the hierarchical structure
@@ -35,6 +36,8 @@ public class LockContext {
 
     // A cache of previously requested child contexts.
     protected Map<Object, LockContext> children;
+    // Whether reads of this LockContext and its descendants are always locked (see lockReads).
+    protected volatile boolean readsLocked;
 
     public LockContext(LockManager lockman, LockContext parent, Object name) {
         this(lockman, parent, name, false);
@@ -44,15 +47,15 @@ public class LockContext {
         this.lockman = lockman;
         this.parent = parent;
         if (parent == null) {
-            this.name = new ResourceName(name);
+            this.name = ResourceName.of(name);
         } else {
-            this.name = new ResourceName(parent.getResourceName(), name);
+            this.name = ResourceName.of(parent.getResourceName(), name);
         }
         this.childLocksDisabled = readonly;
         this.readonly = readonly;
-        this.numChildLocks = new HashMap<>();
+        this.numChildLocks = new ConcurrentHashMap<>();
         this.capacity = 0;
-        this.children = new HashMap<>();
+        this.children = new ConcurrentHashMap<>();
     }
 
     /**
@@ -76,32 +79,14 @@ public class LockContext {
      */
     public void acquire(BaseTransaction transaction, LockType lockType)
     throws InvalidLockException, DuplicateLockRequestException {
-    	if (readonly) {
-    		throw new UnsupportedOperationException("UnsupportedOperationException");
-    	}
-    	LockType plock = LockType.parentLock(lockType);
-    	if (this.parent == null) {
-    		lockman.acquire(transaction, name, lockType);
-    		//System.out.println(lockman.getLocks(transaction));
-    	}else {
-    		Pair<ResourceName, LockType> plockPair = new Pair<>(this.parent.name, plock);
-    		Pair<ResourceName, LockType> lockPair = new Pair<>(this.parent.name, lockType);
-    		//System.out.println(this.parent.lockman.getLocks(transaction));
-    		//System.out.println(plockPair);
-	    	if (this.parent.lockman.getLocks(transaction).contains(plockPair)|| this.parent.lockman.getLocks(transaction).contains(lockPair)) {
-	    		lockman.acquire(transaction, name, lockType);
-	    		//System.out.println(lockman.getLocks(transaction));
-	    		if (this.parent.numChildLocks.get(transaction.getTransNum()) == null) {
-	    			this.parent.numChildLocks.put(transaction.getTransNum(), 1);
-	    		}else {
-		    		int oldnumofc = this.parent.numChildLocks.get(transaction.getTransNum());
-		    		this.parent.numChildLocks.put(transaction.getTransNum(), oldnumofc+1);
-	    		}
-	    	}else {
-	    		throw new InvalidLockException("InvalidLockException");
-	    	}
-    	}
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        if (readonly) {
+            throw new UnsupportedOperationException("context is readonly");
+        }
+        checkParentLock(transaction, lockType);
+        lockman.acquire(transaction, name, lockType);
+        if (parent != null) {
+            parent.numChildLocks.merge(transaction.getTransNum(), 1, Integer::sum);
+        }
     }
 
     /**
@@ -118,30 +103,17 @@ public class LockContext {
      */
     public void release(BaseTransaction transaction)
     throws NoLockHeldException, InvalidLockException {
-    	if (readonly) {
-    		throw new UnsupportedOperationException("UnsupportedOperationException");
-    	}
-    	List<Pair<ResourceName, LockType>> childlocks =  this.childContext(transaction).lockman.getLocks(transaction);
-    	if (childlocks == null) {
-    		lockman.release(transaction, name);
-    	}else {
-    		boolean valid = true;
-    		List<Pair<ResourceName, LockType>> releaselocks = lockman.getLocks(transaction);
-    		for (Pair<ResourceName, LockType> childlock : childlocks) {
-    			Pair<ResourceName, LockType> p = new Pair<>(name, LockType.parentLock(childlock.getSecond()));
-    			if(releaselocks.contains(p)) {
-    				valid = false;
-    			}
-    		}
-    		if (valid == true) {
-    			//System.out.println(lockman.getLocks(transaction));
-    			lockman.release(transaction, name);
-    			//System.out.println(lockman.getLocks(transaction));
-    		}else {
-    			throw new InvalidLockException("InvalidLockException");
-    		}
-    	}
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        if (readonly) {
+            throw new UnsupportedOperationException("context is readonly");
+        }
+        if (numChildLocks.getOrDefault(transaction.getTransNum(), 0) > 0) {
+            throw new InvalidLockException("Transaction " + transaction.getTransNum() +
+                                           " still holds locks on children of " + name);
+        }
+        lockman.release(transaction, name);
+        if (parent != null) {
+            parent.numChildLocks.computeIfPresent(transaction.getTransNum(), (k, n) -> n == 1 ? null : n - 1);
+        }
     }
 
     /**
@@ -162,32 +134,11 @@ public class LockContext {
      */
     public void promote(BaseTransaction transaction, LockType newLockType)
     throws DuplicateLockRequestException, NoLockHeldException, InvalidLockException {
-    	if (readonly) {
-    		throw new UnsupportedOperationException("UnsupportedOperationException");
-    	}
-    	LockType plock = LockType.parentLock(newLockType);
-    	if (this.parent == null) {
-    		lockman.promote(transaction, name, newLockType);
-    		//System.out.println(lockman.getLocks(transaction));
-    	}else {
-    		Pair<ResourceName, LockType> plockPair = new Pair<>(this.parent.name, plock);
-    		Pair<ResourceName, LockType> lockPair = new Pair<>(this.parent.name, newLockType);
-    		//System.out.println(this.parent.lockman.getLocks(transaction));
-    		//System.out.println(plockPair);
-	    	if (this.parent.lockman.getLocks(transaction).contains(plockPair)|| this.parent.lockman.getLocks(transaction).contains(lockPair)) {
-	    		lockman.promote(transaction, name, newLockType);
-	    		//System.out.println(lockman.getLocks(transaction));
-//	    		if (this.parent.numChildLocks.get(transaction.getTransNum()) == null) {
-//	    			this.parent.numChildLocks.put(transaction.getTransNum(), 1);
-//	    		}else {
-//		    		int oldnumofc = this.parent.numChildLocks.get(transaction.getTransNum());
-//		    		this.parent.numChildLocks.put(transaction.getTransNum(), oldnumofc+1);
-//	    		}
-	    	}else {
-	    		throw new InvalidLockException("InvalidLockException");
-	    	}
-    	}
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        if (readonly) {
+            throw new UnsupportedOperationException("context is readonly");
+        }
+        checkParentLock(transaction, newLockType);
+        lockman.promote(transaction, name, newLockType);
     }
 
     /**
@@ -208,12 +159,35 @@ public class LockContext {
      * @throws UnsupportedOperationException if context is readonly
      */
     public void escalate(BaseTransaction transaction) throws NoLockHeldException {
-    	if (readonly) {
-    		throw new UnsupportedOperationException("UnsupportedOperationException");
-    	}nen
-    	LockContext child = this.childContext(name);
-    	List<Pair<ResourceName, LockType>> locklist = child.lockman.getLocks(transaction);
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        if (readonly) {
+            throw new UnsupportedOperationException("context is readonly");
+        }
+        LockType local = getLocalLockType(transaction);
+        List<ResourceName> releaseLocks = new ArrayList<>();
+        boolean exclusive = local == LockType.X || local == LockType.IX || local == LockType.SIX;
+        for (Pair<ResourceName, LockType> lock : lockman.getLocks(transaction)) {
+            if (lock.getFirst().isChildOf(name)) {
+                releaseLocks.add(lock.getFirst());
+                LockType t = lock.getSecond();
+                exclusive |= t == LockType.X || t == LockType.IX || t == LockType.SIX;
+            }
+        }
+        if (local == null && releaseLocks.isEmpty()) {
+            throw new NoLockHeldException("Transaction " + transaction.getTransNum() + " holds no lock on " +
+                                          name + " or its children");
+        }
+        LockType target = exclusive ? LockType.X : LockType.S;
+        if (local == target && releaseLocks.isEmpty()) {
+            return;
+        }
+        if (local != null) {
+            releaseLocks.add(name);
+        }
+        lockman.acquireAndRelease(transaction, name, target, releaseLocks);
+        if (local == null && parent != null) {
+            parent.numChildLocks.merge(transaction.getTransNum(), 1, Integer::sum);
+        }
+        clearChildLocks(transaction.getTransNum());
     }
 
     /**
@@ -225,7 +199,11 @@ public class LockContext {
         if (transaction == null) {
             return null;
         }
-        throw new UnsupportedOperationException("TODO(hw5): implement");
+        LockType local = getLocalLockType(transaction);
+        if (local != null || parent == null) {
+            return local;
+        }
+        return parent.getGlobalLockType(transaction);
     }
 
     /**
@@ -234,12 +212,37 @@ public class LockContext {
     public LockType getLocalLockType(BaseTransaction transaction) {
         if (transaction == null) {
             return null;
-        }else {
-        	List<Pair<ResourceName, LockType>> locklist = lockman.getLocks(transaction);
-        	LockType lock = locklist.get(0).getSecond();
-        	return lock;
         }
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        return lockman.getLockType(transaction, name);
+    }
+
+    /**
+     * Throws an InvalidLockException if TRANSACTION does not hold the lock on
+     * the parent resource that a LOCKTYPE lock on this resource requires.
+     */
+    private void checkParentLock(BaseTransaction transaction, LockType lockType) {
+        if (parent == null) {
+            return;
+        }
+        LockType parentType = parent.getLocalLockType(transaction);
+        if (!LockType.substitutable(parentType, LockType.parentLock(lockType))) {
+            throw new InvalidLockException("Transaction " + transaction.getTransNum() + " holds " + parentType +
+                                           " on " + parent.name + ", which does not allow " + lockType + " on " +
+                                           name);
+        }
+    }
+
+    /**
+     * Forgets the child locks of transaction transNum on this context and
+     * all of its descendants, after they have been escalated or released.
+     */
+    void clearChildLocks(long transNum) {
+        if (numChildLocks.remove(transNum) == null) {
+            return;
+        }
+        for (LockContext child : children.values()) {
+            child.clearChildLocks(transNum);
+        }
     }
 
     /**
@@ -253,6 +256,29 @@ public class LockContext {
         this.childLocksDisabled = true;
     }
 
+    /**
+     * Requires reads of this context and its descendants to be locked, even
+     * under a lock manager that validates reads instead (see
+     * LockManager#recordRead). This is used for indices, whose pages are read
+     * without latches, so that a read without a lock could see a write half
+     * done.
+     */
+    public void lockReads() {
+        this.readsLocked = true;
+    }
+
+    /**
+     * Returns whether reads of this context must be locked (see lockReads).
+     */
+    boolean readsLocked() {
+        for (LockContext c = this; c != null; c = c.parent) {
+            if (c.readsLocked) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Gets the parent context.
      */
@@ -264,11 +290,8 @@ public class LockContext {
      * Gets the context for the child with name NAME.
      */
     public LockContext childContext(Object name) {
-        if (!this.children.containsKey(name)) {
-            this.children.put(name, new LockContext(lockman, this, name, this.childLocksDisabled ||
-                                                    this.readonly));
-        }
-        return this.children.get(name);
+        return this.children.computeIfAbsent(name, k -> new LockContext(lockman, this, k,
+                                             this.childLocksDisabled || this.readonly));
     }
 
     /**
@@ -4,6 +4,15 @@ import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * LockManager maintains the bookkeeping for what transactions have
@@ -25,28 +34,887 @@ import java.util.*;
  * locks at the time, the request is considered valid (because the only problem
  * with such a request would be that the transaction does not have the appropriate
  * intent locks, but that is a multigranularity concern).
+ *
+ * Every resource that has locks or waiters has a lock head (a ResourceEntry)
+ * with its own FIFO queue of waiting requests, so releasing a lock only
+ * looks at the requests waiting for that resource. A lock head also keeps
+ * its group mode, the number of granted locks of each type, so whether a
+ * request can be granted is decided without looking at the granted locks.
+ *
+ * The lock manager is thread-safe. Lock heads are spread over a fixed number
+ * of stripes, each with its own latch, so requests on resources in different
+ * stripes never contend. A request that cannot be granted parks its thread on
+ * a condition of its stripe's latch until the request is granted; no thread
+ * ever spins. Since the latches are ReentrantLocks rather than monitors,
+ * parked virtual threads do not pin their carrier threads.
+ *
+ * Intention locks (IS and IX) are granted on a fast path that never touches
+ * the lock heads: as long as no transaction holds or requests a strong lock
+ * (S, SIX or X) on a resource, IS and IX locks on it are all compatible, so
+ * they are only recorded in the requesting transaction's own lock set. A
+ * strong request first moves every fast-path lock on its resource into the
+ * resource's lock head, and no new fast-path locks are granted on the
+ * resource until the strong lock is released. Intention locks on the
+ * database and on tables, which nearly every transaction takes, are thus
+ * granted without contending on a latch.
+ *
+ * Deadlocks are handled according to the lock manager's DeadlockPolicy. A
+ * transaction aborted to break or prevent a deadlock gets a DeadlockException
+ * from the lock request it is waiting on (or making), and keeps its other
+ * locks until it releases them.
+ *
+ * To find the resources that serialize a workload, the lock manager keeps
+ * statistics about the requests on the resources where requests had to wait
+ * (see ResourceLockStats, getHotResources and dumpWaitsFor). A resource is
+ * tracked from its first wait on, and only the MAX_TRACKED_RESOURCES that
+ * waited the longest are kept, so that the fast path never touches them.
  */
 public class LockManager {
-    // These members are given as a suggestion. You are not required to use them, and may
-    // delete them and add members as you see fit.
-    private Map<Long, List<Lock>> transactionLocks = new HashMap<>();
-    private Map<ResourceName, List<Pair<Long, Lock>>> resourceLocks = new HashMap<>();
-    private Deque<LockRequest> waitingQueue = new ArrayDeque<>();
+    // The number of stripes the lock heads are spread over. Must be a power of two.
+    private static final int NUM_STRIPES = 64;
+    // How often the background thread looks for deadlocks (or wounded waiters).
+    private static final long DEADLOCK_CHECK_INTERVAL_MILLIS = 100;
+    // The number of resources whose lock statistics are kept at most.
+    private static final int MAX_TRACKED_RESOURCES = 1024;
+
+    // The number of partitions of the fast-path counters. Must be a power of two.
+    private static final int NUM_FAST_PATH_PARTITIONS = 1024;
+
+    // The stripes, by stripe index.
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    // The locks held by each transaction.
+    private final Map<Long, TransactionLocks> transactionLocks = new ConcurrentHashMap<>();
+    // The number of strong locks held in lock heads, plus the number of strong
+    // requests in progress, on the resources of each fast-path partition.
+    private final AtomicIntegerArray strongLockCounts = new AtomicIntegerArray(NUM_FAST_PATH_PARTITIONS);
+    // The number of fast-path locks on the resources of each partition.
+    private final AtomicIntegerArray fastPathLockCounts = new AtomicIntegerArray(NUM_FAST_PATH_PARTITIONS);
+
+    private final DeadlockPolicy deadlockPolicy;
+    // The transactions wounded under WOUND_WAIT whose wound has not taken effect yet.
+    private final Set<Long> wounded = ConcurrentHashMap.newKeySet();
+    // The background thread of DETECT and WOUND_WAIT, started by the first wait.
+    private ScheduledExecutorService deadlockChecker;
+    // The resources with waiting requests. Only updated while holding the
+    // latch of the resource's stripe.
+    private final Set<ResourceName> waitingResources = ConcurrentHashMap.newKeySet();
+
+    // The number of transactions aborted because of deadlocks.
+    private final AtomicLong numDeadlocks = new AtomicLong();
+    // The number of requests that waited, and the total time they waited.
+    private final AtomicLong numWaits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    // The lock statistics of the tracked resources: those that requests
+    // waited for.
+    private final Map<ResourceName, ResourceStats> resourceStats = new ConcurrentHashMap<>();
 
     // You should not modify this.
     protected Map<Object, LockContext> contexts = new HashMap<>();
 
-    public LockManager() {}
+    /**
+     * A latch, and the lock heads of the resources it guards.
+     */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        // The lock head of every resource of the stripe with locks or waiters.
+        final Map<ResourceName, ResourceEntry> resourceEntries = new HashMap<>();
+    }
+
+    /**
+     * The lock statistics of a resource. The queue length is only updated
+     * while holding the latch of the resource's stripe.
+     */
+    private static class ResourceStats {
+        final LongAdder acquires = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        volatile int maxQueueLength;
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLongArray waitHistogram = new AtomicLongArray(ResourceLockStats.NUM_WAIT_BUCKETS);
+
+        ResourceLockStats snapshot(ResourceName name) {
+            long[] histogram = new long[ResourceLockStats.NUM_WAIT_BUCKETS];
+            for (int i = 0; i < histogram.length; ++i) {
+                histogram[i] = waitHistogram.get(i);
+            }
+            return new ResourceLockStats(name, acquires.sum(), conflicts.sum(), maxQueueLength,
+                                         waitNanos.sum(), histogram);
+        }
+    }
+
+    /**
+     * The locks held by a transaction. Only accessed while holding its
+     * monitor.
+     */
+    private static class TransactionLocks {
+        // Every lock of the transaction, in order of acquisition.
+        final Map<ResourceName, Lock> locks = new LinkedHashMap<>();
+        // The resources of the locks that were granted on the fast path and
+        // are not in their resources' lock heads.
+        final Set<ResourceName> fastPath = new HashSet<>();
+    }
+
+    /**
+     * The lock head of a resource. Only accessed while holding the latch of
+     * the resource's stripe.
+     */
+    private class ResourceEntry {
+        // The locks granted on the resource, by transaction number, in order
+        // of acquisition. A promotion updates a lock in place.
+        Map<Long, Lock> locks = new LinkedHashMap<>();
+        // The requests waiting for the resource, in the order they are granted.
+        Deque<LockRequest> waitingQueue = new ArrayDeque<>();
+        // The number of granted locks of each type, by LockType#ordinal.
+        int[] groupMode = new int[LockType.values().length];
+
+        /**
+         * Returns whether lockType is compatible with every lock granted on
+         * the resource, other than the lock of transaction transNum (if any).
+         */
+        boolean checkCompatible(LockType lockType, long transNum) {
+            Lock own = locks.get(transNum);
+            for (LockType t : LockType.values()) {
+                int count = groupMode[t.ordinal()];
+                if (own != null && own.lockType == t) {
+                    --count;
+                }
+                if (count > 0 && !LockType.compatible(lockType, t)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Grants transaction a lockType lock on the resource, replacing the
+         * lock it already holds on the resource, if any.
+         */
+        void grant(ResourceName name, long transNum, LockType lockType) {
+            Lock lock = locks.get(transNum);
+            if (lock != null) {
+                --groupMode[lock.lockType.ordinal()];
+                if (isStrong(lock.lockType)) {
+                    // The new lock is counted by its request.
+                    strongLockCounts.decrementAndGet(partition(name));
+                }
+                lock.lockType = lockType;
+            } else {
+                lock = new Lock(name, lockType, transNum);
+                locks.put(transNum, lock);
+                TransactionLocks held = getTransactionLocks(transNum);
+                synchronized (held) {
+                    held.locks.put(name, lock);
+                }
+            }
+            ++groupMode[lockType.ordinal()];
+        }
+
+        /**
+         * Adds LOCK, which was granted on the fast path, to the resource.
+         */
+        void addFastPathLock(Lock lock) {
+            locks.put(lock.transactionNum, lock);
+            ++groupMode[lock.lockType.ordinal()];
+        }
+
+        /**
+         * Returns the transactions that a request of transaction transNum for
+         * a lockType lock waits for if it is queued behind the first numAhead
+         * requests of the queue: those holding incompatible locks, and those
+         * whose requests are ahead of it.
+         */
+        Set<Long> blockers(long transNum, LockType lockType, int numAhead) {
+            Set<Long> result = new HashSet<>();
+            for (Lock lock : locks.values()) {
+                if (lock.transactionNum != transNum && !LockType.compatible(lockType, lock.lockType)) {
+                    result.add(lock.transactionNum);
+                }
+            }
+            Iterator<LockRequest> ahead = waitingQueue.iterator();
+            for (int i = 0; i < numAhead; ++i) {
+                long waiter = ahead.next().transaction.getTransNum();
+                if (waiter != transNum) {
+                    result.add(waiter);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Removes the lock of transaction transNum from the resource.
+         */
+        void remove(long transNum) {
+            Lock lock = removeFromHead(transNum);
+            removeTransactionLock(transNum, lock.name);
+        }
+
+        /**
+         * Removes the lock of transaction transNum from the resource, but not
+         * from the transaction's lock set, and returns it.
+         */
+        Lock removeFromHead(long transNum) {
+            Lock lock = locks.remove(transNum);
+            --groupMode[lock.lockType.ordinal()];
+            if (isStrong(lock.lockType)) {
+                strongLockCounts.decrementAndGet(partition(lock.name));
+            }
+            return lock;
+        }
+
+        @Override
+        public String toString() {
+            return "Active Locks: " + locks.values() + ", Queue: " + waitingQueue;
+        }
+    }
+
+    public LockManager() {
+        this(DeadlockPolicy.DETECT);
+    }
+
+    public LockManager(DeadlockPolicy deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+        for (int i = 0; i < NUM_STRIPES; ++i) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // Stripes ///////////////////////////////////////////////////////////////
+
+    private int stripeIndex(ResourceName name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return h & (NUM_STRIPES - 1);
+    }
+
+    private Stripe stripeFor(ResourceName name) {
+        return stripes[stripeIndex(name)];
+    }
+
+    /**
+     * Acquires the latches of the stripes of NAMES, in stripe order so that
+     * two threads latching overlapping stripes cannot deadlock, and returns
+     * the latched stripes.
+     */
+    private List<Stripe> latchStripes(Collection<ResourceName> names) {
+        SortedSet<Integer> indices = new TreeSet<>();
+        for (ResourceName n : names) {
+            indices.add(stripeIndex(n));
+        }
+        List<Stripe> latched = new ArrayList<>();
+        for (int i : indices) {
+            stripes[i].latch.lock();
+            latched.add(stripes[i]);
+        }
+        return latched;
+    }
+
+    private List<Stripe> latchAllStripes() {
+        List<Stripe> latched = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.latch.lock();
+            latched.add(stripe);
+        }
+        return latched;
+    }
+
+    private void unlatchStripes(List<Stripe> latched) {
+        for (int i = latched.size() - 1; i >= 0; --i) {
+            latched.get(i).latch.unlock();
+        }
+    }
+
+    // Transactions' locks ///////////////////////////////////////////////////
+
+    /**
+     * Returns the lock set of transaction transNum, creating it if it does
+     * not exist.
+     */
+    private TransactionLocks getTransactionLocks(long transNum) {
+        return transactionLocks.computeIfAbsent(transNum, k -> new TransactionLocks());
+    }
+
+    /**
+     * Removes the lock of transaction transNum on NAME from its lock set,
+     * and drops the lock set once it is empty. A lock set is only emptied by
+     * its own transaction, so it is never dropped while being added to.
+     */
+    private void removeTransactionLock(long transNum, ResourceName name) {
+        TransactionLocks held = transactionLocks.get(transNum);
+        synchronized (held) {
+            held.locks.remove(name);
+            if (!held.locks.isEmpty()) {
+                return;
+            }
+            transactionLocks.remove(transNum, held);
+        }
+        wounded.remove(transNum);
+    }
+
+    /**
+     * Returns transaction transNum's lock on NAME, or null.
+     */
+    private Lock heldLock(long transNum, ResourceName name) {
+        TransactionLocks held = transactionLocks.get(transNum);
+        if (held == null) {
+            return null;
+        }
+        synchronized (held) {
+            return held.locks.get(name);
+        }
+    }
+
+    /**
+     * Returns the type of lock transaction transNum has on NAME, or null.
+     */
+    private LockType heldLockType(long transNum, ResourceName name) {
+        Lock lock = heldLock(transNum, name);
+        return lock == null ? null : lock.lockType;
+    }
+
+    // Fast path /////////////////////////////////////////////////////////////
+
+    private static boolean isStrong(LockType lockType) {
+        return lockType == LockType.S || lockType == LockType.SIX || lockType == LockType.X;
+    }
+
+    private static int partition(ResourceName name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return h & (NUM_FAST_PATH_PARTITIONS - 1);
+    }
+
+    /**
+     * Grants transaction transNum a LOCKTYPE lock on NAME on the fast path,
+     * or replaces its fast-path lock on NAME by a LOCKTYPE lock, if no strong
+     * lock is held or requested on NAME's partition. Returns whether the lock
+     * was granted.
+     */
+    private boolean tryFastPath(long transNum, ResourceName name, LockType lockType) {
+        int p = partition(name);
+        TransactionLocks held = getTransactionLocks(transNum);
+        synchronized (held) {
+            // A strong request raises the count before moving fast-path locks
+            // to the lock head under this monitor, so it either sees this
+            // lock or this sees its count.
+            if (strongLockCounts.get(p) != 0) {
+                return false;
+            }
+            Lock lock = held.locks.get(name);
+            if (lock == null) {
+                held.locks.put(name, new Lock(name, lockType, transNum));
+                held.fastPath.add(name);
+                fastPathLockCounts.incrementAndGet(p);
+                return true;
+            }
+            if (held.fastPath.contains(name)) {
+                lock.lockType = lockType;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Releases transaction transNum's lock on NAME if it is a fast-path lock.
+     * No request can be waiting for a fast-path lock. Returns whether the lock
+     * was released.
+     */
+    private boolean tryReleaseFastPath(long transNum, ResourceName name) {
+        TransactionLocks held = transactionLocks.get(transNum);
+        if (held == null) {
+            return false;
+        }
+        synchronized (held) {
+            if (!held.fastPath.remove(name)) {
+                return false;
+            }
+            fastPathLockCounts.decrementAndGet(partition(name));
+        }
+        removeTransactionLock(transNum, name);
+        return true;
+    }
+
+    /**
+     * Moves every fast-path lock on NAME into NAME's lock head. The latch of
+     * NAME's stripe must be held.
+     */
+    private void transferFastPathLocks(ResourceName name) {
+        int p = partition(name);
+        if (fastPathLockCounts.get(p) == 0) {
+            return;
+        }
+        ResourceEntry entry = null;
+        for (TransactionLocks held : transactionLocks.values()) {
+            synchronized (held) {
+                if (held.fastPath.remove(name)) {
+                    fastPathLockCounts.decrementAndGet(p);
+                    if (entry == null) {
+                        entry = getResourceEntry(name);
+                    }
+                    entry.addFastPathLock(held.locks.get(name));
+                }
+            }
+        }
+    }
+
+    // Lock heads ////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the lock head of NAME, creating it if it does not exist. The
+     * latch of NAME's stripe must be held.
+     */
+    private ResourceEntry getResourceEntry(ResourceName name) {
+        return stripeFor(name).resourceEntries.computeIfAbsent(name, k -> new ResourceEntry());
+    }
+
+    /**
+     * Drops the lock head of NAME if it has neither locks nor waiters. The
+     * latch of NAME's stripe must be held.
+     */
+    private void cleanUpResourceEntry(ResourceName name, ResourceEntry entry) {
+        if (entry.locks.isEmpty() && entry.waitingQueue.isEmpty()) {
+            stripeFor(name).resourceEntries.remove(name);
+        }
+    }
+
+    /**
+     * Grants the requests at the front of NAME's queue, in order, until one
+     * cannot be granted, and wakes the threads that made them. Each of them
+     * releases the locks its request releases before returning. The latch of
+     * NAME's stripe must be held.
+     */
+    private void processQueue(ResourceName name, ResourceEntry entry) {
+        while (!entry.waitingQueue.isEmpty()) {
+            LockRequest request = entry.waitingQueue.peekFirst();
+            long transNum = request.transaction.getTransNum();
+            if (!entry.checkCompatible(request.lock.lockType, transNum)) {
+                break;
+            }
+            entry.waitingQueue.removeFirst();
+            entry.grant(name, transNum, request.lock.lockType);
+            request.granted = true;
+            request.condition.signal();
+        }
+        if (entry.waitingQueue.isEmpty()) {
+            waitingResources.remove(name);
+        }
+        cleanUpResourceEntry(name, entry);
+    }
+
+    /**
+     * Releases TRANSACTION's lock on NAME, which must exist, and grants
+     * whatever requests for NAME can now be granted. The latch of NAME's
+     * stripe must be held.
+     */
+    private void releaseLock(BaseTransaction transaction, ResourceName name) {
+        ResourceEntry entry = stripeFor(name).resourceEntries.get(name);
+        entry.remove(transaction.getTransNum());
+        processQueue(name, entry);
+    }
+
+    /**
+     * Queues REQUEST on ENTRY, at the front if FRONT is set, and parks the
+     * calling thread until the request is granted. Only the latch of the
+     * stripe of the requested resource may be held, and it is still held
+     * when this returns.
+     *
+     * @throws DeadlockException if the request is aborted because of a
+     * deadlock, or would wait for an older transaction under WAIT_DIE
+     */
+    private void waitForGrant(ResourceEntry entry, LockRequest request, boolean front) {
+        ResourceName name = request.lock.name;
+        long transNum = request.transaction.getTransNum();
+        Set<Long> blockers = entry.blockers(transNum, request.lock.lockType,
+                                            front ? 0 : entry.waitingQueue.size());
+        for (long blocker : blockers) {
+            if (deadlockPolicy == DeadlockPolicy.WAIT_DIE && blocker < transNum) {
+                cleanUpResourceEntry(name, entry);
+                throw deadlock(transNum, "would wait for older transaction " + blocker + " on " + name);
+            }
+            if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT && blocker > transNum) {
+                wounded.add(blocker);
+            }
+        }
+        if (deadlockPolicy != DeadlockPolicy.WAIT_DIE) {
+            startDeadlockChecker();
+        }
+
+        request.condition = stripeFor(name).latch.newCondition();
+        if (front) {
+            entry.waitingQueue.addFirst(request);
+        } else {
+            entry.waitingQueue.addLast(request);
+        }
+        waitingResources.add(name);
+        ResourceStats stats = trackStats(name);
+        stats.conflicts.increment();
+        stats.maxQueueLength = Math.max(stats.maxQueueLength, entry.waitingQueue.size());
+        request.transaction.block();
+        long start = System.nanoTime();
+        while (!request.granted && !request.aborted) {
+            request.condition.awaitUninterruptibly();
+        }
+        long waited = System.nanoTime() - start;
+        numWaits.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        stats.waitNanos.add(waited);
+        stats.waitHistogram.incrementAndGet(ResourceLockStats.waitBucket(waited));
+        request.transaction.unblock();
+        if (request.aborted) {
+            throw deadlock(transNum, "aborted while waiting for " + request.lock);
+        }
+    }
+
+    private DeadlockException deadlock(long transNum, String reason) {
+        numDeadlocks.incrementAndGet();
+        return new DeadlockException("Transaction " + transNum + " aborted to avoid deadlock: " + reason);
+    }
+
+    /**
+     * Throws a DeadlockException if transaction transNum was wounded since
+     * its last lock request.
+     */
+    private void checkWounded(long transNum) {
+        if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT && wounded.remove(transNum)) {
+            throw deadlock(transNum, "wounded by an older transaction");
+        }
+    }
+
+    // Deadlocks /////////////////////////////////////////////////////////////
+
+    private synchronized void startDeadlockChecker() {
+        if (deadlockChecker != null) {
+            return;
+        }
+        deadlockChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lock-manager-deadlock-checker");
+            t.setDaemon(true);
+            return t;
+        });
+        deadlockChecker.scheduleWithFixedDelay(this::checkDeadlocks, DEADLOCK_CHECK_INTERVAL_MILLIS,
+                                               DEADLOCK_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background deadlock checker, if it is running.
+     */
+    public synchronized void close() {
+        if (deadlockChecker != null) {
+            deadlockChecker.shutdownNow();
+            deadlockChecker = null;
+        }
+    }
+
+    /**
+     * Breaks the current deadlocks. Under DETECT, aborts the youngest
+     * transaction of every cycle of the waits-for graph; under WOUND_WAIT,
+     * aborts the waiting requests of wounded transactions. This is run
+     * periodically in the background once a request has had to wait, and
+     * does nothing while no request is waiting.
+     *
+     * A request only waits for the locks and requests of its own resource,
+     * so only the stripes of the resources with waiting requests are
+     * latched. Resources that get waiting requests in the meantime are
+     * looked at by the next run.
+     */
+    public void checkDeadlocks() {
+        if (deadlockPolicy == DeadlockPolicy.WAIT_DIE || waitingResources.isEmpty()) {
+            return;
+        }
+        List<ResourceName> names = new ArrayList<>(waitingResources);
+        List<Stripe> latched = latchStripes(names);
+        try {
+            Map<Long, LockRequest> waiting = new HashMap<>();
+            Map<Long, Set<Long>> waitsFor = new HashMap<>();
+            buildWaitsForGraph(names, waiting, waitsFor);
+            if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT) {
+                for (Map.Entry<Long, LockRequest> e : waiting.entrySet()) {
+                    if (wounded.remove(e.getKey())) {
+                        abortRequest(e.getValue());
+                    }
+                }
+                return;
+            }
+            List<Long> cycle;
+            while ((cycle = findCycle(waitsFor)) != null) {
+                abortRequest(waiting.get(Collections.max(cycle)));
+                // Aborting a request can grant others, so start over.
+                waiting.clear();
+                waitsFor.clear();
+                buildWaitsForGraph(names, waiting, waitsFor);
+            }
+        } finally {
+            unlatchStripes(latched);
+        }
+    }
+
+    /**
+     * Fills WAITING with the queued request of every transaction waiting for
+     * one of NAMES, and WAITSFOR with the transactions each of them waits
+     * for. The latches of the stripes of NAMES must be held.
+     */
+    private void buildWaitsForGraph(List<ResourceName> names, Map<Long, LockRequest> waiting,
+                                    Map<Long, Set<Long>> waitsFor) {
+        for (ResourceName name : names) {
+            ResourceEntry entry = stripeFor(name).resourceEntries.get(name);
+            if (entry == null) {
+                continue;
+            }
+            int numAhead = 0;
+            for (LockRequest request : entry.waitingQueue) {
+                long transNum = request.transaction.getTransNum();
+                waiting.put(transNum, request);
+                waitsFor.computeIfAbsent(transNum, k -> new HashSet<>())
+                .addAll(entry.blockers(transNum, request.lock.lockType, numAhead));
+                ++numAhead;
+            }
+        }
+    }
+
+    /**
+     * Returns the transactions of some cycle of WAITSFOR, or null if it has
+     * no cycle.
+     */
+    private static List<Long> findCycle(Map<Long, Set<Long>> waitsFor) {
+        Set<Long> done = new HashSet<>();
+        for (Long start : waitsFor.keySet()) {
+            List<Long> path = new ArrayList<>();
+            List<Long> cycle = findCycle(waitsFor, start, path, new HashSet<>(), done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    private static List<Long> findCycle(Map<Long, Set<Long>> waitsFor, Long node, List<Long> path,
+                                        Set<Long> onPath, Set<Long> done) {
+        if (onPath.contains(node)) {
+            return new ArrayList<>(path.subList(path.indexOf(node), path.size()));
+        }
+        if (done.contains(node)) {
+            return null;
+        }
+        path.add(node);
+        onPath.add(node);
+        for (Long next : waitsFor.getOrDefault(node, Collections.emptySet())) {
+            List<Long> cycle = findCycle(waitsFor, next, path, onPath, done);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        onPath.remove(node);
+        done.add(node);
+        return null;
+    }
+
+    /**
+     * Removes the queued request REQUEST, wakes its thread with a
+     * DeadlockException, and grants whatever requests behind it can now be
+     * granted. The latch of the requested resource's stripe must be held.
+     */
+    private void abortRequest(LockRequest request) {
+        ResourceName name = request.lock.name;
+        ResourceEntry entry = stripeFor(name).resourceEntries.get(name);
+        entry.waitingQueue.remove(request);
+        request.aborted = true;
+        request.condition.signal();
+        processQueue(name, entry);
+    }
+
+    /**
+     * Returns the number of transactions aborted because of deadlocks.
+     */
+    public long getNumDeadlocks() {
+        return numDeadlocks.get();
+    }
+
+    /**
+     * Returns the number of lock requests that had to wait.
+     */
+    public long getNumWaits() {
+        return numWaits.get();
+    }
+
+    /**
+     * Returns the total time, in nanoseconds, lock requests spent waiting.
+     */
+    public long getWaitTimeNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * Returns the statistics of NAME, which a request is about to wait for,
+     * tracking it if it is not yet. Once MAX_TRACKED_RESOURCES are tracked,
+     * the one that waited the least is forgotten to make room.
+     */
+    private ResourceStats trackStats(ResourceName name) {
+        ResourceStats stats = resourceStats.get(name);
+        if (stats != null) {
+            return stats;
+        }
+        synchronized (resourceStats) {
+            stats = resourceStats.get(name);
+            if (stats != null) {
+                return stats;
+            }
+            if (resourceStats.size() >= MAX_TRACKED_RESOURCES) {
+                ResourceName coldest = null;
+                ResourceStats coldestStats = null;
+                for (Map.Entry<ResourceName, ResourceStats> e : resourceStats.entrySet()) {
+                    ResourceStats s = e.getValue();
+                    if (coldestStats == null || s.waitNanos.sum() < coldestStats.waitNanos.sum()) {
+                        coldest = e.getKey();
+                        coldestStats = s;
+                    }
+                }
+                resourceStats.remove(coldest);
+            }
+            stats = new ResourceStats();
+            // The request that waits is the first one counted.
+            stats.acquires.increment();
+            resourceStats.put(name, stats);
+            return stats;
+        }
+    }
+
+    /**
+     * Counts a request on NAME that did not take the fast path, if NAME is
+     * tracked.
+     */
+    private void countAcquire(ResourceName name) {
+        ResourceStats stats = resourceStats.get(name);
+        if (stats != null) {
+            stats.acquires.increment();
+        }
+    }
+
+    /**
+     * Returns the lock statistics of NAME, or null if it is not tracked: no
+     * request on it waited since the statistics were last reset, or it was
+     * forgotten to make room for resources that waited longer.
+     */
+    public ResourceLockStats getResourceStats(ResourceName name) {
+        ResourceStats stats = resourceStats.get(name);
+        return stats == null ? null : stats.snapshot(name);
+    }
+
+    /**
+     * Returns the statistics of the (at most) N resources whose lock requests
+     * waited the longest in total, hottest first. Ties are broken by the
+     * number of conflicts, then by the number of requests.
+     */
+    public List<ResourceLockStats> getHotResources(int n) {
+        List<ResourceLockStats> all = new ArrayList<>();
+        for (Map.Entry<ResourceName, ResourceStats> e : resourceStats.entrySet()) {
+            all.add(e.getValue().snapshot(e.getKey()));
+        }
+        all.sort(Comparator.comparingLong(ResourceLockStats::getWaitTimeNanos)
+                 .thenComparingLong(ResourceLockStats::getNumConflicts)
+                 .thenComparingLong(ResourceLockStats::getNumAcquires).reversed());
+        return new ArrayList<>(all.subList(0, Math.min(n, all.size())));
+    }
+
+    /**
+     * Forgets the lock statistics of every resource.
+     */
+    public void resetStats() {
+        resourceStats.clear();
+    }
+
+    /**
+     * Returns the current waits-for graph: every transaction waiting for a
+     * lock, mapped to the transactions it waits for.
+     */
+    public Map<Long, Set<Long>> getWaitsForGraph() {
+        List<Stripe> latched = latchAllStripes();
+        try {
+            Map<Long, Set<Long>> waitsFor = new HashMap<>();
+            buildWaitsForGraph(new ArrayList<>(waitingResources), new HashMap<>(), waitsFor);
+            return waitsFor;
+        } finally {
+            unlatchStripes(latched);
+        }
+    }
+
+    /**
+     * Returns a human-readable dump of the current waits-for state: for every
+     * resource with waiting requests, its granted locks and its queue, and
+     * then the transactions every waiting transaction waits for.
+     */
+    public String dumpWaitsFor() {
+        StringBuilder sb = new StringBuilder();
+        Map<Long, Set<Long>> waitsFor = new TreeMap<>();
+        List<Stripe> latched = latchAllStripes();
+        try {
+            for (Stripe stripe : stripes) {
+                for (Map.Entry<ResourceName, ResourceEntry> e : stripe.resourceEntries.entrySet()) {
+                    if (!e.getValue().waitingQueue.isEmpty()) {
+                        sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+                    }
+                }
+            }
+            buildWaitsForGraph(new ArrayList<>(waitingResources), new HashMap<>(), waitsFor);
+        } finally {
+            unlatchStripes(latched);
+        }
+        for (Map.Entry<Long, Set<Long>> e : waitsFor.entrySet()) {
+            sb.append("T").append(e.getKey()).append(" waits for ").append(new TreeSet<>(e.getValue()))
+            .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Releases the locks RELEASED of TRANSACTION, other than its lock on
+     * NAME, once its request for NAME has been granted.
+     */
+    private void releaseAfterGrant(BaseTransaction transaction, ResourceName name, List<Lock> released) {
+        for (Lock l : released) {
+            if (l.name.equals(name) || tryReleaseFastPath(transaction.getTransNum(), l.name)) {
+                continue;
+            }
+            Stripe stripe = stripeFor(l.name);
+            stripe.latch.lock();
+            try {
+                releaseLock(transaction, l.name);
+            } finally {
+                stripe.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called by LockUtil before TRANSACTION locks LOCKCONTEXT to read it.
+     * Returns whether the read can go ahead without a lock: a lock manager
+     * that validates reads when transactions end (see OptimisticLockManager)
+     * records the read instead. Under two-phase locking, every read is locked.
+     */
+    boolean recordRead(BaseTransaction transaction, LockContext lockContext) {
+        return false;
+    }
+
+    /**
+     * Returns whether what TRANSACTION read is still valid as it ends, so
+     * that it can commit. Reads under two-phase locking always are.
+     */
+    public boolean validate(BaseTransaction transaction) {
+        return true;
+    }
+
+    // Core API //////////////////////////////////////////////////////////////
 
     /**
      * Create a lock context for the database. See comments at
      * the top of this file and the top of LockContext.java for more information.
      */
     public LockContext databaseContext() {
-        if (!contexts.containsKey("database")) {
-            contexts.put("database", new LockContext(this, null, "database"));
+        synchronized (contexts) {
+            if (!contexts.containsKey("database")) {
+                contexts.put("database", new LockContext(this, null, "database"));
+            }
+            return contexts.get("database");
         }
-        return contexts.get("database");
     }
 
     /**
@@ -56,168 +924,134 @@ public class LockManager {
         if (name.equals("database")) {
             throw new IllegalArgumentException("cannot create orphan context named 'database'");
         }
-        if (!contexts.containsKey(name)) {
-            contexts.put(name, new LockContext(this, null, name));
+        synchronized (contexts) {
+            if (!contexts.containsKey(name)) {
+                contexts.put(name, new LockContext(this, null, name));
+            }
+            return contexts.get(name);
         }
-        return contexts.get(name);
     }
 
     /**
      * Acquire a LOCKTYPE lock on NAME, for transaction TRANSACTION, and releases all locks
      * in RELEASELOCKS after acquiring the lock. No error checking is performed for holding
      * requisite parent locks or freeing dependent child locks. Blocks the transaction and
-     * places it in queue if the requested lock is not compatible with another transaction's
-     * lock on the resource. Unblocks and unqueues all transactions that can be unblocked
-     * after releasing locks in RELEASELOCKS, in order of lock request.
+     * places it in the **front** of the queue if the requested lock is not compatible with
+     * another transaction's lock on the resource. Unblocks and unqueues all transactions
+     * that can be unblocked after releasing locks in RELEASELOCKS, in order of lock request.
+     *
+     * If NAME is in RELEASELOCKS, the lock TRANSACTION holds on NAME is replaced by the new
+     * lock, which keeps its acquisition time.
      *
      * @throws DuplicateLockRequestException if a lock on NAME is held by TRANSACTION and
      * isn't being released
      * @throws NoLockHeldException if no lock on a name in RELEASELOCKS is held by TRANSACTION
+     * @throws DeadlockException if TRANSACTION is aborted because of a deadlock
      */
     public void acquireAndRelease(BaseTransaction transaction, ResourceName name,
                                   LockType lockType, List<ResourceName> releaseLocks)
     throws DuplicateLockRequestException, NoLockHeldException {
-    	
-    	List<Pair<Long, Lock>> existedLocks =  resourceLocks.get(name);
-    	Long tNum = transaction.getTransNum();
-    	boolean comp  = true;
-    	boolean release  = false;
-    	boolean find  = false;
-    	boolean newcomp = true;
-    	Lock newLock = new Lock(name, lockType);
-    	
-    	//acquire
-    	if (existedLocks == null) {
-    		List<Pair<Long, Lock>> newlist= new ArrayList<>();
-        	Pair<Long, Lock> newpair = new Pair<>(tNum, newLock);
-        	newlist.add(newpair);
-        	resourceLocks.put(name, newlist);
-	    	for (ResourceName oldName:releaseLocks) {
-	    		if (resourceLocks.containsKey(oldName) == false) {
-	    			release = false;
-	    			throw new NoLockHeldException("NoLockHeldException");
-	    		}else {
-	    		resourceLocks.remove(oldName);
-	    		release = true;}
-	    	}
-    	}
-    	else {
-	    	
-    	for (Pair<Long, Lock> existedLock : existedLocks) {
-    		if (existedLock.getFirst() == tNum && existedLock.getSecond().lockType == lockType) {
-    			throw new DuplicateLockRequestException("DuplicateLockRequestException");
-    		}
-    	}
-    	
-    	for (Pair<Long, Lock> existedLock : existedLocks) {
-    		if (LockType.compatible(lockType, existedLock.getSecond().lockType) == false) {
-    			comp = false;
-    		}
-    	}
-    	
-    	if (comp == true) {
-        	Pair<Long, Lock> newPair = new Pair<>(tNum, newLock);
-        	existedLocks.add(newPair);
-        	resourceLocks.put(name, existedLocks);
-        	//release
-	    	for (ResourceName oldName:releaseLocks) {
-	    		if (resourceLocks.containsKey(oldName) == false) {
-	    			release = false;
-	    			throw new NoLockHeldException("NoLockHeldException");
-	    		}else {
-	            	for (Pair<Long, Lock> existedLock : resourceLocks.get(oldName)) {
-	            		if (existedLock.getFirst() == tNum) {
-	            			find = true;
-	            		}
-	            	}
-	            	if(find == false) {
-	        			release = false;
-	        			throw new NoLockHeldException("NoLockHeldException");
-	            	}
-		    		resourceLocks.remove(oldName);
-		    		release = true;}
-	    	}
-    	}else {
-    		transaction.block();
-    		LockRequest lockReq = new LockRequest(transaction, newLock);
-    		waitingQueue.addLast(lockReq);
-    		if (releaseLocks.contains(name)){
-    			resourceLocks.remove(name);
-    			release = true;
-    		}
-    	}}
-    	
-    	while (release == true && !waitingQueue.isEmpty()) {
-    		LockRequest lockcheck = waitingQueue.pop();
-    		if (resourceLocks.get(name) == null) {
-    			newcomp = true;
-    		}else {
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		
-        		if (LockType.compatible(lockcheck.lock.lockType, existedLock.getSecond().lockType) == false) {
-        			newcomp = false;
-        		}}
-    		}
-    		if (newcomp == true) {
-    			lockcheck.transaction.unblock();
-    			this.acquire(lockcheck.transaction, name, lockcheck.lock.lockType);
-    		}else {
-    			waitingQueue.addFirst(lockcheck);
-    		}
-        	
-    	}
-
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        long transNum = transaction.getTransNum();
+        checkWounded(transNum);
+        List<Lock> released = new ArrayList<>();
+        if (heldLockType(transNum, name) != null && !releaseLocks.contains(name)) {
+            throw new DuplicateLockRequestException("Transaction " + transNum + " already holds a lock on " +
+                                                    name);
+        }
+        for (ResourceName releaseName : releaseLocks) {
+            LockType held = heldLockType(transNum, releaseName);
+            if (held == null) {
+                throw new NoLockHeldException("Transaction " + transNum + " holds no lock on " + releaseName);
+            }
+            released.add(new Lock(releaseName, held, transNum));
+        }
+        if (!isStrong(lockType) && tryFastPath(transNum, name, lockType)) {
+            releaseAfterGrant(transaction, name, released);
+            return;
+        }
+        countAcquire(name);
+
+        boolean strong = isStrong(lockType);
+        boolean granted = false;
+        if (strong) {
+            strongLockCounts.incrementAndGet(partition(name));
+        }
+        List<ResourceName> names = new ArrayList<>(releaseLocks);
+        names.add(name);
+        List<Stripe> latched = latchStripes(names);
+        Stripe stripe = stripeFor(name);
+        try {
+            transferFastPathLocks(name);
+            ResourceEntry entry = getResourceEntry(name);
+            if (entry.checkCompatible(lockType, transNum)) {
+                entry.grant(name, transNum, lockType);
+                granted = true;
+            } else {
+                // Only the latch of NAME's stripe may be held while waiting.
+                latched.remove(stripe);
+                unlatchStripes(latched);
+                latched = Collections.singletonList(stripe);
+                waitForGrant(entry, new LockRequest(transaction, new Lock(name, lockType, transNum), released),
+                             true);
+                granted = true;
+            }
+        } finally {
+            if (strong && !granted) {
+                strongLockCounts.decrementAndGet(partition(name));
+            }
+            unlatchStripes(latched);
+        }
+        releaseAfterGrant(transaction, name, released);
     }
 
     /**
      * Acquire a LOCKTYPE lock on NAME, for transaction TRANSACTION. No error
      * checking is performed for holding requisite parent locks. Blocks the
      * transaction and places it in queue if the requested lock is not compatible
-     * with another transaction's lock on the resource.
+     * with another transaction's lock on the resource, or if other transactions
+     * are already waiting for the resource.
      *
      * @throws DuplicateLockRequestException if a lock on NAME is held by
      * TRANSACTION
+     * @throws DeadlockException if TRANSACTION is aborted because of a deadlock
      */
     public void acquire(BaseTransaction transaction, ResourceName name,
                         LockType lockType) throws DuplicateLockRequestException {
-    	
-    	List<Pair<Long, Lock>> existedLocks =  resourceLocks.get(name);
-    	Long tNum = transaction.getTransNum();
-    	boolean comp  = true;
-    	Lock newLock = new Lock(name, lockType);
-    	
-    	if (existedLocks == null) {
-			List<Pair<Long, Lock>> newlist= new ArrayList<>();
-	    	Pair<Long, Lock> newpair = new Pair<>(tNum, newLock);
-	    	newlist.add(newpair);
-	    	resourceLocks.put(name, newlist);
-    	}else {
-        	for (Pair<Long, Lock> existedLock : existedLocks) {
-        		if (existedLock.getFirst() == tNum) {
-        			throw new DuplicateLockRequestException("DuplicateLockRequestException");
-        		}
-        	}
-        	
-        	for (Pair<Long, Lock> existedLock : existedLocks) {
-        		if (LockType.compatible(lockType, existedLock.getSecond().lockType) == false) {
-        			comp = false;
-        		}
-        	}
-        	
-        	if (comp == true) {
-            	Pair<Long, Lock> newPair = new Pair<>(tNum, newLock);
-            	existedLocks.add(newPair);
-            	resourceLocks.put(name, existedLocks);
-        	}else {
-        		transaction.block();
-        		LockRequest lockReq = new LockRequest(transaction, newLock);
-        		waitingQueue.addLast(lockReq);
-        		//System.out.println(transaction);
-        	}
-    	}
-    	
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        long transNum = transaction.getTransNum();
+        checkWounded(transNum);
+        if (heldLockType(transNum, name) != null) {
+            throw new DuplicateLockRequestException("Transaction " + transNum + " already holds a lock on " +
+                                                    name);
+        }
+        if (!isStrong(lockType) && tryFastPath(transNum, name, lockType)) {
+            return;
+        }
+        countAcquire(name);
+
+        boolean strong = isStrong(lockType);
+        boolean granted = false;
+        if (strong) {
+            strongLockCounts.incrementAndGet(partition(name));
+        }
+        Stripe stripe = stripeFor(name);
+        stripe.latch.lock();
+        try {
+            if (strong) {
+                transferFastPathLocks(name);
+            }
+            ResourceEntry entry = getResourceEntry(name);
+            if (entry.waitingQueue.isEmpty() && entry.checkCompatible(lockType, transNum)) {
+                entry.grant(name, transNum, lockType);
+            } else {
+                waitForGrant(entry, new LockRequest(transaction, new Lock(name, lockType, transNum)), false);
+            }
+            granted = true;
+        } finally {
+            if (strong && !granted) {
+                strongLockCounts.decrementAndGet(partition(name));
+            }
+            stripe.latch.unlock();
+        }
     }
 
     /**
@@ -229,98 +1063,71 @@ public class LockManager {
      */
     public void release(BaseTransaction transaction, ResourceName name)
     throws NoLockHeldException {
-    	
-    	boolean release  = false;
-    	boolean find  = false;
-    	boolean valid  = false;
-    	boolean newcomp = true;
-    	Long tNum = transaction.getTransNum();
-    	
-		if (resourceLocks.get(name) == null) {
-			release = false;
-			throw new NoLockHeldException("NoLockHeldException");
-		}else{
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		if (existedLock.getFirst() == tNum) {
-        			find = true;
-        		}
-        	}
-        	if(find == false) {
-    			release = false;
-    			throw new NoLockHeldException("NoLockHeldException");
-        	}
-        	
-        	List<Pair<Long, Lock>> newres= new ArrayList<>();
-        	Iterator<Pair<Long, Lock>> it = resourceLocks.get(name).iterator();
-        	while(it.hasNext()){
-        		Pair<Long, Lock> existedLock = it.next();
-        	    if(existedLock.getFirst() == tNum){
-        	        it.remove();
-        	    }else {
-        	    newres.add(existedLock);}
-        	}
-
-        	resourceLocks.put(name, newres);
-			//resourceLocks.remove(name);
-			release = true;
-			
-			int count = 0;
-			//System.out.println(waitingQueue);
-    	while (release == true && !waitingQueue.isEmpty()) {
-    		int i = waitingQueue.size();
-    		//System.out.println(waitingQueue);
-    		LockRequest lockcheck = waitingQueue.pop();
-   
-    		
-    		if (resourceLocks.get(name) == null) {
-    			newcomp = true;
-    			//System.out.println("true");
-    		}else {
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		if (LockType.compatible(lockcheck.lock.lockType, existedLock.getSecond().lockType) == false) {
-        			newcomp = false;
-        			//System.out.println("false");
-        		}
-        	}}
-			Long newtn = null;
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		if (existedLock.getFirst() == lockcheck.transaction.getTransNum()) {
-        			if (LockType.substitutable(lockcheck.lock.lockType, existedLock.getSecond().lockType)) {
-        				valid = true;
-        				newtn = existedLock.getFirst();
-        			}
-        		}
-        	}
-    		if (valid == true) {
-    			//System.out.println(lockcheck);
-    			lockcheck.transaction.unblock();
-    			this.promote(lockcheck.transaction, name, lockcheck.lock.lockType);
-    		}else {
-    		if (newcomp == true) {
-    			lockcheck.transaction.unblock();
-//    			System.out.println(lockcheck.transaction);
-//    			System.out.println(lockcheck.lock.lockType);
-//    			System.out.println(this.getLocks(name));
-    			this.acquire(lockcheck.transaction, name, lockcheck.lock.lockType);
-    			//this.promote(transaction, name, lockcheck.lock.lockType);
-    		}else {
-    			//System.out.println(lockcheck);
-    			//System.out.println(this.getLocks(name));
-    			//waitingQueue.push(lockcheck);
-    			waitingQueue.addFirst(lockcheck);
-    			count += 1;
-    			if (count > waitingQueue.size()) {
-        			//System.out.println(lockcheck.transaction);
-        			//System.out.println(lockcheck.lock.lockType);
-        			//System.out.println(this.getLocks(name));
-        			//System.out.println(this.getLocks(lockcheck.transaction));
-    				break;
-    			}
-    		}
-        	}}
-    	}
-
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        long transNum = transaction.getTransNum();
+        if (heldLockType(transNum, name) == null) {
+            throw new NoLockHeldException("Transaction " + transNum + " holds no lock on " + name);
+        }
+        if (tryReleaseFastPath(transNum, name)) {
+            return;
+        }
+        Stripe stripe = stripeFor(name);
+        stripe.latch.lock();
+        try {
+            releaseLock(transaction, name);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Release every lock TRANSACTION holds, as when it ends. Each stripe is
+     * latched once for all of the transaction's locks in it, and the queues
+     * of the freed resources are processed as their locks are dropped.
+     * TRANSACTION must not be waiting for a lock. The child lock counts of
+     * TRANSACTION in all lock contexts are reset as well.
+     */
+    public void releaseAll(BaseTransaction transaction) {
+        long transNum = transaction.getTransNum();
+        TransactionLocks held = transactionLocks.get(transNum);
+        if (held != null) {
+            // The names of the locks in lock heads, by stripe.
+            SortedMap<Integer, List<ResourceName>> byStripe = new TreeMap<>();
+            synchronized (held) {
+                for (ResourceName name : held.fastPath) {
+                    fastPathLockCounts.decrementAndGet(partition(name));
+                }
+                for (ResourceName name : held.locks.keySet()) {
+                    if (!held.fastPath.contains(name)) {
+                        byStripe.computeIfAbsent(stripeIndex(name), k -> new ArrayList<>()).add(name);
+                    }
+                }
+                held.fastPath.clear();
+                held.locks.clear();
+                transactionLocks.remove(transNum, held);
+            }
+            for (Map.Entry<Integer, List<ResourceName>> e : byStripe.entrySet()) {
+                Stripe stripe = stripes[e.getKey()];
+                stripe.latch.lock();
+                try {
+                    for (ResourceName name : e.getValue()) {
+                        ResourceEntry entry = stripe.resourceEntries.get(name);
+                        entry.removeFromHead(transNum);
+                        processQueue(name, entry);
+                    }
+                } finally {
+                    stripe.latch.unlock();
+                }
+            }
+        }
+        wounded.remove(transNum);
+
+        List<LockContext> roots;
+        synchronized (contexts) {
+            roots = new ArrayList<>(contexts.values());
+        }
+        for (LockContext root : roots) {
+            root.clearChildLocks(transNum);
+        }
     }
 
     /**
@@ -338,62 +1145,52 @@ public class LockManager {
      * @throws InvalidLockException if the requested lock type is not a promotion. A promotion
      * from lock type A to lock type B is valid if and only if B is substitutable
      * for A, and B is not equal to A.
+     * @throws DeadlockException if TRANSACTION is aborted because of a deadlock
      */
     public void promote(BaseTransaction transaction, ResourceName name,
                         LockType newLockType)
     throws DuplicateLockRequestException, NoLockHeldException, InvalidLockException {
-    	boolean find  = false;
-    	boolean comp = true;
-    	boolean valid = false;
-    	Long tNum = transaction.getTransNum();
-    	
-		if (resourceLocks.get(name) == null) {
-			throw new NoLockHeldException("NoLockHeldException");
-		}else{
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		if (LockType.compatible(newLockType, existedLock.getSecond().lockType) == false && existedLock.getFirst() != tNum) {
-        			comp = false;
-        		}
-        	}
-        	//System.out.println(resourceLocks.get(name));
-        	for (Pair<Long, Lock> existedLock : resourceLocks.get(name)) {
-        		if (existedLock.getFirst() == tNum) {
-        			find = true;
-        			if (existedLock.getSecond().lockType == newLockType) {
-        				throw new DuplicateLockRequestException("DuplicateLockRequestException");
-        			}
-        			if (LockType.substitutable(newLockType, existedLock.getSecond().lockType)) {
-        				valid = true;
-        			}else {
-        				throw new InvalidLockException("InvalidLockException");
-        			}
-        		}
-        	}
-        	Lock newlock = new Lock(name, newLockType);
-			if (valid == true) {
-			if (comp == true) {
-				List<Pair<Long, Lock>> existedLocks =  resourceLocks.get(name);
-				for (Pair<Long, Lock> existedLock : existedLocks){
-					if (existedLock.getFirst() == tNum) {
-						existedLocks.remove(existedLock);
-						break;
-					}
-				}
-				//Lock newlock = new Lock(name, newLockType);
-				Pair<Long, Lock> newPair = new Pair<>(tNum, newlock);
-				
-            	existedLocks.add(newPair);
-            	resourceLocks.put(name, existedLocks);
-			}else {
-        		transaction.block();
-        		LockRequest lockReq = new LockRequest(transaction, newlock);
-        		waitingQueue.addFirst(lockReq);
-			}}
-        	if(find == false) {
-    			throw new NoLockHeldException("NoLockHeldException");
-        	}
-		}
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        long transNum = transaction.getTransNum();
+        checkWounded(transNum);
+        LockType held = heldLockType(transNum, name);
+        if (held == null) {
+            throw new NoLockHeldException("Transaction " + transNum + " holds no lock on " + name);
+        }
+        if (held == newLockType) {
+            throw new DuplicateLockRequestException("Transaction " + transNum + " already holds " +
+                                                    newLockType + " on " + name);
+        }
+        if (!LockType.substitutable(newLockType, held)) {
+            throw new InvalidLockException("Cannot promote " + held + " to " + newLockType);
+        }
+        if (!isStrong(newLockType) && tryFastPath(transNum, name, newLockType)) {
+            return;
+        }
+        countAcquire(name);
+
+        boolean strong = isStrong(newLockType);
+        boolean granted = false;
+        if (strong) {
+            strongLockCounts.incrementAndGet(partition(name));
+        }
+        Stripe stripe = stripeFor(name);
+        stripe.latch.lock();
+        try {
+            // The promoted lock may itself be a fast-path lock.
+            transferFastPathLocks(name);
+            ResourceEntry entry = stripe.resourceEntries.get(name);
+            if (entry.checkCompatible(newLockType, transNum)) {
+                entry.grant(name, transNum, newLockType);
+            } else {
+                waitForGrant(entry, new LockRequest(transaction, new Lock(name, newLockType, transNum)), true);
+            }
+            granted = true;
+        } finally {
+            if (strong && !granted) {
+                strongLockCounts.decrementAndGet(partition(name));
+            }
+            stripe.latch.unlock();
+        }
     }
 
     /**
@@ -401,41 +1198,43 @@ public class LockManager {
      * held.
      */
     public LockType getLockType(BaseTransaction transaction, ResourceName name) {
-    	LockType lockType = null;
-    	List<Pair<Long, Lock>> existedLocks =  resourceLocks.get(name);
-    	Long tNum = transaction.getTransNum();
-    	if (existedLocks == null) {
-    		return null;
-    	}else {
-	    	for (Pair<Long, Lock> existedLock : existedLocks) {
-	    		if (existedLock.getFirst() == tNum) {
-	    			lockType = existedLock.getSecond().lockType;
-	    		}
-	    	}
-    	}
-    	return lockType;
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        return heldLockType(transaction.getTransNum(), name);
     }
 
     /**
      * Returns the list of transactions ids and lock types for locks held on
      * NAME, in order of acquisition. A promotion should count as acquired
-     * at the original time.
+     * at the original time. Locks granted on the fast path, which are not
+     * in NAME's lock head, come last, by transaction number.
      */
     public List<Pair<Long, LockType>> getLocks(ResourceName name) {
-    	List<Pair<Long, LockType>> result = new ArrayList<>();
-    	List<Pair<Long, Lock>> existedLocks =  resourceLocks.get(name);
-    	
-    	if (existedLocks != null) {
-	    	for (Pair<Long, Lock> existedLock : existedLocks) {
-	    		Long tid = existedLock.getFirst();
-	    		LockType locktype = existedLock.getSecond().lockType;
-	    		Pair<Long, LockType> newpair = new Pair<>(tid, locktype);
-	    		result.add(newpair);	
-	    	}
-    	}
-    	return result;
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        List<Pair<Long, LockType>> result = new ArrayList<>();
+        Stripe stripe = stripeFor(name);
+        stripe.latch.lock();
+        try {
+            ResourceEntry entry = stripe.resourceEntries.get(name);
+            if (entry != null) {
+                for (Lock lock : entry.locks.values()) {
+                    result.add(new Pair<>(lock.transactionNum, lock.lockType));
+                }
+            }
+        } finally {
+            stripe.latch.unlock();
+        }
+        if (fastPathLockCounts.get(partition(name)) != 0) {
+            List<Pair<Long, LockType>> fastPath = new ArrayList<>();
+            for (TransactionLocks held : transactionLocks.values()) {
+                synchronized (held) {
+                    if (held.fastPath.contains(name)) {
+                        Lock lock = held.locks.get(name);
+                        fastPath.add(new Pair<>(lock.transactionNum, lock.lockType));
+                    }
+                }
+            }
+            fastPath.sort(Comparator.comparing(Pair::getFirst));
+            result.addAll(fastPath);
+        }
+        return result;
     }
 
     /**
@@ -444,27 +1243,15 @@ public class LockManager {
      * at the original time.
      */
     public List<Pair<ResourceName, LockType>> getLocks(BaseTransaction transaction) {
-    	List<Pair<ResourceName, LockType>> result = new ArrayList<>();
-    	Long tNum = transaction.getTransNum();
-    	
-    	for (ResourceName existedname: resourceLocks.keySet()) {
-    		List<Pair<Long, Lock>> existedLocks = resourceLocks.get(existedname);
-        	if (existedLocks != null) {
-        		//System.out.println(existedLocks);
-        		//System.out.println(tNum);
-    	    	for (Pair<Long, Lock> existedLock : existedLocks) {
-    	    		if (existedLock.getFirst() == tNum) {
-    	    			//System.out.println("entered");
-    	    			//System.out.println(tNum);
-    	    			LockType locktype = existedLock.getSecond().lockType;
-    	    			//System.out.println(locktype);
-    	    			Pair<ResourceName, LockType> newpair = new Pair<>(existedname, locktype);
-    	    			result.add(newpair);
-    	    		}
-    	    	}
-        	}
-    	}
-    	return result;
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        List<Pair<ResourceName, LockType>> result = new ArrayList<>();
+        TransactionLocks held = transactionLocks.get(transaction.getTransNum());
+        if (held != null) {
+            synchronized (held) {
+                for (Lock lock : held.locks.values()) {
+                    result.add(new Pair<>(lock.name, lock.lockType));
+                }
+            }
+        }
+        return result;
     }
 }
@@ -4,17 +4,25 @@ import edu.berkeley.cs186.database.BaseTransaction;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
 
 /**
  * Represents a lock request on the queue, for
  * TRANSACTION requesting LOCK, with all locks in releasedLocks
  * to be released **after** granting the lock, but **before**
  * unblocking the transaction.
+ *
+ * The thread that made the request waits on CONDITION until GRANTED (or
+ * ABORTED, if the request is aborted because of a deadlock) is set. These are
+ * only accessed while holding the latch the condition belongs to.
  */
 class LockRequest {
     public BaseTransaction transaction;
     public Lock lock;
     public List<Lock> releasedLocks;
+    public Condition condition;
+    public boolean granted;
+    public boolean aborted;
 
     public LockRequest(BaseTransaction transaction, Lock lock) {
         this.transaction = transaction;
@@ -57,7 +57,7 @@ public enum LockType {
     	}else if (a == X) {
     		result = IX;
     	}else if (a == IS) {
-    		result = IX;
+    		result = IS;
     	}else if (a == IX) {
     		result = IX;
     	}else if (a == SIX) {
@@ -2,9 +2,13 @@ package edu.berkeley.cs186.database.concurrency;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 
-import java.util.concurrent.locks.Lock;
-
 public class LockUtil {
+    // A transaction's page locks on a table (or index) are escalated to a
+    // single lock on the table once they cover this fraction of its pages...
+    static final double ESCALATION_SATURATION = 0.2;
+    // ...provided the table has at least this many pages.
+    static final int ESCALATION_MIN_CAPACITY = 10;
+
     /**
      * Ensure that TRANSACTION can perform actions requiring LOCKTYPE on LOCKCONTEXT.
      * This method should promote/escalate as needed, but should only grant the least
@@ -14,15 +18,115 @@ public class LockUtil {
      * if an intent lock is passed in to this method (you can do whatever you want in this case).
      *
      * If TRANSACTION is null, this method should do nothing.
+     * Neither should it if TRANSACTION is read-only: read-only transactions
+     * read snapshots, which need no locks.
+     *
+     * Reads need no locks if the lock manager validates them instead (see
+     * LockManager#recordRead), unless LOCKCONTEXT requires them (see
+     * LockContext#lockReads).
+     *
+     * If the parent of LOCKCONTEXT is saturated (see shouldEscalate), the
+     * transaction's locks on the parent's children are escalated to the parent
+     * instead of taking another lock on LOCKCONTEXT.
      */
     public static void requestLocks(BaseTransaction transaction, LockContext lockContext,
                                     LockType lockType) {
-    	if (transaction == null) {
-    		return;
-    	}
-    	
-        //throw new UnsupportedOperationException("TODO(hw5): implement");
+        if (transaction == null || lockType == null || transaction.isReadOnly()) {
+            return;
+        }
+        if (LockType.substitutable(getEffectiveLockType(transaction, lockContext), lockType)) {
+            return;
+        }
+        LockContext parent = lockContext.parentContext();
+        if (lockContext.readonly && parent != null) {
+            // Children of indices and temporary tables are not locked individually.
+            requestLocks(transaction, parent, lockType);
+            return;
+        }
+        if (lockType == LockType.S && !lockContext.readsLocked() &&
+                lockContext.lockman.recordRead(transaction, lockContext)) {
+            // The read is validated when the transaction ends instead.
+            return;
+        }
+        if (parent != null && shouldEscalate(transaction, parent)) {
+            parent.escalate(transaction);
+            requestLocks(transaction, parent, lockType);
+            return;
+        }
+
+        ensureIntentLocks(transaction, parent, lockType == LockType.S ? LockType.IS : LockType.IX);
+        LockType local = lockContext.getLocalLockType(transaction);
+        if (local == null) {
+            lockContext.acquire(transaction, lockType);
+            return;
+        }
+        if (local == LockType.IS || local == LockType.IX || local == LockType.SIX) {
+            // Replace the locks on the children by a single lock.
+            lockContext.escalate(transaction);
+            local = lockContext.getLocalLockType(transaction);
+        }
+        if (!LockType.substitutable(local, lockType)) {
+            lockContext.promote(transaction, lockType);
+        }
+    }
+
+    /**
+     * Returns whether TRANSACTION's locks on children of LOCKCONTEXT should
+     * be escalated: it has an intent lock on LOCKCONTEXT, which is a table
+     * (or index) of at least ESCALATION_MIN_CAPACITY pages, and it holds locks
+     * on at least ESCALATION_SATURATION of them.
+     */
+    static boolean shouldEscalate(BaseTransaction transaction, LockContext lockContext) {
+        if (lockContext.parentContext() == null || lockContext.readonly ||
+                lockContext.capacity() < ESCALATION_MIN_CAPACITY ||
+                lockContext.saturation(transaction) < ESCALATION_SATURATION) {
+            return false;
+        }
+        LockType local = lockContext.getLocalLockType(transaction);
+        return local == LockType.IS || local == LockType.IX || local == LockType.SIX;
+    }
+
+    /**
+     * Returns the lock TRANSACTION effectively holds on LOCKCONTEXT: its own
+     * lock, or the S or X lock implied by a lock on an ancestor.
+     */
+    static LockType getEffectiveLockType(BaseTransaction transaction, LockContext lockContext) {
+        LockType local = lockContext.getLocalLockType(transaction);
+        if (local == LockType.S || local == LockType.X) {
+            return local;
+        }
+        if (local == LockType.SIX) {
+            return LockType.S;
+        }
+        LockContext parent = lockContext.parentContext();
+        LockType inherited = parent == null ? null : getEffectiveLockType(transaction, parent);
+        // Intent locks on an ancestor grant nothing on its descendants.
+        if (inherited == LockType.S || inherited == LockType.X) {
+            return inherited;
+        }
+        return local;
     }
 
-    // TODO(hw5): add helper methods as you see fit
+    /**
+     * Ensures TRANSACTION holds INTENT (IS or IX) or a lock substitutable for
+     * it on LOCKCONTEXT and all of its ancestors.
+     */
+    private static void ensureIntentLocks(BaseTransaction transaction, LockContext lockContext,
+                                          LockType intent) {
+        if (lockContext == null) {
+            return;
+        }
+        LockType local = lockContext.getLocalLockType(transaction);
+        if (LockType.substitutable(local, intent)) {
+            return;
+        }
+        ensureIntentLocks(transaction, lockContext.parentContext(), intent);
+        if (local == null) {
+            lockContext.acquire(transaction, intent);
+        } else if (local == LockType.S) {
+            lockContext.promote(transaction, LockType.SIX);
+        } else {
+            lockContext.promote(transaction, intent);
+        }
+    }
 }
@@ -0,0 +1,207 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.cs186.database.BaseTransaction;
+import edu.berkeley.cs186.database.common.Pair;
+
+/**
+ * Lock manager for optimistic concurrency control of short transactions.
+ *
+ * Reads take no locks. Instead, every transaction that held an X lock on a
+ * resource stamps it, when it ends, with the time it ended, and each
+ * transaction records the time of its first read of every resource it reads
+ * (its read set). When the transaction ends, its reads are validated: if
+ * another transaction has since written, or is still writing, a resource the
+ * transaction read, the transaction must be rolled back (see
+ * Database.Transaction#end).
+ *
+ * Writes still take X locks (and the intent locks above them) through the
+ * lock manager, held until the transaction ends, so that two transactions
+ * never write the same resource at once and a transaction can always be
+ * rolled back. For workloads of short transactions that seldom conflict,
+ * this saves the lock requests of every page read. Reads of indices are
+ * still locked (see LockContext#lockReads).
+ *
+ * A stamp no later than the first read of every active read set cannot fail
+ * any validation, so stamps are pruned once there are twice as many as after
+ * the last pruning, or once as many transactions have written since.
+ */
+public class OptimisticLockManager extends LockManager {
+    // Stamps are never pruned while there are fewer than this many.
+    private static final int MIN_PRUNE_SIZE = 1024;
+
+    // The time of the last end of a transaction holding an X lock.
+    private final AtomicLong clock = new AtomicLong();
+    // The time the last transaction holding an X lock on each resource ended.
+    private final Map<ResourceName, Long> versions = new ConcurrentHashMap<>();
+    // The time the last transaction holding an X lock on a descendant of
+    // each resource ended.
+    private final Map<ResourceName, Long> subtreeVersions = new ConcurrentHashMap<>();
+    // The read set of each transaction that has read anything.
+    private final Map<Long, ReadSet> readSets = new ConcurrentHashMap<>();
+    // The number of stamps above which, or the time at which, they are next
+    // pruned.
+    private volatile int pruneSize = MIN_PRUNE_SIZE;
+    private volatile long pruneTime = MIN_PRUNE_SIZE;
+
+    private final AtomicLong numValidations = new AtomicLong();
+    private final AtomicLong numConflicts = new AtomicLong();
+
+    /**
+     * The time of a transaction's first read, and of its first read of each
+     * resource it read.
+     */
+    private static class ReadSet {
+        final long start;
+        final Map<LockContext, Long> reads = new ConcurrentHashMap<>();
+
+        ReadSet(long start) {
+            this.start = start;
+        }
+    }
+
+    public OptimisticLockManager() {
+        super();
+    }
+
+    public OptimisticLockManager(DeadlockPolicy deadlockPolicy) {
+        super(deadlockPolicy);
+    }
+
+    @Override
+    boolean recordRead(BaseTransaction transaction, LockContext lockContext) {
+        ReadSet readSet = readSets.get(transaction.getTransNum());
+        if (readSet == null) {
+            readSet = startReadSet(transaction.getTransNum());
+        }
+        readSet.reads.computeIfAbsent(lockContext, k -> clock.get());
+        return true;
+    }
+
+    /**
+     * Returns the read set of transaction transNum, starting it if needed.
+     * Read sets are not started while stamps are pruned, so that pruning
+     * sees every read set that started before it.
+     */
+    private synchronized ReadSet startReadSet(long transNum) {
+        return readSets.computeIfAbsent(transNum, k -> new ReadSet(clock.get()));
+    }
+
+    /**
+     * Validates the read set of TRANSACTION: no resource it read may have
+     * been written since, or be locked for writing by another transaction.
+     */
+    @Override
+    public boolean validate(BaseTransaction transaction) {
+        ReadSet readSet = readSets.get(transaction.getTransNum());
+        if (readSet == null) {
+            return true;
+        }
+        numValidations.incrementAndGet();
+        for (Map.Entry<LockContext, Long> read : readSet.reads.entrySet()) {
+            LockContext lockContext = read.getKey();
+            // A transaction that has since locked what it read for writing
+            // still fails if another write ended between its read and its lock.
+            if (version(lockContext) > read.getValue() ||
+                    isWrittenByOther(transaction.getTransNum(), lockContext)) {
+                numConflicts.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stamps the resources TRANSACTION wrote before releasing its locks, so
+     * that every transaction that read them before they were released fails
+     * validation.
+     */
+    @Override
+    public void releaseAll(BaseTransaction transaction) {
+        readSets.remove(transaction.getTransNum());
+        long now = -1;
+        for (Pair<ResourceName, LockType> lock : getLocks(transaction)) {
+            if (lock.getSecond() != LockType.X) {
+                continue;
+            }
+            if (now == -1) {
+                now = clock.incrementAndGet();
+            }
+            ResourceName name = lock.getFirst();
+            versions.merge(name, now, Math::max);
+            for (ResourceName parent = name.parent(); parent != null; parent = parent.parent()) {
+                subtreeVersions.merge(parent, now, Math::max);
+            }
+        }
+        super.releaseAll(transaction);
+        if (now >= pruneTime || versions.size() + subtreeVersions.size() > pruneSize) {
+            prune();
+        }
+    }
+
+    /**
+     * Discards the stamps no active read set can fail validation on: those
+     * no later than the first read of every active read set, or all of them
+     * if no transaction is reading.
+     */
+    private synchronized void prune() {
+        long oldest = clock.get();
+        for (ReadSet readSet : readSets.values()) {
+            oldest = Math.min(oldest, readSet.start);
+        }
+        long before = oldest;
+        versions.values().removeIf(stamp -> stamp <= before);
+        subtreeVersions.values().removeIf(stamp -> stamp <= before);
+        pruneSize = Math.max(MIN_PRUNE_SIZE, 2 * (versions.size() + subtreeVersions.size()));
+        pruneTime = clock.get() + pruneSize;
+    }
+
+    /**
+     * Returns the number of transactions whose reads were validated, and the
+     * number of those that failed validation.
+     */
+    public long getNumValidations() {
+        return numValidations.get();
+    }
+
+    public long getNumConflicts() {
+        return numConflicts.get();
+    }
+
+    /**
+     * Returns the version of LOCKCONTEXT as a reader sees it: the time the
+     * last write to the resource, one of its ancestors, or one of its
+     * descendants ended, or 0 if there is none since the last pruning.
+     */
+    private long version(LockContext lockContext) {
+        long version = subtreeVersions.getOrDefault(lockContext.getResourceName(), 0L);
+        for (LockContext c = lockContext; c != null; c = c.parentContext()) {
+            version = Math.max(version, versions.getOrDefault(c.getResourceName(), 0L));
+        }
+        return version;
+    }
+
+    /**
+     * Returns whether a transaction other than TRANSNUM may be writing
+     * LOCKCONTEXT: it holds an X lock on the resource or an ancestor, or an
+     * IX or SIX lock on the resource (and so X locks below it).
+     */
+    private boolean isWrittenByOther(long transNum, LockContext lockContext) {
+        for (LockContext c = lockContext; c != null; c = c.parentContext()) {
+            for (Pair<Long, LockType> lock : getLocks(c.getResourceName())) {
+                if (lock.getFirst() == transNum) {
+                    continue;
+                }
+                LockType lockType = lock.getSecond();
+                if (lockType == LockType.X || (c == lockContext &&
+                        (lockType == LockType.IX || lockType == LockType.SIX))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * A snapshot of the lock statistics of a single resource, as recorded by
+ * LockManager: how many locks were requested on it, how many of those
+ * requests had to wait (conflicts), the longest its queue of waiting requests
+ * has been, and how long the waits took.
+ *
+ * Wait times are kept in a histogram with power-of-two buckets: bucket 0
+ * counts the waits shorter than 1 microsecond, and bucket i > 0 those of at
+ * least 2^(i-1) and less than 2^i microseconds. The last bucket also counts
+ * every longer wait.
+ */
+public class ResourceLockStats {
+    public static final int NUM_WAIT_BUCKETS = 32;
+
+    private final ResourceName name;
+    private final long numAcquires;
+    private final long numConflicts;
+    private final int maxQueueLength;
+    private final long waitTimeNanos;
+    private final long[] waitHistogram;
+
+    ResourceLockStats(ResourceName name, long numAcquires, long numConflicts, int maxQueueLength,
+                      long waitTimeNanos, long[] waitHistogram) {
+        this.name = name;
+        this.numAcquires = numAcquires;
+        this.numConflicts = numConflicts;
+        this.maxQueueLength = maxQueueLength;
+        this.waitTimeNanos = waitTimeNanos;
+        this.waitHistogram = waitHistogram;
+    }
+
+    /**
+     * Returns the histogram bucket of a wait of the given length.
+     */
+    static int waitBucket(long waitNanos) {
+        long micros = waitNanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, NUM_WAIT_BUCKETS - 1);
+    }
+
+    /**
+     * Returns the (exclusive) upper bound, in microseconds, of the waits
+     * counted in the given bucket of the histogram, or Long.MAX_VALUE for
+     * the last bucket.
+     */
+    public static long getBucketUpperBoundMicros(int bucket) {
+        return bucket == NUM_WAIT_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public ResourceName getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of lock requests (acquisitions and promotions) on
+     * the resource since it was tracked (from its first wait on), other than
+     * those granted on the fast path.
+     */
+    public long getNumAcquires() {
+        return numAcquires;
+    }
+
+    /**
+     * Returns the number of lock requests on the resource that had to wait.
+     */
+    public long getNumConflicts() {
+        return numConflicts;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public long getWaitTimeNanos() {
+        return waitTimeNanos;
+    }
+
+    /**
+     * Returns the number of waits that fell into each bucket.
+     */
+    public long[] getWaitHistogram() {
+        return waitHistogram.clone();
+    }
+
+    /**
+     * Returns an upper bound, in microseconds, on the given percentile (in
+     * [0, 100]) of the wait times on the resource, or 0 if no request waited.
+     */
+    public long getWaitPercentileMicros(double percentile) {
+        long total = 0;
+        for (long count : waitHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * total);
+        long seen = 0;
+        for (int i = 0; i < NUM_WAIT_BUCKETS; ++i) {
+            seen += waitHistogram[i];
+            if (seen >= rank && waitHistogram[i] > 0) {
+                return getBucketUpperBoundMicros(i);
+            }
+        }
+        return getBucketUpperBoundMicros(NUM_WAIT_BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: acquires=%d conflicts=%d maxQueue=%d waitMs=%.3f p50<%dus p99<%dus",
+                             name, numAcquires, numConflicts, maxQueueLength, waitTimeNanos / 1e6,
+                             getWaitPercentileMicros(50), getWaitPercentileMicros(99));
+    }
+}
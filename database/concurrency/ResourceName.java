@@ -1,10 +1,9 @@
 package edu.berkeley.cs186.database.concurrency;
 
-import javax.annotation.Resource;
-import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class represents the full name of a resource. The name
@@ -16,64 +15,178 @@ import java.util.List;
  * and its ancestors on the hierarchy would be ("database") [which
  * represents the entire database], and ("database", "Students") [which
  * represents the Students table, of which this is a page of].
+ *
+ * Resource names are looked up in the lock table on every page access, so
+ * they are immutable and compact: a name is its last component and a pointer
+ * to the name of its parent, and caches its hash code and depth. Integral
+ * components (such as page numbers) are stored as longs, so an Integer and a
+ * Long component with the same value are the same component. Names created
+ * with ResourceName.of of the database and its tables (those of at most
+ * INTERNED_DEPTH components) are interned: they are unique, so looking them up
+ * only compares references. The interned names are shared by every lock
+ * manager, so the names below them, such as pages, are not interned, and
+ * looking them up compares their last component and then the reference of
+ * their interned parent.
  */
-public class ResourceName {
-    private List<Object> names;
+public final class ResourceName {
+    // The number of components of the deepest interned names.
+    private static final int INTERNED_DEPTH = 2;
+    // The interned names with no parent, by component.
+    private static final Map<Object, ResourceName> roots = new ConcurrentHashMap<>();
+    // The key of a null component in the maps of interned names.
+    private static final Object NULL_KEY = new Object();
+
+    // The name of the parent resource, or null.
+    private final ResourceName parent;
+    // Whether the last component is integral.
+    private final boolean integral;
+    // The last component, if it is not integral.
+    private final Object name;
+    // The last component, if it is integral.
+    private final long number;
+    // The number of components.
+    private final int depth;
+    private final int hash;
+    // The interned children of this name, if it is interned, by component.
+    private final Map<Object, ResourceName> children;
 
     public ResourceName(Object name) {
-        names = Arrays.asList(name);
+        this(null, name, false);
     }
     public ResourceName(List<Object> names) {
-        this.names = new ArrayList<>(names);
+        this(of(names.subList(0, names.size() - 1)), names.get(names.size() - 1), false);
     }
     public ResourceName(List<Object> parents, Object name) {
-        names = new ArrayList<>(parents);
-        names.add(name);
+        this(of(parents), name, false);
     }
     public ResourceName(ResourceName parent, Object name) {
-        names = new ArrayList<>(parent.names);
-        names.add(name);
+        this(parent, name, false);
     }
-    public ResourceName parent() {
-        if (names.size() > 1) {
-            return new ResourceName(names.subList(0, names.size() - 1));
+
+    private ResourceName(ResourceName parent, Object name, boolean interned) {
+        this.parent = parent;
+        this.integral = isIntegral(name);
+        if (integral) {
+            this.name = null;
+            this.number = ((Number) name).longValue();
         } else {
-            return null;
+            this.name = name;
+            this.number = 0;
         }
+        this.depth = parent == null ? 1 : parent.depth + 1;
+        int componentHash = integral ? Long.hashCode(number) : Objects.hashCode(this.name);
+        this.hash = 31 * (parent == null ? 1 : parent.hash) + componentHash;
+        this.children = interned ? new ConcurrentHashMap<>() : null;
     }
-    public boolean isChildOf(ResourceName other) {
-        if (other.names.size() >= names.size()) {
-            return false;
+
+    /**
+     * Returns the interned name of the resource NAME with no parent.
+     */
+    public static ResourceName of(Object name) {
+        return roots.computeIfAbsent(key(name), k -> new ResourceName(null, name, true));
+    }
+
+    /**
+     * Returns the name of the child NAME of PARENT, interned if it has at most
+     * INTERNED_DEPTH components.
+     */
+    public static ResourceName of(ResourceName parent, Object name) {
+        parent = parent.intern();
+        if (parent.depth >= INTERNED_DEPTH) {
+            return new ResourceName(parent, name, false);
+        }
+        ResourceName child = parent.children.get(key(name));
+        if (child == null) {
+            ResourceName p = parent;
+            child = parent.children.computeIfAbsent(key(name), k -> new ResourceName(p, name, true));
         }
-        Iterator<Object> mine = names.iterator();
-        Iterator<Object> others = other.names.iterator();
-        while (others.hasNext()) {
-            if (!mine.next().equals(others.next())) {
-                return false;
+        return child;
+    }
+
+    /**
+     * Returns the name with components NAMES, interned as by of(parent, name),
+     * or null if NAMES is empty.
+     */
+    public static ResourceName of(List<Object> names) {
+        ResourceName result = null;
+        for (Object name : names) {
+            result = result == null ? of(name) : of(result, name);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the interned name equal to this one, or this name if it has
+     * more than INTERNED_DEPTH components.
+     */
+    public ResourceName intern() {
+        if (children != null || depth > INTERNED_DEPTH) {
+            return this;
+        }
+        Object component = integral ? (Object) number : name;
+        return parent == null ? of(component) : of(parent, component);
+    }
+
+    public ResourceName parent() {
+        return parent;
+    }
+
+    /**
+     * Returns the number of components of this name: 1 for a name with no
+     * parent.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    public boolean isChildOf(ResourceName other) {
+        for (ResourceName p = parent; p != null && p.depth >= other.depth; p = p.parent) {
+            if (p.depth == other.depth) {
+                return p.equals(other);
             }
         }
-        return true;
+        return false;
+    }
+
+    private static boolean isIntegral(Object name) {
+        return name instanceof Long || name instanceof Integer || name instanceof Short ||
+               name instanceof Byte;
+    }
+
+    /**
+     * Returns the key of the component NAME in a map of interned names.
+     */
+    private static Object key(Object name) {
+        if (name == null) {
+            return NULL_KEY;
+        }
+        return isIntegral(name) ? (Object) ((Number) name).longValue() : name;
     }
+
     @Override
     public boolean equals(Object other) {
-        if (other instanceof ResourceName) {
-            ResourceName n = (ResourceName) other;
-            return n.names.equals(this.names);
-        } else {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ResourceName)) {
+            return false;
+        }
+        ResourceName n = (ResourceName) other;
+        if (n.hash != hash || n.depth != depth) {
             return false;
         }
+        if (n.integral != integral || (integral ? n.number != number : !Objects.equals(name, n.name))) {
+            return false;
+        }
+        return parent == null || parent.equals(n.parent);
     }
     @Override
     public int hashCode() {
-        return names.hashCode();
+        return hash;
     }
     @Override
     public String toString() {
-        String n = names.get(0).toString();
-        for (int i = 1; i < names.size(); ++i) {
-            n += "/" + names.get(i).toString();
-        }
-        return n;
+        String n = integral ? Long.toString(number) : String.valueOf(name);
+        return parent == null ? n : parent.toString() + "/" + n;
     }
 }
-
@@ -0,0 +1,23 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Thrown when a transaction ends if what it read without locks (see
+ * OptimisticLockManager) was written by another transaction before it
+ * could commit. The transaction has been rolled back, and may be retried.
+ */
+public class ValidationException extends RuntimeException {
+    private String message;
+
+    public ValidationException(String message) {
+        this.message = message;
+    }
+
+    public ValidationException(Exception e) {
+        this.message = e.getClass().toString() + ": " + e.getMessage();
+    }
+
+    @Override
+    public String getMessage() {
+        return this.message;
+    }
+}
@@ -5,6 +5,8 @@ import edu.berkeley.cs186.database.io.Page;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A DataBox is an element of one of the primitive types specified in
@@ -12,8 +14,9 @@ import java.nio.charset.Charset;
  *
  *   - booleans with new BoolDataBox(b),
  *   - integers with new IntDataBox(i),
- *   - floats with new FloatDataBox(f), and
- *   - strings with new StringDataBox(s, n).
+ *   - floats with new FloatDataBox(f),
+ *   - strings with new StringDataBox(s, n), and
+ *   - tuples (composite index keys) with new TupleDataBox(values).
  *
  * You can unwrap a databox by first pattern matching on its type and then
  * using one of getBool, getInt, getFloat, and getString:
@@ -53,6 +56,7 @@ public abstract class DataBox implements Comparable<DataBox> {
     //     values (e.g. using ByteBuffer::putInt or ByteBuffer::putFloat).
     //   - The first byte of a serialized m-byte StringDataBox is the 4-byte
     //     number m. Then come the m bytes of the string.
+    //   - A TupleDataBox is serialized as the concatenation of its fields.
     //
     // Note that when DataBoxes are serialized, they do not serialize their type.
     // That is, serialized DataBoxes are not self-descriptive; you need the type
@@ -78,6 +82,13 @@ public abstract class DataBox implements Comparable<DataBox> {
             String s = new String(bytes, Charset.forName("UTF-8"));
             return new StringDataBox(s, type.getSizeInBytes());
         }
+        case TUPLE: {
+            List<DataBox> values = new ArrayList<>();
+            for (Type t : type.getFieldTypes()) {
+                values.add(DataBox.fromBytes(buf, t));
+            }
+            return new TupleDataBox(values);
+        }
         default: {
             String err = String.format("Unhandled TypeId %s.",
                                        type.getTypeId().toString());
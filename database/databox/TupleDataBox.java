@@ -0,0 +1,126 @@
+package edu.berkeley.cs186.database.databox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A TupleDataBox is an ordered list of DataBoxes. Tuples are the keys of
+ * composite (multi-column) indexes and are ordered lexicographically: the
+ * first fields are compared first, and later fields only break ties.
+ *
+ * A tuple with fewer fields than another tuple is compared only on the fields
+ * they have in common, and is smaller if those fields are equal. That is, a
+ * prefix sorts immediately before every tuple that extends it:
+ *
+ *   (1)    < (1, 1) < (1, 2) < (2) < (2, 0)
+ *   (1, 2) < (1, 2, 0)
+ *
+ * which lets a prefix be used as the lower bound of a prefix-range scan.
+ */
+public class TupleDataBox extends DataBox {
+    private List<DataBox> values;
+
+    public TupleDataBox(List<DataBox> values) {
+        if (values.isEmpty()) {
+            throw new DataBoxException("Empty tuples are not supported.");
+        }
+        this.values = Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    @Override
+    public Type type() {
+        List<Type> fieldTypes = new ArrayList<>();
+        for (DataBox d : values) {
+            fieldTypes.add(d.type());
+        }
+        return Type.tupleType(fieldTypes);
+    }
+
+    /** Returns the fields of this tuple. */
+    public List<DataBox> getValues() {
+        return values;
+    }
+
+    /** Returns the number of fields of this tuple. */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Returns true if the fields of `prefix` are equal to the first
+     * prefix.size() fields of this tuple.
+     */
+    public boolean startsWith(TupleDataBox prefix) {
+        if (prefix.values.size() > values.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.values.size(); ++i) {
+            if (!values.get(i).equals(prefix.values.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] toBytes() {
+        List<byte[]> fields = new ArrayList<>();
+        int size = 0;
+        for (DataBox d : values) {
+            byte[] bytes = d.toBytes();
+            fields.add(bytes);
+            size += bytes.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] bytes : fields) {
+            buf.put(bytes);
+        }
+        return buf.array();
+    }
+
+    @Override
+    public String toString() {
+        List<String> ss = new ArrayList<>();
+        for (DataBox d : values) {
+            ss.add(d.toString());
+        }
+        return "(" + String.join(", ", ss) + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TupleDataBox)) {
+            return false;
+        }
+        TupleDataBox t = (TupleDataBox) o;
+        return this.values.equals(t.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public int compareTo(DataBox d) {
+        if (!(d instanceof TupleDataBox)) {
+            String err = String.format("Invalid comparison between %s and %s.",
+                                       toString(), d.toString());
+            throw new DataBoxException(err);
+        }
+        TupleDataBox t = (TupleDataBox) d;
+        int n = Math.min(values.size(), t.values.size());
+        for (int i = 0; i < n; ++i) {
+            int c = values.get(i).compareTo(t.values.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(values.size(), t.values.size());
+    }
+}
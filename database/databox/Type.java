@@ -3,6 +3,9 @@ package edu.berkeley.cs186.database.databox;
 import edu.berkeley.cs186.database.common.Buffer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -15,6 +18,10 @@ import java.util.Objects;
  *
  * Note that n-byte strings and m-byte strings are considered different types
  * when n != m.
+ *
+ * In addition, a tuple type (Type.tupleType(types)) is the concatenation of
+ * one or more other types. Tuples are not used as column types; they are the
+ * key type of indexes (the indexed columns followed by the record id).
  */
 public class Type {
     // The type of this type.
@@ -23,9 +30,18 @@ public class Type {
     // The size (in bytes) of an element of this type.
     private int sizeInBytes;
 
+    // The types of the fields of a tuple type, or null if this is not a tuple
+    // type.
+    private List<Type> fieldTypes;
+
     private Type(TypeId typeId, int sizeInBytes) {
+        this(typeId, sizeInBytes, null);
+    }
+
+    private Type(TypeId typeId, int sizeInBytes, List<Type> fieldTypes) {
         this.typeId = typeId;
         this.sizeInBytes = sizeInBytes;
+        this.fieldTypes = fieldTypes;
     }
 
     public static Type boolType() {
@@ -55,6 +71,18 @@ public class Type {
         return new Type(TypeId.STRING, n);
     }
 
+    public static Type tupleType(List<Type> fieldTypes) {
+        if (fieldTypes.isEmpty()) {
+            throw new DataBoxException("Empty tuples are not supported.");
+        }
+        int sizeInBytes = 0;
+        for (Type t : fieldTypes) {
+            sizeInBytes += t.getSizeInBytes();
+        }
+        List<Type> copy = Collections.unmodifiableList(new ArrayList<>(fieldTypes));
+        return new Type(TypeId.TUPLE, sizeInBytes, copy);
+    }
+
     public TypeId getTypeId() {
         return typeId;
     }
@@ -63,6 +91,14 @@ public class Type {
         return sizeInBytes;
     }
 
+    /** Returns the field types of a tuple type. */
+    public List<Type> getFieldTypes() {
+        if (typeId != TypeId.TUPLE) {
+            throw new DataBoxException("not tuple type");
+        }
+        return fieldTypes;
+    }
+
     public byte[] toBytes() {
         // A Type is uniquely identified by its typeId `t` and the size (in bytes)
         // of an element of the type `s`. A Type is serialized as two integers. The
@@ -71,9 +107,30 @@ public class Type {
         // For example, the type "42-byte string" would serialized as the bytes [3,
         // 42] because 3 is the ordinal of the STRING TypeId and 42 is the number
         // of bytes in a 42-byte string (duh).
-        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 2);
+        //
+        // A tuple type is followed by the number of its fields and then the
+        // serialization of each field type.
+        if (typeId != TypeId.TUPLE) {
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 2);
+            buf.putInt(typeId.ordinal());
+            buf.putInt(sizeInBytes);
+            return buf.array();
+        }
+
+        List<byte[]> fields = new ArrayList<>();
+        int size = Integer.BYTES * 3;
+        for (Type t : fieldTypes) {
+            byte[] bytes = t.toBytes();
+            fields.add(bytes);
+            size += bytes.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
         buf.putInt(typeId.ordinal());
         buf.putInt(sizeInBytes);
+        buf.putInt(fieldTypes.size());
+        for (byte[] bytes : fields) {
+            buf.put(bytes);
+        }
         return buf.array();
     }
 
@@ -91,6 +148,15 @@ public class Type {
             return Type.floatType();
         } else if (ordinal == TypeId.STRING.ordinal()) {
             return Type.stringType(sizeInBytes);
+        } else if (ordinal == TypeId.TUPLE.ordinal()) {
+            int numFields = buf.getInt();
+            List<Type> fieldTypes = new ArrayList<>();
+            for (int i = 0; i < numFields; ++i) {
+                fieldTypes.add(Type.fromBytes(buf));
+            }
+            Type t = Type.tupleType(fieldTypes);
+            assert(t.getSizeInBytes() == sizeInBytes);
+            return t;
         } else {
             String err = String.format("Unknown TypeId ordinal %d.", ordinal);
             throw new IllegalArgumentException(err);
@@ -99,6 +165,9 @@ public class Type {
 
     @Override
     public String toString() {
+        if (typeId == TypeId.TUPLE) {
+            return String.format("(%s, %d, %s)", typeId.toString(), sizeInBytes, fieldTypes);
+        }
         return String.format("(%s, %d)", typeId.toString(), sizeInBytes);
     }
 
@@ -111,11 +180,12 @@ public class Type {
             return false;
         }
         Type t = (Type) o;
-        return typeId.equals(t.typeId) && sizeInBytes == t.sizeInBytes;
+        return typeId.equals(t.typeId) && sizeInBytes == t.sizeInBytes &&
+               Objects.equals(fieldTypes, t.fieldTypes);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(typeId, sizeInBytes);
+        return Objects.hash(typeId, sizeInBytes, fieldTypes);
     }
 }
@@ -135,14 +135,18 @@ abstract class BPlusNode {
      * Our B+ trees do not support duplicate entries with the same key. If a
      * duplicate key is inserted, the tree is left unchanged and an exception is
      * raised.
+     *
+     * `included` holds the values of the included columns stored with the
+     * entry in the leaf of a covering index, and is null for other trees.
      */
     public abstract Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key,
-            RecordId rid)
+            RecordId rid, DataBox included)
     throws BPlusTreeException;
 
     /**
-     * n.bulkLoad(data, fillFactor) bulk loads pairs of (k, r) from data into
-     * the tree with the given fill factor.
+     * n.bulkLoad(data, fillFactor) bulk loads entries (k, r) (along with their
+     * included values, for covering indexes) from data into the tree with the
+     * given fill factor.
      *
      * This method is very similar to n.put, with a couple of differences:
      *
@@ -160,7 +164,7 @@ abstract class BPlusNode {
      * and fillFactor=0.75, leaf nodes should be 8/10 full.
      */
     public abstract Optional<Pair<DataBox, Integer>> bulkLoad(BaseTransaction transaction,
-            Iterator<Pair<DataBox, RecordId>> data,
+            Iterator<IndexEntry> data,
             float fillFactor)
     throws BPlusTreeException;
 
@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.function.Predicate;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Buffer;
@@ -17,7 +18,9 @@ import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TupleDataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -56,6 +59,16 @@ import edu.berkeley.cs186.database.table.RecordId;
  *   fromDisk.get(new IntDataBox(0)); // Optional.empty()
  *   fromDisk.get(new IntDataBox(1)); // Optional.of(RecordId(1, 1))
  *   fromDisk.get(new IntDataBox(2)); // Optional.of(RecordId(2, 2))
+ *
+ * A composite index is a B+ tree whose key schema is a tuple type (see
+ * Type.tupleType). Its keys are TupleDataBoxes ordered lexicographically, and
+ * it additionally supports prefix-range scans over any number of leading
+ * fields of the key (see scanPrefix).
+ *
+ * A covering index is a B+ tree that also stores the values of some included
+ * (non-key) columns with every entry in its leaves. The scan*Entries methods
+ * return these IndexEntries, which lets queries that only need the key and
+ * included columns skip fetching the records themselves.
  */
 public class BPlusTree implements Closeable {
     public static final String FILENAME_PREFIX = "db";
@@ -84,14 +97,44 @@ public class BPlusTree implements Closeable {
      * page which contains:
      *
      *   - the key schema of the tree,
-     *   - the order of the tree, and
-     *   - the page number of the root of the tree.
+     *   - the order of the tree,
+     *   - the page number of the root of the tree,
+     *   - the included schema of the tree, if it has one, and
+     *   - whether the tree compresses its keys.
      *
      * All other pages are serializations of inner and leaf nodes. See
      * writeHeader for details.
      */
     public BPlusTree(String filename, Type keySchema, int order, LockContext lockContext,
                      BaseTransaction transaction)
+    throws BPlusTreeException {
+        this(filename, keySchema, null, order, lockContext, transaction);
+    }
+
+    /**
+     * Construct a new covering index which, in addition to the record id of
+     * every key, stores the included values of type `includedSchema` (a tuple
+     * type) in its leaves. If `includedSchema` is null, the tree is an
+     * ordinary B+ tree. Use BPlusTree.maxOrder(pageSize, keySchema,
+     * includedSchema) to get the largest order that fits on a page.
+     */
+    public BPlusTree(String filename, Type keySchema, Type includedSchema, int order,
+                     LockContext lockContext, BaseTransaction transaction)
+    throws BPlusTreeException {
+        this(filename, keySchema, includedSchema, false, order, lockContext, transaction);
+    }
+
+    /**
+     * Construct a new B+ tree which, if `compressKeys` is true, stores its
+     * keys prefix-compressed and pushes up the shortest possible separators
+     * when its leaves split (see KeyCompression). Only string keys can be
+     * compressed (see BPlusTree.supportsKeyCompression). The nodes of such a
+     * tree split when they fill their page, and `order` (see
+     * BPlusTree.maxOrder(pageSize, keySchema, includedSchema, true)) only
+     * bounds the number of entries of a node.
+     */
+    public BPlusTree(String filename, Type keySchema, Type includedSchema, boolean compressKeys,
+                     int order, LockContext lockContext, BaseTransaction transaction)
     throws BPlusTreeException {
         // TODO(hw5): B+ tree locking
 
@@ -103,7 +146,17 @@ public class BPlusTree implements Closeable {
             throw new BPlusTreeException(msg);
         }
 
-        int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema);
+        if (includedSchema != null && includedSchema.getTypeId() != TypeId.TUPLE) {
+            String msg = String.format("Included columns must be a tuple type, not %s.", includedSchema);
+            throw new BPlusTreeException(msg);
+        }
+
+        if (compressKeys && !supportsKeyCompression(keySchema)) {
+            String msg = String.format("Keys of type %s cannot be compressed.", keySchema);
+            throw new BPlusTreeException(msg);
+        }
+
+        int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema, includedSchema, compressKeys);
         if (order > maxOrder) {
             String msg = String.format(
                              "You cannot construct a B+ tree with order %d greater than the " +
@@ -116,7 +169,7 @@ public class BPlusTree implements Closeable {
 
         // Initialize the page allocator.
         this.allocator = new PageAllocator(this.lockContext, filename, true, transaction);
-        this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+        this.metadata = new BPlusTreeMetadata(allocator, keySchema, includedSchema, compressKeys, order);
 
         // Allocate the header page.
         int headerPageNum = allocator.allocPage(transaction);
@@ -149,9 +202,11 @@ public class BPlusTree implements Closeable {
         Type keySchema = Type.fromBytes(buf);
         int order = buf.getInt();
         int rootPageNum = buf.getInt();
+        Type includedSchema = buf.getInt() == 1 ? Type.fromBytes(buf) : null;
+        boolean compressKeys = buf.get() == (byte) 1;
 
         // Initialize members.
-        this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
+        this.metadata = new BPlusTreeMetadata(allocator, keySchema, includedSchema, compressKeys, order);
         this.headerPage = allocator.fetchPage(transaction, 0);
         this.root = BPlusNode.fromBytes(transaction, this.metadata, rootPageNum);
     }
@@ -248,17 +303,85 @@ public class BPlusTree implements Closeable {
      *   iter.next(); // RecordId(5, 5)
      *   iter.next(); // NoSuchElementException
      *
+     * For a tree on tuple keys, `key` may also be a prefix of a key (see
+     * scanPrefix), in which case the scan starts at the first key that is
+     * greater than or equal to any key that extends it.
+     *
      * Note that you CAN NOT materialize all record ids in memory and then
      * return an iterator over them. Your iterator must lazily scan over the
      * leaves of the B+ tree. Solutions that materialize all record ids in
      * memory will receive 0 points.
      */
     public Iterator<RecordId> scanGreaterEqual(BaseTransaction transaction, DataBox key) {
-        typecheck(key);
+        rangecheck(key);
         LeafNode leaf = root.get(transaction, key);
         return new BPlusTreeIterator(leaf, leaf.scanGreaterEqual(key), transaction);
     }
 
+    /**
+     * Returns an iterator over all the RecordIds of a composite index whose
+     * keys start with the fields of `prefix`. `prefix` may have anywhere from
+     * one field up to all the fields of the key schema. RecordIds are returned
+     * in ascending order of their corresponding keys.
+     *
+     *   // Create a B+ tree keyed on (int, int) tuples and insert some values.
+     *   Type t = Type.tupleType(Arrays.asList(Type.intType(), Type.intType()));
+     *   BPlusTree tree = new BPlusTree("t.txt", t, 4);
+     *   tree.put(tuple(1, 1), new RecordId(1, (short) 1));
+     *   tree.put(tuple(1, 2), new RecordId(1, (short) 2));
+     *   tree.put(tuple(2, 1), new RecordId(2, (short) 1));
+     *
+     *   Iterator<RecordId> iter = tree.scanPrefix(tuple(1));
+     *   iter.next(); // RecordId(1, 1)
+     *   iter.next(); // RecordId(1, 2)
+     *   iter.next(); // NoSuchElementException
+     *
+     * Like the other scans, the leaves are scanned lazily.
+     */
+    public Iterator<RecordId> scanPrefix(BaseTransaction transaction, TupleDataBox prefix) {
+        return new RecordIdIterator(scanPrefixEntries(transaction, prefix));
+    }
+
+    /**
+     * Returns an iterator over all the entries of the tree, in ascending
+     * order of their keys. See scanAll.
+     */
+    public Iterator<IndexEntry> scanAllEntries(BaseTransaction transaction) {
+        LeafNode leaf = root.getLeftmostLeaf(transaction);
+        return new BPlusTreeEntryIterator(leaf, 0, k -> true, transaction);
+    }
+
+    /**
+     * Returns an iterator over the entries of the tree whose keys are greater
+     * than or equal to `key`, in ascending order of their keys. See
+     * scanGreaterEqual.
+     */
+    public Iterator<IndexEntry> scanGreaterEqualEntries(BaseTransaction transaction, DataBox key) {
+        rangecheck(key);
+        LeafNode leaf = root.get(transaction, key);
+        int index = InnerNode.numLessThan(key, leaf.getKeys());
+        return new BPlusTreeEntryIterator(leaf, index, k -> true, transaction);
+    }
+
+    /**
+     * Returns an iterator over the entries of a composite index whose keys
+     * start with `prefix`, in ascending order of their keys. See scanPrefix.
+     */
+    public Iterator<IndexEntry> scanPrefixEntries(BaseTransaction transaction, TupleDataBox prefix) {
+        prefixcheck(prefix);
+        // A prefix sorts before every key that extends it, so the first
+        // matching key (if any) is on the leaf that prefix would be put on.
+        LeafNode leaf = root.get(transaction, prefix);
+        int index = InnerNode.numLessThan(prefix, leaf.getKeys());
+        return new BPlusTreeEntryIterator(leaf, index, k -> ((TupleDataBox) k).startsWith(prefix),
+                                          transaction);
+    }
+
+    /** Returns the included-column type of a covering index, or null. */
+    public Type getIncludedSchema() {
+        return metadata.getIncludedSchema();
+    }
+
     /**
      * Inserts a (key, rid) pair into a B+ tree. If the key already exists in
      * the B+ tree, then the pair is not inserted and an exception is raised.
@@ -270,8 +393,19 @@ public class BPlusTree implements Closeable {
      *   tree.put(key, rid); // BPlusTreeException :(
      */
     public void put(BaseTransaction transaction, DataBox key, RecordId rid) throws BPlusTreeException {
+        put(transaction, key, rid, null);
+    }
+
+    /**
+     * Inserts a (key, rid) pair into a covering index, storing `included`
+     * (the values of the included columns of the record) alongside it. For a
+     * tree without included columns, `included` must be null.
+     */
+    public void put(BaseTransaction transaction, DataBox key, RecordId rid,
+                    DataBox included) throws BPlusTreeException {
         typecheck(key);
-        Optional<Pair<DataBox, Integer>> o = root.put(transaction, key, rid);
+        includedcheck(included);
+        Optional<Pair<DataBox, Integer>> o = root.put(transaction, key, rid, included);
 
         // If our root did not split, then we're done.
         if (!o.isPresent()) {
@@ -330,6 +464,26 @@ public class BPlusTree implements Closeable {
      */
     public void bulkLoad(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data,
                          float fillFactor) throws BPlusTreeException {
+        bulkLoadEntries(transaction, new Iterator<IndexEntry>() {
+            @Override
+            public boolean hasNext() {
+                return data.hasNext();
+            }
+
+            @Override
+            public IndexEntry next() {
+                Pair<DataBox, RecordId> p = data.next();
+                return new IndexEntry(p.getFirst(), p.getSecond());
+            }
+        }, fillFactor);
+    }
+
+    /**
+     * Like bulkLoad, but loads IndexEntries, which lets the leaves of a
+     * covering index be loaded along with their included values.
+     */
+    public void bulkLoadEntries(BaseTransaction transaction, Iterator<IndexEntry> data,
+                                float fillFactor) throws BPlusTreeException {
         LeafNode left = this.root.getLeftmostLeaf(transaction);
         if (left != this.root || left.scanAll().hasNext()) {
             throw new BPlusTreeException("cannot bulk load into nonempty tree");
@@ -434,11 +588,37 @@ public class BPlusTree implements Closeable {
      * of size `pageSizeInBytes`.
      */
     public static int maxOrder(int pageSizeInBytes, Type keySchema) {
-        int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema);
+        return maxOrder(pageSizeInBytes, keySchema, null);
+    }
+
+    /**
+     * Returns the largest number d such that the serialization of a LeafNode
+     * with 2d entries (each with included values of type `includedSchema`,
+     * which may be null) and an InnerNode with 2d keys will fit on a single
+     * page of size `pageSizeInBytes`.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, Type includedSchema) {
+        int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema, includedSchema);
         int innerOrder = InnerNode.maxOrder(pageSizeInBytes, keySchema);
         return Math.min(leafOrder, innerOrder);
     }
 
+    /**
+     * Like maxOrder(pageSizeInBytes, keySchema, includedSchema), but for a
+     * tree that compresses its keys if `compressKeys` is true.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, Type includedSchema,
+                               boolean compressKeys) {
+        int leafOrder = LeafNode.maxOrder(pageSizeInBytes, keySchema, includedSchema, compressKeys);
+        int innerOrder = InnerNode.maxOrder(pageSizeInBytes, keySchema, compressKeys);
+        return Math.min(leafOrder, innerOrder);
+    }
+
+    /** Returns whether a B+ tree on keys of type keySchema can compress its keys. */
+    public static boolean supportsKeyCompression(Type keySchema) {
+        return KeyCompression.supports(keySchema);
+    }
+
     /** Returns the number of pages used to serialize the tree. */
     public int getNumPages() {
         return metadata.getAllocator().getNumPages();
@@ -451,6 +631,13 @@ public class BPlusTree implements Closeable {
         buf.put(keySchema);
         buf.putInt(metadata.getOrder());
         buf.putInt(root.getPage().getPageNum());
+        if (metadata.getIncludedSchema() == null) {
+            buf.putInt(0);
+        } else {
+            buf.putInt(1);
+            buf.put(metadata.getIncludedSchema().toBytes());
+        }
+        buf.put((byte) (metadata.compressesKeys() ? 1 : 0));
     }
 
     private void typecheck(DataBox key) {
@@ -461,6 +648,43 @@ public class BPlusTree implements Closeable {
         }
     }
 
+    /** Checks that key is a key of the tree, or a prefix of one. */
+    private void rangecheck(DataBox key) {
+        if (key instanceof TupleDataBox && !key.type().equals(metadata.getKeySchema())) {
+            prefixcheck((TupleDataBox) key);
+        } else {
+            typecheck(key);
+        }
+    }
+
+    private void includedcheck(DataBox included) {
+        Type t = metadata.getIncludedSchema();
+        if (t == null ? included != null : included == null || !included.type().equals(t)) {
+            String msg = String.format("Included values %s are not of type %s", included, t);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    private void prefixcheck(TupleDataBox prefix) {
+        Type t = metadata.getKeySchema();
+        if (t.getTypeId() != TypeId.TUPLE) {
+            String msg = String.format("Prefix scans require a tuple key, not %s", t);
+            throw new IllegalArgumentException(msg);
+        }
+        List<Type> fieldTypes = t.getFieldTypes();
+        List<DataBox> values = prefix.getValues();
+        if (values.size() > fieldTypes.size()) {
+            String msg = String.format("DataBox %s is not a prefix of type %s", prefix, t);
+            throw new IllegalArgumentException(msg);
+        }
+        for (int i = 0; i < values.size(); ++i) {
+            if (!values.get(i).type().equals(fieldTypes.get(i))) {
+                String msg = String.format("DataBox %s is not a prefix of type %s", prefix, t);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+    }
+
     // Iterator ////////////////////////////////////////////////////////////////
     private class BPlusTreeIterator implements Iterator<RecordId> {
         // A BPlusTreeIterator iterates over the entries of a B+ tree leaf by
@@ -519,4 +743,71 @@ public class BPlusTree implements Closeable {
             return rid;
         }
     }
+
+    private class BPlusTreeEntryIterator implements Iterator<IndexEntry> {
+        // A BPlusTreeEntryIterator walks the entries of the leaves starting at
+        // entry `index` of `leaf`, and stops at the first key that inRange
+        // rejects. leaf is null once the iterator is exhausted; otherwise
+        // index is the position of the next entry in leaf, and its key is in
+        // range.
+        private LeafNode leaf;
+        private int index;
+        private Predicate<DataBox> inRange;
+        private BaseTransaction transaction;
+
+        public BPlusTreeEntryIterator(LeafNode leaf, int index, Predicate<DataBox> inRange,
+                                      BaseTransaction transaction) {
+            assert(leaf != null);
+            this.leaf = leaf;
+            this.index = index;
+            this.inRange = inRange;
+            this.transaction = transaction;
+            advance();
+        }
+
+        private void advance() {
+            while (leaf != null && index >= leaf.getKeys().size()) {
+                leaf = leaf.getRightSibling(transaction).orElse(null);
+                index = 0;
+            }
+            if (leaf != null && !inRange.test(leaf.getKeys().get(index))) {
+                leaf = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leaf != null;
+        }
+
+        @Override
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexEntry entry = new IndexEntry(leaf.getKeys().get(index), leaf.getRids().get(index),
+                                              leaf.getIncluded().get(index));
+            ++index;
+            advance();
+            return entry;
+        }
+    }
+
+    private static class RecordIdIterator implements Iterator<RecordId> {
+        private Iterator<IndexEntry> entries;
+
+        public RecordIdIterator(Iterator<IndexEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public RecordId next() {
+            return entries.next().getRecordId();
+        }
+    }
 }
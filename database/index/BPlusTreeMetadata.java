@@ -13,6 +13,16 @@ class BPlusTreeMetadata {
     // keys.
     private final Type keySchema;
 
+    // The tuple type of the included (non-key) columns stored alongside every
+    // (key, record id) pair of a covering index, or null if the tree has no
+    // included columns.
+    private final Type includedSchema;
+
+    // Whether the nodes of the tree store their (string) keys compressed; see
+    // KeyCompression. Nodes of such a tree split when they no longer fit on a
+    // page, and the order of the tree only bounds the number of their entries.
+    private final boolean compressKeys;
+
     // The order of the tree. Given a tree of order d, its inner nodes store
     // between d and 2d keys and between d+1 and 2d+1 children pointers. Leaf
     // nodes store between d and 2d (key, record id) pairs. Notable exceptions
@@ -21,8 +31,19 @@ class BPlusTreeMetadata {
     private final int order;
 
     public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, int order) {
+        this(allocator, keySchema, null, order);
+    }
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, Type includedSchema, int order) {
+        this(allocator, keySchema, includedSchema, false, order);
+    }
+
+    public BPlusTreeMetadata(PageAllocator allocator, Type keySchema, Type includedSchema,
+                             boolean compressKeys, int order) {
         this.allocator = allocator;
         this.keySchema = keySchema;
+        this.includedSchema = includedSchema;
+        this.compressKeys = compressKeys;
         this.order = order;
     }
 
@@ -34,6 +55,14 @@ class BPlusTreeMetadata {
         return keySchema;
     }
 
+    public Type getIncludedSchema() {
+        return includedSchema;
+    }
+
+    public boolean compressesKeys() {
+        return compressKeys;
+    }
+
     public int getOrder() {
         return order;
     }
@@ -0,0 +1,460 @@
+package edu.berkeley.cs186.database.index;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import edu.berkeley.cs186.database.BaseTransaction;
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.concurrency.LockContext;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * A persistent extendible hash index, which maps keys to the record ids of
+ * the records with them. Several records may have the same key. Unlike a B+
+ * tree, it only supports equality lookups, but a lookup reads a single bucket
+ * page (plus, rarely, its overflow pages) instead of one page per level of
+ * the tree.
+ *
+ *   // Create an integer-keyed hash index that is persisted in index.txt.
+ *   HashIndex index = new HashIndex("index.txt", Type.intType(), lockContext, transaction);
+ *
+ *   index.put(transaction, new IntDataBox(0), new RecordId(0, (short) 0));
+ *   index.get(transaction, new IntDataBox(0)); // Optional.of(RecordId(0, 0))
+ *   index.get(transaction, new IntDataBox(1)); // Optional.empty()
+ *   index.remove(transaction, new IntDataBox(0), new RecordId(0, (short) 0));
+ *
+ * # Storage Format
+ * The first page (page 0) of the file is a header page which contains the key
+ * schema of the index, its global depth d, and the page numbers of the pages
+ * of its directory. The directory is an array of 2^d bucket page numbers,
+ * stored in order, DIRECTORY_ENTRIES_PER_PAGE to a page. A key whose hash is h
+ * is stored in the bucket whose page number is entry (h mod 2^d) of the
+ * directory.
+ *
+ * Every bucket page is laid out as
+ *
+ *   +-------------+-------------+--------------+---------+---------+-----
+ *   | local depth | num entries | overflow page| key 0   | rid 0   | ...
+ *   +-------------+-------------+--------------+---------+---------+-----
+ *
+ * A bucket with local depth l is pointed to by the 2^(d - l) directory entries
+ * that agree on the low l bits of their index. When a bucket fills up, it is
+ * split in two on bit l of the hashes of its keys (doubling the directory
+ * first if l == d). Once the directory has reached MAX_GLOBAL_DEPTH, full
+ * buckets are instead chained to overflow pages (overflow page -1 means none).
+ * So are full buckets whose keys all have the same hash, such as the records
+ * of a frequent key, since no split could separate them. A bucket with
+ * overflow pages is never split.
+ *
+ * As with the B+ tree, removing keys never merges buckets.
+ */
+public class HashIndex implements Closeable {
+    public static final String FILENAME_EXTENSION = ".hindex";
+
+    // The number of directory entries that fit on a directory page.
+    private static final int DIRECTORY_ENTRIES_PER_PAGE = Page.pageSize / Integer.BYTES;
+
+    // The deepest the directory can get, such that the page numbers of its
+    // 2^MAX_GLOBAL_DEPTH / DIRECTORY_ENTRIES_PER_PAGE pages fit on the header.
+    static final int MAX_GLOBAL_DEPTH = 19;
+
+    // The bytes used by the local depth, number of entries, and overflow page
+    // of a bucket page.
+    private static final int BUCKET_HEADER_SIZE = 3 * Integer.BYTES;
+
+    private PageAllocator allocator;
+    private LockContext lockContext;
+    private Type keySchema;
+    private int bucketCapacity;
+    private Page headerPage;
+    private int globalDepth;
+    private int[] directory;
+    private List<Integer> directoryPageNums;
+
+    // Constructors ////////////////////////////////////////////////////////////
+    /**
+     * Construct a new, empty hash index which is serialized into the file
+     * `filename` and stores keys of type `keySchema`.
+     */
+    public HashIndex(String filename, Type keySchema, LockContext lockContext,
+                     BaseTransaction transaction) throws HashIndexException {
+        // TODO(hw5): hash index locking
+        if (bucketCapacity(keySchema) < 1) {
+            String msg = String.format("Keys of type %s do not fit on a bucket page.", keySchema);
+            throw new HashIndexException(msg);
+        }
+
+        this.lockContext = lockContext;
+        this.allocator = new PageAllocator(this.lockContext, filename, true, transaction);
+        this.keySchema = keySchema;
+        this.bucketCapacity = bucketCapacity(keySchema);
+
+        int headerPageNum = allocator.allocPage(transaction);
+        assert(headerPageNum == 0);
+        this.headerPage = allocator.fetchPage(transaction, headerPageNum);
+
+        // A single bucket of local depth 0, pointed to by a directory of global
+        // depth 0.
+        Bucket bucket = new Bucket(allocator.fetchPage(transaction, allocator.allocPage(transaction)), 0);
+        bucket.sync(transaction);
+        this.globalDepth = 0;
+        this.directory = new int[] {bucket.page.getPageNum()};
+        this.directoryPageNums = new ArrayList<>();
+        this.directoryPageNums.add(allocator.allocPage(transaction));
+        writeDirectoryEntry(transaction, 0);
+        writeHeader(transaction);
+    }
+
+    /** Read a hash index that was previously serialized to filename. */
+    public HashIndex(String filename, LockContext lockContext, BaseTransaction transaction) {
+        // TODO(hw5): hash index locking
+        this.lockContext = lockContext;
+        this.allocator = new PageAllocator(this.lockContext, filename, false, transaction);
+        this.headerPage = allocator.fetchPage(transaction, 0);
+
+        // See writeHeader.
+        Buffer buf = headerPage.getBuffer(transaction);
+        this.keySchema = Type.fromBytes(buf);
+        this.bucketCapacity = bucketCapacity(this.keySchema);
+        this.globalDepth = buf.getInt();
+        int numDirectoryPages = buf.getInt();
+        this.directoryPageNums = new ArrayList<>();
+        for (int i = 0; i < numDirectoryPages; ++i) {
+            this.directoryPageNums.add(buf.getInt());
+        }
+
+        this.directory = new int[1 << this.globalDepth];
+        for (int p = 0; p < numDirectoryPages; ++p) {
+            Buffer b = allocator.fetchPage(transaction, this.directoryPageNums.get(p)).getBuffer(transaction);
+            for (int i = p * DIRECTORY_ENTRIES_PER_PAGE;
+                    i < Math.min(this.directory.length, (p + 1) * DIRECTORY_ENTRIES_PER_PAGE); ++i) {
+                this.directory[i] = b.getInt();
+            }
+        }
+    }
+
+    public void close() {
+        this.allocator.close();
+    }
+
+    // Core API ////////////////////////////////////////////////////////////////
+    /**
+     * Returns the record id of a record with key `key`, if there is one. If
+     * several records have the key, which one is unspecified.
+     */
+    public Optional<RecordId> get(BaseTransaction transaction, DataBox key) {
+        typecheck(key);
+        Bucket bucket = fetchBucket(transaction, directory[directoryIndex(key)]);
+        while (true) {
+            int i = bucket.keys.indexOf(key);
+            if (i != -1) {
+                return Optional.of(bucket.rids.get(i));
+            }
+            if (bucket.overflow == -1) {
+                return Optional.empty();
+            }
+            bucket = fetchBucket(transaction, bucket.overflow);
+        }
+    }
+
+    /**
+     * Returns an iterator over the record ids of the records with key `key`.
+     * See BPlusTree.scanEqual.
+     */
+    public Iterator<RecordId> scanEqual(BaseTransaction transaction, DataBox key) {
+        typecheck(key);
+        List<RecordId> rids = new ArrayList<>();
+        Bucket bucket = fetchBucket(transaction, directory[directoryIndex(key)]);
+        while (true) {
+            for (int i = 0; i < bucket.keys.size(); ++i) {
+                if (bucket.keys.get(i).equals(key)) {
+                    rids.add(bucket.rids.get(i));
+                }
+            }
+            if (bucket.overflow == -1) {
+                return rids.iterator();
+            }
+            bucket = fetchBucket(transaction, bucket.overflow);
+        }
+    }
+
+    /** Inserts a (key, rid) pair into the index. */
+    public void put(BaseTransaction transaction, DataBox key, RecordId rid) {
+        typecheck(key);
+        while (true) {
+            Bucket bucket = fetchBucket(transaction, directory[directoryIndex(key)]);
+            if (bucket.keys.size() < bucketCapacity) {
+                bucket.keys.add(key);
+                bucket.rids.add(rid);
+                bucket.sync(transaction);
+                return;
+            }
+            if (bucket.localDepth == MAX_GLOBAL_DEPTH || bucket.overflow != -1
+                    || !canSplit(bucket, key)) {
+                putOverflow(transaction, bucket, key, rid);
+                return;
+            }
+            split(transaction, bucket);
+        }
+    }
+
+    /** Removes the pair (key, rid) from the index, if it is present. */
+    public void remove(BaseTransaction transaction, DataBox key, RecordId rid) {
+        typecheck(key);
+        Bucket bucket = fetchBucket(transaction, directory[directoryIndex(key)]);
+        while (true) {
+            int i = bucket.indexOf(key, rid);
+            if (i != -1) {
+                bucket.keys.remove(i);
+                bucket.rids.remove(i);
+                bucket.sync(transaction);
+                return;
+            }
+            if (bucket.overflow == -1) {
+                return;
+            }
+            bucket = fetchBucket(transaction, bucket.overflow);
+        }
+    }
+
+    // Helpers /////////////////////////////////////////////////////////////////
+    /** Returns the key schema of the index. */
+    public Type getKeySchema() {
+        return keySchema;
+    }
+
+    /** Returns the number of pages used to serialize the index. */
+    public int getNumPages() {
+        return allocator.getNumPages();
+    }
+
+    /** Returns the global depth of the directory. */
+    public int getGlobalDepth() {
+        return globalDepth;
+    }
+
+    /**
+     * Returns the number of (key, rid) pairs of type keySchema that fit on a
+     * bucket page of size pageSize.
+     */
+    public static int bucketCapacity(Type keySchema) {
+        int entrySize = keySchema.getSizeInBytes() + RecordId.getSizeInBytes();
+        return (Page.pageSize - BUCKET_HEADER_SIZE) / entrySize;
+    }
+
+    /**
+     * Mixes the bits of the hash code of `key` (which, for integers, is the
+     * integer itself), so that the low bits used to index the directory depend
+     * on all of them. This is the finalizer of MurmurHash3.
+     */
+    private static int hash(DataBox key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int directoryIndex(DataBox key) {
+        return hash(key) & ((1 << globalDepth) - 1);
+    }
+
+    /**
+     * Returns whether splitting (perhaps repeatedly) the full bucket that key
+     * hashes to could make room for key: that is, whether the hash of some
+     * key of the bucket differs from the hash of key.
+     */
+    private static boolean canSplit(Bucket bucket, DataBox key) {
+        int h = hash(key);
+        for (DataBox k : bucket.keys) {
+            if (hash(k) != h) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a full bucket of local depth l (< MAX_GLOBAL_DEPTH) into itself
+     * and a new bucket, both of local depth l + 1: the keys whose hashes have
+     * bit l set move to the new bucket, and so do the directory entries that
+     * have bit l set.
+     */
+    private void split(BaseTransaction transaction, Bucket bucket) {
+        if (bucket.localDepth == globalDepth) {
+            doubleDirectory(transaction);
+        }
+
+        int bit = 1 << bucket.localDepth;
+        Bucket image = new Bucket(allocator.fetchPage(transaction, allocator.allocPage(transaction)),
+                                  bucket.localDepth + 1);
+        bucket.localDepth++;
+
+        List<DataBox> keys = bucket.keys;
+        List<RecordId> rids = bucket.rids;
+        bucket.keys = new ArrayList<>();
+        bucket.rids = new ArrayList<>();
+        for (int i = 0; i < keys.size(); ++i) {
+            Bucket b = (hash(keys.get(i)) & bit) == 0 ? bucket : image;
+            b.keys.add(keys.get(i));
+            b.rids.add(rids.get(i));
+        }
+        bucket.sync(transaction);
+        image.sync(transaction);
+
+        int pageNum = bucket.page.getPageNum();
+        for (int i = 0; i < directory.length; ++i) {
+            if (directory[i] == pageNum && (i & bit) != 0) {
+                directory[i] = image.page.getPageNum();
+                writeDirectoryEntry(transaction, i);
+            }
+        }
+    }
+
+    /**
+     * Doubles the directory: entry i + 2^d of the new directory points to the
+     * same bucket as entry i.
+     */
+    private void doubleDirectory(BaseTransaction transaction) {
+        int[] directory = new int[2 * this.directory.length];
+        System.arraycopy(this.directory, 0, directory, 0, this.directory.length);
+        System.arraycopy(this.directory, 0, directory, this.directory.length, this.directory.length);
+        this.directory = directory;
+        this.globalDepth++;
+
+        int numPages = (directory.length + DIRECTORY_ENTRIES_PER_PAGE - 1) / DIRECTORY_ENTRIES_PER_PAGE;
+        while (directoryPageNums.size() < numPages) {
+            directoryPageNums.add(allocator.allocPage(transaction));
+        }
+        for (int p = 0; p < numPages; ++p) {
+            writeDirectoryPage(transaction, p);
+        }
+        writeHeader(transaction);
+    }
+
+    /**
+     * Adds (key, rid) to the first page of the overflow chain of bucket with
+     * room for it, allocating a new page at the end of the chain if needed.
+     */
+    private void putOverflow(BaseTransaction transaction, Bucket bucket, DataBox key, RecordId rid) {
+        while (bucket.keys.size() == bucketCapacity) {
+            if (bucket.overflow == -1) {
+                Bucket next = new Bucket(allocator.fetchPage(transaction, allocator.allocPage(transaction)),
+                                         bucket.localDepth);
+                bucket.overflow = next.page.getPageNum();
+                bucket.sync(transaction);
+                bucket = next;
+            } else {
+                bucket = fetchBucket(transaction, bucket.overflow);
+            }
+        }
+        bucket.keys.add(key);
+        bucket.rids.add(rid);
+        bucket.sync(transaction);
+    }
+
+    private Bucket fetchBucket(BaseTransaction transaction, int pageNum) {
+        return Bucket.fromBytes(transaction, this, allocator.fetchPage(transaction, pageNum));
+    }
+
+    /** Writes directory entry i to its directory page. */
+    private void writeDirectoryEntry(BaseTransaction transaction, int i) {
+        Page page = allocator.fetchPage(transaction, directoryPageNums.get(i / DIRECTORY_ENTRIES_PER_PAGE));
+        page.getBuffer(transaction).position((i % DIRECTORY_ENTRIES_PER_PAGE) * Integer.BYTES)
+        .putInt(directory[i]);
+    }
+
+    /** Writes the directory entries that belong on directory page p. */
+    private void writeDirectoryPage(BaseTransaction transaction, int p) {
+        int start = p * DIRECTORY_ENTRIES_PER_PAGE;
+        int end = Math.min(directory.length, start + DIRECTORY_ENTRIES_PER_PAGE);
+        ByteBuffer buf = ByteBuffer.allocate((end - start) * Integer.BYTES);
+        for (int i = start; i < end; ++i) {
+            buf.putInt(directory[i]);
+        }
+        allocator.fetchPage(transaction, directoryPageNums.get(p)).getBuffer(transaction).put(buf.array());
+    }
+
+    /** Serializes the header page. */
+    private void writeHeader(BaseTransaction transaction) {
+        Buffer buf = headerPage.getBuffer(transaction);
+        buf.put(keySchema.toBytes());
+        buf.putInt(globalDepth);
+        buf.putInt(directoryPageNums.size());
+        for (int pageNum : directoryPageNums) {
+            buf.putInt(pageNum);
+        }
+    }
+
+    private void typecheck(DataBox key) {
+        if (!key.type().equals(keySchema)) {
+            String msg = String.format("DataBox %s is not of type %s", key, keySchema);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    // Buckets /////////////////////////////////////////////////////////////////
+    /**
+     * The in-memory contents of a bucket (or overflow) page. Changes are
+     * written back to the page with sync.
+     */
+    private static class Bucket {
+        private Page page;
+        private int localDepth;
+        private int overflow;
+        private List<DataBox> keys;
+        private List<RecordId> rids;
+
+        Bucket(Page page, int localDepth) {
+            this.page = page;
+            this.localDepth = localDepth;
+            this.overflow = -1;
+            this.keys = new ArrayList<>();
+            this.rids = new ArrayList<>();
+        }
+
+        /** Returns the position of the pair (key, rid) in the bucket, or -1. */
+        int indexOf(DataBox key, RecordId rid) {
+            for (int i = 0; i < keys.size(); ++i) {
+                if (keys.get(i).equals(key) && rids.get(i).equals(rid)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void sync(BaseTransaction transaction) {
+            ByteBuffer buf = ByteBuffer.allocate(Page.pageSize);
+            buf.putInt(localDepth);
+            buf.putInt(keys.size());
+            buf.putInt(overflow);
+            for (int i = 0; i < keys.size(); ++i) {
+                buf.put(keys.get(i).toBytes());
+                buf.put(rids.get(i).toBytes());
+            }
+            page.getBuffer(transaction).put(buf.array(), 0, buf.position());
+        }
+
+        static Bucket fromBytes(BaseTransaction transaction, HashIndex index, Page page) {
+            Buffer buf = page.getBuffer(transaction);
+            Bucket bucket = new Bucket(page, buf.getInt());
+            int n = buf.getInt();
+            bucket.overflow = buf.getInt();
+            for (int i = 0; i < n; ++i) {
+                bucket.keys.add(DataBox.fromBytes(buf, index.keySchema));
+                bucket.rids.add(RecordId.fromBytes(buf));
+            }
+            return bucket;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import edu.berkeley.cs186.database.BaseTransaction;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.TupleDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.query.MorselExecutor;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+
+/**
+ * Builds a B+ tree over the records of an existing table bottom up, instead
+ * of with one BPlusTree.put per record:
+ *
+ *   1. Scan. The data pages of the table are handed out, one at a time, to a
+ *      pool of workers. Each worker decodes the records of its pages (see
+ *      Table.getPageRecords) into IndexEntries.
+ *   2. Sort. Each worker collects its entries in a buffer of at most runSize
+ *      entries. Whenever the buffer fills up, it is sorted and written out as a
+ *      sorted run (a temporary table), so that the workers never hold more than
+ *      numMemoryPages pages worth of entries between them.
+ *   3. Merge. The runs are merged, numMemoryPages - 1 at a time, until they
+ *      can all be merged in one pass. The output of that last pass is not
+ *      written out, but streamed into BPlusTree.bulkLoadEntries.
+ *
+ * If every entry fits in memory, no run is written at all: the buffers of the
+ * workers are sorted and merged directly.
+ *
+ * A run stores an entry as a record whose fields are the fields of its key,
+ * the page and entry numbers of its record id, and the fields of its included
+ * values, if any.
+ */
+public class IndexBuilder {
+    private BaseTransaction transaction;
+    private Table table;
+    private BiFunction<List<DataBox>, RecordId, DataBox> key;
+    private Function<List<DataBox>, DataBox> included;
+    private Type keyType;
+    private Schema runSchema;
+    private int numWorkers;
+    private int runSize;
+    private int fanIn;
+
+    // The temporary tables holding the sorted runs written so far.
+    private List<String> runs;
+
+    private static final Comparator<IndexEntry> ENTRY_COMPARATOR = new Comparator<IndexEntry>() {
+        @Override
+        public int compare(IndexEntry a, IndexEntry b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    /**
+     * @param transaction the transaction building the index
+     * @param table the table to index
+     * @param key computes the key of a record from its values and record id
+     * @param included computes the included values of a record from its values,
+     *  or returns null if the index is not a covering index
+     * @param keyType the type of the keys of the index
+     * @param includedType the type of the included values of the index, or null
+     * @param numWorkers the number of threads scanning the table
+     */
+    public IndexBuilder(BaseTransaction transaction, Table table,
+                        BiFunction<List<DataBox>, RecordId, DataBox> key,
+                        Function<List<DataBox>, DataBox> included,
+                        Type keyType, Type includedType, int numWorkers) throws DatabaseException {
+        this.transaction = transaction;
+        this.table = table;
+        this.key = key;
+        this.included = included;
+        this.keyType = keyType;
+        this.numWorkers = Math.max(1, Math.min(numWorkers, table.getNumDataPages()));
+        this.runs = new ArrayList<>();
+
+        List<String> fieldNames = new ArrayList<>();
+        List<Type> fieldTypes = new ArrayList<>();
+        for (Type t : fieldTypesOf(keyType)) {
+            fieldNames.add("key" + fieldNames.size());
+            fieldTypes.add(t);
+        }
+        fieldNames.add("pageNum");
+        fieldTypes.add(Type.intType());
+        fieldNames.add("entryNum");
+        fieldTypes.add(Type.intType());
+        if (includedType != null) {
+            for (Type t : includedType.getFieldTypes()) {
+                fieldNames.add("included" + fieldNames.size());
+                fieldTypes.add(t);
+            }
+        }
+        this.runSchema = new Schema(fieldNames, fieldTypes);
+
+        int numMemoryPages = transaction.getNumMemoryPages();
+        int entriesPerPage = Table.computeNumRecordsPerPage(Page.pageSize, this.runSchema);
+        this.runSize = Math.max(1, numMemoryPages * entriesPerPage / this.numWorkers);
+        this.fanIn = Math.max(2, numMemoryPages - 1);
+    }
+
+    /**
+     * Scans, sorts, and loads every record of the table into tree, which must
+     * be empty, filling its leaves up to fillFactor. The keys of the records
+     * must be unique, as bulkLoadEntries does not check them.
+     */
+    public void build(BPlusTree tree, float fillFactor) throws DatabaseException, BPlusTreeException {
+        try {
+            List<List<IndexEntry>> buffers = scan();
+            List<Iterator<IndexEntry>> sources = new ArrayList<>();
+            if (this.runs.isEmpty()) {
+                for (List<IndexEntry> buffer : buffers) {
+                    sources.add(buffer.iterator());
+                }
+            } else {
+                for (List<IndexEntry> buffer : buffers) {
+                    writeRun(buffer);
+                }
+                while (this.runs.size() > this.fanIn) {
+                    mergePass();
+                }
+                for (String run : this.runs) {
+                    sources.add(readRun(run));
+                }
+            }
+
+            tree.bulkLoadEntries(this.transaction, new MergeIterator(sources), fillFactor);
+        } finally {
+            for (String run : this.runs) {
+                this.transaction.deleteTempTable(run);
+            }
+            this.runs.clear();
+        }
+    }
+
+    // Scan //////////////////////////////////////////////////////////////////////
+    /**
+     * Runs the scan workers, on threads of the pool of MorselExecutor, and
+     * returns the (sorted) entries each of them was left with once the table
+     * was exhausted.
+     */
+    private List<List<IndexEntry>> scan() throws DatabaseException {
+        Iterator<Page> pages = this.table.getAllocator().iterator(this.transaction);
+        if (pages.hasNext()) {
+            // The first page is the header page.
+            pages.next();
+        }
+
+        List<Future<List<IndexEntry>>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < this.numWorkers; ++i) {
+                futures.add(MorselExecutor.submit(new ScanWorker(pages)));
+            }
+            List<List<IndexEntry>> buffers = new ArrayList<>();
+            for (Future<List<IndexEntry>> future : futures) {
+                buffers.add(future.get());
+            }
+            return buffers;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while building index.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DatabaseException) {
+                throw (DatabaseException) e.getCause();
+            }
+            throw new DatabaseException(e.getCause().toString());
+        } finally {
+            // Workers that have not started yet never do. Running workers are
+            // not interrupted, since interrupting a thread closes the files it
+            // is writing to.
+            for (Future<List<IndexEntry>> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A worker of the scan, which reads pages until there are none left and
+     * returns its last, sorted, buffer of entries.
+     */
+    private class ScanWorker implements Callable<List<IndexEntry>> {
+        private Iterator<Page> pages;
+        private List<IndexEntry> buffer;
+
+        ScanWorker(Iterator<Page> pages) {
+            this.pages = pages;
+            this.buffer = new ArrayList<>();
+        }
+
+        private Page nextPage() {
+            synchronized (this.pages) {
+                return this.pages.hasNext() ? this.pages.next() : null;
+            }
+        }
+
+        @Override
+        public List<IndexEntry> call() throws DatabaseException {
+            BaseTransaction transaction = IndexBuilder.this.transaction;
+            Page page;
+            while ((page = nextPage()) != null) {
+                for (Pair<RecordId, Record> p : IndexBuilder.this.table.getPageRecords(transaction, page)) {
+                    RecordId rid = p.getFirst();
+                    List<DataBox> values = p.getSecond().getValues();
+                    this.buffer.add(new IndexEntry(IndexBuilder.this.key.apply(values, rid), rid,
+                                                   IndexBuilder.this.included.apply(values)));
+                    if (this.buffer.size() == IndexBuilder.this.runSize) {
+                        writeRun(this.buffer);
+                        this.buffer = new ArrayList<>();
+                    }
+                }
+            }
+            Collections.sort(this.buffer, ENTRY_COMPARATOR);
+            return this.buffer;
+        }
+    }
+
+    // Runs //////////////////////////////////////////////////////////////////////
+    /**
+     * Sorts entries and writes them out as a new run. Sorting happens outside
+     * of the lock, so that only the writes of the workers are serialized.
+     */
+    private void writeRun(List<IndexEntry> entries) throws DatabaseException {
+        Collections.sort(entries, ENTRY_COMPARATOR);
+        writeRun(entries.iterator());
+    }
+
+    // The locks this takes are on a temporary table of the transaction, which
+    // no other transaction can hold, so no worker waits for them here.
+    private synchronized void writeRun(Iterator<IndexEntry> entries) throws DatabaseException {
+        String run = this.transaction.createTempTable(this.runSchema);
+        this.runs.add(run);
+        while (entries.hasNext()) {
+            this.transaction.addRecord(run, toValues(entries.next()));
+        }
+    }
+
+    private Iterator<IndexEntry> readRun(String run) throws DatabaseException {
+        Iterator<Record> records = this.transaction.getRecordIterator(run);
+        return new Iterator<IndexEntry>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public IndexEntry next() {
+                return fromValues(records.next().getValues());
+            }
+        };
+    }
+
+    /**
+     * Replaces the runs, fanIn at a time, by their merges.
+     */
+    private void mergePass() throws DatabaseException {
+        List<String> inputs = this.runs;
+        this.runs = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i += this.fanIn) {
+            List<String> group = inputs.subList(i, Math.min(i + this.fanIn, inputs.size()));
+            List<Iterator<IndexEntry>> sources = new ArrayList<>();
+            for (String run : group) {
+                sources.add(readRun(run));
+            }
+            writeRun(new MergeIterator(sources));
+            for (String run : group) {
+                this.transaction.deleteTempTable(run);
+            }
+        }
+    }
+
+    private List<DataBox> toValues(IndexEntry entry) {
+        List<DataBox> values = new ArrayList<>();
+        if (this.keyType.getTypeId() == TypeId.TUPLE) {
+            values.addAll(((TupleDataBox) entry.getKey()).getValues());
+        } else {
+            values.add(entry.getKey());
+        }
+        values.add(new IntDataBox(entry.getRecordId().getPageNum()));
+        values.add(new IntDataBox(entry.getRecordId().getEntryNum()));
+        if (entry.getIncluded() != null) {
+            values.addAll(((TupleDataBox) entry.getIncluded()).getValues());
+        }
+        return values;
+    }
+
+    private IndexEntry fromValues(List<DataBox> values) {
+        int n = fieldTypesOf(this.keyType).size();
+        DataBox key = this.keyType.getTypeId() == TypeId.TUPLE
+                      ? new TupleDataBox(values.subList(0, n))
+                      : values.get(0);
+        RecordId rid = new RecordId(values.get(n).getInt(), (short) values.get(n + 1).getInt());
+        DataBox included = values.size() > n + 2
+                           ? new TupleDataBox(values.subList(n + 2, values.size()))
+                           : null;
+        return new IndexEntry(key, rid, included);
+    }
+
+    private static List<Type> fieldTypesOf(Type t) {
+        return t.getTypeId() == TypeId.TUPLE ? t.getFieldTypes() : Collections.singletonList(t);
+    }
+
+    // Merge /////////////////////////////////////////////////////////////////////
+    /**
+     * Merges sorted iterators of entries into one sorted iterator.
+     */
+    private static class MergeIterator implements Iterator<IndexEntry> {
+        private PriorityQueue<Pair<IndexEntry, Iterator<IndexEntry>>> heads;
+
+        MergeIterator(List<Iterator<IndexEntry>> sources) {
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()),
+            new Comparator<Pair<IndexEntry, Iterator<IndexEntry>>>() {
+                @Override
+                public int compare(Pair<IndexEntry, Iterator<IndexEntry>> a,
+                                   Pair<IndexEntry, Iterator<IndexEntry>> b) {
+                    return ENTRY_COMPARATOR.compare(a.getFirst(), b.getFirst());
+                }
+            });
+            for (Iterator<IndexEntry> source : sources) {
+                if (source.hasNext()) {
+                    this.heads.add(new Pair<>(source.next(), source));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.heads.isEmpty();
+        }
+
+        @Override
+        public IndexEntry next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Pair<IndexEntry, Iterator<IndexEntry>> head = this.heads.poll();
+            Iterator<IndexEntry> source = head.getSecond();
+            if (source.hasNext()) {
+                this.heads.add(new Pair<>(source.next(), source));
+            }
+            return head.getFirst();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.Objects;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.table.RecordId;
+
+/**
+ * An entry of a B+ tree leaf: a key, the record id the key maps to, and, for
+ * covering indexes, the values of the record's included (non-key) columns as
+ * a TupleDataBox. Indexes without included columns have a null `included`.
+ */
+public class IndexEntry {
+    private final DataBox key;
+    private final RecordId rid;
+    private final DataBox included;
+
+    public IndexEntry(DataBox key, RecordId rid) {
+        this(key, rid, null);
+    }
+
+    public IndexEntry(DataBox key, RecordId rid, DataBox included) {
+        this.key = key;
+        this.rid = rid;
+        this.included = included;
+    }
+
+    public DataBox getKey() {
+        return key;
+    }
+
+    public RecordId getRecordId() {
+        return rid;
+    }
+
+    public DataBox getIncluded() {
+        return included;
+    }
+
+    @Override
+    public String toString() {
+        if (included == null) {
+            return String.format("(%s, %s)", key, rid);
+        }
+        return String.format("(%s, %s, %s)", key, rid, included);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof IndexEntry)) {
+            return false;
+        }
+        IndexEntry e = (IndexEntry) o;
+        return key.equals(e.key) && rid.equals(e.rid) && Objects.equals(included, e.included);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, rid, included);
+    }
+}
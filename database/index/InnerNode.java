@@ -83,11 +83,12 @@ class InnerNode extends BPlusNode {
 
     // See BPlusNode.put.
     @Override
-    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid)
+    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid,
+            DataBox included)
     throws BPlusTreeException {
         int index = numLessThanEqual(key, keys);
         BPlusNode child = getChild(transaction, index);
-        Optional<Pair<DataBox, Integer>> o = child.put(transaction, key, rid);
+        Optional<Pair<DataBox, Integer>> o = child.put(transaction, key, rid, included);
 
         // If our child didn't split, then we don't have to do anything.
         if (!o.isPresent()) {
@@ -119,8 +120,7 @@ class InnerNode extends BPlusNode {
 
         // If we can accommodate the new key and child pointer (i.e. we don't have
         // more than 2d keys), then we're done (just don't forget to sync)!
-        int d = metadata.getOrder();
-        if (keys.size() <= 2 * d) {
+        if (!overflows()) {
             sync(transaction);
             return Optional.empty();
         }
@@ -137,33 +137,19 @@ class InnerNode extends BPlusNode {
         //    /    |    \    /    |    \
         //   0     1     2  3     4     5
         //
-        // We would then return the pair (c, left).
-        assert(keys.size() == 2 * d + 1);
-        List<DataBox> leftKeys = keys.subList(0, d);
-        DataBox middleKey = keys.get(d);
-        List<DataBox> rightKeys = keys.subList(d + 1, 2 * d + 1);
-        List<Integer> leftChildren = children.subList(0, d + 1);
-        List<Integer> rightChildren = children.subList(d + 1, 2 * d + 2);
-
-        // Create right node.
-        InnerNode n = new InnerNode(metadata, rightKeys, rightChildren, transaction);
-
-        // Update left node.
-        this.keys = leftKeys;
-        this.children = leftChildren;
-        sync(transaction);
-
-        return Optional.of(new Pair<>(middleKey, n.getPage().getPageNum()));
+        // We would then return the pair (c, left). An inner node with compressed
+        // keys can also overflow its page before it has 2d + 1 keys; it is split
+        // around its middle key in the same way.
+        return Optional.of(split(transaction));
     }
 
     // See BPlusNode.bulkLoad.
     @Override
     public Optional<Pair<DataBox, Integer>> bulkLoad(BaseTransaction transaction,
-            Iterator<Pair<DataBox, RecordId>> data,
+            Iterator<IndexEntry> data,
             float fillFactor)
     throws BPlusTreeException {
-        int d = metadata.getOrder();
-        while (data.hasNext() && keys.size() <= 2 * d) {
+        while (data.hasNext() && !overflows()) {
             BPlusNode rightChild = getChild(transaction, children.size() - 1);
             Optional<Pair<DataBox, Integer>> o = rightChild.bulkLoad(transaction, data, fillFactor);
             if (o.isPresent()) {
@@ -173,27 +159,12 @@ class InnerNode extends BPlusNode {
             }
         }
 
-        if (keys.size() <= 2 * d) {
+        if (!overflows()) {
             sync(transaction);
             return Optional.empty();
         }
 
-        assert(keys.size() == 2 * d + 1);
-        List<DataBox> leftKeys = keys.subList(0, d);
-        DataBox middleKey = keys.get(d);
-        List<DataBox> rightKeys = keys.subList(d + 1, 2 * d + 1);
-        List<Integer> leftChildren = children.subList(0, d + 1);
-        List<Integer> rightChildren = children.subList(d + 1, 2 * d + 2);
-
-        // Create right node.
-        InnerNode n = new InnerNode(metadata, rightKeys, rightChildren, transaction);
-
-        // Update left node.
-        this.keys = leftKeys;
-        this.children = leftChildren;
-        sync(transaction);
-
-        return Optional.of(new Pair<>(middleKey, n.getPage().getPageNum()));
+        return Optional.of(split(transaction));
     }
 
     // See BPlusNode.remove.
@@ -215,6 +186,43 @@ class InnerNode extends BPlusNode {
         return BPlusNode.fromBytes(transaction, metadata, pageNum);
     }
 
+    /**
+     * Returns whether this node has too many keys: more than 2d, or, for a
+     * tree with compressed keys, more than fit on its page.
+     */
+    private boolean overflows() {
+        if (keys.size() > 2 * metadata.getOrder()) {
+            return true;
+        }
+        return metadata.compressesKeys() && toBytes().length > Page.pageSize;
+    }
+
+    /**
+     * Splits an overflowing node around its middle key: the keys and children
+     * to the left of it stay in this node, the ones to the right of it are
+     * moved to a new node, and the middle key and the page number of the new
+     * node are returned. With 2d + 1 keys, both nodes get d keys.
+     */
+    private Pair<DataBox, Integer> split(BaseTransaction transaction) {
+        int n = keys.size();
+        int m = n / 2;
+        List<DataBox> leftKeys = keys.subList(0, m);
+        DataBox middleKey = keys.get(m);
+        List<DataBox> rightKeys = keys.subList(m + 1, n);
+        List<Integer> leftChildren = children.subList(0, m + 1);
+        List<Integer> rightChildren = children.subList(m + 1, n + 1);
+
+        // Create right node.
+        InnerNode right = new InnerNode(metadata, rightKeys, rightChildren, transaction);
+
+        // Update left node.
+        this.keys = leftKeys;
+        this.children = leftChildren;
+        sync(transaction);
+
+        return new Pair<>(middleKey, right.getPage().getPageNum());
+    }
+
     private void sync(BaseTransaction transaction) {
         Buffer b = page.getBuffer(transaction);
         byte[] newBytes = toBytes();
@@ -266,6 +274,19 @@ class InnerNode extends BPlusNode {
         return n / 2;
     }
 
+    /**
+     * Like maxOrder, but if compressKeys is true, returns the largest order
+     * of a tree with compressed keys: the number of keys of an inner node
+     * whose keys take up as little space as possible (see KeyCompression).
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, boolean compressKeys) {
+        if (!compressKeys) {
+            return maxOrder(pageSizeInBytes, keySchema);
+        }
+        int n = (pageSizeInBytes - 9) / (KeyCompression.LENGTHS_SIZE + 4);
+        return n / 2;
+    }
+
     /**
      * Given a list ys sorted in ascending order, numLessThanEqual(x, ys) returns
      * the number of elements in ys that are less than or equal to x. For
@@ -384,7 +405,8 @@ class InnerNode extends BPlusNode {
         //      a leaf node,
         //   b. the number n (4 bytes) of keys this inner node contains (which is
         //      one fewer than the number of children pointers),
-        //   c. the n keys, and
+        //   c. the n keys (compressed as described in KeyCompression if the
+        //      tree compresses its keys), and
         //   d. the n+1 children pointers.
         //
         // For example, the following bytes:
@@ -401,15 +423,22 @@ class InnerNode extends BPlusNode {
         // All sizes are in bytes.
         int isLeafSize = 1;
         int numKeysSize = Integer.BYTES;
-        int keysSize = metadata.getKeySchema().getSizeInBytes() * keys.size();
+        int keysSize = metadata.compressesKeys()
+                       ? KeyCompression.keysSize(keys)
+                       : metadata.getKeySchema().getSizeInBytes() * keys.size();
         int childrenSize = Integer.BYTES * children.size();
         int size = isLeafSize + numKeysSize + keysSize + childrenSize;
 
         ByteBuffer buf = ByteBuffer.allocate(size);
         buf.put((byte) 0);
         buf.putInt(keys.size());
+        byte[] prev = null;
         for (DataBox key : keys) {
-            buf.put(key.toBytes());
+            if (metadata.compressesKeys()) {
+                prev = KeyCompression.writeKey(buf, prev, key);
+            } else {
+                buf.put(key.toBytes());
+            }
         }
         for (Integer child : children) {
             buf.putInt(child);
@@ -431,8 +460,14 @@ class InnerNode extends BPlusNode {
         List<DataBox> keys = new ArrayList<>();
         List<Integer> children = new ArrayList<>();
         int n = buf.getInt();
+        byte[] prev = null;
         for (int i = 0; i < n; ++i) {
-            keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+            if (metadata.compressesKeys()) {
+                prev = KeyCompression.readKey(buf, prev);
+                keys.add(KeyCompression.toKey(metadata.getKeySchema(), prev));
+            } else {
+                keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+            }
         }
         for (int i = 0; i < n + 1; ++i) {
             children.add(buf.getInt());
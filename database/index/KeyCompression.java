@@ -0,0 +1,206 @@
+package edu.berkeley.cs186.database.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.databox.TupleDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+
+/**
+ * Helpers for the compressed key format of B+ trees on string keys, and on
+ * tuple keys whose first field is a string.
+ *
+ * A StringDataBox of type stringType(m) is always m bytes long, padded with
+ * spaces, so a fixed-width node spends most of its page on padding and on
+ * bytes repeated from neighbouring keys. Nodes of a tree with compressed keys
+ * instead store their keys, in order, as
+ *
+ *   +----------------+----------------+-----------------+
+ *   | shared (short) | suffix (short) | suffix bytes... |
+ *   +----------------+----------------+-----------------+
+ *
+ * where the key with its trailing spaces removed is the first `shared` bytes
+ * of the previous (trimmed) key of the node followed by the suffix bytes. For
+ * example, the keys "apple", "applet" and "apply" of a stringType(8) tree are
+ * stored as (0, 5, "apple"), (5, 1, "t") and (4, 1, "y").
+ *
+ * The bytes of a tuple key are its trimmed first field followed by the bytes
+ * of its other fields. Those have a fixed size, so the first field is the
+ * key minus its last (size of the other fields) bytes. This is what indexes
+ * on string columns use, since their keys end with a record id (see
+ * Database.Transaction.createIndex).
+ *
+ * Since ' ' is the smallest character a string may contain, a key padded with
+ * spaces is never greater than any key it is a prefix of. This lets leaf
+ * splits push up the shortest separator (see shortestSeparator) instead of the
+ * first key of the right leaf, which keeps inner node keys short as well.
+ */
+final class KeyCompression {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // The bytes used to store the shared and suffix lengths of a key.
+    static final int LENGTHS_SIZE = 2 * Short.BYTES;
+
+    private KeyCompression() {}
+
+    /** Returns whether the keys of a tree with key schema t can be compressed. */
+    static boolean supports(Type t) {
+        if (t.getSizeInBytes() > Short.MAX_VALUE) {
+            return false;
+        }
+        if (t.getTypeId() == TypeId.TUPLE) {
+            return t.getFieldTypes().get(0).getTypeId() == TypeId.STRING;
+        }
+        return t.getTypeId() == TypeId.STRING;
+    }
+
+    /**
+     * Returns the bytes of a key: a string without its trailing spaces, or a
+     * tuple as described above.
+     */
+    static byte[] trimmed(DataBox key) {
+        if (key.type().getTypeId() != TypeId.TUPLE) {
+            return trimmedString(key);
+        }
+        List<DataBox> values = ((TupleDataBox) key).getValues();
+        byte[] first = trimmedString(values.get(0));
+        int restSize = key.type().getSizeInBytes() - values.get(0).type().getSizeInBytes();
+        ByteBuffer buf = ByteBuffer.allocate(first.length + restSize);
+        buf.put(first);
+        for (DataBox value : values.subList(1, values.size())) {
+            buf.put(value.toBytes());
+        }
+        return buf.array();
+    }
+
+    private static byte[] trimmedString(DataBox key) {
+        String s = key.getString();
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == ' ') {
+            --end;
+        }
+        return s.substring(0, end).getBytes(CHARSET);
+    }
+
+    /** Returns the length of the longest common prefix of a and b. */
+    static int sharedPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of bytes needed to store `key` right after `prev`
+     * (which is null for the first key of a node).
+     */
+    static int keySize(byte[] prev, byte[] key) {
+        int shared = prev == null ? 0 : sharedPrefix(prev, key);
+        return LENGTHS_SIZE + key.length - shared;
+    }
+
+    /** Returns the number of bytes needed to store keys. */
+    static int keysSize(List<DataBox> keys) {
+        int size = 0;
+        byte[] prev = null;
+        for (DataBox key : keys) {
+            byte[] k = trimmed(key);
+            size += keySize(prev, k);
+            prev = k;
+        }
+        return size;
+    }
+
+    /**
+     * Writes `key` to buf right after `prev` (which is null for the first key
+     * of a node), and returns its trimmed bytes, to be passed as the prev of
+     * the next key.
+     */
+    static byte[] writeKey(ByteBuffer buf, byte[] prev, DataBox key) {
+        byte[] k = trimmed(key);
+        int shared = prev == null ? 0 : sharedPrefix(prev, k);
+        buf.putShort((short) shared);
+        buf.putShort((short) (k.length - shared));
+        buf.put(k, shared, k.length - shared);
+        return k;
+    }
+
+    /**
+     * Reads a key that was written right after the key whose
+     * trimmed bytes are prev (null for the first key of a node), and returns
+     * its trimmed bytes. The key itself is recovered with toKey.
+     */
+    static byte[] readKey(Buffer buf, byte[] prev) {
+        int shared = buf.getShort();
+        int suffix = buf.getShort();
+        byte[] bytes = new byte[suffix];
+        buf.get(bytes);
+        byte[] k = new byte[shared + suffix];
+        if (shared > 0) {
+            System.arraycopy(prev, 0, k, 0, shared);
+        }
+        System.arraycopy(bytes, 0, k, shared, suffix);
+        return k;
+    }
+
+    /** Returns the key of type t with trimmed bytes k. */
+    static DataBox toKey(Type t, byte[] k) {
+        if (t.getTypeId() != TypeId.TUPLE) {
+            return new StringDataBox(new String(k, CHARSET), t.getSizeInBytes());
+        }
+        List<Type> fieldTypes = t.getFieldTypes();
+        Type firstType = fieldTypes.get(0);
+        int firstSize = k.length - (t.getSizeInBytes() - firstType.getSizeInBytes());
+        List<DataBox> values = new ArrayList<>();
+        values.add(new StringDataBox(new String(k, 0, firstSize, CHARSET), firstType.getSizeInBytes()));
+        Buffer rest = edu.berkeley.cs186.database.common.ByteBuffer.wrap(k, firstSize, k.length - firstSize);
+        for (Type fieldType : fieldTypes.subList(1, fieldTypes.size())) {
+            values.add(DataBox.fromBytes(rest, fieldType));
+        }
+        return new TupleDataBox(values);
+    }
+
+    /**
+     * Returns the shortest key s (padded with spaces) such that
+     * leftMax < s <= rightMin. Every key that belongs to the left of a split
+     * is less than s, and every key that belongs to the right is at least s,
+     * so s can be used in place of rightMin as the separator between them.
+     *
+     * For tuple keys, only the first field is shortened: if it is shorter
+     * than the first field of rightMin, it is already greater than the first
+     * field of leftMax and less than that of rightMin, whatever the other
+     * fields are.
+     */
+    static DataBox shortestSeparator(Type t, DataBox leftMax, DataBox rightMin) {
+        if (t.getTypeId() == TypeId.TUPLE) {
+            List<DataBox> right = ((TupleDataBox) rightMin).getValues();
+            DataBox first = shortestSeparator(t.getFieldTypes().get(0),
+                                              ((TupleDataBox) leftMax).getValues().get(0), right.get(0));
+            if (first.equals(right.get(0))) {
+                return rightMin;
+            }
+            List<DataBox> values = new ArrayList<>(right);
+            values.set(0, first);
+            return new TupleDataBox(values);
+        }
+        byte[] right = trimmed(rightMin);
+        int shared = sharedPrefix(trimmed(leftMax), right);
+        for (int n = shared + 1; n < right.length; ++n) {
+            byte[] candidate = new byte[n];
+            System.arraycopy(right, 0, candidate, 0, n);
+            DataBox separator = toKey(t, candidate);
+            if (separator.compareTo(leftMax) > 0) {
+                return separator;
+            }
+        }
+        return rightMin;
+    }
+}
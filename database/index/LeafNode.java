@@ -23,6 +23,9 @@ import edu.berkeley.cs186.database.table.RecordId;
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
  *   | k0:r0 | k1:r1 | k2:r2 |       | --> | k3:r3 | k4:r4 |       |       |
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
+ *
+ * The leaves of a covering index additionally store the values of the
+ * included columns of every record next to its (key, record id) pair.
  */
 class LeafNode extends BPlusNode {
     // Metadata about the B+ tree that this node belongs to.
@@ -94,6 +97,10 @@ class LeafNode extends BPlusNode {
     private List<DataBox> keys;
     private List<RecordId> rids;
 
+    // The included values of each entry, with the same indexing as keys and
+    // rids. If the tree has no included columns, every element is null.
+    private List<DataBox> included;
+
     // If this leaf is the rightmost leaf, then rightSibling is Optional.empty().
     // Otherwise, rightSibling is Optional.of(n) where n is the page number of
     // this leaf's right sibling.
@@ -106,7 +113,17 @@ class LeafNode extends BPlusNode {
      */
     public LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys,
                     List<RecordId> rids, Optional<Integer> rightSibling, BaseTransaction transaction) {
-        this(metadata, metadata.getAllocator().allocPage(transaction), keys, rids,
+        this(metadata, keys, rids, new ArrayList<>(Collections.nCopies(keys.size(), (DataBox) null)),
+             rightSibling, transaction);
+    }
+
+    /**
+     * Construct a brand new leaf node of a covering index, whose entries have
+     * the included values `included`.
+     */
+    public LeafNode(BPlusTreeMetadata metadata, List<DataBox> keys, List<RecordId> rids,
+                    List<DataBox> included, Optional<Integer> rightSibling, BaseTransaction transaction) {
+        this(metadata, metadata.getAllocator().allocPage(transaction), keys, rids, included,
              rightSibling, transaction);
     }
 
@@ -115,13 +132,16 @@ class LeafNode extends BPlusNode {
      * metadata.getAllocator().
      */
     private LeafNode(BPlusTreeMetadata metadata, int pageNum, List<DataBox> keys,
-                     List<RecordId> rids, Optional<Integer> rightSibling, BaseTransaction transaction) {
+                     List<RecordId> rids, List<DataBox> included, Optional<Integer> rightSibling,
+                     BaseTransaction transaction) {
         assert(keys.size() == rids.size());
+        assert(keys.size() == included.size());
 
         this.metadata = metadata;
         this.page = metadata.getAllocator().fetchPage(transaction, pageNum);
         this.keys = keys;
         this.rids = rids;
+        this.included = included;
         this.rightSibling = rightSibling;
         sync(transaction);
     }
@@ -141,7 +161,8 @@ class LeafNode extends BPlusNode {
 
     // See BPlusNode.put.
     @Override
-    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid)
+    public Optional<Pair<DataBox, Integer>> put(BaseTransaction transaction, DataBox key, RecordId rid,
+            DataBox included)
     throws BPlusTreeException {
         // Our implementation of B+ trees does not support duplicates!
         if (keys.contains(key)) {
@@ -166,12 +187,12 @@ class LeafNode extends BPlusNode {
         int index = InnerNode.numLessThanEqual(key, keys);
         keys.add(index, key);
         rids.add(index, rid);
+        this.included.add(index, included);
 
         // If we can accommodate the new key and record id (i.e. the number of
         // entries does not exceed 2d), then we're done (just don't forget to
         // sync)!
-        int d = metadata.getOrder();
-        if (keys.size() <= 2 * d) {
+        if (!overflows()) {
             sync(transaction);
             return Optional.empty();
         }
@@ -186,30 +207,36 @@ class LeafNode extends BPlusNode {
         //   | k1:r1 | k2:r2 |  | k3:r3 | k4:r4 | k5:r5 |
         //   +-------+-------+  +-------+-------+-------+
         //
-        // and we would return the pair (k3, right).
-        assert(keys.size() == 2 * d + 1);
-        List<DataBox> leftKeys = keys.subList(0, d);
-        List<DataBox> rightKeys = keys.subList(d, 2 * d + 1);
-        List<RecordId> leftRids  = rids.subList(0, d);
-        List<RecordId> rightRids  = rids.subList(d, 2 * d + 1);
+        // and we would return the pair (k3, right). A leaf with compressed keys
+        // can also overflow its page before it has 2d + 1 entries; it is split
+        // at its midpoint in the same way.
+        int size = keys.size();
+        int m = size / 2;
+        List<DataBox> leftKeys = keys.subList(0, m);
+        List<DataBox> rightKeys = keys.subList(m, size);
+        List<RecordId> leftRids  = rids.subList(0, m);
+        List<RecordId> rightRids  = rids.subList(m, size);
+        List<DataBox> leftIncluded = this.included.subList(0, m);
+        List<DataBox> rightIncluded = this.included.subList(m, size);
 
         // Create right node.
-        LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightSibling, transaction);
+        LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightIncluded, rightSibling, transaction);
         int pageNum = n.getPage().getPageNum();
 
         // Update left node.
         this.keys = leftKeys;
         this.rids = leftRids;
+        this.included = leftIncluded;
         this.rightSibling = Optional.of(pageNum);
         sync(transaction);
 
-        return Optional.of(new Pair<>(rightKeys.get(0), pageNum));
+        return Optional.of(new Pair<>(separator(leftKeys.get(m - 1), rightKeys.get(0)), pageNum));
     }
 
     // See BPlusNode.bulkLoad.
     @Override
     public Optional<Pair<DataBox, Integer>> bulkLoad(BaseTransaction transaction,
-            Iterator<Pair<DataBox, RecordId>> data,
+            Iterator<IndexEntry> data,
             float fillFactor)
     throws BPlusTreeException {
         int d = metadata.getOrder();
@@ -218,32 +245,61 @@ class LeafNode extends BPlusNode {
         }
 
         int numKeys = (int) Math.ceil(2 * d * fillFactor);
-        for (int i = keys.size(); i < numKeys && data.hasNext(); ++i) {
-            Pair<DataBox, RecordId> pair = data.next();
-            keys.add(pair.getFirst());
-            rids.add(pair.getSecond());
+        // The entry that did not fit on this leaf, if any. It becomes the
+        // first entry of our new right sibling.
+        IndexEntry next = null;
+        if (!metadata.compressesKeys()) {
+            for (int i = keys.size(); i < numKeys && data.hasNext(); ++i) {
+                IndexEntry entry = data.next();
+                keys.add(entry.getKey());
+                rids.add(entry.getRecordId());
+                included.add(entry.getIncluded());
+            }
+        } else {
+            // Fill the page (rather than 2d entries) up to the fill factor. The
+            // first entry of every leaf is always taken.
+            int maxSize = (int) (Page.pageSize * fillFactor);
+            int size = toBytes().length;
+            byte[] prev = keys.isEmpty() ? null : KeyCompression.trimmed(keys.get(keys.size() - 1));
+            while (keys.size() < numKeys && data.hasNext()) {
+                IndexEntry entry = data.next();
+                byte[] k = KeyCompression.trimmed(entry.getKey());
+                int entrySize = KeyCompression.keySize(prev, k) + valueSize();
+                if (!keys.isEmpty() && size + entrySize > maxSize) {
+                    next = entry;
+                    break;
+                }
+                keys.add(entry.getKey());
+                rids.add(entry.getRecordId());
+                included.add(entry.getIncluded());
+                size += entrySize;
+                prev = k;
+            }
         }
 
-        if (!data.hasNext()) {
+        if (next == null && !data.hasNext()) {
             sync(transaction);
             return Optional.empty();
         }
 
         List<DataBox> rightKeys = new ArrayList<>();
         List<RecordId> rightRids = new ArrayList<>();
-        Pair<DataBox, RecordId> pair = data.next();
-        rightKeys.add(0, pair.getFirst());
-        rightRids.add(0, pair.getSecond());
+        List<DataBox> rightIncluded = new ArrayList<>();
+        IndexEntry entry = next != null ? next : data.next();
+        rightKeys.add(0, entry.getKey());
+        rightRids.add(0, entry.getRecordId());
+        rightIncluded.add(0, entry.getIncluded());
 
         // Create right node.
-        LeafNode n = new LeafNode(metadata, rightKeys, rightRids, Optional.empty(), transaction);
+        LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightIncluded, Optional.empty(),
+                                  transaction);
         int pageNum = n.getPage().getPageNum();
 
         // Update left node.
         this.rightSibling = Optional.of(pageNum);
         sync(transaction);
 
-        return Optional.of(new Pair<>(rightKeys.get(0), pageNum));
+        return Optional.of(new Pair<>(separator(keys.get(keys.size() - 1), rightKeys.get(0)), pageNum));
     }
 
     // See BPlusNode.remove.
@@ -253,6 +309,7 @@ class LeafNode extends BPlusNode {
         if (index != -1) {
             keys.remove(index);
             rids.remove(index);
+            included.remove(index);
         }
         sync(transaction);
     }
@@ -309,14 +366,52 @@ class LeafNode extends BPlusNode {
         }
     }
 
+    /**
+     * Returns whether this leaf has too many entries: more than 2d, or, for a
+     * tree with compressed keys, more than fit on its page.
+     */
+    private boolean overflows() {
+        if (keys.size() > 2 * metadata.getOrder()) {
+            return true;
+        }
+        return metadata.compressesKeys() && toBytes().length > Page.pageSize;
+    }
+
+    /**
+     * Returns the key to separate this leaf from a new right sibling whose
+     * first key is rightMin: rightMin itself, or the shortest key between
+     * leftMax and rightMin if the tree compresses its keys.
+     */
+    private DataBox separator(DataBox leftMax, DataBox rightMin) {
+        if (!metadata.compressesKeys()) {
+            return rightMin;
+        }
+        return KeyCompression.shortestSeparator(metadata.getKeySchema(), leftMax, rightMin);
+    }
+
+    /** Returns the number of bytes of an entry other than its key. */
+    private int valueSize() {
+        Type includedSchema = metadata.getIncludedSchema();
+        return RecordId.getSizeInBytes() + (includedSchema == null ? 0 : includedSchema.getSizeInBytes());
+    }
+
     /**
      * Returns the largest number d such that the serialization of a LeafNode
      * with 2d entries will fit on a single page of size `pageSizeInBytes`.
      */
     public static int maxOrder(int pageSizeInBytes, Type keySchema) {
+        return maxOrder(pageSizeInBytes, keySchema, null);
+    }
+
+    /**
+     * Returns the largest number d such that the serialization of a LeafNode
+     * with 2d entries, each storing included values of type includedSchema
+     * (which may be null), will fit on a single page of size `pageSizeInBytes`.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, Type includedSchema) {
         // A leaf node with n entries takes up the following number of bytes:
         //
-        //   1 + 4 + 4 + n * (keySize + ridSize)
+        //   1 + 4 + 4 + n * (keySize + ridSize + includedSize)
         //
         // where
         //
@@ -325,36 +420,68 @@ class LeafNode extends BPlusNode {
         //   - 4 is the number of bytes used to store n,
         //   - keySize is the number of bytes used to store a DataBox of type
         //     keySchema, and
-        //   - ridSize is the number of bytes of a RecordId.
+        //   - ridSize is the number of bytes of a RecordId, and
+        //   - includedSize is the number of bytes of the included values (0
+        //     if the tree has no included columns).
         //
         // Solving the following equation
         //
-        //   n * (keySize + ridSize) + 9 <= pageSizeInBytes
+        //   n * (keySize + ridSize + includedSize) + 9 <= pageSizeInBytes
         //
         // we get
         //
-        //   n = (pageSizeInBytes - 9) / (keySize + ridSize)
+        //   n = (pageSizeInBytes - 9) / (keySize + ridSize + includedSize)
         //
         // The order d is half of n.
         int keySize = keySchema.getSizeInBytes();
         int ridSize = RecordId.getSizeInBytes();
-        int n = (pageSizeInBytes - 9) / (keySize + ridSize);
+        int includedSize = includedSchema == null ? 0 : includedSchema.getSizeInBytes();
+        int n = (pageSizeInBytes - 9) / (keySize + ridSize + includedSize);
+        return n / 2;
+    }
+
+    /**
+     * Like maxOrder, but if compressKeys is true, returns the largest order
+     * of a tree with compressed keys: the number of entries of a leaf whose
+     * keys take up as little space as possible (see KeyCompression). Such
+     * leaves usually fill their page well before they have 2d entries.
+     */
+    public static int maxOrder(int pageSizeInBytes, Type keySchema, Type includedSchema,
+                               boolean compressKeys) {
+        if (!compressKeys) {
+            return maxOrder(pageSizeInBytes, keySchema, includedSchema);
+        }
+        int ridSize = RecordId.getSizeInBytes();
+        int includedSize = includedSchema == null ? 0 : includedSchema.getSizeInBytes();
+        int n = (pageSizeInBytes - 9) / (KeyCompression.LENGTHS_SIZE + ridSize + includedSize);
         return n / 2;
     }
 
-    // For testing only.
+    // Used by BPlusTree's iterators and for testing. Callers must not modify
+    // the returned lists.
     List<DataBox> getKeys() {
         return keys;
     }
 
-    // For testing only.
+    // Used by BPlusTree's iterators and for testing. Callers must not modify
+    // the returned lists.
     List<RecordId> getRids() {
         return rids;
     }
 
+    // Used by BPlusTree's iterators and for testing. Callers must not modify
+    // the returned lists.
+    List<DataBox> getIncluded() {
+        return included;
+    }
+
     // Pretty Printing ///////////////////////////////////////////////////////////
     @Override
     public String toString() {
+        if (metadata.getIncludedSchema() != null) {
+            return String.format("LeafNode(pageNum=%s, keys=%s, rids=%s, included=%s)",
+                                 page.getPageNum(), keys, rids, included);
+        }
         return String.format("LeafNode(pageNum=%s, keys=%s, rids=%s)",
                              page.getPageNum(), keys, rids);
     }
@@ -398,7 +525,9 @@ class LeafNode extends BPlusNode {
         //      a right sibling),
         //   c. the number (4 bytes) of (key, rid) pairs this leaf node contains,
         //      and
-        //   d. the (key, rid) pairs themselves.
+        //   d. the (key, rid) pairs themselves, each followed by its included
+        //      values if the tree has included columns. If the tree compresses
+        //      its keys, every key is stored as described in KeyCompression.
         //
         // For example, the following bytes:
         //
@@ -416,17 +545,26 @@ class LeafNode extends BPlusNode {
         int siblingSize = Integer.BYTES;
         int lenSize = Integer.BYTES;
         int keySize = metadata.getKeySchema().getSizeInBytes();
-        int ridSize = RecordId.getSizeInBytes();
-        int entriesSize = (keySize + ridSize) * keys.size();
+        Type includedSchema = metadata.getIncludedSchema();
+        int keysSize = metadata.compressesKeys() ? KeyCompression.keysSize(keys) : keySize * keys.size();
+        int entriesSize = keysSize + valueSize() * keys.size();
         int size = isLeafSize + siblingSize + lenSize + entriesSize;
 
         ByteBuffer buf = ByteBuffer.allocate(size);
         buf.put((byte) 1);
         buf.putInt(rightSibling.orElse(-1));
         buf.putInt(keys.size());
+        byte[] prev = null;
         for (int i = 0; i < keys.size(); ++i) {
-            buf.put(keys.get(i).toBytes());
+            if (metadata.compressesKeys()) {
+                prev = KeyCompression.writeKey(buf, prev, keys.get(i));
+            } else {
+                buf.put(keys.get(i).toBytes());
+            }
             buf.put(rids.get(i).toBytes());
+            if (includedSchema != null) {
+                buf.put(included.get(i).toBytes());
+            }
         }
         return buf.array();
     }
@@ -447,13 +585,22 @@ class LeafNode extends BPlusNode {
 
         List<DataBox> keys = new ArrayList<>();
         List<RecordId> rids = new ArrayList<>();
+        List<DataBox> included = new ArrayList<>();
+        Type includedSchema = metadata.getIncludedSchema();
         int n = buf.getInt();
+        byte[] prev = null;
         for (int i = 0; i < n; ++i) {
-            keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+            if (metadata.compressesKeys()) {
+                prev = KeyCompression.readKey(buf, prev);
+                keys.add(KeyCompression.toKey(metadata.getKeySchema(), prev));
+            } else {
+                keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+            }
             rids.add(RecordId.fromBytes(buf));
+            included.add(includedSchema == null ? null : DataBox.fromBytes(buf, includedSchema));
         }
 
-        return new LeafNode(metadata, pageNum, keys, rids, rightSibling, transaction);
+        return new LeafNode(metadata, pageNum, keys, rids, included, rightSibling, transaction);
     }
 
     // Builtins //////////////////////////////////////////////////////////////////
@@ -469,11 +616,12 @@ class LeafNode extends BPlusNode {
         return page.getPageNum() == n.page.getPageNum() &&
                keys.equals(n.keys) &&
                rids.equals(n.rids) &&
+               included.equals(n.included) &&
                rightSibling.equals(n.rightSibling);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(page.getPageNum(), keys, rids, rightSibling);
+        return Objects.hash(page.getPageNum(), keys, rids, included, rightSibling);
     }
 }
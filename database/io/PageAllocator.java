@@ -78,7 +78,7 @@ public class PageAllocator implements Closeable {
             throw new PageException("Could not open File: " + e.getMessage());
         }
 
-        this.masterPage = new Page(this.lockContext.childContext(-1), this.fc, 0, -1);
+        this.masterPage = this.newMetadataPage(0);
         this.allocID = pACounter.getAndIncrement();
 
         if (wipe) {
@@ -167,7 +167,9 @@ public class PageAllocator implements Closeable {
         }
 
         int pageNum = headerIndex * Page.pageSize + pageIndex;
-        fetchPage(transaction, pageNum).wipe(transaction);
+        // No transaction can see the new page yet, so it is wiped without
+        // locking it.
+        fetchPage(transaction, pageNum).wipe(null);
         this.numPages += 1;
         if (pageCounts[headerIndex] == 0) {
             this.numUsedHeaderPages += 1;
@@ -344,7 +346,17 @@ public class PageAllocator implements Closeable {
 
     private synchronized Page getHeadPage(int headIndex) {
         int headBlockID = 1 + headIndex * (Page.pageSize + 1);
-        return new Page(this.lockContext.childContext(-1), this.fc, headBlockID, -1);
+        return this.newMetadataPage(headBlockID);
+    }
+
+    /**
+     * Returns the master or a header page at block blockNum. These pages are
+     * not locked: they are only accessed while synchronized on the allocator,
+     * and a transaction waiting for a lock on one of them would keep every
+     * other transaction from allocating or fetching pages until it ends.
+     */
+    private Page newMetadataPage(int blockNum) {
+        return new Page(this.fc, blockNum, -1);
     }
 
     public synchronized int getNumPages() {
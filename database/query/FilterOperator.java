@@ -0,0 +1,175 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.table.MarkerRecord;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * FilterOperator returns the records of its source that satisfy a Predicate,
+ * which may combine any number of comparisons. Unlike a stack of
+ * SelectOperators, the whole predicate is evaluated on each record in turn,
+ * with its operands in the order chosen when it was bound (see Predicate),
+ * and evaluation of a record stops as soon as its result is known. Batches
+ * are filtered by narrowing their selection vectors, without decoding the
+ * primitive columns the predicate reads.
+ */
+public class FilterOperator extends QueryOperator {
+    private Predicate predicate;
+
+    /**
+     * Creates a new FilterOperator that pulls from source and only returns tuples that satisfy
+     * predicate.
+     *
+     * @param source the source of this operator
+     * @param predicate the predicate to evaluate on each tuple
+     * @throws QueryPlanException
+     */
+    public FilterOperator(QueryOperator source, Predicate predicate) throws QueryPlanException {
+        super(OperatorType.SELECT, source);
+        this.predicate = predicate.bind(this, source.getOutputSchema(), source.getStats());
+
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    public Schema computeSchema() throws QueryPlanException {
+        return this.getSource().getOutputSchema();
+    }
+
+    public String str() {
+        return "type: " + this.getType() +
+               "\npredicate: " + this.predicate;
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        TableStats stats = this.getSource().getStats();
+        return stats.copyWithReduction(this.predicate.getSelectivity());
+    }
+
+    public int estimateIOCost() throws QueryPlanException {
+        return this.getSource().getIOCost();
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        return new FilterIterator();
+    }
+
+    @Override
+    public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+        return new FilterBatchIterator();
+    }
+
+    /**
+     * An iterator over the batches of the source that narrows the selection
+     * vector of each batch to the rows that satisfy the predicate, dropping
+     * batches with no rows left.
+     */
+    private class FilterBatchIterator implements Iterator<RecordBatch> {
+        private Iterator<RecordBatch> sourceIterator;
+        private RecordBatch nextBatch;
+
+        public FilterBatchIterator() throws QueryPlanException, DatabaseException {
+            this.sourceIterator = FilterOperator.this.getSource().batchIterator();
+            this.nextBatch = null;
+        }
+
+        public boolean hasNext() {
+            while (this.nextBatch == null && this.sourceIterator.hasNext()) {
+                RecordBatch batch = this.sourceIterator.next();
+                this.filter(batch);
+                if (!batch.isEmpty()) {
+                    this.nextBatch = batch;
+                }
+            }
+            return this.nextBatch != null;
+        }
+
+        public RecordBatch next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+
+        private void filter(RecordBatch batch) {
+            // The selection vector may be narrowed in place: row i of the
+            // result is never written before row i of the input is read.
+            int[] selection = batch.getSelection();
+            if (selection == null) {
+                selection = new int[batch.getCapacity()];
+            }
+            int selected = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                int row = batch.getRow(i);
+                selection[selected] = row;
+                selected += FilterOperator.this.predicate.test(batch, row) ? 1 : 0;
+            }
+            batch.setSelection(selection, selected);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     */
+    private class FilterIterator implements Iterator<Record> {
+        private Iterator<Record> sourceIterator;
+        private Record nextRecord;
+
+        public FilterIterator() throws QueryPlanException, DatabaseException {
+            this.sourceIterator = FilterOperator.this.getSource().iterator();
+            this.nextRecord = null;
+        }
+
+        /**
+         * Checks if there are more record(s) to yield
+         *
+         * @return true if this iterator has another record to yield, otherwise false
+         */
+        public boolean hasNext() {
+            while (this.nextRecord == null && this.sourceIterator.hasNext()) {
+                Record r = this.sourceIterator.next();
+                if (r instanceof MarkerRecord || FilterOperator.this.predicate.test(r.getValues())) {
+                    this.nextRecord = r;
+                }
+            }
+            return this.nextRecord != null;
+        }
+
+        /**
+         * Yields the next record of this iterator.
+         *
+         * @return the next Record
+         * @throws NoSuchElementException if there are no more Records to yield
+         */
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record r = this.nextRecord;
+            this.nextRecord = null;
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
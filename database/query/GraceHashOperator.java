@@ -0,0 +1,416 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+public class GraceHashOperator extends JoinOperator {
+    // The number of times a partition that does not fit in memory is
+    // partitioned again before it is joined a chunk at a time instead.
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+    private int numBuffers;
+    private int numWorkers = 1;
+
+    public GraceHashOperator(QueryOperator leftSource,
+                             QueryOperator rightSource,
+                             String leftColumnName,
+                             String rightColumnName,
+                             Database.Transaction transaction) throws QueryPlanException, DatabaseException {
+        super(leftSource, rightSource, leftColumnName, rightColumnName, transaction, JoinType.GRACEHASH);
+
+        this.numBuffers = transaction.getNumMemoryPages();
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    /**
+     * Sets the number of workers that probe the hash table with the records of a sequential scan
+     * at once, when the build input fits in memory.
+     *
+     * @param numWorkers the number of workers
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        return new GraceHashIterator();
+    }
+
+    /**
+     * The cost of a hash join is one pass over both inputs when the smaller
+     * input fits in memory (B - 2 pages, leaving a page each for the input
+     * and the output), and otherwise an extra read and write of both inputs
+     * for every partitioning pass, each of which divides the smaller input
+     * into B - 1 partitions.
+     */
+    public int estimateIOCost() throws QueryPlanException {
+        int numLeftPages = getLeftSource().getStats().getNumPages();
+        int numRightPages = getRightSource().getStats().getNumPages();
+        int buildPages = Math.min(numLeftPages, numRightPages);
+
+        int numPasses = 0;
+        for (double size = buildPages; size > getHashTablePages(); size /= getNumPartitions()) {
+            numPasses++;
+        }
+        return (2 * numPasses + 1) * (numLeftPages + numRightPages);
+    }
+
+    /**
+     * Returns the number of pages of records the in-memory hash table may hold.
+     */
+    private int getHashTablePages() {
+        return Math.max(this.numBuffers - 2, 1);
+    }
+
+    /**
+     * Returns the number of partitions each partitioning pass divides its
+     * input into: one output buffer each, and one input buffer.
+     */
+    private int getNumPartitions() {
+        return Math.max(this.numBuffers - 1, 2);
+    }
+
+    /**
+     * Returns which of NUMPARTITIONS partitions the value KEY belongs in at
+     * the given DEPTH of partitioning. Every depth mixes the hash code with a
+     * different seed, so that a partition's records are spread out again
+     * when it is partitioned.
+     */
+    static int partitionOf(DataBox key, int depth, int numPartitions) {
+        int h = key.hashCode() ^ (depth * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return Math.floorMod(h, numPartitions);
+    }
+
+    /**
+     * Returns whether to build the hash table on the left input. We build on
+     * the right (inner) input unless the left one is known to be smaller and
+     * the right one is known not to fit in memory, since then the join comes
+     * out in the order of the left input, just as with the nested loop joins.
+     */
+    private boolean buildOnLeft() {
+        TableStats leftStats = getLeftSource().getStats();
+        TableStats rightStats = getRightSource().getStats();
+        if (leftStats == null || rightStats == null) {
+            return false;
+        }
+        return leftStats.getNumPages() < rightStats.getNumPages() &&
+               rightStats.getNumPages() > getHashTablePages();
+    }
+
+    /**
+     * GraceHashIterator reads the build input into an in-memory hash table on
+     * the join column, and then streams the probe input past it. When the
+     * build input does not fit in memory, both inputs are hash partitioned
+     * into temporary tables so that matching records land in the same
+     * partition, and the partitions are joined one pair at a time;
+     * partitions that still do not fit are partitioned again with a
+     * different hash function, up to MAX_PARTITION_DEPTH times, and after
+     * that are joined one hash table's worth of build records at a time.
+     *
+     * When the build input fits in memory and the probe input is a
+     * sequential scan, several workers probe the hash table with the pages
+     * of the probe input at once (see MorselExecutor); the hash table is not
+     * modified until they are done, and the join comes out in the same
+     * order.
+     *
+     * Unlike the other join iterators, this does not extend JoinIterator: the
+     * inputs are only copied into temporary tables if they need to be
+     * partitioned.
+     */
+    private class GraceHashIterator implements Iterator<Record> {
+        private final boolean buildOnLeft;
+        private final int buildColumnIndex;
+        private final int probeColumnIndex;
+        private final Schema buildSchema;
+        private final Schema probeSchema;
+        // The number of build records the hash table may hold.
+        private final int hashTableCapacity;
+
+        // The partitions that have not been joined yet.
+        private Deque<Partition> partitions = new ArrayDeque<>();
+        // The partition being joined, or null while joining the inputs
+        // directly.
+        private Partition partition;
+        private Map<DataBox, List<Record>> hashTable = new HashMap<>();
+        // The build records that did not fit in the hash table.
+        private Iterator<Record> buildIterator;
+        private Iterator<Record> probeIterator;
+        private Record probeRecord;
+        private Iterator<Record> matches = Collections.emptyIterator();
+        // The join of the probe input with the hash table by several
+        // workers, or null.
+        private Iterator<Record> joined;
+        private Record nextRecord;
+
+        public GraceHashIterator() throws QueryPlanException, DatabaseException {
+            GraceHashOperator operator = GraceHashOperator.this;
+            this.buildOnLeft = operator.buildOnLeft();
+            QueryOperator buildSource = buildOnLeft ? getLeftSource() : getRightSource();
+            QueryOperator probeSource = buildOnLeft ? getRightSource() : getLeftSource();
+            this.buildColumnIndex = buildOnLeft ? getLeftColumnIndex() : getRightColumnIndex();
+            this.probeColumnIndex = buildOnLeft ? getRightColumnIndex() : getLeftColumnIndex();
+            this.buildSchema = buildSource.getOutputSchema();
+            this.probeSchema = probeSource.getOutputSchema();
+            this.hashTableCapacity = getHashTablePages() *
+                                     Table.computeNumRecordsPerPage(Page.pageSize, buildSchema);
+
+            this.buildIterator = buildSource.iterator();
+            if (loadHashTable()) {
+                this.joined = probeInParallel(probeSource);
+                if (this.joined == null) {
+                    this.probeIterator = probeSource.iterator();
+                }
+            } else {
+                partition(0, this.buildIterator, probeSource.iterator());
+                this.buildIterator = null;
+            }
+            this.nextRecord = fetchNextRecord();
+        }
+
+        /**
+         * Returns an iterator over the join of the probe records on the
+         * pages of PROBESOURCE with the hash table, which several workers
+         * compute a page at a time, or null if PROBESOURCE is not a
+         * sequential scan that can be run in parallel.
+         */
+        private Iterator<Record> probeInParallel(QueryOperator probeSource) throws DatabaseException {
+            MorselExecutor executor = new MorselExecutor(GraceHashOperator.this.numWorkers);
+            if (!executor.isParallel() || !(probeSource instanceof SequentialScanOperator)) {
+                return null;
+            }
+            SequentialScanOperator scan = (SequentialScanOperator) probeSource;
+            List<Page> morsels = scan.getMorsels();
+            if (morsels == null) {
+                return null;
+            }
+            return executor.runOrdered(morsels.size(), morsel -> {
+                List<Record> records = new ArrayList<>();
+                for (Record probeRecord : scan.readMorsel(morsels.get(morsel))) {
+                    List<Record> m = this.hashTable.get(probeRecord.getValues().get(this.probeColumnIndex));
+                    if (m != null) {
+                        for (Record buildRecord : m) {
+                            records.add(joinRecords(probeRecord, buildRecord));
+                        }
+                    }
+                }
+                return records;
+            });
+        }
+
+        /**
+         * Clears the hash table and fills it with the next records of
+         * buildIterator, and returns whether they all fit.
+         */
+        private boolean loadHashTable() {
+            this.hashTable.clear();
+            int numRecords = 0;
+            while (numRecords < this.hashTableCapacity && this.buildIterator.hasNext()) {
+                Record record = this.buildIterator.next();
+                DataBox key = record.getValues().get(this.buildColumnIndex);
+                this.hashTable.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+                numRecords++;
+            }
+            return !this.buildIterator.hasNext();
+        }
+
+        /**
+         * Partitions the records in the hash table and the rest of BUILD,
+         * and the records of PROBE, into new partitions at DEPTH, which are
+         * joined after any partitions already waiting.
+         */
+        private void partition(int depth, Iterator<Record> build,
+                               Iterator<Record> probe) throws DatabaseException {
+            int numPartitions = getNumPartitions();
+            String[] buildTables = new String[numPartitions];
+            String[] probeTables = new String[numPartitions];
+            int[] buildCounts = new int[numPartitions];
+            int[] probeCounts = new int[numPartitions];
+
+            for (List<Record> records : this.hashTable.values()) {
+                for (Record record : records) {
+                    addToPartition(record, this.buildColumnIndex, this.buildSchema, depth,
+                                   buildTables, buildCounts);
+                }
+            }
+            this.hashTable.clear();
+            while (build.hasNext()) {
+                addToPartition(build.next(), this.buildColumnIndex, this.buildSchema, depth,
+                               buildTables, buildCounts);
+            }
+            while (probe.hasNext()) {
+                Record record = probe.next();
+                // Probe records with no build records in their partition
+                // have nothing to join with.
+                if (buildCounts[partitionOf(record.getValues().get(this.probeColumnIndex), depth, numPartitions)] > 0) {
+                    addToPartition(record, this.probeColumnIndex, this.probeSchema, depth,
+                                   probeTables, probeCounts);
+                }
+            }
+
+            for (int i = 0; i < numPartitions; i++) {
+                if (probeCounts[i] > 0) {
+                    this.partitions.add(new Partition(depth, buildTables[i], probeTables[i]));
+                } else if (buildTables[i] != null) {
+                    getTransaction().deleteTempTable(buildTables[i]);
+                }
+            }
+        }
+
+        private void addToPartition(Record record, int columnIndex, Schema schema, int depth,
+                                    String[] tables, int[] counts) throws DatabaseException {
+            int i = partitionOf(record.getValues().get(columnIndex), depth, tables.length);
+            if (tables[i] == null) {
+                tables[i] = createTempTable(schema);
+            }
+            addRecord(tables[i], record.getValues());
+            counts[i]++;
+        }
+
+        /**
+         * Starts joining the next partition, and returns false if there are
+         * none left.
+         */
+        private boolean nextPartition() throws DatabaseException {
+            if (this.partition != null) {
+                this.partition.delete();
+                this.partition = null;
+            }
+            while (!this.partitions.isEmpty()) {
+                Partition p = this.partitions.removeFirst();
+                this.buildIterator = getRecordIterator(p.buildTable);
+                if (loadHashTable()) {
+                    this.buildIterator = null;
+                } else if (p.depth < MAX_PARTITION_DEPTH) {
+                    partition(p.depth + 1, this.buildIterator, getRecordIterator(p.probeTable));
+                    this.buildIterator = null;
+                    p.delete();
+                    continue;
+                }
+                // Otherwise the partition is joined a hash table at a time,
+                // scanning its probe records once for each.
+                this.partition = p;
+                this.probeIterator = getRecordIterator(p.probeTable);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the next record of the join, or null if there are none
+         * left.
+         */
+        private Record fetchNextRecord() throws DatabaseException {
+            if (this.joined != null) {
+                if (this.joined.hasNext()) {
+                    return this.joined.next();
+                }
+                this.joined = null;
+                this.hashTable.clear();
+                return null;
+            }
+            while (true) {
+                if (this.matches.hasNext()) {
+                    return joinRecords(this.probeRecord, this.matches.next());
+                }
+                if (this.probeIterator != null && this.probeIterator.hasNext()) {
+                    this.probeRecord = this.probeIterator.next();
+                    List<Record> m = this.hashTable.get(this.probeRecord.getValues().get(this.probeColumnIndex));
+                    if (m != null) {
+                        this.matches = m.iterator();
+                    }
+                } else if (this.buildIterator != null && this.buildIterator.hasNext()) {
+                    if (loadHashTable()) {
+                        this.buildIterator = null;
+                    }
+                    this.probeIterator = getRecordIterator(this.partition.probeTable);
+                } else if (!nextPartition()) {
+                    this.hashTable.clear();
+                    return null;
+                }
+            }
+        }
+
+        private Record joinRecords(Record probeRecord, Record buildRecord) {
+            Record leftRecord = this.buildOnLeft ? buildRecord : probeRecord;
+            Record rightRecord = this.buildOnLeft ? probeRecord : buildRecord;
+            List<DataBox> values = new ArrayList<>(leftRecord.getValues());
+            values.addAll(rightRecord.getValues());
+            return new Record(values);
+        }
+
+        /**
+         * Checks if there are more record(s) to yield
+         *
+         * @return true if this iterator has another record to yield, otherwise false
+         */
+        public boolean hasNext() {
+            return this.nextRecord != null;
+        }
+
+        /**
+         * Yields the next record of this iterator.
+         *
+         * @return the next Record
+         * @throws NoSuchElementException if there are no more Records to yield
+         */
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record nextRecord = this.nextRecord;
+            try {
+                this.nextRecord = fetchNextRecord();
+            } catch (DatabaseException e) {
+                throw new IllegalStateException(e);
+            }
+            return nextRecord;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * A pair of partitions of the build and probe inputs, held in
+         * temporary tables.
+         */
+        private class Partition {
+            final int depth;
+            final String buildTable;
+            final String probeTable;
+
+            Partition(int depth, String buildTable, String probeTable) {
+                this.depth = depth;
+                this.buildTable = buildTable;
+                this.probeTable = probeTable;
+            }
+
+            void delete() {
+                getTransaction().deleteTempTable(this.buildTable);
+                getTransaction().deleteTempTable(this.probeTable);
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * HashAggregateOperator groups the records of its source by a column and
+ * computes the COUNT, SUM and AVG aggregates of each group, producing one
+ * record per group: the projected columns of the group's first record,
+ * followed by countAgg, sumAgg and averageAgg (those that were asked for),
+ * just like a ProjectOperator with aggregates over a GroupByOperator.
+ *
+ * The aggregates of each group are kept in an in-memory hash table and
+ * updated as each record is read, so records are never copied. Once the
+ * table holds as many groups as fit in memory, records of groups that are
+ * not in it are hash partitioned into temporary tables instead, and each
+ * partition is aggregated the same way after the groups in memory are
+ * produced, with a different hash function, up to MAX_PARTITION_DEPTH
+ * times.
+ *
+ * With several workers, the records of a SequentialScanOperator source are
+ * aggregated by all of them at once (see MorselExecutor), each into a hash
+ * table of its own, and the tables are merged at the end; the groups come
+ * out in the same order as with a single worker. If the workers find more
+ * groups than fit in memory, they stop, and the source is aggregated by a
+ * single worker instead.
+ */
+public class HashAggregateOperator extends QueryOperator {
+    // The number of times the records of groups that do not fit in memory
+    // are partitioned before their groups are all kept in memory anyway.
+    private static final int MAX_PARTITION_DEPTH = 3;
+
+    private Database.Transaction transaction;
+    private String groupByColumn;
+    private int groupByColumnIndex;
+    private List<String> columns;
+    private List<Integer> indices;
+    private boolean hasCount;
+    private String sumColumn;
+    private int sumColumnIndex;
+    private boolean sumIsFloat;
+    private String averageColumn;
+    private int averageColumnIndex;
+    private boolean averageIsFloat;
+    private int numBuffers;
+    private int numWorkers = 1;
+
+    /**
+     * Creates a new HashAggregateOperator that groups the records of source
+     * by groupByColumn, and computes the given aggregates of each group.
+     *
+     * @param source the source operator
+     * @param transaction the transaction containing this operator
+     * @param groupByColumn the column to group on
+     * @param columns the columns to project from each group's first record
+     * @param count whether to count each group
+     * @param averageColumn the column to average over each group, or null
+     * @param sumColumn the column to sum over each group, or null
+     * @throws QueryPlanException
+     */
+    public HashAggregateOperator(QueryOperator source,
+                                 Database.Transaction transaction,
+                                 String groupByColumn,
+                                 List<String> columns,
+                                 boolean count,
+                                 String averageColumn,
+                                 String sumColumn) throws QueryPlanException, DatabaseException {
+        super(OperatorType.GROUPBY);
+        this.transaction = transaction;
+        this.groupByColumn = groupByColumn;
+        this.columns = new ArrayList<String>(columns);
+        this.indices = new ArrayList<Integer>();
+        this.hasCount = count;
+        this.sumColumn = sumColumn;
+        this.sumColumnIndex = -1;
+        this.averageColumn = averageColumn;
+        this.averageColumnIndex = -1;
+        this.numBuffers = transaction.getNumMemoryPages();
+
+        this.setSource(source);
+
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    protected Schema computeSchema() throws QueryPlanException {
+        Schema sourceSchema = this.getSource().getOutputSchema();
+        List<String> sourceColumnNames = new ArrayList<String>(sourceSchema.getFieldNames());
+        List<Type> sourceColumnTypes = new ArrayList<>(sourceSchema.getFieldTypes());
+
+        this.groupByColumn = this.checkSchemaForColumn(sourceSchema, this.groupByColumn);
+        this.groupByColumnIndex = sourceColumnNames.indexOf(this.groupByColumn);
+
+        List<String> columnNames = new ArrayList<>();
+        List<Type> columnTypes = new ArrayList<>();
+        this.indices.clear();
+        for (String columnName : this.columns) {
+            int sourceColumnIndex = sourceColumnNames.indexOf(this.checkSchemaForColumn(sourceSchema,
+                                    columnName));
+            columnNames.add(columnName);
+            columnTypes.add(sourceColumnTypes.get(sourceColumnIndex));
+            this.indices.add(sourceColumnIndex);
+        }
+        if (this.hasCount) {
+            columnNames.add("countAgg");
+            columnTypes.add(Type.intType());
+        }
+        if (this.sumColumn != null) {
+            this.sumColumn = this.checkSchemaForColumn(sourceSchema, this.sumColumn);
+            this.sumColumnIndex = sourceColumnNames.indexOf(this.sumColumn);
+            this.sumIsFloat = checkNumeric(sourceColumnTypes.get(this.sumColumnIndex), this.sumColumn);
+            columnNames.add("sumAgg");
+            columnTypes.add(this.sumIsFloat ? Type.floatType() : Type.intType());
+        }
+        if (this.averageColumn != null) {
+            this.averageColumn = this.checkSchemaForColumn(sourceSchema, this.averageColumn);
+            this.averageColumnIndex = sourceColumnNames.indexOf(this.averageColumn);
+            this.averageIsFloat = checkNumeric(sourceColumnTypes.get(this.averageColumnIndex),
+                                               this.averageColumn);
+            columnNames.add("averageAgg");
+            columnTypes.add(Type.floatType());
+        }
+        return new Schema(columnNames, columnTypes);
+    }
+
+    /**
+     * Checks that a column to aggregate over is numeric, and returns whether
+     * it is a float column.
+     */
+    private static boolean checkNumeric(Type type, String column) throws QueryPlanException {
+        if (type.getTypeId() != TypeId.INT && type.getTypeId() != TypeId.FLOAT) {
+            throw new QueryPlanException("Cannot compute an aggregate over a non-numeric column: " +
+                                         column + ".");
+        }
+        return type.getTypeId() == TypeId.FLOAT;
+    }
+
+    /**
+     * Sets the number of workers that aggregate the records of a sequential scan at once.
+     *
+     * @param numWorkers the number of workers
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        return new HashAggregateIterator();
+    }
+
+    public String str() {
+        return "type: " + this.getType() +
+               "\ncolumn: " + this.groupByColumn +
+               "\ncolumns: " + this.getOutputSchema().getFieldNames();
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        return this.getSource().getStats();
+    }
+
+    public int estimateIOCost() throws QueryPlanException {
+        return this.getSource().getIOCost();
+    }
+
+    /**
+     * The projected values and running aggregates of a group.
+     */
+    private class Group {
+        private List<DataBox> values;
+        private int count;
+        private long intSum;
+        private double floatSum;
+        private double averageSum;
+        // Where the first record of the group is in the source: the morsel
+        // it was read from, and its index among the records of the morsel.
+        private long position;
+
+        Group(Record first) {
+            List<DataBox> recordValues = first.getValues();
+            this.values = new ArrayList<>(HashAggregateOperator.this.indices.size());
+            for (int index : HashAggregateOperator.this.indices) {
+                this.values.add(recordValues.get(index));
+            }
+        }
+
+        void add(Record record) {
+            List<DataBox> recordValues = record.getValues();
+            this.count++;
+            if (HashAggregateOperator.this.sumColumnIndex != -1) {
+                DataBox value = recordValues.get(HashAggregateOperator.this.sumColumnIndex);
+                if (HashAggregateOperator.this.sumIsFloat) {
+                    this.floatSum += value.getFloat();
+                } else {
+                    this.intSum += value.getInt();
+                }
+            }
+            if (HashAggregateOperator.this.averageColumnIndex != -1) {
+                DataBox value = recordValues.get(HashAggregateOperator.this.averageColumnIndex);
+                this.averageSum += HashAggregateOperator.this.averageIsFloat ? value.getFloat() :
+                                   value.getInt();
+            }
+        }
+
+        /**
+         * Adds the records of OTHER, a group with the same key aggregated by
+         * another worker, to this group.
+         */
+        Group merge(Group other) {
+            if (other.position < this.position) {
+                this.values = other.values;
+                this.position = other.position;
+            }
+            this.count += other.count;
+            this.intSum += other.intSum;
+            this.floatSum += other.floatSum;
+            this.averageSum += other.averageSum;
+            return this;
+        }
+
+        Record toRecord() {
+            List<DataBox> result = new ArrayList<>(this.values);
+            if (HashAggregateOperator.this.hasCount) {
+                result.add(new IntDataBox(this.count));
+            }
+            if (HashAggregateOperator.this.sumColumnIndex != -1) {
+                result.add(HashAggregateOperator.this.sumIsFloat ? new FloatDataBox((float) this.floatSum) :
+                           new IntDataBox((int) this.intSum));
+            }
+            if (HashAggregateOperator.this.averageColumnIndex != -1) {
+                result.add(new FloatDataBox((float) (this.averageSum / this.count)));
+            }
+            return new Record(result);
+        }
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     */
+    private class HashAggregateIterator implements Iterator<Record> {
+        // The number of groups the hash table may hold.
+        private final int hashTableCapacity;
+        private final int numPartitions;
+        // The schema of the records that are partitioned.
+        private final Schema sourceSchema;
+        // The temporary tables of the partitions that have not been
+        // aggregated yet, and their depths.
+        private Deque<String> partitions = new ArrayDeque<>();
+        private Deque<Integer> partitionDepths = new ArrayDeque<>();
+        private Iterator<Group> groups = Collections.emptyIterator();
+
+        public HashAggregateIterator() throws QueryPlanException, DatabaseException {
+            Schema schema = HashAggregateOperator.this.getOutputSchema();
+            int numBuffers = HashAggregateOperator.this.numBuffers;
+            this.hashTableCapacity = Math.max(numBuffers - 2, 1) *
+                                     Table.computeNumRecordsPerPage(Page.pageSize, schema);
+            this.numPartitions = Math.max(numBuffers - 1, 2);
+            this.sourceSchema = HashAggregateOperator.this.getSource().getOutputSchema();
+            if (!aggregateInParallel()) {
+                aggregate(HashAggregateOperator.this.getSource().iterator(), 0);
+            }
+        }
+
+        /**
+         * Aggregates the records of a sequential scan with several workers,
+         * and returns whether their groups all fit in memory. Otherwise,
+         * nothing is aggregated.
+         */
+        private boolean aggregateInParallel() throws QueryPlanException, DatabaseException {
+            MorselExecutor executor = new MorselExecutor(HashAggregateOperator.this.numWorkers);
+            QueryOperator source = HashAggregateOperator.this.getSource();
+            if (!executor.isParallel() || !(source instanceof SequentialScanOperator)) {
+                return false;
+            }
+            SequentialScanOperator scan = (SequentialScanOperator) source;
+            List<Page> morsels = scan.getMorsels();
+            if (morsels == null) {
+                return false;
+            }
+
+            // The groups of the workers together, whether or not several
+            // workers have the same group.
+            AtomicInteger numGroups = new AtomicInteger();
+            int capacity = this.hashTableCapacity;
+            List<Map<DataBox, Group>> hashTables = executor.runWorkers(morsels.size(), HashMap::new,
+                    (hashTable, morsel) -> {
+                        if (numGroups.get() > capacity) {
+                            return;
+                        }
+                        List<Record> records = scan.readMorsel(morsels.get(morsel));
+                        for (int i = 0; i < records.size(); i++) {
+                            Record record = records.get(i);
+                            DataBox key = record.getValues().get(HashAggregateOperator.this.groupByColumnIndex);
+                            Group group = hashTable.get(key);
+                            if (group == null) {
+                                group = new Group(record);
+                                group.position = ((long) morsel << 32) | i;
+                                hashTable.put(key, group);
+                                numGroups.incrementAndGet();
+                            }
+                            group.add(record);
+                        }
+                    });
+            if (numGroups.get() > capacity) {
+                return false;
+            }
+
+            Map<DataBox, Group> merged = new HashMap<>();
+            for (Map<DataBox, Group> hashTable : hashTables) {
+                for (Map.Entry<DataBox, Group> entry : hashTable.entrySet()) {
+                    merged.merge(entry.getKey(), entry.getValue(), Group::merge);
+                }
+            }
+            // A single worker produces the groups in the order their first
+            // records are read.
+            List<Group> groups = new ArrayList<>(merged.values());
+            groups.sort(Comparator.comparingLong(g -> g.position));
+            this.groups = groups.iterator();
+            return true;
+        }
+
+        /**
+         * Aggregates the groups of RECORDS that fit in memory, and
+         * partitions the records of the other groups at DEPTH.
+         */
+        private void aggregate(Iterator<Record> records, int depth) throws DatabaseException {
+            Map<DataBox, Group> hashTable = new LinkedHashMap<>();
+            String[] spilled = new String[this.numPartitions];
+            boolean limited = depth < MAX_PARTITION_DEPTH;
+            while (records.hasNext()) {
+                Record record = records.next();
+                DataBox key = record.getValues().get(HashAggregateOperator.this.groupByColumnIndex);
+                Group group = hashTable.get(key);
+                if (group == null) {
+                    if (limited && hashTable.size() >= this.hashTableCapacity) {
+                        spill(record, key, depth, spilled);
+                        continue;
+                    }
+                    group = new Group(record);
+                    hashTable.put(key, group);
+                }
+                group.add(record);
+            }
+            for (String tableName : spilled) {
+                if (tableName != null) {
+                    this.partitions.add(tableName);
+                    this.partitionDepths.add(depth + 1);
+                }
+            }
+            this.groups = hashTable.values().iterator();
+        }
+
+        private void spill(Record record, DataBox key, int depth, String[] spilled) throws DatabaseException {
+            int i = GraceHashOperator.partitionOf(key, depth, spilled.length);
+            if (spilled[i] == null) {
+                spilled[i] = HashAggregateOperator.this.transaction.createTempTable(this.sourceSchema);
+            }
+            HashAggregateOperator.this.transaction.addRecord(spilled[i], record.getValues());
+        }
+
+        /**
+         * Checks if there are more record(s) to yield
+         *
+         * @return true if this iterator has another record to yield, otherwise false
+         */
+        public boolean hasNext() {
+            while (!this.groups.hasNext() && !this.partitions.isEmpty()) {
+                String tableName = this.partitions.removeFirst();
+                int depth = this.partitionDepths.removeFirst();
+                try {
+                    aggregate(HashAggregateOperator.this.transaction.getRecordIterator(tableName), depth);
+                } catch (DatabaseException e) {
+                    throw new IllegalStateException(e);
+                }
+                HashAggregateOperator.this.transaction.deleteTempTable(tableName);
+            }
+            return this.groups.hasNext();
+        }
+
+        /**
+         * Yields the next record of this iterator.
+         *
+         * @return the next Record
+         * @throws NoSuchElementException if there are no more Records to yield
+         */
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.groups.next().toRecord();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
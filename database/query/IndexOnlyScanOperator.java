@@ -0,0 +1,336 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TupleDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.IndexEntry;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An index-only scan reads its records from the entries of a covering index
+ * instead of the table: every record is built from the key and included
+ * values stored in a leaf entry, so no table page is ever fetched. Its output
+ * schema is the key columns of the index followed by its included columns
+ * (fully qualified), not the schema of the table.
+ */
+public class IndexOnlyScanOperator extends QueryOperator {
+    private Database.Transaction transaction;
+    private String tableName;
+    private QueryPlan.PredicateOperator predicate;
+    private DataBox value;
+
+    // The key columns of the index, in key order, and its included columns.
+    private List<String> columnNames;
+    private List<String> includedColumnNames;
+
+    // For a scan over a composite index, the values that the leading columns
+    // must be equal to. Otherwise null, and the scan returns the entries whose
+    // (single-column) key satisfies predicate and value.
+    private List<DataBox> prefix;
+
+    /**
+     * An index-only scan operator over a single-column index.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table the index is on
+     * @param columnName the name of the column the index is on
+     * @throws QueryPlanException
+     * @throws DatabaseException
+     */
+    public IndexOnlyScanOperator(Database.Transaction transaction,
+                                 String tableName,
+                                 String columnName,
+                                 QueryPlan.PredicateOperator predicate,
+                                 DataBox value) throws QueryPlanException, DatabaseException {
+        super(OperatorType.INDEXONLYSCAN);
+        if (predicate == QueryPlan.PredicateOperator.NOT_EQUALS) {
+            throw new QueryPlanException("Index-only scans do not support NOT_EQUALS.");
+        }
+        this.transaction = transaction;
+        this.tableName = tableName;
+        this.predicate = predicate;
+        this.value = value;
+        this.columnNames = Collections.singletonList(unqualify(columnName));
+        this.includedColumnNames = transaction.getIndexIncludedColumns(tableName, this.columnNames);
+        this.setOutputSchema(this.computeSchema());
+    }
+
+    /**
+     * An index-only scan operator over a composite index, which returns the
+     * entries whose first prefix.size() indexed columns are equal to prefix.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table the index is on
+     * @param columnNames the names of the columns the composite index is on, in key order
+     * @param prefix the values of the leading columns of the index
+     * @throws QueryPlanException
+     * @throws DatabaseException
+     */
+    public IndexOnlyScanOperator(Database.Transaction transaction,
+                                 String tableName,
+                                 List<String> columnNames,
+                                 List<DataBox> prefix) throws QueryPlanException, DatabaseException {
+        super(OperatorType.INDEXONLYSCAN);
+        if (prefix.isEmpty() || prefix.size() > columnNames.size()) {
+            throw new QueryPlanException("Invalid prefix for a composite index scan.");
+        }
+        this.transaction = transaction;
+        this.tableName = tableName;
+        this.predicate = QueryPlan.PredicateOperator.EQUALS;
+        this.value = prefix.get(0);
+        this.columnNames = new ArrayList<String>();
+        for (String columnName : columnNames) {
+            this.columnNames.add(unqualify(columnName));
+        }
+        this.prefix = prefix;
+        this.includedColumnNames = transaction.getIndexIncludedColumns(tableName, this.columnNames);
+        this.setOutputSchema(this.computeSchema());
+    }
+
+    /** Strips the table name (or alias) from a column name, if present. */
+    private static String unqualify(String columnName) {
+        return columnName.contains(".") ? columnName.split("\\.")[1] : columnName;
+    }
+
+    public String str() {
+        String s = "type: " + this.getType() +
+                   "\ntable: " + this.tableName +
+                   "\ncolumns: " + this.columnNames +
+                   "\nincluded: " + this.includedColumnNames +
+                   "\noperator: " + this.predicate;
+        if (this.prefix != null) {
+            return s + "\nprefix: " + this.prefix;
+        }
+        return s + "\nvalue: " + this.value;
+    }
+
+    /**
+     * Returns the key columns of the index the scan is on, in key order
+     *
+     * @return columnNames
+     */
+    public List<String> getColumnNames() {
+        return this.columnNames;
+    }
+
+    /**
+     * Returns the included columns of the index the scan is on
+     *
+     * @return includedColumnNames
+     */
+    public List<String> getIncludedColumnNames() {
+        return this.includedColumnNames;
+    }
+
+    /**
+     * Returns the indices in the table schema of the key columns followed by
+     * the included columns, i.e. of each column of the output schema.
+     */
+    private List<Integer> getTableColumnIndices() throws QueryPlanException {
+        List<String> tableColumns;
+        try {
+            tableColumns = this.transaction.getSchema(this.tableName).getFieldNames();
+        } catch (DatabaseException de) {
+            throw new QueryPlanException(de);
+        }
+        List<Integer> indices = new ArrayList<Integer>();
+        for (String column : this.columnNames) {
+            indices.add(tableColumns.indexOf(column));
+        }
+        for (String column : this.includedColumnNames) {
+            indices.add(tableColumns.indexOf(column));
+        }
+        return indices;
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        TableStats stats;
+
+        try {
+            stats = this.transaction.getStats(this.tableName);
+        } catch (DatabaseException de) {
+            throw new QueryPlanException(de);
+        }
+
+        List<Integer> tableColumnIndices = this.getTableColumnIndices();
+        if (this.prefix != null) {
+            for (int i = 0; i < this.prefix.size(); i++) {
+                stats = stats.copyWithPredicate(tableColumnIndices.get(i),
+                                                QueryPlan.PredicateOperator.EQUALS,
+                                                this.prefix.get(i));
+            }
+        } else {
+            stats = stats.copyWithPredicate(tableColumnIndices.get(0), this.predicate, this.value);
+        }
+        return stats.copyWithProjection(tableColumnIndices, this.getOutputSchema());
+    }
+
+    /**
+     * Estimates the IO cost of executing this query operator. Unlike an index
+     * scan, there is no page fetch per matching record: the cost is the
+     * fraction of the leaves of the index that hold matching entries, plus one
+     * page for the descent to the first of them.
+     *
+     * @return estimate IO cost
+     * @throws QueryPlanException
+     */
+    public int estimateIOCost() throws QueryPlanException {
+        long numRecords;
+        long numIndexPages;
+        try {
+            numRecords = this.transaction.getNumRecords(this.tableName);
+            numIndexPages = this.transaction.getNumIndexPages(this.tableName, this.columnNames);
+        } catch (DatabaseException err) {
+            throw new QueryPlanException(err);
+        }
+        if (numRecords == 0) {
+            return 1;
+        }
+        double fraction = (double) this.estimateStats().getNumRecords() / numRecords;
+        return (int) Math.ceil(fraction * numIndexPages) + 1;
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        return new IndexOnlyScanIterator();
+    }
+
+    public Schema computeSchema() throws QueryPlanException {
+        Schema schema;
+        try {
+            schema = this.transaction.getFullyQualifiedSchema(this.tableName);
+        } catch (DatabaseException de) {
+            throw new QueryPlanException(de);
+        }
+        List<String> fieldNames = new ArrayList<String>();
+        List<Type> fieldTypes = new ArrayList<Type>();
+        for (int i : this.getTableColumnIndices()) {
+            if (i == -1) {
+                throw new QueryPlanException("Index column does not exist in table " + this.tableName);
+            }
+            fieldNames.add(schema.getFieldNames().get(i));
+            fieldTypes.add(schema.getFieldTypes().get(i));
+        }
+        return new Schema(fieldNames, fieldTypes);
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     */
+    private class IndexOnlyScanIterator implements Iterator<Record> {
+        private Iterator<IndexEntry> sourceIterator;
+        private Record nextRecord;
+        private boolean done;
+
+        public IndexOnlyScanIterator() throws QueryPlanException, DatabaseException {
+            this.nextRecord = null;
+            this.done = false;
+            Database.Transaction transaction = IndexOnlyScanOperator.this.transaction;
+            String tableName = IndexOnlyScanOperator.this.tableName;
+            List<String> columnNames = IndexOnlyScanOperator.this.columnNames;
+            QueryPlan.PredicateOperator predicate = IndexOnlyScanOperator.this.predicate;
+
+            if (IndexOnlyScanOperator.this.prefix != null) {
+                this.sourceIterator = transaction.scanIndexEntriesWithPrefix(tableName, columnNames,
+                                      IndexOnlyScanOperator.this.prefix);
+            } else if (predicate == QueryPlan.PredicateOperator.LESS_THAN ||
+                       predicate == QueryPlan.PredicateOperator.LESS_THAN_EQUALS) {
+                this.sourceIterator = transaction.scanIndexEntries(tableName, columnNames);
+            } else {
+                this.sourceIterator = transaction.scanIndexEntriesFrom(tableName, columnNames,
+                                      IndexOnlyScanOperator.this.value);
+            }
+        }
+
+        /**
+         * Returns whether the key of an entry satisfies the predicate of a
+         * single-column scan, and sets done once no later entry can.
+         */
+        private boolean matches(DataBox key) {
+            if (IndexOnlyScanOperator.this.prefix != null) {
+                return true;
+            }
+            int c = key.compareTo(IndexOnlyScanOperator.this.value);
+            switch (IndexOnlyScanOperator.this.predicate) {
+            case EQUALS:
+                this.done = c > 0;
+                return c == 0;
+            case LESS_THAN:
+                this.done = c >= 0;
+                return c < 0;
+            case LESS_THAN_EQUALS:
+                this.done = c > 0;
+                return c <= 0;
+            case GREATER_THAN:
+                return c > 0;
+            default:
+                return c >= 0;
+            }
+        }
+
+        private Record toRecord(IndexEntry entry) {
+            List<DataBox> values = new ArrayList<DataBox>();
+            if (IndexOnlyScanOperator.this.columnNames.size() > 1) {
+                values.addAll(((TupleDataBox) entry.getKey()).getValues());
+            } else {
+                values.add(entry.getKey());
+            }
+            if (entry.getIncluded() != null) {
+                values.addAll(((TupleDataBox) entry.getIncluded()).getValues());
+            }
+            return new Record(values);
+        }
+
+        /**
+         * Checks if there are more record(s) to yield
+         *
+         * @return true if this iterator has another record to yield, otherwise false
+         */
+        public boolean hasNext() {
+            if (this.nextRecord != null) {
+                return true;
+            }
+            while (!this.done && this.sourceIterator.hasNext()) {
+                IndexEntry entry = this.sourceIterator.next();
+                if (this.matches(entry.getKey())) {
+                    this.nextRecord = this.toRecord(entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Yields the next record of this iterator.
+         *
+         * @return the next Record
+         * @throws NoSuchElementException if there are no more Records to yield
+         */
+        public Record next() {
+            if (this.hasNext()) {
+                Record r = this.nextRecord;
+                this.nextRecord = null;
+                return r;
+            }
+            throw new NoSuchElementException();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -24,6 +24,17 @@ public class IndexScanOperator extends QueryOperator {
 
     private int columnIndex;
 
+    // Whether the scan is an EQUALS lookup on a hash index (see
+    // Database.Transaction.lookupKey).
+    private boolean useHashIndex;
+
+    // For a scan over a composite index, the columns of the index (in key
+    // order) and the values that the leading columns must be equal to.
+    // Otherwise, both are null.
+    private List<String> columnNames;
+    private List<DataBox> prefix;
+    private List<Integer> columnIndices;
+
     /**
      * An index scan operator.
      *
@@ -44,6 +55,10 @@ public class IndexScanOperator extends QueryOperator {
         this.columnName = columnName;
         this.predicate = predicate;
         this.value = value;
+        this.useHashIndex = transaction.hashIndexExists(tableName, columnName);
+        if (this.useHashIndex && predicate != QueryPlan.PredicateOperator.EQUALS) {
+            throw new QueryPlanException("Hash indexes only support EQUALS lookups.");
+        }
         this.setOutputSchema(this.computeSchema());
         columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
         this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
@@ -54,7 +69,49 @@ public class IndexScanOperator extends QueryOperator {
         */
     }
 
+    /**
+     * An index scan operator over a composite index, which returns the records
+     * whose first prefix.size() indexed columns are equal to prefix.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table to iterate over
+     * @param columnNames the names of the columns the composite index is on, in key order
+     * @param prefix the values of the leading columns of the index
+     * @throws QueryPlanException
+     * @throws DatabaseException
+     */
+    public IndexScanOperator(Database.Transaction transaction,
+                             String tableName,
+                             List<String> columnNames,
+                             List<DataBox> prefix) throws QueryPlanException, DatabaseException {
+        super(OperatorType.INDEXSCAN);
+        if (prefix.isEmpty() || prefix.size() > columnNames.size()) {
+            throw new QueryPlanException("Invalid prefix for a composite index scan.");
+        }
+        this.tableName = tableName;
+        this.transaction = transaction;
+        this.columnName = columnNames.get(0);
+        this.predicate = QueryPlan.PredicateOperator.EQUALS;
+        this.value = prefix.get(0);
+        this.columnNames = columnNames;
+        this.prefix = prefix;
+        this.setOutputSchema(this.computeSchema());
+        this.columnIndices = new ArrayList<Integer>();
+        for (String column : columnNames) {
+            column = this.checkSchemaForColumn(this.getOutputSchema(), column);
+            this.columnIndices.add(this.getOutputSchema().getFieldNames().indexOf(column));
+        }
+        this.columnIndex = this.columnIndices.get(0);
+    }
+
     public String str() {
+        if (this.columnNames != null) {
+            return "type: " + this.getType() +
+                   "\ntable: " + this.tableName +
+                   "\ncolumns: " + this.columnNames +
+                   "\noperator: " + this.predicate +
+                   "\nprefix: " + this.prefix;
+        }
         return "type: " + this.getType() +
                "\ntable: " + this.tableName +
                "\ncolumn: " + this.columnName +
@@ -71,6 +128,16 @@ public class IndexScanOperator extends QueryOperator {
         return this.columnName;
     }
 
+    /**
+     * Returns the column names of the composite index the scan is on, or
+     * null if the scan is on a single-column index
+     *
+     * @return columnNames
+     */
+    public List<String> getColumnNames() {
+        return this.columnNames;
+    }
+
     /**
      * Estimates the table statistics for the result of executing this query operator.
      *
@@ -85,6 +152,15 @@ public class IndexScanOperator extends QueryOperator {
             throw new QueryPlanException(de);
         }
 
+        if (this.columnNames != null) {
+            for (int i = 0; i < this.prefix.size(); i++) {
+                stats = stats.copyWithPredicate(this.columnIndices.get(i),
+                                                QueryPlan.PredicateOperator.EQUALS,
+                                                this.prefix.get(i));
+            }
+            return stats;
+        }
+
         return stats.copyWithPredicate(this.columnIndex,
                                        this.predicate,
                                        this.value);
@@ -108,6 +184,22 @@ public class IndexScanOperator extends QueryOperator {
      * @throws QueryPlanException
      */
     public int estimateIOCost() throws QueryPlanException {
+        if (this.columnNames != null) {
+            // One random page fetch per record with a matching prefix.
+            long numIndexPages;
+            try {
+                numIndexPages = this.transaction.getNumIndexPages(this.tableName, this.columnNames);
+            } catch (DatabaseException err) {
+                throw new QueryPlanException(err);
+            }
+            return (int)(this.estimateStats().getNumRecords() + numIndexPages);
+        }
+
+        if (this.useHashIndex) {
+            // One bucket page, and one random page fetch per matching record.
+            return (int) this.estimateStats().getNumRecords() + 1;
+        }
+
         long numRecords;
         long numIndexPages;
         TableStats tableStats;
@@ -146,7 +238,12 @@ public class IndexScanOperator extends QueryOperator {
 
         public IndexScanIterator() throws QueryPlanException, DatabaseException {
             this.nextRecord = null;
-            if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.EQUALS) {
+            if (IndexScanOperator.this.columnNames != null) {
+                this.sourceIterator = IndexScanOperator.this.transaction.lookupPrefix(
+                                          IndexScanOperator.this.tableName,
+                                          IndexScanOperator.this.columnNames,
+                                          IndexScanOperator.this.prefix);
+            } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.EQUALS) {
                 this.sourceIterator = IndexScanOperator.this.transaction.lookupKey(
                                           IndexScanOperator.this.tableName,
                                           IndexScanOperator.this.columnName,
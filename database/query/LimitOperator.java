@@ -0,0 +1,156 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.table.MarkerRecord;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * LimitOperator produces the first limit records of its source. It stops
+ * pulling from its source as soon as it has produced them, so that a
+ * pipeline of scans and selects below it does no more work than needed.
+ */
+public class LimitOperator extends QueryOperator {
+    private int limit;
+
+    /**
+     * Creates a new LimitOperator that produces the first limit records of
+     * source.
+     *
+     * @param source the source operator
+     * @param limit the number of records to produce
+     * @throws QueryPlanException
+     */
+    public LimitOperator(QueryOperator source, int limit) throws QueryPlanException {
+        super(OperatorType.LIMIT, source);
+        this.limit = limit;
+
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    public Schema computeSchema() throws QueryPlanException {
+        return this.getSource().getOutputSchema();
+    }
+
+    public String str() {
+        return "type: " + this.getType() +
+               "\nlimit: " + this.limit;
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        return this.getSource().getStats();
+    }
+
+    public int estimateIOCost() throws QueryPlanException {
+        return this.getSource().getIOCost();
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        if (this.limit == 0) {
+            return Collections.emptyIterator();
+        }
+        return new LimitIterator();
+    }
+
+    @Override
+    public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+        if (this.limit == 0) {
+            return Collections.emptyIterator();
+        }
+        return new LimitBatchIterator();
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     * Marker records are passed through, but not counted.
+     */
+    private class LimitIterator implements Iterator<Record> {
+        private Iterator<Record> sourceIterator;
+        private int remaining;
+
+        public LimitIterator() throws QueryPlanException, DatabaseException {
+            this.sourceIterator = LimitOperator.this.getSource().iterator();
+            this.remaining = LimitOperator.this.limit;
+        }
+
+        /**
+         * Checks if there are more record(s) to yield
+         *
+         * @return true if this iterator has another record to yield, otherwise false
+         */
+        public boolean hasNext() {
+            return this.remaining > 0 && this.sourceIterator.hasNext();
+        }
+
+        /**
+         * Yields the next record of this iterator.
+         *
+         * @return the next Record
+         * @throws NoSuchElementException if there are no more Records to yield
+         */
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record record = this.sourceIterator.next();
+            if (!(record instanceof MarkerRecord)) {
+                this.remaining--;
+            }
+            return record;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An iterator over the batches of the source that narrows the selection
+     * vector of the batch that reaches the limit to the rows before it.
+     */
+    private class LimitBatchIterator implements Iterator<RecordBatch> {
+        private Iterator<RecordBatch> sourceIterator;
+        private int remaining;
+
+        public LimitBatchIterator() throws QueryPlanException, DatabaseException {
+            this.sourceIterator = LimitOperator.this.getSource().batchIterator();
+            this.remaining = LimitOperator.this.limit;
+        }
+
+        public boolean hasNext() {
+            return this.remaining > 0 && this.sourceIterator.hasNext();
+        }
+
+        public RecordBatch next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RecordBatch batch = this.sourceIterator.next();
+            if (batch.size() > this.remaining) {
+                int[] selection = batch.getSelection();
+                if (selection == null) {
+                    selection = new int[this.remaining];
+                    for (int i = 0; i < selection.length; i++) {
+                        selection[i] = i;
+                    }
+                }
+                batch.setSelection(selection, this.remaining);
+            }
+            this.remaining -= batch.size();
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import edu.berkeley.cs186.database.DatabaseException;
+
+/**
+ * A MorselExecutor runs a pipeline of a query plan with several workers at
+ * once. The input of the pipeline is split into morsels, the data pages of
+ * the table it scans (see SequentialScanOperator.getMorsels), and workers
+ * take the next morsel whenever they are done with one, so a worker that
+ * gets cheap morsels simply processes more of them.
+ *
+ * A pipeline that ends in a pipeline breaker, such as the aggregates of a
+ * group-by, gives every worker state of its own, and the states are merged
+ * once every morsel has been processed (see runWorkers). A pipeline that
+ * feeds the rest of the plan instead produces the records of every morsel
+ * at once, and they are handed out in the order of the morsels, just as a
+ * single thread would produce them (see runOrdered).
+ *
+ * The workers of every executor are the threads of a single pool, with a
+ * thread for each processor, which the workers of sorts and index builds
+ * share (see submit).
+ */
+public class MorselExecutor {
+    // The number of morsels an ordered pipeline processes ahead of its
+    // consumer, for every worker.
+    private static final int MORSELS_AHEAD_PER_WORKER = 2;
+
+    private static ExecutorService pool = null;
+
+    private int numWorkers;
+
+    /**
+     * A task that adds the records of a morsel to the state of a worker.
+     */
+    interface MorselTask<S> {
+        void run(S state, int morsel) throws DatabaseException;
+    }
+
+    /**
+     * A function from a morsel to the records it produces.
+     */
+    interface MorselFunction<T> {
+        List<T> apply(int morsel) throws DatabaseException;
+    }
+
+    public MorselExecutor(int numWorkers) {
+        this.numWorkers = Math.max(numWorkers, 1);
+    }
+
+    public int getNumWorkers() {
+        return this.numWorkers;
+    }
+
+    /**
+     * Returns whether pipelines run by this executor run on several workers.
+     */
+    public boolean isParallel() {
+        return this.numWorkers > 1;
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            // The workers must not keep the JVM alive once the database is
+            // closed.
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "morsel-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Runs task on a thread of the pool, for work that is not divided into
+     * morsels, such as the runs of a SortOperator or the scan of an
+     * IndexBuilder. Tasks must not wait for other tasks of the pool.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return getPool().submit(task);
+    }
+
+    /**
+     * Runs task on morsels 0 to numMorsels - 1 with the workers of this
+     * executor, each of which runs it on a state of its own from newState,
+     * and returns the states of the workers to be merged.
+     */
+    <S> List<S> runWorkers(int numMorsels, Supplier<S> newState, MorselTask<S> task) throws DatabaseException {
+        AtomicInteger nextMorsel = new AtomicInteger();
+        List<Future<S>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(this.numWorkers, numMorsels); i++) {
+            futures.add(getPool().submit(() -> {
+                S state = newState.get();
+                int morsel;
+                while ((morsel = nextMorsel.getAndIncrement()) < numMorsels) {
+                    try {
+                        task.run(state, morsel);
+                    } catch (DatabaseException | RuntimeException e) {
+                        // The other workers stop after their current morsel.
+                        nextMorsel.set(numMorsels);
+                        throw e;
+                    }
+                }
+                return state;
+            }));
+        }
+        List<S> states = new ArrayList<>();
+        for (Future<S> future : futures) {
+            states.add(await(future));
+        }
+        return states;
+    }
+
+    /**
+     * Returns an iterator over the records that function produces from
+     * morsels 0 to numMorsels - 1, in order. The workers of this executor
+     * apply function to the morsels ahead of the iterator, a few morsels per
+     * worker.
+     */
+    <T> Iterator<T> runOrdered(int numMorsels, MorselFunction<T> function) {
+        return new OrderedIterator<>(numMorsels, function);
+    }
+
+    private static <T> T await(Future<T> future) throws DatabaseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while running a query.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DatabaseException) {
+                throw (DatabaseException) e.getCause();
+            }
+            throw new DatabaseException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * An iterator over the records of the morsels of an ordered pipeline.
+     */
+    private class OrderedIterator<T> implements Iterator<T> {
+        private int numMorsels;
+        private MorselFunction<T> function;
+        private int nextMorsel;
+        // The records of the morsels being processed, in order.
+        private Deque<Future<List<T>>> inFlight;
+        private Iterator<T> records;
+
+        OrderedIterator(int numMorsels, MorselFunction<T> function) {
+            this.numMorsels = numMorsels;
+            this.function = function;
+            this.nextMorsel = 0;
+            this.inFlight = new ArrayDeque<>();
+            this.records = Collections.emptyIterator();
+            this.submit();
+        }
+
+        private void submit() {
+            int maxInFlight = MorselExecutor.this.numWorkers * MORSELS_AHEAD_PER_WORKER;
+            while (this.inFlight.size() < maxInFlight && this.nextMorsel < this.numMorsels) {
+                int morsel = this.nextMorsel++;
+                this.inFlight.addLast(getPool().submit(() -> this.function.apply(morsel)));
+            }
+        }
+
+        public boolean hasNext() {
+            while (!this.records.hasNext() && !this.inFlight.isEmpty()) {
+                Future<List<T>> future = this.inFlight.removeFirst();
+                this.submit();
+                try {
+                    this.records = await(future).iterator();
+                } catch (DatabaseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return this.records.hasNext();
+        }
+
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.records.next();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.MarkerRecord;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * OrderByOperator produces the records of its source sorted on a column,
+ * and optionally only the first limit of them.
+ *
+ * When the limit fits in memory, the operator is a Top-N operator: it reads
+ * its source once through a heap of at most limit records, whose root is the
+ * record that would come last, and replaces the root whenever a record that
+ * comes before it is read. Only the records in the heap are ever sorted,
+ * and records with equal keys come out in the order they were read.
+ * Otherwise the source is written to a temporary table and sorted with a
+ * SortOperator.
+ */
+public class OrderByOperator extends QueryOperator {
+    private Database.Transaction transaction;
+    private String columnName;
+    private int columnIndex;
+    private QueryPlan.SortDirection direction;
+    private int limit;
+    private int numBuffers;
+
+    /**
+     * Creates a new OrderByOperator that sorts the records of source on
+     * columnName.
+     *
+     * @param source the source operator
+     * @param transaction the transaction containing this operator
+     * @param columnName the column to sort on
+     * @param direction whether to sort in ascending or descending order
+     * @param limit the number of records to produce, or -1 for all of them
+     * @throws QueryPlanException
+     */
+    public OrderByOperator(QueryOperator source,
+                           Database.Transaction transaction,
+                           String columnName,
+                           QueryPlan.SortDirection direction,
+                           int limit) throws QueryPlanException, DatabaseException {
+        super(OperatorType.ORDERBY, source);
+        this.transaction = transaction;
+        this.direction = direction;
+        this.limit = limit;
+        this.numBuffers = transaction.getNumMemoryPages();
+
+        this.columnName = this.checkSchemaForColumn(source.getOutputSchema(), columnName);
+        this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(this.columnName);
+
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    public Schema computeSchema() throws QueryPlanException {
+        return this.getSource().getOutputSchema();
+    }
+
+    public String str() {
+        return "type: " + this.getType() +
+               "\ncolumn: " + this.columnName +
+               "\ndirection: " + this.direction +
+               (this.limit == -1 ? "" : "\nlimit: " + this.limit);
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        return this.getSource().getStats();
+    }
+
+    public int estimateIOCost() throws QueryPlanException {
+        return this.getSource().getIOCost();
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        if (this.limit == 0) {
+            return Collections.emptyIterator();
+        }
+        Schema schema = this.getOutputSchema();
+        int capacity = Math.max(this.numBuffers - 2, 1) * Table.computeNumRecordsPerPage(Page.pageSize, schema);
+        if (this.limit != -1 && this.limit <= capacity) {
+            return topN();
+        }
+        return sort();
+    }
+
+    /**
+     * Returns the first limit records of the source in order, from a heap
+     * of at most limit records.
+     */
+    private Iterator<Record> topN() throws QueryPlanException, DatabaseException {
+        Comparator<SequencedRecord> order = this.sequencedComparator();
+        // The root of the heap is the record that comes last.
+        PriorityQueue<SequencedRecord> heap = new PriorityQueue<>(this.limit, order.reversed());
+        Iterator<Record> records = this.getSource().iterator();
+        long sequence = 0;
+        while (records.hasNext()) {
+            Record record = records.next();
+            if (record instanceof MarkerRecord) {
+                continue;
+            }
+            SequencedRecord r = new SequencedRecord(record, sequence++);
+            if (heap.size() < this.limit) {
+                heap.add(r);
+            } else if (order.compare(r, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(r);
+            }
+        }
+
+        List<SequencedRecord> sorted = new ArrayList<>(heap);
+        sorted.sort(order);
+        List<Record> result = new ArrayList<>(sorted.size());
+        for (SequencedRecord r : sorted) {
+            result.add(r.record);
+        }
+        return result.iterator();
+    }
+
+    /**
+     * Writes the records of the source to a temporary table, and returns an
+     * iterator over them sorted by a SortOperator, up to the limit.
+     */
+    private Iterator<Record> sort() throws QueryPlanException, DatabaseException {
+        String tableName = this.transaction.createTempTable(this.getOutputSchema());
+        Iterator<Record> records = this.getSource().iterator();
+        while (records.hasNext()) {
+            Record record = records.next();
+            if (!(record instanceof MarkerRecord)) {
+                this.transaction.addRecord(tableName, record.getValues());
+            }
+        }
+
+        SortOperator sortOperator;
+        if (this.direction == QueryPlan.SortDirection.ASCENDING) {
+            sortOperator = new SortOperator(this.transaction, tableName, this.columnIndex);
+        } else {
+            sortOperator = new SortOperator(this.transaction, tableName, this.recordComparator());
+        }
+        Iterator<Record> sorted = sortOperator.iterator();
+        return this.limit == -1 ? sorted : new LimitIterator(sorted, this.limit);
+    }
+
+    /**
+     * Returns a comparator that orders records on the sort column, in the
+     * direction of this operator.
+     */
+    private Comparator<Record> recordComparator() {
+        Comparator<Record> ascending = (a, b) -> a.getValues().get(this.columnIndex).compareTo(
+                                           b.getValues().get(this.columnIndex));
+        return this.direction == QueryPlan.SortDirection.ASCENDING ? ascending : ascending.reversed();
+    }
+
+    /**
+     * Returns a comparator that orders records on the sort column, and
+     * records with equal keys in the order they were read.
+     */
+    private Comparator<SequencedRecord> sequencedComparator() {
+        Comparator<Record> records = this.recordComparator();
+        return (a, b) -> {
+            int c = records.compare(a.record, b.record);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        };
+    }
+
+    /**
+     * A record and the number of records of the source read before it.
+     */
+    private static class SequencedRecord {
+        final Record record;
+        final long sequence;
+
+        SequencedRecord(Record record, long sequence) {
+            this.record = record;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * An iterator over the first limit records of another iterator.
+     */
+    private static class LimitIterator implements Iterator<Record> {
+        private Iterator<Record> source;
+        private int remaining;
+
+        LimitIterator(Iterator<Record> source, int limit) {
+            this.source = source;
+            this.remaining = limit;
+        }
+
+        public boolean hasNext() {
+            return this.remaining > 0 && this.source.hasNext();
+        }
+
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.remaining--;
+            return this.source.next();
+        }
+    }
+}
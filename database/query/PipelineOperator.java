@@ -0,0 +1,332 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordReader;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * PipelineOperator is the compiled form of a ProjectOperator over a
+ * SequentialScanOperator and the predicates pushed into it: the whole
+ * pipeline of scan, select, project and aggregate runs as one loop over the
+ * bytes of the table's pages, instead of passing every record through each
+ * operator as a decoded Record.
+ *
+ * The projection and the aggregates are compiled into a single RecordReader
+ * when the operator is created, specialized for the types and offsets of the
+ * columns they read. Projections decode only the projected columns of the
+ * records that satisfy the predicates, and aggregates are accumulated from
+ * integers and floats read straight from the page, so an aggregate query
+ * decodes no values at all. The operator produces the same records as the
+ * ProjectOperator it replaces.
+ *
+ * With several workers, the pipeline runs on the pages of the table at once
+ * (see MorselExecutor): projected records still come out in the order of
+ * the table, and aggregates are accumulated by every worker on its own and
+ * added up at the end.
+ */
+public class PipelineOperator extends QueryOperator {
+    private List<String> columns;
+    private List<Integer> indices;
+    private boolean hasCount;
+    private String sumColumn;
+    private String averageColumn;
+    private int sumColumnIndex;
+    private int averageColumnIndex;
+    private int numWorkers = 1;
+
+    /**
+     * Creates a new PipelineOperator that projects columns from the records of scan, and optionally
+     * computes aggregates over them, as a ProjectOperator would.
+     *
+     * @param scan the scan of the table, with the predicates of the query pushed down
+     * @param columns the columns to project
+     * @param count whether to count the records
+     * @param averageColumn the column to average, or null
+     * @param sumColumn the column to sum, or null
+     * @throws QueryPlanException
+     */
+    public PipelineOperator(SequentialScanOperator scan,
+                            List<String> columns,
+                            boolean count,
+                            String averageColumn,
+                            String sumColumn) throws QueryPlanException {
+        super(OperatorType.PIPELINE);
+        this.columns = new ArrayList<String>(columns);
+        this.indices = new ArrayList<Integer>();
+        this.hasCount = count;
+        this.sumColumn = sumColumn;
+        this.averageColumn = averageColumn;
+        this.sumColumnIndex = -1;
+        this.averageColumnIndex = -1;
+        this.setSource(scan);
+
+        /*
+        this.stats = this.estimateStats();
+        this.cost = this.estimateIOCost();
+        */
+    }
+
+    protected Schema computeSchema() throws QueryPlanException {
+        Schema sourceSchema = this.getSource().getOutputSchema();
+        if (this.columns.isEmpty() && !this.hasCount && this.sumColumn == null && this.averageColumn == null) {
+            // Whole records are produced, as by the scan alone.
+            return sourceSchema;
+        }
+        List<String> sourceColumnNames = sourceSchema.getFieldNames();
+        List<Type> sourceColumnTypes = sourceSchema.getFieldTypes();
+        List<String> columnNames = new ArrayList<String>(this.columns);
+        List<Type> columnTypes = new ArrayList<Type>();
+        this.indices.clear();
+        for (String columnName : this.columns) {
+            int index = sourceColumnNames.indexOf(this.checkSchemaForColumn(sourceSchema, columnName));
+            columnTypes.add(sourceColumnTypes.get(index));
+            this.indices.add(index);
+        }
+        if (this.sumColumn != null) {
+            this.sumColumnIndex = this.numericColumnIndex(sourceSchema, this.sumColumn);
+            columnNames.add("sumAgg");
+            columnTypes.add(sourceColumnTypes.get(this.sumColumnIndex));
+        }
+        if (this.averageColumn != null) {
+            this.averageColumnIndex = this.numericColumnIndex(sourceSchema, this.averageColumn);
+            columnNames.add("averageAgg");
+            columnTypes.add(Type.floatType());
+        }
+        if (this.hasCount) {
+            // The count comes before the sum and the average, as in a
+            // ProjectOperator.
+            columnNames.add(this.columns.size(), "countAgg");
+            columnTypes.add(this.columns.size(), Type.intType());
+        }
+        return new Schema(columnNames, columnTypes);
+    }
+
+    private int numericColumnIndex(Schema schema, String columnName) throws QueryPlanException {
+        int index = schema.getFieldNames().indexOf(this.checkSchemaForColumn(schema, columnName));
+        TypeId typeId = schema.getFieldTypes().get(index).getTypeId();
+        if (typeId != TypeId.INT && typeId != TypeId.FLOAT) {
+            throw new QueryPlanException("Cannot compute sum over a non-integer column: " + columnName + ".");
+        }
+        return index;
+    }
+
+    /**
+     * Sets the number of workers that run the pipeline at once.
+     *
+     * @param numWorkers the number of workers
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    private boolean hasAggregate() {
+        return this.hasCount || this.sumColumnIndex != -1 || this.averageColumnIndex != -1;
+    }
+
+    public String str() {
+        return "type: " + this.getType() +
+               "\ncolumns: " + this.getOutputSchema().getFieldNames();
+    }
+
+    /**
+     * Estimates the table statistics for the result of executing this query operator.
+     *
+     * @return estimated TableStats
+     */
+    public TableStats estimateStats() throws QueryPlanException {
+        return this.getSource().getStats();
+    }
+
+    public int estimateIOCost() throws QueryPlanException {
+        return this.getSource().getIOCost();
+    }
+
+    public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
+        SequentialScanOperator scan = (SequentialScanOperator) this.getSource();
+        Schema schema = scan.getOutputSchema();
+        MorselExecutor executor = new MorselExecutor(this.numWorkers);
+        List<Page> morsels = executor.isParallel() ? scan.getMorsels() : null;
+        if (!this.hasAggregate()) {
+            RecordReader<Record> projection = this.compileProjection(schema);
+            if (morsels != null) {
+                return executor.runOrdered(morsels.size(),
+                                           morsel -> scan.readMorsel(morsels.get(morsel), projection));
+            }
+            return scan.iterator(projection);
+        }
+
+        Aggregates aggregates = new Aggregates();
+        if (morsels != null) {
+            List<Aggregates> partials = executor.runWorkers(morsels.size(), Aggregates::new,
+                    (partial, morsel) -> {
+                        if (partial.reader == null) {
+                            partial.reader = this.compileAggregates(schema, partial);
+                        }
+                        partial.morsel = morsel;
+                        scan.readMorsel(morsels.get(morsel), partial.reader);
+                    });
+            for (Aggregates partial : partials) {
+                aggregates.add(partial);
+            }
+        } else {
+            Iterator<Void> records = scan.iterator(this.compileAggregates(schema, aggregates));
+            // Every record is read into the aggregates, and none is produced.
+            while (records.hasNext()) {
+                records.next();
+            }
+        }
+        if (aggregates.count == 0) {
+            return Collections.emptyIterator();
+        }
+
+        List<DataBox> values = aggregates.first;
+        if (this.hasCount) {
+            values.add(new IntDataBox((int) aggregates.count));
+        }
+        if (this.sumColumnIndex != -1) {
+            if (this.isFloat(this.sumColumnIndex)) {
+                values.add(new FloatDataBox((float) aggregates.sum));
+            } else {
+                values.add(new IntDataBox((int) aggregates.sum));
+            }
+        }
+        if (this.averageColumnIndex != -1) {
+            values.add(new FloatDataBox((float) (aggregates.averageSum / aggregates.count)));
+        }
+        return Collections.singletonList(new Record(values)).iterator();
+    }
+
+    private boolean isFloat(int sourceIndex) throws QueryPlanException {
+        Type type = this.getSource().getOutputSchema().getFieldTypes().get(sourceIndex);
+        return type.getTypeId() == TypeId.FLOAT;
+    }
+
+    /**
+     * Compiles a reader that decodes the projected columns of a record, or
+     * all of them if no columns are projected.
+     */
+    private RecordReader<Record> compileProjection(Schema schema) {
+        if (this.indices.isEmpty()) {
+            return (buf, offset) -> {
+                buf.position(offset);
+                return Record.fromBytes(buf, schema);
+            };
+        }
+
+        int n = this.indices.size();
+        int[] offsets = new int[n];
+        Type[] types = new Type[n];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = schema.getOffset(this.indices.get(i));
+            types[i] = schema.getFieldTypes().get(this.indices.get(i));
+        }
+        return (buf, offset) -> {
+            List<DataBox> values = new ArrayList<DataBox>(n);
+            for (int i = 0; i < n; i++) {
+                buf.position(offset + offsets[i]);
+                values.add(DataBox.fromBytes(buf, types[i]));
+            }
+            return new Record(values);
+        };
+    }
+
+    /**
+     * Compiles a reader that adds a record to aggregates, and produces
+     * nothing.
+     */
+    private RecordReader<Void> compileAggregates(Schema schema, Aggregates aggregates) {
+        RecordReader<Record> projection = this.compileProjection(schema);
+        RecordReader<Void> sum = compileSum(schema, this.sumColumnIndex, aggregates, false);
+        RecordReader<Void> average = compileSum(schema, this.averageColumnIndex, aggregates, true);
+        boolean projects = !this.indices.isEmpty();
+        return (buf, offset) -> {
+            // Only the projected columns of the first record are kept.
+            if (aggregates.count == 0) {
+                aggregates.first = projects ? projection.read(buf, offset).getValues() : new ArrayList<DataBox>();
+                aggregates.firstMorsel = aggregates.morsel;
+            }
+            aggregates.count++;
+            sum.read(buf, offset);
+            average.read(buf, offset);
+            return null;
+        };
+    }
+
+    /**
+     * Compiles a reader that adds column INDEX of a record to the sum, or to
+     * the sum of the average if AVERAGE, of aggregates, or that does nothing
+     * if INDEX is -1.
+     */
+    private static RecordReader<Void> compileSum(Schema schema, int index, Aggregates aggregates,
+                                                 boolean average) {
+        if (index == -1) {
+            return (buf, offset) -> null;
+        }
+        int at = schema.getOffset(index);
+        boolean isFloat = schema.getFieldTypes().get(index).getTypeId() == TypeId.FLOAT;
+        if (average) {
+            if (isFloat) {
+                return (buf, offset) -> {
+                    aggregates.averageSum += buf.getFloat(offset + at);
+                    return null;
+                };
+            }
+            return (buf, offset) -> {
+                aggregates.averageSum += buf.getInt(offset + at);
+                return null;
+            };
+        }
+        if (isFloat) {
+            return (buf, offset) -> {
+                aggregates.sum += buf.getFloat(offset + at);
+                return null;
+            };
+        }
+        return (buf, offset) -> {
+            aggregates.sum += buf.getInt(offset + at);
+            return null;
+        };
+    }
+
+    /**
+     * The running aggregates of a pipeline, or of one of its workers.
+     */
+    private static class Aggregates {
+        List<DataBox> first;
+        long count;
+        double sum;
+        double averageSum;
+        // The morsel being read, and the morsel first was read from.
+        int morsel;
+        int firstMorsel = Integer.MAX_VALUE;
+        RecordReader<Void> reader;
+
+        /**
+         * Adds the aggregates of another worker to these. The first record
+         * of the table is the first record of the earliest morsel, since
+         * every worker reads its morsels in order.
+         */
+        void add(Aggregates other) {
+            if (other.count > 0 && other.firstMorsel < this.firstMorsel) {
+                this.first = other.first;
+                this.firstMorsel = other.firstMorsel;
+            }
+            this.count += other.count;
+            this.sum += other.sum;
+            this.averageSum += other.averageSum;
+        }
+    }
+}
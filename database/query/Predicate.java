@@ -0,0 +1,551 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+/**
+ * A Predicate is an expression tree over the columns of a record: comparisons
+ * of a column to a value or to another column, tests of whether a column is
+ * IN a list of values, and their combinations with AND, OR and NOT. For
+ * example,
+ *
+ *   Predicate p = Predicate.and(
+ *       Predicate.compare("age", PredicateOperator.GREATER_THAN, new IntDataBox(20)),
+ *       Predicate.or(Predicate.in("dept", depts),
+ *                    Predicate.compareColumns("salary", PredicateOperator.LESS_THAN, "bonus")));
+ *
+ * A predicate refers to columns by name, and is evaluated (see FilterOperator)
+ * once it has been bound to the schema of the records it is evaluated on.
+ * Binding an AND or an OR also orders its operands so that evaluation, which
+ * stops as soon as the result is known, does as little work as possible: the
+ * operands of an AND in increasing order of cost / (1 - selectivity), so that
+ * cheap operands that reject many records come first, and those of an OR in
+ * increasing order of cost / selectivity. Selectivities are estimated from the
+ * statistics of the records, when there are some, and otherwise with the
+ * usual default reduction factors.
+ */
+public abstract class Predicate {
+    // The default reduction factors of an equality and of a range comparison.
+    private static final float EQUALITY_SELECTIVITY = 0.1f;
+    private static final float RANGE_SELECTIVITY = 1.0f / 3;
+
+    /**
+     * Returns a predicate that is true if the column's value fulfills the
+     * comparison with value.
+     */
+    public static Predicate compare(String column, QueryPlan.PredicateOperator operator, DataBox value) {
+        return new Comparison(column, operator, value);
+    }
+
+    /**
+     * Returns a predicate that is true if the value of leftColumn fulfills the
+     * comparison with the value of rightColumn.
+     */
+    public static Predicate compareColumns(String leftColumn, QueryPlan.PredicateOperator operator,
+                                           String rightColumn) {
+        return new ColumnComparison(leftColumn, operator, rightColumn);
+    }
+
+    /**
+     * Returns a predicate that is true if the column's value is one of values.
+     */
+    public static Predicate in(String column, List<DataBox> values) {
+        return new In(column, values);
+    }
+
+    public static Predicate and(Predicate... operands) {
+        return and(Arrays.asList(operands));
+    }
+
+    public static Predicate and(List<Predicate> operands) {
+        return new And(operands);
+    }
+
+    public static Predicate or(Predicate... operands) {
+        return or(Arrays.asList(operands));
+    }
+
+    public static Predicate or(List<Predicate> operands) {
+        return new Or(operands);
+    }
+
+    public static Predicate not(Predicate operand) {
+        return new Not(operand);
+    }
+
+    /**
+     * Returns the names of the columns the predicate reads.
+     */
+    public abstract List<String> getColumns();
+
+    /**
+     * Returns this predicate with its columns resolved against SCHEMA, the
+     * schema of the records that OPERATOR evaluates it on, and its operands
+     * ordered for evaluation. STATS are the statistics of those records, or
+     * null if there are none.
+     */
+    abstract Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException;
+
+    /**
+     * Returns whether a record with VALUES satisfies the (bound) predicate.
+     */
+    abstract boolean test(List<DataBox> values);
+
+    /**
+     * Returns whether row ROW of BATCH satisfies the (bound) predicate. The
+     * values of primitive columns are compared without being boxed.
+     */
+    abstract boolean test(RecordBatch batch, int row);
+
+    /**
+     * Returns the estimated fraction of records that satisfy the (bound)
+     * predicate.
+     */
+    abstract float getSelectivity();
+
+    /**
+     * Returns the estimated relative cost of evaluating the (bound) predicate
+     * on a record: one for every comparison of a primitive value, and more
+     * for the others.
+     */
+    abstract int getCost();
+
+    /**
+     * Returns the key the (bound) operands of an AND are evaluated in
+     * increasing order of: cost / (1 - selectivity).
+     */
+    static double conjunctRank(Predicate predicate) {
+        // An operand that rejects no records is never worth evaluating before
+        // one that does.
+        return predicate.getCost() / Math.max(1.0 - predicate.getSelectivity(), 1e-9);
+    }
+
+    /**
+     * Returns whether the result of comparing two values satisfies OPERATOR,
+     * comparing for equality with equals as SelectOperator does.
+     */
+    private static boolean matches(DataBox left, QueryPlan.PredicateOperator operator, DataBox right) {
+        switch (operator) {
+        case EQUALS:
+            return left.equals(right);
+        case NOT_EQUALS:
+            return !left.equals(right);
+        case LESS_THAN:
+            return left.compareTo(right) < 0;
+        case LESS_THAN_EQUALS:
+            return left.compareTo(right) <= 0;
+        case GREATER_THAN:
+            return left.compareTo(right) > 0;
+        case GREATER_THAN_EQUALS:
+            return left.compareTo(right) >= 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the result of comparing two primitives satisfies
+     * OPERATOR, where COMPARISON is the result of compare and EQUAL that of
+     * ==, as for DataBoxes.
+     */
+    private static boolean matches(int comparison, boolean equal, QueryPlan.PredicateOperator operator) {
+        switch (operator) {
+        case EQUALS:
+            return equal;
+        case NOT_EQUALS:
+            return !equal;
+        case LESS_THAN:
+            return comparison < 0;
+        case LESS_THAN_EQUALS:
+            return comparison <= 0;
+        case GREATER_THAN:
+            return comparison > 0;
+        case GREATER_THAN_EQUALS:
+            return comparison >= 0;
+        default:
+            return false;
+        }
+    }
+
+    private static float defaultSelectivity(QueryPlan.PredicateOperator operator) {
+        switch (operator) {
+        case EQUALS:
+            return EQUALITY_SELECTIVITY;
+        case NOT_EQUALS:
+            return 1 - EQUALITY_SELECTIVITY;
+        default:
+            return RANGE_SELECTIVITY;
+        }
+    }
+
+    private static int costOf(Type type) {
+        TypeId typeId = type.getTypeId();
+        return typeId == TypeId.INT || typeId == TypeId.FLOAT || typeId == TypeId.BOOL ? 1 : 2;
+    }
+
+    /**
+     * Resolves COLUMN against SCHEMA, and returns its index.
+     */
+    private static int indexOf(QueryOperator operator, Schema schema, String column) throws QueryPlanException {
+        return schema.getFieldNames().indexOf(operator.checkSchemaForColumn(schema, column));
+    }
+
+    private static class Comparison extends Predicate {
+        private final String column;
+        private final QueryPlan.PredicateOperator operator;
+        private final DataBox value;
+        private int columnIndex = -1;
+        // The type of the column if it is that of the value, so that batches
+        // can compare primitives; null otherwise.
+        private TypeId primitiveType;
+        private float selectivity;
+        private int cost;
+
+        Comparison(String column, QueryPlan.PredicateOperator operator, DataBox value) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public List<String> getColumns() {
+            return Arrays.asList(this.column);
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            Comparison bound = new Comparison(this.column, this.operator, this.value);
+            bound.columnIndex = indexOf(operator, schema, this.column);
+            bound.selectivity = stats == null ? defaultSelectivity(this.operator) :
+                                stats.getReductionFactor(bound.columnIndex, this.operator, this.value);
+            bound.cost = costOf(schema.getFieldTypes().get(bound.columnIndex));
+            TypeId typeId = schema.getFieldTypes().get(bound.columnIndex).getTypeId();
+            bound.primitiveType = typeId == this.value.type().getTypeId() ? typeId : null;
+            return bound;
+        }
+
+        boolean test(List<DataBox> values) {
+            return matches(values.get(this.columnIndex), this.operator, this.value);
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            if (this.primitiveType == TypeId.INT) {
+                int v = batch.getIntColumn(this.columnIndex)[row];
+                int w = this.value.getInt();
+                return matches(Integer.compare(v, w), v == w, this.operator);
+            } else if (this.primitiveType == TypeId.FLOAT) {
+                float v = batch.getFloatColumn(this.columnIndex)[row];
+                float w = this.value.getFloat();
+                return matches(Float.compare(v, w), v == w, this.operator);
+            } else if (this.primitiveType == TypeId.BOOL) {
+                boolean v = batch.getBoolColumn(this.columnIndex)[row];
+                boolean w = this.value.getBool();
+                return matches(Boolean.compare(v, w), v == w, this.operator);
+            }
+            return matches(batch.getValue(row, this.columnIndex), this.operator, this.value);
+        }
+
+        float getSelectivity() {
+            return this.selectivity;
+        }
+
+        int getCost() {
+            return this.cost;
+        }
+
+        @Override
+        public String toString() {
+            return this.column + " " + this.operator + " " + this.value;
+        }
+    }
+
+    private static class ColumnComparison extends Predicate {
+        private final String leftColumn;
+        private final QueryPlan.PredicateOperator operator;
+        private final String rightColumn;
+        private int leftIndex = -1;
+        private int rightIndex = -1;
+        private int cost;
+
+        ColumnComparison(String leftColumn, QueryPlan.PredicateOperator operator, String rightColumn) {
+            this.leftColumn = leftColumn;
+            this.operator = operator;
+            this.rightColumn = rightColumn;
+        }
+
+        public List<String> getColumns() {
+            return Arrays.asList(this.leftColumn, this.rightColumn);
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            ColumnComparison bound = new ColumnComparison(this.leftColumn, this.operator, this.rightColumn);
+            bound.leftIndex = indexOf(operator, schema, this.leftColumn);
+            bound.rightIndex = indexOf(operator, schema, this.rightColumn);
+            Type leftType = schema.getFieldTypes().get(bound.leftIndex);
+            if (!leftType.equals(schema.getFieldTypes().get(bound.rightIndex))) {
+                throw new QueryPlanException("Cannot compare columns " + this.leftColumn + " and " +
+                                             this.rightColumn + " of different types.");
+            }
+            bound.cost = 2 * costOf(leftType);
+            return bound;
+        }
+
+        boolean test(List<DataBox> values) {
+            return matches(values.get(this.leftIndex), this.operator, values.get(this.rightIndex));
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            return matches(batch.getValue(row, this.leftIndex), this.operator,
+                           batch.getValue(row, this.rightIndex));
+        }
+
+        float getSelectivity() {
+            return defaultSelectivity(this.operator);
+        }
+
+        int getCost() {
+            return this.cost;
+        }
+
+        @Override
+        public String toString() {
+            return this.leftColumn + " " + this.operator + " " + this.rightColumn;
+        }
+    }
+
+    private static class In extends Predicate {
+        private final String column;
+        private final List<DataBox> values;
+        private final Set<DataBox> valueSet;
+        private int columnIndex = -1;
+        private float selectivity;
+        private int cost;
+
+        In(String column, List<DataBox> values) {
+            this.column = column;
+            this.values = new ArrayList<>(values);
+            this.valueSet = new HashSet<>(values);
+        }
+
+        public List<String> getColumns() {
+            return Arrays.asList(this.column);
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            In bound = new In(this.column, this.values);
+            bound.columnIndex = indexOf(operator, schema, this.column);
+            float selectivity = 0;
+            for (DataBox value : bound.valueSet) {
+                selectivity += stats == null ? EQUALITY_SELECTIVITY :
+                               stats.getReductionFactor(bound.columnIndex, QueryPlan.PredicateOperator.EQUALS,
+                                                        value);
+            }
+            bound.selectivity = Math.min(selectivity, 1);
+            bound.cost = costOf(schema.getFieldTypes().get(bound.columnIndex));
+            return bound;
+        }
+
+        boolean test(List<DataBox> values) {
+            return this.valueSet.contains(values.get(this.columnIndex));
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            return this.valueSet.contains(batch.getValue(row, this.columnIndex));
+        }
+
+        float getSelectivity() {
+            return this.selectivity;
+        }
+
+        int getCost() {
+            return this.cost;
+        }
+
+        @Override
+        public String toString() {
+            return this.column + " IN " + this.values;
+        }
+    }
+
+    private static class And extends Predicate {
+        private final List<Predicate> operands;
+
+        And(List<Predicate> operands) {
+            this.operands = new ArrayList<>(operands);
+        }
+
+        public List<String> getColumns() {
+            List<String> columns = new ArrayList<>();
+            for (Predicate operand : this.operands) {
+                columns.addAll(operand.getColumns());
+            }
+            return columns;
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            List<Predicate> bound = new ArrayList<>();
+            for (Predicate operand : this.operands) {
+                bound.add(operand.bind(operator, schema, stats));
+            }
+            bound.sort(Comparator.comparingDouble(Predicate::conjunctRank));
+            return new And(bound);
+        }
+
+        boolean test(List<DataBox> values) {
+            for (Predicate operand : this.operands) {
+                if (!operand.test(values)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            for (Predicate operand : this.operands) {
+                if (!operand.test(batch, row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        float getSelectivity() {
+            float selectivity = 1;
+            for (Predicate operand : this.operands) {
+                selectivity *= operand.getSelectivity();
+            }
+            return selectivity;
+        }
+
+        int getCost() {
+            int cost = 0;
+            for (Predicate operand : this.operands) {
+                cost += operand.getCost();
+            }
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return join(this.operands, " AND ");
+        }
+    }
+
+    private static class Or extends Predicate {
+        private final List<Predicate> operands;
+
+        Or(List<Predicate> operands) {
+            this.operands = new ArrayList<>(operands);
+        }
+
+        public List<String> getColumns() {
+            List<String> columns = new ArrayList<>();
+            for (Predicate operand : this.operands) {
+                columns.addAll(operand.getColumns());
+            }
+            return columns;
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            List<Predicate> bound = new ArrayList<>();
+            for (Predicate operand : this.operands) {
+                bound.add(operand.bind(operator, schema, stats));
+            }
+            bound.sort(Comparator.comparingDouble(p -> p.getCost() / Math.max(p.getSelectivity(), 1e-9)));
+            return new Or(bound);
+        }
+
+        boolean test(List<DataBox> values) {
+            for (Predicate operand : this.operands) {
+                if (operand.test(values)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            for (Predicate operand : this.operands) {
+                if (operand.test(batch, row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        float getSelectivity() {
+            float rejected = 1;
+            for (Predicate operand : this.operands) {
+                rejected *= 1 - operand.getSelectivity();
+            }
+            return 1 - rejected;
+        }
+
+        int getCost() {
+            int cost = 0;
+            for (Predicate operand : this.operands) {
+                cost += operand.getCost();
+            }
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return join(this.operands, " OR ");
+        }
+    }
+
+    private static class Not extends Predicate {
+        private final Predicate operand;
+
+        Not(Predicate operand) {
+            this.operand = operand;
+        }
+
+        public List<String> getColumns() {
+            return this.operand.getColumns();
+        }
+
+        Predicate bind(QueryOperator operator, Schema schema, TableStats stats) throws QueryPlanException {
+            return new Not(this.operand.bind(operator, schema, stats));
+        }
+
+        boolean test(List<DataBox> values) {
+            return !this.operand.test(values);
+        }
+
+        boolean test(RecordBatch batch, int row) {
+            return !this.operand.test(batch, row);
+        }
+
+        float getSelectivity() {
+            return 1 - this.operand.getSelectivity();
+        }
+
+        int getCost() {
+            return this.operand.getCost();
+        }
+
+        @Override
+        public String toString() {
+            return "NOT (" + this.operand + ")";
+        }
+    }
+
+    private static String join(List<Predicate> operands, String separator) {
+        List<String> strings = new ArrayList<>();
+        for (Predicate operand : operands) {
+            boolean nested = operand instanceof And || operand instanceof Or;
+            strings.add(nested ? "(" + operand + ")" : operand.toString());
+        }
+        return String.join(separator, strings);
+    }
+}
@@ -96,7 +96,7 @@ public class ProjectOperator extends QueryOperator {
             this.averageColumn = this.checkSchemaForColumn(sourceSchema, this.averageColumn);
             this.averageColumnIndex = sourceColumnNames.indexOf(this.averageColumn);
             if (!(sourceColumnTypes.get(this.averageColumnIndex).getTypeId() == TypeId.INT) &&
-                    !(sourceColumnTypes.get(this.sumColumnIndex).getTypeId() == TypeId.FLOAT)) {
+                    !(sourceColumnTypes.get(this.averageColumnIndex).getTypeId() == TypeId.FLOAT)) {
                 throw new QueryPlanException("Cannot compute sum over a non-integer column: " + this.averageColumn +
                                              ".");
             }
@@ -129,6 +129,29 @@ public class ProjectOperator extends QueryOperator {
 
     public Iterator<Record> iterator() throws QueryPlanException, DatabaseException { return new ProjectIterator(); }
 
+    /**
+     * Without aggregates, the batches of the source are projected by
+     * selecting their columns, without copying any values. Aggregates are
+     * computed a record at a time.
+     */
+    @Override
+    public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+        if (this.hasAggregate) {
+            return super.batchIterator();
+        }
+        Iterator<RecordBatch> sourceIterator = this.getSource().batchIterator();
+        return new Iterator<RecordBatch>() {
+            public boolean hasNext() {
+                return sourceIterator.hasNext();
+            }
+
+            public RecordBatch next() {
+                return sourceIterator.next().project(ProjectOperator.this.getOutputSchema(),
+                                                     ProjectOperator.this.indices);
+            }
+        };
+    }
+
     private void addToCount() {
         this.countValue++;
     }
@@ -2,8 +2,10 @@ package edu.berkeley.cs186.database.query;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -21,7 +23,11 @@ public abstract class QueryOperator {
         SELECT,
         GROUPBY,
         SEQSCAN,
-        INDEXSCAN
+        INDEXSCAN,
+        INDEXONLYSCAN,
+        ORDERBY,
+        LIMIT,
+        PIPELINE
     }
 
     private OperatorType type;
@@ -68,6 +74,22 @@ public abstract class QueryOperator {
         return this.type.equals(OperatorType.INDEXSCAN);
     }
 
+    public boolean isIndexOnlyScan() {
+        return this.type.equals(OperatorType.INDEXONLYSCAN);
+    }
+
+    public boolean isOrderBy() {
+        return this.type.equals(OperatorType.ORDERBY);
+    }
+
+    public boolean isLimit() {
+        return this.type.equals(OperatorType.LIMIT);
+    }
+
+    public boolean isPipeline() {
+        return this.type.equals(OperatorType.PIPELINE);
+    }
+
     public QueryOperator getSource() throws QueryPlanException {
         return this.source;
     }
@@ -101,6 +123,46 @@ public abstract class QueryOperator {
 
     public abstract Iterator<Record> iterator() throws QueryPlanException, DatabaseException;
 
+    /**
+     * Returns an iterator over the output of this operator in batches of up
+     * to RecordBatch.DEFAULT_CAPACITY rows; every batch has at least one
+     * selected row, and belongs to the caller. Operators that can process
+     * their input a batch at a time override this; by default, the records
+     * of iterator() are packed into batches.
+     *
+     * Batches only hold rows, so the group boundaries of a GroupByOperator
+     * are not carried through them.
+     */
+    public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+        return new PackingBatchIterator(this.iterator(), this.getOutputSchema());
+    }
+
+    /**
+     * Returns an iterator over the records of the batches of SOURCE.
+     */
+    public static Iterator<Record> unpack(Iterator<RecordBatch> source) {
+        return new Iterator<Record>() {
+            private Iterator<Record> records = null;
+
+            public boolean hasNext() {
+                while (records == null || !records.hasNext()) {
+                    if (!source.hasNext()) {
+                        return false;
+                    }
+                    records = source.next().iterator();
+                }
+                return true;
+            }
+
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return records.next();
+            }
+        };
+    }
+
     /**
      * Utility method that checks to see if a column is found in a schema using dot notation.
      *
@@ -177,6 +239,47 @@ public abstract class QueryOperator {
      */
     protected abstract int estimateIOCost() throws QueryPlanException;
 
+    /**
+     * Packs the records of an iterator into batches.
+     */
+    private static class PackingBatchIterator implements Iterator<RecordBatch> {
+        private Iterator<Record> source;
+        private Schema schema;
+        private RecordBatch nextBatch;
+
+        PackingBatchIterator(Iterator<Record> source, Schema schema) {
+            this.source = source;
+            this.schema = schema;
+        }
+
+        public boolean hasNext() {
+            if (this.nextBatch != null) {
+                return true;
+            }
+            RecordBatch batch = new RecordBatch(this.schema);
+            while (!batch.isFull() && this.source.hasNext()) {
+                Record record = this.source.next();
+                if (!(record instanceof MarkerRecord)) {
+                    batch.addRecord(record);
+                }
+            }
+            if (batch.isEmpty()) {
+                return false;
+            }
+            this.nextBatch = batch;
+            return true;
+        }
+
+        public RecordBatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+    }
+
     public TableStats getStats() {
         return this.stats;
     }
@@ -1,6 +1,8 @@
 package edu.berkeley.cs186.database.query;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,9 +12,11 @@ import java.util.Set;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
 
 /**
  * QueryPlan provides a set of functions to generate simple queries. Calling the methods corresponding
@@ -29,6 +33,11 @@ public class QueryPlan {
         GREATER_THAN_EQUALS
     }
 
+    public enum SortDirection {
+        ASCENDING,
+        DESCENDING
+    }
+
     private Database.Transaction transaction;
     private QueryOperator finalOperator;
     private String startTableName;
@@ -39,11 +48,17 @@ public class QueryPlan {
     private List<String> selectColumnNames;
     private List<PredicateOperator> selectOperators;
     private List<DataBox> selectDataBoxes;
+    private List<Predicate> selectPredicates;
     private List<String> projectColumns;
     private String groupByColumn;
     private boolean hasCount;
     private String averageColumnName;
     private String sumColumnName;
+    private String orderByColumn;
+    private SortDirection orderByDirection;
+    private int limit;
+    private boolean compiled;
+    private int numWorkers;
 
     /**
      * Creates a new QueryPlan within transaction. The base table is startTableName.
@@ -63,6 +78,7 @@ public class QueryPlan {
         this.selectColumnNames = new ArrayList<String>();
         this.selectOperators = new ArrayList<PredicateOperator>();
         this.selectDataBoxes = new ArrayList<DataBox>();
+        this.selectPredicates = new ArrayList<Predicate>();
 
         this.hasCount = false;
         this.averageColumnName = null;
@@ -70,6 +86,13 @@ public class QueryPlan {
 
         this.groupByColumn = null;
 
+        this.orderByColumn = null;
+        this.orderByDirection = null;
+        this.limit = -1;
+
+        this.compiled = false;
+        this.numWorkers = Runtime.getRuntime().availableProcessors();
+
         this.finalOperator = null;
     }
 
@@ -112,6 +135,19 @@ public class QueryPlan {
         this.selectDataBoxes.add(value);
     }
 
+    /**
+     * Add a select operator with an arbitrary predicate, which may combine
+     * comparisons with AND, OR and NOT, compare two columns, or test whether a
+     * column is in a list of values (see Predicate). Only returns records that
+     * satisfy the predicate.
+     *
+     * @param predicate the predicate to select on
+     * @throws QueryPlanException
+     */
+    public void select(Predicate predicate) throws QueryPlanException {
+        this.selectPredicates.add(predicate);
+    }
+
     /**
      * Set the group by column for this query.
      *
@@ -151,6 +187,37 @@ public class QueryPlan {
         this.sumColumnName = column;
     }
 
+    /**
+     * Sort the output of this query on column, which may be an aggregate such as countAgg. Can only
+     * specify one ORDER BY column.
+     *
+     * @param column the column of the output to sort on
+     * @param direction whether to sort in ascending or descending order
+     * @throws QueryPlanException
+     */
+    public void orderBy(String column, SortDirection direction) throws QueryPlanException {
+        if (this.orderByColumn != null) {
+            throw new QueryPlanException("Cannot add more than one order by operator to this query.");
+        }
+
+        this.orderByColumn = column;
+        this.orderByDirection = direction;
+    }
+
+    /**
+     * Only return the first n records of this query, in the order given by orderBy if there is one.
+     *
+     * @param n the number of records to return
+     * @throws QueryPlanException
+     */
+    public void limit(int n) throws QueryPlanException {
+        if (n < 0) {
+            throw new QueryPlanException("Cannot limit a query to a negative number of records.");
+        }
+
+        this.limit = n;
+    }
+
     /**
      * Join the leftColumnName column of the existing queryplan against the rightColumnName column
      * of tableName.
@@ -175,30 +242,89 @@ public class QueryPlan {
         return this.joinRightColumnNames.get(i).split("\\.");
     }
 
+    /**
+     * Sets whether to compile the query. A compiled query that scans a single table, and has no
+     * GROUP BY and no SELECT predicates other than comparisons of its columns to values, runs its
+     * scan, selects and projects as a single PipelineOperator. Other queries are not affected.
+     *
+     * @param compiled whether to compile the query
+     */
+    public void setCompiled(boolean compiled) {
+        this.compiled = compiled;
+    }
+
+    /**
+     * Sets the number of workers that run the scans, hash joins and hash aggregates of the query
+     * (see MorselExecutor), which is the number of processors by default. Queries produce the same
+     * records, in the same order, with any number of workers.
+     *
+     * @param numWorkers the number of workers
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
     /**
      * Generates a naive QueryPlan in which all joins are at the bottom of the DAG followed by all select
-     * predicates, an optional group by operator, and a set of projects (in that order).
+     * predicates, an optional group by operator, a set of projects, and an optional order by and limit
+     * (in that order).
      *
      * @return an iterator of records that is the result of this query
      * @throws DatabaseException
      * @throws QueryPlanException
      */
     public Iterator<Record> execute() throws DatabaseException, QueryPlanException {
+        Pair<List<String>, List<Integer>> compositeIndex = this.checkCompositeIndexEligible();
         String indexColumn = this.checkIndexEligible();
 
-        if (indexColumn != null) {
+        // A composite index matching two or more equality predicates is more
+        // selective than any single-column index.
+        if (compositeIndex != null && (compositeIndex.getSecond().size() > 1 || indexColumn == null)) {
+            this.generateCompositeIndexPlan(compositeIndex.getFirst(), compositeIndex.getSecond());
+        } else if (indexColumn != null) {
             this.generateIndexPlan(indexColumn);
         } else {
             // start off with the start table scan as the source
-            this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName);
+            this.finalOperator = this.newScan(this.startTableName);
 
             this.addJoins();
             this.addSelects();
             this.addGroupBy();
-            this.addProjects();
+            if (this.compiled && this.finalOperator instanceof SequentialScanOperator) {
+                PipelineOperator pipeline = new PipelineOperator((SequentialScanOperator) this.finalOperator,
+                        this.projectColumns, this.hasCount, this.averageColumnName, this.sumColumnName);
+                pipeline.setNumWorkers(this.numWorkers);
+                // Compiling a query must not change the records it produces.
+                assert pipeline.getOutputSchema().equals(
+                           this.interpretedSchema((SequentialScanOperator) this.finalOperator));
+                this.finalOperator = pipeline;
+            } else {
+                this.addProjects();
+            }
         }
+        this.addOrderByAndLimit();
+
+        if (hasGroupBy(this.finalOperator)) {
+            // Batches do not carry the group boundaries of a GroupByOperator.
+            return this.finalOperator.execute();
+        }
+        // The plan runs a batch at a time, and only the records of the
+        // result are decoded.
+        return QueryOperator.unpack(this.finalOperator.batchIterator());
+    }
 
-        return this.finalOperator.execute();
+    /**
+     * Returns whether there is a GroupByOperator among operator and its
+     * sources, above the joins of the plan.
+     */
+    private static boolean hasGroupBy(QueryOperator operator) throws QueryPlanException {
+        while (operator != null && !operator.isJoin()) {
+            if (operator.isGroupBy()) {
+                return true;
+            }
+            operator = operator.getSource();
+        }
+        return false;
     }
 
     /**
@@ -228,7 +354,9 @@ public class QueryPlan {
 
     /**
      * Gets all SELECT predicates for which there exists an index on the column
-     * referenced in that predicate for the given table.
+     * referenced in that predicate for the given table that can answer it: a
+     * B+ tree index for any predicate but NOT_EQUALS, or a hash index for an
+     * EQUALS predicate.
      *
      * @return an ArrayList of SELECT predicates
      */
@@ -236,10 +364,7 @@ public class QueryPlan {
         List<Integer> selectIndices = new ArrayList<Integer>();
 
         for (int i = 0; i < this.selectColumnNames.size(); i++) {
-            String column = this.selectColumnNames.get(i);
-
-            if (this.transaction.indexExists(table, column) &&
-                    this.selectOperators.get(i) != PredicateOperator.NOT_EQUALS) {
+            if (this.isIndexEligible(table, i)) {
                 selectIndices.add(i);
             }
         }
@@ -247,6 +372,57 @@ public class QueryPlan {
         return selectIndices;
     }
 
+    /**
+     * Returns whether an index on the column of the i-th SELECT predicate of
+     * the given table can answer that predicate.
+     */
+    private boolean isIndexEligible(String table, int i) {
+        String column = this.selectColumnNames.get(i);
+        PredicateOperator operator = this.selectOperators.get(i);
+        if (operator == PredicateOperator.EQUALS && this.transaction.hashIndexExists(table, column)) {
+            return true;
+        }
+        return this.transaction.indexExists(table, column) && operator != PredicateOperator.NOT_EQUALS;
+    }
+
+    /**
+     * Gets, for each composite index on the given table, the SELECT predicates
+     * that a prefix lookup on that index can answer: EQUALS predicates on the
+     * leading columns of the index, in key order. Composite indexes whose first
+     * column has no EQUALS predicate are left out.
+     *
+     * @return a mapping of the columns of each usable composite index to the
+     * indices of the SELECT predicates on its leading columns
+     */
+    private Map<List<String>, List<Integer>> getEligibleCompositeIndexColumns(String table) {
+        Map<List<String>, List<Integer>> eligible = new HashMap<List<String>, List<Integer>>();
+        for (List<String> indexColumns : this.transaction.getCompositeIndices(table)) {
+            List<Integer> selectIndices = new ArrayList<Integer>();
+            for (String indexColumn : indexColumns) {
+                int match = -1;
+                for (int i = 0; i < this.selectColumnNames.size(); i++) {
+                    String column = this.selectColumnNames.get(i);
+                    if (this.selectOperators.get(i) == PredicateOperator.EQUALS
+                            && !selectIndices.contains(i)
+                            && (column.equals(indexColumn) || column.equals(table + "." + indexColumn))) {
+                        match = i;
+                        break;
+                    }
+                }
+                if (match == -1) {
+                    break;
+                }
+                selectIndices.add(match);
+            }
+
+            if (!selectIndices.isEmpty()) {
+                eligible.put(indexColumns, selectIndices);
+            }
+        }
+
+        return eligible;
+    }
+
     /**
      * Gets all columns for which there exists an index for that table
      *
@@ -355,6 +531,7 @@ public class QueryPlan {
         List<QueryOperator> allJoins = new ArrayList<QueryOperator>();
         allJoins.add(new SNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
         allJoins.add(new BNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
+        allJoins.add(new GraceHashOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
 
         for (QueryOperator join : allJoins) {
             int joinCost = join.estimateIOCost();
@@ -449,65 +626,228 @@ public class QueryPlan {
         if (this.selectColumnNames.size() > 0
                 && this.groupByColumn == null
                 && this.joinTableNames.size() == 0) {
-            int index = 0;
-            for (String column : selectColumnNames) {
-                if (this.transaction.indexExists(this.startTableName, column)) {
-                    if (this.selectOperators.get(index) != PredicateOperator.NOT_EQUALS) {
-                        return column;
-                    }
+            for (int i = 0; i < this.selectColumnNames.size(); i++) {
+                if (this.isIndexEligible(this.startTableName, i)) {
+                    return this.selectColumnNames.get(i);
                 }
-
-                index++;
             }
         }
 
         return null;
     }
 
+    private Pair<List<String>, List<Integer>> checkCompositeIndexEligible() {
+        Pair<List<String>, List<Integer>> best = null;
+        if (this.selectColumnNames.size() > 0
+                && this.groupByColumn == null
+                && this.joinTableNames.size() == 0) {
+            Map<List<String>, List<Integer>> eligible = this.getEligibleCompositeIndexColumns(this.startTableName);
+            for (Map.Entry<List<String>, List<Integer>> e : eligible.entrySet()) {
+                if (best == null || e.getValue().size() > best.getSecond().size()) {
+                    best = new Pair<>(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private void generateCompositeIndexPlan(List<String> indexColumns,
+                                            List<Integer> selectIndices) throws QueryPlanException, DatabaseException {
+        List<DataBox> prefix = new ArrayList<DataBox>();
+        for (int i : selectIndices) {
+            prefix.add(this.selectDataBoxes.get(i));
+        }
+
+        List<Integer> used = new ArrayList<Integer>(selectIndices);
+        Collections.sort(used, Collections.reverseOrder());
+        for (int i : used) {
+            this.selectColumnNames.remove(i);
+            this.selectOperators.remove(i);
+            this.selectDataBoxes.remove(i);
+        }
+
+        if (this.isCoveredByIndex(indexColumns)) {
+            this.finalOperator = new IndexOnlyScanOperator(this.transaction, this.startTableName,
+                    indexColumns, prefix);
+        } else {
+            this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumns,
+                    prefix);
+        }
+
+        this.addSelects();
+        this.addProjects();
+    }
+
     private void generateIndexPlan(String indexColumn) throws QueryPlanException, DatabaseException {
-        int selectIndex = this.selectColumnNames.indexOf(indexColumn);
+        // The first predicate on indexColumn that its index can answer (a hash
+        // index can only answer EQUALS predicates).
+        int selectIndex = -1;
+        for (int i = 0; i < this.selectColumnNames.size() && selectIndex == -1; i++) {
+            if (this.selectColumnNames.get(i).equals(indexColumn)
+                    && this.isIndexEligible(this.startTableName, i)) {
+                selectIndex = i;
+            }
+        }
         PredicateOperator operator = this.selectOperators.get(selectIndex);
         DataBox value = this.selectDataBoxes.get(selectIndex);
 
-        this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumn,
-                operator,
-                value);
-
         this.selectColumnNames.remove(selectIndex);
         this.selectOperators.remove(selectIndex);
         this.selectDataBoxes.remove(selectIndex);
 
+        // Hash indexes store no included columns, so only a B+ tree index can
+        // cover a query.
+        if (this.transaction.indexExists(this.startTableName, indexColumn)
+                && this.isCoveredByIndex(Collections.singletonList(indexColumn))) {
+            this.finalOperator = new IndexOnlyScanOperator(this.transaction, this.startTableName, indexColumn,
+                    operator,
+                    value);
+        } else {
+            this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumn,
+                    operator,
+                    value);
+        }
+
         this.addSelects();
         this.addProjects();
     }
 
+    /**
+     * Returns whether the index on indexColumns of the start table holds every
+     * column this query reads (the projected columns, the columns of the
+     * remaining SELECT predicates, and the SUM and AVERAGE columns) as a key or
+     * included column, so that the query can be answered by an
+     * IndexOnlyScanOperator without fetching any records from the table.
+     * Queries without an explicit projection read every column, and are never
+     * covered since the index-only scan does not produce the table's schema.
+     */
+    private boolean isCoveredByIndex(List<String> indexColumns) throws DatabaseException {
+        if (this.projectColumns.isEmpty() && !this.hasCount) {
+            return false;
+        }
+
+        Set<String> available = new HashSet<String>();
+        for (String column : indexColumns) {
+            available.add(this.unqualifiedColumnName(column));
+        }
+        for (String column : this.transaction.getIndexIncludedColumns(this.startTableName, indexColumns)) {
+            available.add(column);
+        }
+
+        List<String> required = new ArrayList<String>();
+        required.addAll(this.projectColumns);
+        required.addAll(this.selectColumnNames);
+        for (Predicate predicate : this.selectPredicates) {
+            required.addAll(predicate.getColumns());
+        }
+        if (this.sumColumnName != null) {
+            required.add(this.sumColumnName);
+        }
+        if (this.averageColumnName != null) {
+            required.add(this.averageColumnName);
+        }
+        for (String column : required) {
+            if (!available.contains(this.unqualifiedColumnName(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Strips the start table's name (or alias) from a column name, if present.
+     */
+    private String unqualifiedColumnName(String column) {
+        if (column.startsWith(this.startTableName + ".")) {
+            return column.substring(this.startTableName.length() + 1);
+        }
+        return column;
+    }
+
+    /**
+     * Returns the output schema of the projection addProjects would add to scan, or the schema
+     * of scan if it would add none.
+     */
+    private Schema interpretedSchema(SequentialScanOperator scan) throws QueryPlanException {
+        if (this.projectColumns.isEmpty() && !this.hasCount && this.sumColumnName == null
+                && this.averageColumnName == null) {
+            return scan.getOutputSchema();
+        }
+        // ProjectOperator appends its aggregates to the columns it is given.
+        return new ProjectOperator(scan, new ArrayList<String>(this.projectColumns), this.hasCount,
+                                   this.averageColumnName, this.sumColumnName).getOutputSchema();
+    }
+
+    private SequentialScanOperator newScan(String tableName) throws QueryPlanException, DatabaseException {
+        SequentialScanOperator scanOperator = new SequentialScanOperator(this.transaction, tableName);
+        scanOperator.setNumWorkers(this.numWorkers);
+        return scanOperator;
+    }
+
     private void addJoins() throws QueryPlanException, DatabaseException {
         int index = 0;
 
         for (String joinTable : this.joinTableNames) {
-            SequentialScanOperator scanOperator = new SequentialScanOperator(this.transaction, joinTable);
+            SequentialScanOperator scanOperator = this.newScan(joinTable);
 
-            SNLJOperator joinOperator = new SNLJOperator(finalOperator, scanOperator,
+            GraceHashOperator joinOperator = new GraceHashOperator(finalOperator, scanOperator,
                     this.joinLeftColumnNames.get(index), this.joinRightColumnNames.get(index),
-                    this.transaction); //changed from new JoinOperator
+                    this.transaction);
+            joinOperator.setNumWorkers(this.numWorkers);
 
             this.finalOperator = joinOperator;
             index++;
         }
     }
 
+    /**
+     * Applies the SELECT predicates to this.finalOperator. Comparisons on a
+     * table are evaluated by its scan, in the order an AND of them would be
+     * (see Predicate); all the other predicates are conjuncts of a single
+     * FilterOperator, which orders them for evaluation.
+     */
     private void addSelects() throws QueryPlanException, DatabaseException {
-        int index = 0;
+        List<Predicate> conjuncts = new ArrayList<Predicate>();
 
-        for (String selectColumn : this.selectColumnNames) {
-            PredicateOperator operator = this.selectOperators.get(index);
-            DataBox value = this.selectDataBoxes.get(index);
+        if (this.finalOperator instanceof SequentialScanOperator) {
+            // Predicates directly on a table are evaluated by its scan.
+            this.pushDownSelects((SequentialScanOperator) this.finalOperator);
+        } else {
+            for (int i = 0; i < this.selectColumnNames.size(); i++) {
+                conjuncts.add(Predicate.compare(this.selectColumnNames.get(i), this.selectOperators.get(i),
+                                                this.selectDataBoxes.get(i)));
+            }
+        }
+        conjuncts.addAll(this.selectPredicates);
 
-            SelectOperator selectOperator = new SelectOperator(this.finalOperator, selectColumn,
-                    operator, value);
+        if (conjuncts.size() == 1) {
+            this.finalOperator = new FilterOperator(this.finalOperator, conjuncts.get(0));
+        } else if (conjuncts.size() > 1) {
+            this.finalOperator = new FilterOperator(this.finalOperator, Predicate.and(conjuncts));
+        }
+    }
 
-            this.finalOperator = selectOperator;
-            index++;
+    /**
+     * Pushes the comparisons of the SELECT predicates into scan, cheapest to
+     * evaluate per record they reject first (see Predicate.conjunctRank), with
+     * their selectivities estimated as a FilterOperator over scan would.
+     */
+    private void pushDownSelects(SequentialScanOperator scan) throws QueryPlanException {
+        Schema schema = scan.getOutputSchema();
+        TableStats stats = scan.getStats();
+        List<Integer> order = new ArrayList<Integer>();
+        List<Double> ranks = new ArrayList<Double>();
+        for (int i = 0; i < this.selectColumnNames.size(); i++) {
+            Predicate comparison = Predicate.compare(this.selectColumnNames.get(i), this.selectOperators.get(i),
+                                                     this.selectDataBoxes.get(i));
+            order.add(i);
+            ranks.add(Predicate.conjunctRank(comparison.bind(scan, schema, stats)));
+        }
+        order.sort(Comparator.comparingDouble(ranks::get));
+        for (int i : order) {
+            scan.pushDownPredicate(this.selectColumnNames.get(i), this.selectOperators.get(i),
+                                   this.selectDataBoxes.get(i));
         }
     }
 
@@ -518,6 +858,17 @@ public class QueryPlan {
                 throw new QueryPlanException("Can only project columns specified in the GROUP BY clause.");
             }
 
+            if (this.hasCount || this.sumColumnName != null || this.averageColumnName != null) {
+                // Aggregates over groups are computed in a single hash table,
+                // instead of a GroupByOperator and a ProjectOperator.
+                HashAggregateOperator aggregateOperator = new HashAggregateOperator(this.finalOperator,
+                        this.transaction, this.groupByColumn, this.projectColumns, this.hasCount,
+                        this.averageColumnName, this.sumColumnName);
+                aggregateOperator.setNumWorkers(this.numWorkers);
+                this.finalOperator = aggregateOperator;
+                return;
+            }
+
             GroupByOperator groupByOperator = new GroupByOperator(this.finalOperator, this.transaction,
                     this.groupByColumn);
 
@@ -526,6 +877,10 @@ public class QueryPlan {
     }
 
     private void addProjects() throws QueryPlanException, DatabaseException {
+        if (this.finalOperator instanceof HashAggregateOperator) {
+            // The aggregate operator already projects its groups.
+            return;
+        }
         if (!this.projectColumns.isEmpty() || this.hasCount || this.sumColumnName != null
                 || this.averageColumnName != null) {
             ProjectOperator projectOperator = new ProjectOperator(this.finalOperator, this.projectColumns,
@@ -535,6 +890,19 @@ public class QueryPlan {
         }
     }
 
+    /**
+     * Sorts the output of the query if it has an order by column, keeping only the first limit records
+     * with a Top-N sort if it also has a limit, and otherwise stops the query after limit records.
+     */
+    private void addOrderByAndLimit() throws QueryPlanException, DatabaseException {
+        if (this.orderByColumn != null) {
+            this.finalOperator = new OrderByOperator(this.finalOperator, this.transaction, this.orderByColumn,
+                    this.orderByDirection, this.limit);
+        } else if (this.limit != -1) {
+            this.finalOperator = new LimitOperator(this.finalOperator, this.limit);
+        }
+    }
+
     /**
      * Given the map of table names and the optimal single access joins for each table,
      * finds any remaining interesting orders for the tables.
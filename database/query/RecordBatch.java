@@ -0,0 +1,287 @@
+package edu.berkeley.cs186.database.query;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+
+/**
+ * A RecordBatch holds up to a fixed number of rows column by column, for
+ * operators that process their input a batch at a time (see
+ * QueryOperator#batchIterator) instead of a record at a time.
+ *
+ * Integer, float and boolean columns are stored as arrays of primitives, so
+ * that an operator can evaluate an expression over a whole column in one
+ * tight loop; other columns are stored as arrays of DataBoxes.
+ *
+ * Rows are filtered without moving any data: a batch may have a selection
+ * vector that lists, in order, the rows of the batch that are still in it.
+ * Operators should iterate over a batch as
+ *
+ *   for (int i = 0; i < batch.size(); i++) {
+ *       int row = batch.getRow(i);
+ *       ...
+ *   }
+ *
+ * and look up columns by row.
+ */
+public class RecordBatch {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private Schema schema;
+    private List<Type> types;
+    private int capacity;
+    // One array of capacity values for every column: an int[], float[] or
+    // boolean[] for the primitive types, and a DataBox[] otherwise.
+    private Object[] columns;
+    // The number of rows in the batch, including the ones not selected.
+    private int numRows;
+    // The rows selected, or null if every row is.
+    private int[] selection;
+    private int size;
+
+    public RecordBatch(Schema schema) {
+        this(schema, DEFAULT_CAPACITY);
+    }
+
+    public RecordBatch(Schema schema, int capacity) {
+        this.schema = schema;
+        this.types = schema.getFieldTypes();
+        this.capacity = capacity;
+        this.columns = new Object[this.types.size()];
+        for (int i = 0; i < this.columns.length; i++) {
+            switch (this.types.get(i).getTypeId()) {
+            case INT:
+                this.columns[i] = new int[capacity];
+                break;
+            case FLOAT:
+                this.columns[i] = new float[capacity];
+                break;
+            case BOOL:
+                this.columns[i] = new boolean[capacity];
+                break;
+            default:
+                this.columns[i] = new DataBox[capacity];
+                break;
+            }
+        }
+    }
+
+    private RecordBatch(Schema schema, int capacity, Object[] columns, int numRows, int[] selection,
+                        int size) {
+        this.schema = schema;
+        this.types = schema.getFieldTypes();
+        this.capacity = capacity;
+        this.columns = columns;
+        this.numRows = numRows;
+        this.selection = selection;
+        this.size = size;
+    }
+
+    public Schema getSchema() {
+        return this.schema;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of rows selected.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean isFull() {
+        return this.numRows == this.capacity;
+    }
+
+    /**
+     * Returns the number of rows in the batch, selected or not. Column arrays
+     * hold valid values for rows 0 to getNumRows() - 1.
+     */
+    public int getNumRows() {
+        return this.numRows;
+    }
+
+    /**
+     * Returns the row of the i-th selected row.
+     */
+    public int getRow(int i) {
+        return this.selection == null ? i : this.selection[i];
+    }
+
+    /**
+     * Returns the selection vector, or null if every row is selected.
+     */
+    public int[] getSelection() {
+        return this.selection;
+    }
+
+    /**
+     * Selects the first SIZE rows listed in SELECTION, which must be
+     * increasing.
+     */
+    public void setSelection(int[] selection, int size) {
+        this.selection = selection;
+        this.size = size;
+    }
+
+    public int[] getIntColumn(int column) {
+        return (int[]) this.columns[column];
+    }
+
+    public float[] getFloatColumn(int column) {
+        return (float[]) this.columns[column];
+    }
+
+    public boolean[] getBoolColumn(int column) {
+        return (boolean[]) this.columns[column];
+    }
+
+    /**
+     * Returns a column that is not stored as primitives.
+     */
+    public DataBox[] getColumn(int column) {
+        return (DataBox[]) this.columns[column];
+    }
+
+    public DataBox getValue(int row, int column) {
+        Object values = this.columns[column];
+        switch (this.types.get(column).getTypeId()) {
+        case INT:
+            return new IntDataBox(((int[]) values)[row]);
+        case FLOAT:
+            return new FloatDataBox(((float[]) values)[row]);
+        case BOOL:
+            return new BoolDataBox(((boolean[]) values)[row]);
+        default:
+            return ((DataBox[]) values)[row];
+        }
+    }
+
+    public Record getRecord(int row) {
+        List<DataBox> values = new ArrayList<>(this.columns.length);
+        for (int i = 0; i < this.columns.length; i++) {
+            values.add(getValue(row, i));
+        }
+        return new Record(values);
+    }
+
+    /**
+     * Appends a row with the values of RECORD, and selects it. A batch with
+     * a selection vector cannot be appended to.
+     */
+    public void addRecord(Record record) {
+        assert(this.selection == null && !isFull());
+        List<DataBox> values = record.getValues();
+        int row = this.numRows;
+        for (int i = 0; i < this.columns.length; i++) {
+            DataBox value = values.get(i);
+            switch (this.types.get(i).getTypeId()) {
+            case INT:
+                ((int[]) this.columns[i])[row] = value.getInt();
+                break;
+            case FLOAT:
+                ((float[]) this.columns[i])[row] = value.getFloat();
+                break;
+            case BOOL:
+                ((boolean[]) this.columns[i])[row] = value.getBool();
+                break;
+            default:
+                ((DataBox[]) this.columns[i])[row] = value;
+                break;
+            }
+        }
+        this.numRows++;
+        this.size++;
+    }
+
+    /**
+     * Appends a row with the values of the record at offset OFFSET of BUF,
+     * whose fields are at the offsets of the schema (see RecordReader), and
+     * selects it. Integers, floats and booleans are copied straight into
+     * their columns, without being decoded into DataBoxes.
+     */
+    public void addRow(Buffer buf, int offset) {
+        assert(this.selection == null && !isFull());
+        int row = this.numRows;
+        for (int i = 0; i < this.columns.length; i++) {
+            int at = offset + this.schema.getOffset(i);
+            switch (this.types.get(i).getTypeId()) {
+            case INT:
+                ((int[]) this.columns[i])[row] = buf.getInt(at);
+                break;
+            case FLOAT:
+                ((float[]) this.columns[i])[row] = buf.getFloat(at);
+                break;
+            case BOOL:
+                ((boolean[]) this.columns[i])[row] = buf.get(at) == 1;
+                break;
+            default:
+                buf.position(at);
+                ((DataBox[]) this.columns[i])[row] = DataBox.fromBytes(buf, this.types.get(i));
+                break;
+            }
+        }
+        this.numRows++;
+        this.size++;
+    }
+
+    /**
+     * Removes every row, so that the batch can be filled again.
+     */
+    public void clear() {
+        this.numRows = 0;
+        this.selection = null;
+        this.size = 0;
+    }
+
+    /**
+     * Returns a batch with the columns COLUMNS of this one, in that order,
+     * and the schema SCHEMA. The batches share their column arrays and
+     * selection, so no values are copied.
+     */
+    public RecordBatch project(Schema schema, List<Integer> columns) {
+        Object[] projected = new Object[columns.size()];
+        for (int i = 0; i < projected.length; i++) {
+            projected[i] = this.columns[columns.get(i)];
+        }
+        return new RecordBatch(schema, this.capacity, projected, this.numRows, this.selection,
+                               this.size);
+    }
+
+    /**
+     * Returns an iterator over the selected rows of the batch, as records.
+     */
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < RecordBatch.this.size;
+            }
+
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getRecord(getRow(i++));
+            }
+        };
+    }
+}
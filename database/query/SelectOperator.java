@@ -5,6 +5,7 @@ import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.MarkerRecord;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
@@ -72,6 +73,127 @@ public class SelectOperator extends QueryOperator {
 
     public Iterator<Record> iterator() throws QueryPlanException, DatabaseException { return new SelectIterator(); }
 
+    @Override
+    public Iterator<RecordBatch> batchIterator() throws QueryPlanException, DatabaseException {
+        return new SelectBatchIterator();
+    }
+
+    /**
+     * Returns whether the result of comparing a value to this.value satisfies
+     * the predicate.
+     */
+    private boolean matches(int comparison) {
+        switch (this.operator) {
+        case EQUALS:
+            return comparison == 0;
+        case NOT_EQUALS:
+            return comparison != 0;
+        case LESS_THAN:
+            return comparison < 0;
+        case LESS_THAN_EQUALS:
+            return comparison <= 0;
+        case GREATER_THAN:
+            return comparison > 0;
+        case GREATER_THAN_EQUALS:
+            return comparison >= 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * An iterator over the batches of the source that narrows the selection
+     * vector of each batch to the rows that satisfy the predicate, dropping
+     * batches with no rows left.
+     */
+    private class SelectBatchIterator implements Iterator<RecordBatch> {
+        private Iterator<RecordBatch> sourceIterator;
+        private RecordBatch nextBatch;
+
+        public SelectBatchIterator() throws QueryPlanException, DatabaseException {
+            this.sourceIterator = SelectOperator.this.getSource().batchIterator();
+            this.nextBatch = null;
+        }
+
+        public boolean hasNext() {
+            while (this.nextBatch == null && this.sourceIterator.hasNext()) {
+                RecordBatch batch = this.sourceIterator.next();
+                filter(batch);
+                if (!batch.isEmpty()) {
+                    this.nextBatch = batch;
+                }
+            }
+            return this.nextBatch != null;
+        }
+
+        public RecordBatch next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+
+        /**
+         * Selects the rows of BATCH that satisfy the predicate. Integer and
+         * float columns compared to a value of their own type are filtered
+         * in a branch-free loop over the column's primitives; any other
+         * column compares DataBoxes, as SelectIterator does.
+         */
+        private void filter(RecordBatch batch) {
+            int column = SelectOperator.this.columnIndex;
+            TypeId typeId = batch.getSchema().getFieldTypes().get(column).getTypeId();
+            int size = batch.size();
+            // The selection vector may be narrowed in place: row i of the
+            // result is never written before row i of the input is read.
+            int[] selection = batch.getSelection();
+            if (selection == null) {
+                selection = new int[batch.getCapacity()];
+            }
+            // Whether a comparison of -1, 0 or 1 satisfies the predicate.
+            boolean[] accept = {matches(-1), matches(0), matches(1)};
+            int selected = 0;
+            if (typeId == TypeId.INT && value.type().getTypeId() == TypeId.INT) {
+                int[] values = batch.getIntColumn(column);
+                int v = value.getInt();
+                for (int i = 0; i < size; i++) {
+                    int row = batch.getRow(i);
+                    selection[selected] = row;
+                    selected += accept[Integer.compare(values[row], v) + 1] ? 1 : 0;
+                }
+            } else if (typeId == TypeId.FLOAT && value.type().getTypeId() == TypeId.FLOAT) {
+                float[] values = batch.getFloatColumn(column);
+                float v = value.getFloat();
+                for (int i = 0; i < size; i++) {
+                    int row = batch.getRow(i);
+                    selection[selected] = row;
+                    selected += accept[Float.compare(values[row], v) + 1] ? 1 : 0;
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    int row = batch.getRow(i);
+                    DataBox v = batch.getValue(row, column);
+                    boolean match;
+                    if (SelectOperator.this.operator == QueryPlan.PredicateOperator.EQUALS) {
+                        match = v.equals(value);
+                    } else if (SelectOperator.this.operator == QueryPlan.PredicateOperator.NOT_EQUALS) {
+                        match = !v.equals(value);
+                    } else {
+                        match = accept[Integer.signum(v.compareTo(value)) + 1];
+                    }
+                    selection[selected] = row;
+                    selected += match ? 1 : 0;
+                }
+            }
+            batch.setSelection(selection, selected);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * An implementation of Iterator that provides an iterator interface for this operator.
      */
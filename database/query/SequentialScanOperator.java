@@ -1,16 +1,30 @@
 package edu.berkeley.cs186.database.query;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordPredicate;
+import edu.berkeley.cs186.database.table.RecordReader;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 public class SequentialScanOperator extends QueryOperator {
     private Database.Transaction transaction;
     private String tableName;
+    // The predicates pushed into the scan (see pushDownPredicate).
+    private RecordPredicate predicate;
+    private List<Integer> predicateColumns;
+    private List<QueryPlan.PredicateOperator> predicateOperators;
+    private List<DataBox> predicateValues;
+    private int numWorkers = 1;
 
     /**
      * Creates a new SequentialScanOperator that provides an iterator on all tuples in a table.
@@ -29,6 +43,10 @@ public class SequentialScanOperator extends QueryOperator {
         this.transaction = transaction;
         this.tableName = tableName;
         this.setOutputSchema(this.computeSchema());
+        this.predicate = new RecordPredicate(this.getOutputSchema());
+        this.predicateColumns = new ArrayList<Integer>();
+        this.predicateOperators = new ArrayList<QueryPlan.PredicateOperator>();
+        this.predicateValues = new ArrayList<DataBox>();
         /*
         this.stats = this.estimateStats();
         this.cost = this.estimateIOCost();
@@ -39,10 +57,148 @@ public class SequentialScanOperator extends QueryOperator {
         return this.tableName;
     }
 
+    /**
+     * Only scan the records whose columnName column fulfills the predicate relative to value, as if
+     * the scan were the source of a SelectOperator. Predicates on integer, float and boolean columns
+     * are evaluated on the bytes of each record, so records that fail them are never decoded.
+     *
+     * @param columnName the name of the column to evaluate the predicate on
+     * @param operator the actual comparator
+     * @param value the value to compare against
+     * @throws QueryPlanException
+     */
+    public void pushDownPredicate(String columnName, QueryPlan.PredicateOperator operator,
+                                  DataBox value) throws QueryPlanException {
+        columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
+        int columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
+        this.predicate.add(columnIndex, operator, value);
+        this.predicateColumns.add(columnIndex);
+        this.predicateOperators.add(operator);
+        this.predicateValues.add(value);
+    }
+
+    /**
+     * Sets the number of workers that read the pages of the table at once (see MorselExecutor).
+     * Records are produced in the same order by any number of workers.
+     *
+     * @param numWorkers the number of workers
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Returns the morsels of a scan of the table by several workers, its data pages, after locking
+     * the whole table; or null if the scan is not worth running in parallel, or can not be.
+     * Read-only transactions read their snapshot of the table rather than its pages, so their
+     * scans always run on a single thread.
+     *
+     * @throws DatabaseException
+     */
+    public List<Page> getMorsels() throws DatabaseException {
+        if (this.transaction.isReadOnly() || this.transaction.getNumDataPages(this.tableName) < 2) {
+            return null;
+        }
+        return this.transaction.getDataPages(this.tableName);
+    }
+
+    /**
+     * Returns what reader reads from the scanned records on morsel, one of the pages returned by
+     * getMorsels.
+     *
+     * @throws DatabaseException
+     */
+    public <T> List<T> readMorsel(Page morsel, RecordReader<T> reader) throws DatabaseException {
+        return this.transaction.readPage(this.tableName, morsel, this.predicate, reader);
+    }
+
+    /**
+     * Returns the scanned records on morsel, one of the pages returned by getMorsels.
+     *
+     * @throws DatabaseException
+     */
+    public List<Record> readMorsel(Page morsel) throws DatabaseException {
+        Schema schema = this.getOutputSchema();
+        return this.readMorsel(morsel, (buf, offset) -> {
+            buf.position(offset);
+            return Record.fromBytes(buf, schema);
+        });
+    }
+
     public Iterator<Record> iterator() throws DatabaseException {
+        MorselExecutor executor = new MorselExecutor(this.numWorkers);
+        List<Page> morsels = executor.isParallel() ? this.getMorsels() : null;
+        if (morsels != null) {
+            return executor.runOrdered(morsels.size(), morsel -> this.readMorsel(morsels.get(morsel)));
+        }
+        if (!this.predicate.isEmpty()) {
+            return this.transaction.getRecordIterator(tableName, this.predicate);
+        }
         return this.transaction.getRecordIterator(tableName);
     }
 
+    /**
+     * Fills the batches straight from the bytes of the scanned records (see RecordBatch.addRow), so
+     * the values of integer, float and boolean columns are never decoded. With several workers,
+     * every morsel is read into batches of its own, and the batches come out in the order of the
+     * table.
+     */
+    @Override
+    public Iterator<RecordBatch> batchIterator() throws DatabaseException {
+        Schema schema = this.getOutputSchema();
+        MorselExecutor executor = new MorselExecutor(this.numWorkers);
+        List<Page> morsels = executor.isParallel() ? this.getMorsels() : null;
+        if (morsels != null) {
+            return executor.runOrdered(morsels.size(), morsel -> {
+                BatchReader reader = new BatchReader(schema);
+                List<RecordBatch> batches = this.readMorsel(morsels.get(morsel), reader);
+                RecordBatch last = reader.flush();
+                if (last != null) {
+                    batches.add(last);
+                }
+                return batches;
+            });
+        }
+        BatchReader reader = new BatchReader(schema);
+        Iterator<RecordBatch> full = this.iterator(reader);
+        return new Iterator<RecordBatch>() {
+            private RecordBatch last = null;
+
+            public boolean hasNext() {
+                if (full.hasNext()) {
+                    return true;
+                }
+                if (this.last == null) {
+                    this.last = reader.flush();
+                }
+                return this.last != null;
+            }
+
+            public RecordBatch next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (full.hasNext()) {
+                    return full.next();
+                }
+                RecordBatch batch = this.last;
+                this.last = null;
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over what reader reads from the bytes of the scanned records, rather than
+     * the decoded records (see Table.iterator(BaseTransaction, RecordPredicate, RecordReader)).
+     *
+     * @param reader the reader to apply to every record that satisfies the pushed down predicates
+     * @throws DatabaseException
+     */
+    public <T> Iterator<T> iterator(RecordReader<T> reader) throws DatabaseException {
+        return this.transaction.getRecordIterator(tableName, this.predicate, reader);
+    }
+
     public Schema computeSchema() throws QueryPlanException {
         try {
             return this.transaction.getFullyQualifiedSchema(this.tableName);
@@ -53,7 +209,8 @@ public class SequentialScanOperator extends QueryOperator {
 
     public String str() {
         return "type: " + this.getType() +
-               "\ntable: " + this.tableName;
+               "\ntable: " + this.tableName +
+               (this.predicate.isEmpty() ? "" : "\npredicate: " + this.predicate);
     }
 
     /**
@@ -62,11 +219,17 @@ public class SequentialScanOperator extends QueryOperator {
      * @return estimated TableStats
      */
     public TableStats estimateStats() throws QueryPlanException {
+        TableStats stats;
         try {
-            return this.transaction.getStats(this.tableName);
+            stats = this.transaction.getStats(this.tableName);
         } catch (DatabaseException de) {
             throw new QueryPlanException(de);
         }
+        for (int i = 0; i < this.predicateColumns.size(); i++) {
+            stats = stats.copyWithPredicate(this.predicateColumns.get(i), this.predicateOperators.get(i),
+                                            this.predicateValues.get(i));
+        }
+        return stats;
     }
 
     public int estimateIOCost() throws QueryPlanException {
@@ -76,4 +239,41 @@ public class SequentialScanOperator extends QueryOperator {
             throw new QueryPlanException(de);
         }
     }
+
+    /**
+     * A reader that adds every record to a batch, and reads the batch once it is full. Tables
+     * read a page at a time, so the records are added in the order of the table, but before the
+     * batches they fill are read.
+     */
+    private static class BatchReader implements RecordReader<RecordBatch> {
+        private Schema schema;
+        private RecordBatch batch;
+
+        BatchReader(Schema schema) {
+            this.schema = schema;
+            this.batch = new RecordBatch(schema);
+        }
+
+        public RecordBatch read(Buffer buf, int offset) {
+            this.batch.addRow(buf, offset);
+            if (!this.batch.isFull()) {
+                return null;
+            }
+            RecordBatch full = this.batch;
+            this.batch = new RecordBatch(this.schema);
+            return full;
+        }
+
+        /**
+         * Returns the batch that is not full yet, or null if it is empty.
+         */
+        RecordBatch flush() {
+            if (this.batch.isEmpty()) {
+                return null;
+            }
+            RecordBatch last = this.batch;
+            this.batch = new RecordBatch(this.schema);
+            return last;
+        }
+    }
 }
@@ -10,15 +10,13 @@ import java.util.NoSuchElementException;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.table.Record;
-import edu.berkeley.cs186.database.table.RecordIterator;
 import edu.berkeley.cs186.database.table.Schema;
 
 public class SortMergeOperator extends JoinOperator {
-    SNLJOperator inner;
-
     public SortMergeOperator(QueryOperator leftSource,
                              QueryOperator rightSource,
                              String leftColumnName,
@@ -30,15 +28,10 @@ public class SortMergeOperator extends JoinOperator {
         this.stats = this.estimateStats();
         this.cost = this.estimateIOCost();
         */
-        this.inner = new SNLJOperator(leftSource, rightSource, leftColumnName, rightColumnName,
-                                      transaction);
     }
 
     public Iterator<Record> iterator() throws QueryPlanException, DatabaseException {
-        return this.inner.iterator();
-        /*
         return new SortMergeIterator();
-        */
     }
 
     public int estimateIOCost() throws QueryPlanException {
@@ -58,24 +51,74 @@ public class SortMergeOperator extends JoinOperator {
      *
      */
     private class SortMergeIterator extends JoinIterator {
-        /**
-        * Some member variables are provided for guidance, but there are many possible solutions.
-        * You should implement the solution that's best for you, using any member variables you need.
-        * You're free to use these member variables, but you're not obligated to.
-        */
-
-        //private String leftTableName;
-        //private String rightTableName;
-        //private RecordIterator leftIterator;
-        //private RecordIterator rightIterator;
-        //private Record leftRecord;
-        //private Record nextRecord;
-        //private Record rightRecord;
-        //private boolean marked;
+        private BacktrackingIterator<Record> leftIterator;
+        private BacktrackingIterator<Record> rightIterator;
+        private Record leftRecord;
+        private Record rightRecord;
+        private Record nextRecord;
+        // Whether rightIterator is marked at the first right record with the
+        // key of leftRecord.
+        private boolean marked;
+        private LR_RecordComparator comparator = new LR_RecordComparator();
 
         public SortMergeIterator() throws QueryPlanException, DatabaseException {
             super();
-            throw new UnsupportedOperationException("TODO(hw3): implement");
+            SortOperator leftSort = new SortOperator(SortMergeOperator.this.getTransaction(),
+                    this.getLeftTableName(), SortMergeOperator.this.getLeftColumnIndex());
+            SortOperator rightSort = new SortOperator(SortMergeOperator.this.getTransaction(),
+                    this.getRightTableName(), SortMergeOperator.this.getRightColumnIndex());
+            this.leftIterator = leftSort.sortedIterator();
+            this.rightIterator = rightSort.sortedIterator();
+
+            this.leftRecord = this.leftIterator.hasNext() ? this.leftIterator.next() : null;
+            this.rightRecord = this.rightIterator.hasNext() ? this.rightIterator.next() : null;
+            this.marked = false;
+            this.nextRecord = this.fetchNextRecord();
+        }
+
+        /**
+         * Returns the next joined record, or null if there are none left.
+         * Each left record is joined with the group of right records with
+         * the same key, which is marked so that the next left record can
+         * rescan it.
+         */
+        private Record fetchNextRecord() {
+            while (this.leftRecord != null) {
+                if (!this.marked) {
+                    // Advance whichever side is behind until the keys match.
+                    while (this.rightRecord != null) {
+                        int c = this.comparator.compare(this.leftRecord, this.rightRecord);
+                        if (c == 0) {
+                            break;
+                        } else if (c < 0) {
+                            if (!this.leftIterator.hasNext()) {
+                                return null;
+                            }
+                            this.leftRecord = this.leftIterator.next();
+                        } else {
+                            this.rightRecord = this.rightIterator.hasNext() ? this.rightIterator.next() : null;
+                        }
+                    }
+                    if (this.rightRecord == null) {
+                        return null;
+                    }
+                    this.rightIterator.mark();
+                    this.marked = true;
+                }
+                if (this.rightRecord != null && this.comparator.compare(this.leftRecord, this.rightRecord) == 0) {
+                    List<DataBox> values = new ArrayList<>(this.leftRecord.getValues());
+                    values.addAll(this.rightRecord.getValues());
+                    this.rightRecord = this.rightIterator.hasNext() ? this.rightIterator.next() : null;
+                    return new Record(values);
+                }
+                // The left record has been joined with its whole group; the
+                // next left record may have the same key.
+                this.rightIterator.reset();
+                this.rightRecord = this.rightIterator.next();
+                this.leftRecord = this.leftIterator.hasNext() ? this.leftIterator.next() : null;
+                this.marked = false;
+            }
+            return null;
         }
 
         /**
@@ -84,7 +127,7 @@ public class SortMergeOperator extends JoinOperator {
          * @return true if this iterator has another record to yield, otherwise false
          */
         public boolean hasNext() {
-            throw new UnsupportedOperationException("TODO(hw3): implement");
+            return this.nextRecord != null;
         }
 
         /**
@@ -94,7 +137,12 @@ public class SortMergeOperator extends JoinOperator {
          * @throws NoSuchElementException if there are no more Records to yield
          */
         public Record next() {
-            throw new UnsupportedOperationException("TODO(hw3): implement");
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record nextRecord = this.nextRecord;
+            this.nextRecord = this.fetchNextRecord();
+            return nextRecord;
         }
 
         public void remove() {
@@ -2,21 +2,72 @@ package edu.berkeley.cs186.database.query;
 
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.RecordIterator;
 import edu.berkeley.cs186.database.table.Schema;
-import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.io.Page;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+/**
+ * SortOperator sorts a table with an external merge sort using
+ * numMemoryPages buffers.
+ *
+ * The initial runs are made by replacement selection: records are read into
+ * a heap of numMemoryPages - 2 pages, and the smallest record that can still
+ * extend the current run is written out each time a record is read, so that
+ * runs are about twice the size of memory on random input (and input that is
+ * already sorted becomes a single run). The runs are then merged
+ * numMemoryPages - 1 at a time with a tree of losers, which takes log2(k)
+ * comparisons per record to merge k runs.
+ *
+ * When sorting on a single column (see SortOperator(Database.Transaction,
+ * String, int)), each record's key is normalized into a 64-bit prefix that
+ * compares as an unsigned long in the same order as the keys, so most
+ * comparisons never look at the records. The prefix is exact for integer,
+ * float and boolean keys, and holds the first four characters of a string.
+ *
+ * A table that does not fit in memory is sorted by several workers at once
+ * (see setNumWorkers), which share the numMemoryPages buffers:
+ *
+ *   1. Run generation. The table is read into slices of memory / numWorkers
+ *      records, and each worker sorts a slice into a run of its own.
+ *   2. Merge. While there are more runs than the workers can merge in one
+ *      pass, groups of runs are merged at the same time. Then the key range
+ *      is divided into one range per worker at splitters sampled from the
+ *      runs, and each worker merges the records of its range from every run
+ *      into a run of its own, which it finds by binary search.
+ *
+ * The sorted output is then the concatenation of the runs of the ranges (see
+ * sortedIterator), so the last merge pass is done by every worker at once.
+ */
 public class SortOperator {
+    // The number of records sampled from the runs for each key range of
+    // the parallel merge.
+    private static final int SAMPLES_PER_RANGE = 32;
+
     private Database.Transaction transaction;
     private String tableName;
     private Comparator<Record> comparator;
     private Schema operatorSchema;
     private int numBuffers;
-    private String sortedTableName = null;
+    // The tables holding the sorted records, in order.
+    private List<String> sortedTableNames = null;
+    // The column the records are sorted on, or -1 if they are sorted with an
+    // arbitrary comparator.
+    private int columnIndex = -1;
+    private TypeId columnType;
+    // Whether the prefixes of two records are equal only if their keys are.
+    private boolean prefixIsKey = false;
+    private int numRecordsPerPage;
+    private int numWorkers = Runtime.getRuntime().availableProcessors();
 
     public SortOperator(Database.Transaction transaction, String tableName,
                         Comparator<Record> comparator) throws DatabaseException, QueryPlanException {
@@ -25,6 +76,29 @@ public class SortOperator {
         this.comparator = comparator;
         this.operatorSchema = this.computeSchema();
         this.numBuffers = this.transaction.getNumMemoryPages();
+        this.numRecordsPerPage = Table.computeNumRecordsPerPage(Page.pageSize, this.operatorSchema);
+    }
+
+    /**
+     * Creates a SortOperator that sorts the table tableName on the column
+     * columnIndex, comparing normalized key prefixes where it can.
+     */
+    public SortOperator(Database.Transaction transaction, String tableName,
+                        int columnIndex) throws DatabaseException, QueryPlanException {
+        this(transaction, tableName, Comparator.comparing((Record r) -> r.getValues().get(columnIndex)));
+        this.columnIndex = columnIndex;
+        this.columnType = this.operatorSchema.getFieldTypes().get(columnIndex).getTypeId();
+        this.prefixIsKey = this.columnType == TypeId.INT || this.columnType == TypeId.FLOAT ||
+                           this.columnType == TypeId.BOOL;
+    }
+
+    /**
+     * Sets the number of threads that sort a table that does not fit in
+     * memory; a sort with one worker is done by the calling thread alone.
+     * Defaults to the number of processors.
+     */
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = Math.max(numWorkers, 1);
     }
 
     public Schema computeSchema() throws QueryPlanException {
@@ -37,6 +111,11 @@ public class SortOperator {
 
     public class Run {
         String tempTableName;
+        // The data pages of the run in the order they were filled. A run is
+        // only ever appended to, so its i-th record is in slot
+        // i % numRecordsPerPage of page i / numRecordsPerPage.
+        private List<Integer> pageNums = new ArrayList<>();
+        private int numRecords = 0;
 
         public Run() throws DatabaseException {
             this.tempTableName = SortOperator.this.transaction.createTempTable(
@@ -44,7 +123,12 @@ public class SortOperator {
         }
 
         public void addRecord(List<DataBox> values) throws DatabaseException {
-            SortOperator.this.transaction.addRecord(this.tempTableName, values);
+            RecordId rid = SortOperator.this.transaction.addRecord(this.tempTableName, values);
+            if (this.numRecords % SortOperator.this.numRecordsPerPage == 0) {
+                this.pageNums.add(rid.getPageNum());
+            }
+            assert(rid.getEntryNum() == this.numRecords % SortOperator.this.numRecordsPerPage);
+            this.numRecords++;
         }
 
         public void addRecords(List<Record> records) throws DatabaseException {
@@ -57,9 +141,114 @@ public class SortOperator {
             return SortOperator.this.transaction.getRecordIterator(this.tempTableName);
         }
 
+        public int size() {
+            return this.numRecords;
+        }
+
+        /**
+         * Returns the i-th record of the run.
+         */
+        Record getRecord(int i) throws DatabaseException {
+            int numRecordsPerPage = SortOperator.this.numRecordsPerPage;
+            RecordId rid = new RecordId(this.pageNums.get(i / numRecordsPerPage),
+                                        (short) (i % numRecordsPerPage));
+            return SortOperator.this.transaction.getRecord(this.tempTableName, rid);
+        }
+
+        /**
+         * Returns an iterator over the records of the run from index FROM
+         * (inclusive) to index TO (exclusive).
+         */
+        Iterator<Record> iterator(int from, int to) {
+            return new Iterator<Record>() {
+                private int i = from;
+
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                public Record next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        return getRecord(i++);
+                    } catch (DatabaseException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
         public String tableName() {
             return this.tempTableName;
         }
+
+        /**
+         * Deletes the temp table of the run, once it has been merged.
+         */
+        void delete() {
+            SortOperator.this.transaction.deleteTempTable(this.tempTableName);
+        }
+    }
+
+    /**
+     * A record, the normalized prefix of its sort key, and (during
+     * replacement selection) the number of the run it goes in.
+     */
+    private static class SortEntry {
+        final long prefix;
+        final Record record;
+        int run;
+
+        SortEntry(long prefix, Record record) {
+            this.prefix = prefix;
+            this.record = record;
+        }
+    }
+
+    private SortEntry entry(Record record) {
+        return new SortEntry(prefix(record), record);
+    }
+
+    /**
+     * Returns the normalized prefix of the sort key of RECORD: if the prefix
+     * of a is less than that of b as unsigned longs, a sorts before b. Signed
+     * values have their sign bit flipped to order as unsigned ones, and the
+     * bits of a float are flipped so that they order as Float.compare does.
+     */
+    private long prefix(Record record) {
+        if (this.columnIndex == -1) {
+            return 0;
+        }
+        DataBox value = record.getValues().get(this.columnIndex);
+        switch (this.columnType) {
+        case INT:
+            return value.getInt() ^ Long.MIN_VALUE;
+        case FLOAT:
+            int bits = Float.floatToIntBits(value.getFloat());
+            bits ^= (bits >> 31) & 0x7FFFFFFF;
+            return bits ^ Long.MIN_VALUE;
+        case BOOL:
+            return value.getBool() ? 1 : 0;
+        case STRING:
+            String s = value.getString();
+            long prefix = 0;
+            for (int i = 0; i < 4; i++) {
+                prefix = (prefix << 16) | (i < s.length() ? s.charAt(i) : 0);
+            }
+            return prefix;
+        default:
+            return 0;
+        }
+    }
+
+    private int compare(SortEntry a, SortEntry b) {
+        int c = Long.compareUnsigned(a.prefix, b.prefix);
+        if (c != 0 || this.prefixIsKey) {
+            return c;
+        }
+        return this.comparator.compare(a.record, b.record);
     }
 
     /**
@@ -71,19 +260,80 @@ public class SortOperator {
      * size of the buffer, but it is done this way for ease.
      */
     public Run sortRun(Run run) throws DatabaseException {
-        throw new UnsupportedOperationException("TODO(hw3): implement");
+        List<Record> records = new ArrayList<>();
+        run.iterator().forEachRemaining(records::add);
+        return writeSortedRun(records);
+    }
+
+    /**
+     * Sorts RECORDS in memory, and writes them out as a new run.
+     */
+    private Run writeSortedRun(List<Record> records) throws DatabaseException {
+        List<SortEntry> entries = new ArrayList<>(records.size());
+        for (Record record : records) {
+            entries.add(entry(record));
+        }
+        entries.sort(this::compare);
+        Run sorted = createRun();
+        for (SortEntry e : entries) {
+            sorted.addRecord(e.record.getValues());
+        }
+        return sorted;
+    }
+
+    /**
+     * Reads the table into sorted runs by replacement selection, and returns
+     * the runs in the order they were made.
+     */
+    public List<Run> createInitialRuns() throws DatabaseException {
+        int capacity = Math.max(this.numBuffers - 2, 1) *
+                       Table.computeNumRecordsPerPage(Page.pageSize, this.operatorSchema);
+        // Entries of the current run come before those of the next run.
+        PriorityQueue<SortEntry> heap = new PriorityQueue<>(capacity, (a, b) ->
+                a.run != b.run ? Integer.compare(a.run, b.run) : compare(a, b));
+        Iterator<Record> records = this.transaction.getRecordIterator(this.tableName);
+        while (heap.size() < capacity && records.hasNext()) {
+            heap.add(entry(records.next()));
+        }
+
+        List<Run> runs = new ArrayList<>();
+        Run current = null;
+        int currentRun = -1;
+        while (!heap.isEmpty()) {
+            SortEntry e = heap.poll();
+            if (e.run != currentRun) {
+                current = createRun();
+                runs.add(current);
+                currentRun = e.run;
+            }
+            current.addRecord(e.record.getValues());
+            if (records.hasNext()) {
+                // A record smaller than the one just written can't extend
+                // the current run, and waits for the next one.
+                SortEntry next = entry(records.next());
+                next.run = compare(next, e) >= 0 ? e.run : e.run + 1;
+                heap.add(next);
+            }
+        }
+        return runs;
     }
 
     /**
      * Given a list of sorted runs, returns a new run that is the result
-     * of merging the input runs. You should use a Priority Queue (java.util.PriorityQueue)
-     * to determine which record should be should be added to the output run next.
-     * It is recommended that your Priority Queue hold Pair<Record, Integer> objects
-     * where a Pair (r, i) is the Record r with the smallest value you are
-     * sorting on currently unmerged from run i.
+     * of merging the input runs, using a tree of losers to find the run with
+     * the smallest record to add to the output run next.
      */
     public Run mergeSortedRuns(List<Run> runs) throws DatabaseException {
-        throw new UnsupportedOperationException("TODO(hw3): implement");
+        List<Iterator<Record>> inputs = new ArrayList<>();
+        for (Run run : runs) {
+            inputs.add(run.iterator());
+        }
+        LoserTree tree = new LoserTree(inputs);
+        Run merged = createRun();
+        while (tree.hasNext()) {
+            merged.addRecord(tree.next().getValues());
+        }
+        return merged;
     }
 
     /**
@@ -92,7 +342,20 @@ public class SortOperator {
      * of the input runs at a time.
      */
     public List<Run> mergePass(List<Run> runs) throws DatabaseException {
-        throw new UnsupportedOperationException("TODO(hw3): implement");
+        int fanIn = Math.max(this.numBuffers - 1, 2);
+        List<Run> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<Run> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+            merged.add(mergeSortedRuns(group));
+            for (Run run : group) {
+                run.delete();
+            }
+        }
+        return merged;
     }
 
     /**
@@ -101,26 +364,407 @@ public class SortOperator {
      * Returns the name of the table that backs the final run.
      */
     public String sort() throws DatabaseException {
-        throw new UnsupportedOperationException("TODO(hw3): implement");
+        List<Run> runs = createInitialRuns();
+        if (runs.isEmpty()) {
+            return createRun().tableName();
+        }
+        while (runs.size() > 1) {
+            runs = mergePass(runs);
+        }
+        return runs.get(0).tableName();
     }
 
-    public Iterator<Record> iterator() throws DatabaseException {
-        // Placeholder for unimplemented HW3; does not sort.
-        sortedTableName = tableName;
-        if (sortedTableName == null) {
-            sortedTableName = sort();
+    /**
+     * Returns the number of workers to sort the table with: one if it fits
+     * in memory, since it is then sorted into a single run, and otherwise no
+     * more than there are pages to give each worker one.
+     */
+    private int getNumSortWorkers() throws DatabaseException {
+        int memoryPages = Math.max(this.numBuffers - 2, 1);
+        if (this.transaction.getNumDataPages(this.tableName) <= memoryPages) {
+            return 1;
         }
-        return this.transaction.getRecordIterator(sortedTableName);
+        return Math.min(this.numWorkers, memoryPages);
     }
 
-    private class RecordPairComparator implements Comparator<Pair<Record, Integer>> {
-        public int compare(Pair<Record, Integer> o1, Pair<Record, Integer> o2) {
-            return SortOperator.this.comparator.compare(o1.getFirst(), o2.getFirst());
+    /**
+     * Sorts the table with name tableName with numWorkers workers, and
+     * returns the names of the tables that back the runs of the key ranges,
+     * in order.
+     */
+    private List<String> parallelSort(int numWorkers) throws DatabaseException {
+        List<Run> runs = createInitialRuns(numWorkers);
+        if (runs.isEmpty()) {
+            return Collections.singletonList(createRun().tableName());
+        }
+        // Each merge gets an equal share of the buffers.
+        int fanIn = Math.max((this.numBuffers - 1) / numWorkers, 2);
+        while (runs.size() > fanIn) {
+            runs = mergePass(runs, fanIn);
+        }
+        if (runs.size() == 1) {
+            return Collections.singletonList(runs.get(0).tableName());
+        }
+        List<String> tableNames = new ArrayList<>();
+        for (Run run : mergeRanges(runs, numWorkers)) {
+            tableNames.add(run.tableName());
+        }
+        for (Run run : runs) {
+            run.delete();
+        }
+        return tableNames;
+    }
+
+    /**
+     * Reads the table into slices that numWorkers workers sort into runs
+     * at the same time, and returns the runs in the order of the slices.
+     * Only as many slices as there are workers are held in memory at once.
+     * The workers are threads of the pool of MorselExecutor.
+     */
+    private List<Run> createInitialRuns(int numWorkers) throws DatabaseException {
+        int sliceSize = Math.max(Math.max(this.numBuffers - 2, 1) * this.numRecordsPerPage / numWorkers, 1);
+        Iterator<Record> records = this.transaction.getRecordIterator(this.tableName);
+        List<Future<Run>> slices = new ArrayList<>();
+        List<Run> runs = new ArrayList<>();
+        try {
+            while (records.hasNext()) {
+                if (slices.size() - runs.size() == numWorkers) {
+                    runs.add(await(slices.get(runs.size())));
+                }
+                List<Record> slice = new ArrayList<>(sliceSize);
+                while (slice.size() < sliceSize && records.hasNext()) {
+                    slice.add(records.next());
+                }
+                slices.add(MorselExecutor.submit(() -> writeSortedRun(slice)));
+            }
+            while (runs.size() < slices.size()) {
+                runs.add(await(slices.get(runs.size())));
+            }
+        } finally {
+            cancel(slices);
+        }
+        return runs;
+    }
 
+    /**
+     * Merges groups of FANIN runs at the same time, and returns the merged
+     * runs in order.
+     */
+    private List<Run> mergePass(List<Run> runs, int fanIn) throws DatabaseException {
+        List<Future<Run>> merges = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<Run> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            merges.add(MorselExecutor.submit(() -> group.size() == 1 ? group.get(0) : mergeSortedRuns(group)));
+        }
+        List<Run> merged = awaitAll(merges);
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<Run> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            if (group.size() > 1) {
+                for (Run run : group) {
+                    run.delete();
+                }
+            }
         }
+        return merged;
     }
+
+    /**
+     * Divides the keys of RUNS into up to numWorkers ranges that hold about
+     * as many records each, and merges the records of each range from every
+     * run at the same time. Returns the merged runs in the order of their
+     * ranges.
+     */
+    private List<Run> mergeRanges(List<Run> runs, int numWorkers) throws DatabaseException {
+        List<SortEntry> splitters = sampleSplitters(runs, numWorkers);
+        // bounds[r][j] is the index of the first record of run r in range j.
+        int[][] bounds = new int[runs.size()][splitters.size() + 2];
+        for (int r = 0; r < runs.size(); r++) {
+            Run run = runs.get(r);
+            for (int j = 0; j < splitters.size(); j++) {
+                bounds[r][j + 1] = lowerBound(run, splitters.get(j), bounds[r][j]);
+            }
+            bounds[r][splitters.size() + 1] = run.size();
+        }
+
+        List<Future<Run>> merges = new ArrayList<>();
+        for (int j = 0; j <= splitters.size(); j++) {
+            int range = j;
+            merges.add(MorselExecutor.submit(() -> {
+                List<Iterator<Record>> inputs = new ArrayList<>();
+                for (int r = 0; r < runs.size(); r++) {
+                    inputs.add(runs.get(r).iterator(bounds[r][range], bounds[r][range + 1]));
+                }
+                LoserTree tree = new LoserTree(inputs);
+                Run merged = createRun();
+                while (tree.hasNext()) {
+                    merged.addRecord(tree.next().getValues());
+                }
+                return merged;
+            }));
+        }
+        return awaitAll(merges);
+    }
+
+    /**
+     * Samples records from RUNS, in proportion to their sizes, and returns
+     * up to numRanges - 1 distinct keys that divide the samples evenly.
+     */
+    private List<SortEntry> sampleSplitters(List<Run> runs, int numRanges) throws DatabaseException {
+        long numRecords = 0;
+        for (Run run : runs) {
+            numRecords += run.size();
+        }
+        List<SortEntry> samples = new ArrayList<>();
+        for (Run run : runs) {
+            int numSamples = (int) Math.max((long) SAMPLES_PER_RANGE * numRanges * run.size() / numRecords, 1);
+            for (int i = 0; i < numSamples && i < run.size(); i++) {
+                samples.add(entry(run.getRecord((int) ((long) i * run.size() / numSamples))));
+            }
+        }
+        samples.sort(this::compare);
+
+        List<SortEntry> splitters = new ArrayList<>();
+        for (int j = 1; j < numRanges; j++) {
+            SortEntry splitter = samples.get(j * samples.size() / numRanges);
+            // Records with the same key all go in the same range.
+            if (splitters.isEmpty() || compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        return splitters;
+    }
+
+    /**
+     * Returns the index of the first record of RUN, from index FROM on, that
+     * does not sort before SPLITTER.
+     */
+    private int lowerBound(Run run, SortEntry splitter, int from) throws DatabaseException {
+        int lo = from;
+        int hi = run.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(entry(run.getRecord(mid)), splitter) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Waits for the tasks of workers, and returns their results in order.
+     * If one of them fails, those that have not started yet never do.
+     */
+    private static <T> List<T> awaitAll(List<Future<T>> futures) throws DatabaseException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(await(future));
+            }
+        } finally {
+            cancel(futures);
+        }
+        return results;
+    }
+
+    /**
+     * Cancels the tasks of FUTURES that have not started yet. Running tasks
+     * are not interrupted, since interrupting a thread closes the files it is
+     * writing to.
+     */
+    private static <T> void cancel(List<Future<T>> futures) {
+        for (Future<T> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the task of a worker, and returns its result.
+     */
+    private static <T> T await(Future<T> future) throws DatabaseException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while sorting.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DatabaseException) {
+                throw (DatabaseException) e.getCause();
+            }
+            throw new DatabaseException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Sorts the table with name tableName, with several workers if it does
+     * not fit in memory, and returns an iterator over the sorted records.
+     * The table is only sorted once, however many iterators are returned.
+     */
+    public BacktrackingIterator<Record> sortedIterator() throws DatabaseException {
+        if (this.sortedTableNames == null) {
+            int numWorkers = getNumSortWorkers();
+            this.sortedTableNames = numWorkers > 1 ? parallelSort(numWorkers) :
+                                    Collections.singletonList(sort());
+        }
+        if (this.sortedTableNames.size() == 1) {
+            return this.transaction.getRecordIterator(this.sortedTableNames.get(0));
+        }
+        return new SortedRangesIterator(this.sortedTableNames);
+    }
+
+    public Iterator<Record> iterator() throws DatabaseException {
+        return sortedIterator();
+    }
+
     public Run createRun() throws DatabaseException {
         return new Run();
     }
-}
 
+    /**
+     * Iterates over the records of several tables one table after another.
+     * A table's records are only read once the tables before it have been,
+     * and reset() reads the tables after the marked one from the start again.
+     */
+    private class SortedRangesIterator implements BacktrackingIterator<Record> {
+        private final List<String> tableNames;
+        // The iterator over each table, once it has been reached.
+        private final RecordIterator[] iterators;
+        // The table the next record comes from.
+        private int current = 0;
+        // The table the last record returned came from, or -1.
+        private int last = -1;
+        private int marked = -1;
+
+        SortedRangesIterator(List<String> tableNames) {
+            this.tableNames = tableNames;
+            this.iterators = new RecordIterator[tableNames.size()];
+        }
+
+        private RecordIterator iterator(int table) {
+            if (this.iterators[table] == null) {
+                try {
+                    this.iterators[table] = SortOperator.this.transaction.getRecordIterator(
+                                                this.tableNames.get(table));
+                } catch (DatabaseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return this.iterators[table];
+        }
+
+        public boolean hasNext() {
+            while (!iterator(this.current).hasNext()) {
+                if (this.current == this.iterators.length - 1) {
+                    return false;
+                }
+                this.current++;
+            }
+            return true;
+        }
+
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.current;
+            return this.iterators[this.current].next();
+        }
+
+        public void mark() {
+            if (this.last == -1) {
+                return;
+            }
+            this.marked = this.last;
+            this.iterators[this.marked].mark();
+        }
+
+        public void reset() {
+            if (this.marked == -1) {
+                return;
+            }
+            this.iterators[this.marked].reset();
+            for (int table = this.marked + 1; table < this.iterators.length; table++) {
+                this.iterators[table] = null;
+            }
+            this.current = this.marked;
+            this.last = -1;
+        }
+    }
+
+    /**
+     * A tree of losers over k sorted inputs. Every internal node holds the
+     * input that lost the comparison there, and tree[0] the overall winner;
+     * replacing the winner's record only replays the matches on the path
+     * from its leaf to the root. Exhausted inputs lose to every other input,
+     * and ties go to the input that comes first, so the merge is stable.
+     */
+    private class LoserTree {
+        private final List<Iterator<Record>> inputs;
+        private final int k;
+        // The next record of each input, or null once it is exhausted.
+        private final SortEntry[] heads;
+        private final int[] tree;
+
+        LoserTree(List<Iterator<Record>> inputs) {
+            this.inputs = inputs;
+            this.k = inputs.size();
+            this.heads = new SortEntry[k];
+            this.tree = new int[k];
+            // Input k stands for a record smaller than all others while the
+            // tree is built, so the first input to reach a node stays there.
+            Arrays.fill(this.tree, k);
+            for (int i = 0; i < k; i++) {
+                this.heads[i] = advance(i);
+            }
+            for (int i = k - 1; i >= 0; i--) {
+                replay(i);
+            }
+        }
+
+        private SortEntry advance(int input) {
+            Iterator<Record> records = this.inputs.get(input);
+            return records.hasNext() ? entry(records.next()) : null;
+        }
+
+        /**
+         * Returns whether input a wins over input b.
+         */
+        private boolean wins(int a, int b) {
+            if (a == k || b == k) {
+                return a == k;
+            }
+            if (this.heads[a] == null || this.heads[b] == null) {
+                return this.heads[b] == null && this.heads[a] != null;
+            }
+            int c = compare(this.heads[a], this.heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /**
+         * Replays the matches from the leaf of input s to the root.
+         */
+        private void replay(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (wins(this.tree[t], s)) {
+                    int loser = s;
+                    s = this.tree[t];
+                    this.tree[t] = loser;
+                }
+            }
+            this.tree[0] = s;
+        }
+
+        boolean hasNext() {
+            return this.heads[this.tree[0]] != null;
+        }
+
+        Record next() {
+            int winner = this.tree[0];
+            Record record = this.heads[winner].record;
+            this.heads[winner] = advance(winner);
+            replay(winner);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.query.QueryPlan.PredicateOperator;
+
+/**
+ * A RecordPredicate is a conjunction of comparisons between fields of the
+ * records of a schema and constants, which is evaluated on serialized
+ * records, so that a scan only decodes the records that satisfy it (see
+ * Table.iterator(BaseTransaction, RecordPredicate)).
+ *
+ * Every comparison is compiled when it is added, for the type of its field
+ * and its operator. An integer, float or boolean field compared to a value
+ * of its own type is read straight from its offset in the record (see
+ * Schema.getOffset); any other field is decoded on its own and compared as a
+ * DataBox. Either way, a record satisfies a comparison exactly when its
+ * field's DataBox would, as in a SelectOperator.
+ */
+public class RecordPredicate {
+    /**
+     * A compiled comparison of the record at offset OFFSET of BUF.
+     */
+    private interface Comparison {
+        boolean test(Buffer buf, int offset);
+    }
+
+    private Schema schema;
+    private List<Comparison> comparisons;
+    private List<String> descriptions;
+
+    public RecordPredicate(Schema schema) {
+        this.schema = schema;
+        this.comparisons = new ArrayList<>();
+        this.descriptions = new ArrayList<>();
+    }
+
+    /**
+     * Adds the comparison of field FIELD to VALUE with OPERATOR to the
+     * predicate.
+     */
+    public void add(int field, PredicateOperator operator, DataBox value) {
+        this.comparisons.add(compile(field, operator, value));
+        this.descriptions.add(this.schema.getFieldNames().get(field) + " " + operator + " " + value);
+    }
+
+    public boolean isEmpty() {
+        return this.comparisons.isEmpty();
+    }
+
+    /**
+     * Returns whether the serialized record at offset OFFSET of BUF
+     * satisfies the predicate.
+     */
+    public boolean test(Buffer buf, int offset) {
+        for (Comparison comparison : this.comparisons) {
+            if (!comparison.test(buf, offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether RECORD satisfies the predicate.
+     */
+    public boolean test(Record record) {
+        return test(ByteBuffer.wrap(record.toBytes(this.schema)), 0);
+    }
+
+    private Comparison compile(int field, PredicateOperator operator, DataBox value) {
+        Type type = this.schema.getFieldTypes().get(field);
+        int at = this.schema.getOffset(field);
+        TypeId typeId = type.getTypeId();
+        if (typeId != value.type().getTypeId()) {
+            return compileDecoded(field, operator, value);
+        }
+        switch (typeId) {
+        case INT: {
+            int v = value.getInt();
+            switch (operator) {
+            case EQUALS:
+                return (buf, offset) -> buf.getInt(offset + at) == v;
+            case NOT_EQUALS:
+                return (buf, offset) -> buf.getInt(offset + at) != v;
+            case LESS_THAN:
+                return (buf, offset) -> buf.getInt(offset + at) < v;
+            case LESS_THAN_EQUALS:
+                return (buf, offset) -> buf.getInt(offset + at) <= v;
+            case GREATER_THAN:
+                return (buf, offset) -> buf.getInt(offset + at) > v;
+            case GREATER_THAN_EQUALS:
+                return (buf, offset) -> buf.getInt(offset + at) >= v;
+            default:
+                break;
+            }
+            break;
+        }
+        case FLOAT: {
+            // FloatDataBox.equals compares with ==, and compareTo with
+            // Float.compare.
+            float v = value.getFloat();
+            switch (operator) {
+            case EQUALS:
+                return (buf, offset) -> buf.getFloat(offset + at) == v;
+            case NOT_EQUALS:
+                return (buf, offset) -> buf.getFloat(offset + at) != v;
+            case LESS_THAN:
+                return (buf, offset) -> Float.compare(buf.getFloat(offset + at), v) < 0;
+            case LESS_THAN_EQUALS:
+                return (buf, offset) -> Float.compare(buf.getFloat(offset + at), v) <= 0;
+            case GREATER_THAN:
+                return (buf, offset) -> Float.compare(buf.getFloat(offset + at), v) > 0;
+            case GREATER_THAN_EQUALS:
+                return (buf, offset) -> Float.compare(buf.getFloat(offset + at), v) >= 0;
+            default:
+                break;
+            }
+            break;
+        }
+        case BOOL: {
+            int v = value.getBool() ? 1 : 0;
+            switch (operator) {
+            case EQUALS:
+                return (buf, offset) -> buf.get(offset + at) == v;
+            case NOT_EQUALS:
+                return (buf, offset) -> buf.get(offset + at) != v;
+            case LESS_THAN:
+                return (buf, offset) -> buf.get(offset + at) < v;
+            case LESS_THAN_EQUALS:
+                return (buf, offset) -> buf.get(offset + at) <= v;
+            case GREATER_THAN:
+                return (buf, offset) -> buf.get(offset + at) > v;
+            case GREATER_THAN_EQUALS:
+                return (buf, offset) -> buf.get(offset + at) >= v;
+            default:
+                break;
+            }
+            break;
+        }
+        default:
+            break;
+        }
+        return compileDecoded(field, operator, value);
+    }
+
+    /**
+     * Compiles a comparison that decodes field FIELD of each record.
+     */
+    private Comparison compileDecoded(int field, PredicateOperator operator, DataBox value) {
+        Type type = this.schema.getFieldTypes().get(field);
+        int at = this.schema.getOffset(field);
+        return (buf, offset) -> {
+            buf.position(offset + at);
+            DataBox v = DataBox.fromBytes(buf, type);
+            switch (operator) {
+            case EQUALS:
+                return v.equals(value);
+            case NOT_EQUALS:
+                return !v.equals(value);
+            case LESS_THAN:
+                return v.compareTo(value) < 0;
+            case LESS_THAN_EQUALS:
+                return v.compareTo(value) <= 0;
+            case GREATER_THAN:
+                return v.compareTo(value) > 0;
+            case GREATER_THAN_EQUALS:
+                return v.compareTo(value) >= 0;
+            default:
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" AND ", this.descriptions);
+    }
+}
@@ -0,0 +1,17 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.common.Buffer;
+
+/**
+ * A RecordReader reads what it needs of a serialized record straight from
+ * the bytes of its page, without decoding the whole record (see
+ * Table.iterator(BaseTransaction, RecordPredicate, RecordReader)).
+ */
+public interface RecordReader<T> {
+    /**
+     * Reads the record at offset OFFSET of BUF, whose fields are at the
+     * offsets of the table's schema (see Schema.getOffset). Returns null if
+     * the record produces nothing.
+     */
+    T read(Buffer buf, int offset);
+}
@@ -26,6 +26,8 @@ public class Schema {
     private List<String> fieldNames;
     private List<Type> fieldTypes;
     private int sizeInBytes;
+    // The offset in bytes of every field in a serialized record.
+    private int[] offsets;
 
     public Schema(List<String> fieldNames, List<Type> fieldTypes) {
         assert(fieldNames.size() == fieldTypes.size());
@@ -33,8 +35,10 @@ public class Schema {
         this.fieldTypes = fieldTypes;
 
         sizeInBytes = 0;
-        for (Type t : fieldTypes) {
-            sizeInBytes += t.getSizeInBytes();
+        offsets = new int[fieldTypes.size()];
+        for (int i = 0; i < fieldTypes.size(); ++i) {
+            offsets[i] = sizeInBytes;
+            sizeInBytes += fieldTypes.get(i).getSizeInBytes();
         }
     }
 
@@ -50,6 +54,14 @@ public class Schema {
         return sizeInBytes;
     }
 
+    /**
+     * Returns the offset in bytes of field i from the start of a serialized
+     * record (see Record.toBytes).
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
     // TODO(mwhittaker): Rename to something more descriptive.
     public Record verify(List<DataBox> values) throws DatabaseException {
         if (values.size() != fieldNames.size()) {
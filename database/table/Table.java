@@ -9,6 +9,8 @@ import edu.berkeley.cs186.database.common.ArrayBacktrackingIterator;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.Bits;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.concurrency.LockType;
 import edu.berkeley.cs186.database.concurrency.LockUtil;
@@ -128,6 +130,10 @@ public class Table implements Closeable {
     // The lock context.
     private LockContext lockContext;
 
+    // The versions of the records written by transactions, read by snapshots;
+    // null if the table is not versioned (e.g. a temporary table).
+    private VersionStore versions;
+
     // Constructors //////////////////////////////////////////////////////////////
     /**
      * Construct a brand new table named `name` with schema `schema` persisted in
@@ -149,6 +155,7 @@ public class Table implements Closeable {
         // TODO(hw5): any initialization of lock context (or none)
 
         writeSchemaToHeaderPage(transaction, allocator, schema);
+        this.lockContext.capacity(getNumDataPages());
     }
 
     /**
@@ -159,6 +166,8 @@ public class Table implements Closeable {
                  BaseTransaction transaction) throws DatabaseException {
         this.name = name;
         this.filename = filename;
+        // The records are read through getRecord, which locks their pages.
+        this.lockContext = lockContext;
         this.allocator = new PageAllocator(lockContext, filename, false, transaction);
         this.schema = readSchemaFromHeaderPage(transaction, this.allocator);
         this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, this.schema);
@@ -190,7 +199,7 @@ public class Table implements Closeable {
             }
         }
 
-        this.lockContext = lockContext;
+        this.lockContext.capacity(getNumDataPages());
 
         // TODO(hw5): any initialization of lock context (or none)
     }
@@ -228,6 +237,18 @@ public class Table implements Closeable {
         return numRecords;
     }
 
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    public LockContext getLockContext() {
+        return lockContext;
+    }
+
+    public void setVersionStore(VersionStore versions) {
+        this.versions = versions;
+    }
+
     public int getNumDataPages() {
         // All pages but the first are data pages.
         return allocator.getNumPages() - 1;
@@ -279,17 +300,32 @@ public class Table implements Closeable {
      * first free page has bitmap 0b11101000, then the record is inserted into
      * the page with index 3 and the bitmap is updated to 0b11111000.
      */
-    public synchronized RecordId addRecord(BaseTransaction transaction,
-                                           List<DataBox> values) throws DatabaseException {
+    public RecordId addRecord(BaseTransaction transaction,
+                              List<DataBox> values) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
         Record record = schema.verify(values);
 
-        // Get a free page, allocating a new one if necessary.
-        if (freePageNums.isEmpty()) {
-            freePageNums.add(allocator.allocPage(transaction));
+        while (true) {
+            // Get a free page, allocating a new one if necessary.
+            int pageNum;
+            synchronized (this) {
+                if (freePageNums.isEmpty()) {
+                    freePageNums.add(allocator.allocPage(transaction));
+                    lockContext.capacity(getNumDataPages());
+                }
+                pageNum = freePageNums.first();
+            }
+            lockPage(transaction, pageNum, LockType.X);
+            synchronized (this) {
+                // The page may have filled up while we waited for its lock.
+                if (freePageNums.contains(pageNum)) {
+                    return addRecord(transaction, record, allocator.fetchPage(transaction, pageNum));
+                }
+            }
         }
-        Page page = allocator.fetchPage(transaction, freePageNums.first());
+    }
 
+    private RecordId addRecord(BaseTransaction transaction, Record record, Page page) {
         // Find the first empty slot in the bitmap.
         // entry number of the first free slot and store it in entryNum; and (2) we
         // count the total number of entries on this page.
@@ -301,6 +337,10 @@ public class Table implements Closeable {
             }
         }
         assert(entryNum < numRecordsPerPage);
+        RecordId rid = new RecordId(page.getPageNum(), (short) entryNum);
+        if (versions != null) {
+            versions.recordWrite(transaction, rid, null);
+        }
 
         // Insert the record and update the bitmap.
         insertRecord(transaction, page, entryNum, record);
@@ -313,46 +353,180 @@ public class Table implements Closeable {
         }
         numRecords++;
 
-        return new RecordId(page.getPageNum(), (short) entryNum);
+        return rid;
     }
 
     /**
      * Retrieves a record from the table, throwing an exception if no such record
-     * exists.
+     * exists. Read-only transactions see the record as of their snapshot.
      */
-    public synchronized Record getRecord(BaseTransaction transaction,
-                                         RecordId rid) throws DatabaseException {
-        validateRecordId(rid);
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        byte[] bitmap = getBitMap(transaction, page);
-        if (Bits.getBit(bitmap, rid.getEntryNum()) == Bits.Bit.ZERO) {
+    public Record getRecord(BaseTransaction transaction,
+                            RecordId rid) throws DatabaseException {
+        Record record = findRecord(transaction, rid);
+        if (record == null) {
             String msg = String.format("Record %s does not exist.", rid);
             throw new DatabaseException(msg);
         }
+        return record;
+    }
+
+    /**
+     * Like getRecord, but returns null if there is no such record (as of the
+     * snapshot of a read-only transaction).
+     */
+    public Record findRecord(BaseTransaction transaction,
+                             RecordId rid) throws DatabaseException {
+        validateRecordId(rid);
+        lockPage(transaction, rid.getPageNum(), LockType.S);
+        return getVisibleRecord(transaction, rid);
+    }
+
+    /**
+     * Returns the ids of the records that a snapshot may see differently from
+     * how they are now, in order: those with versions. Every other record is
+     * seen by every snapshot as it is now.
+     */
+    public List<RecordId> getVersionedRecordIds() {
+        return versions == null ? new ArrayList<>() : versions.getRecordIds();
+    }
+
+    /** Returns whether a snapshot may see the record rid differently from how it is now. */
+    public boolean hasVersions(RecordId rid) {
+        return versions != null && versions.hasVersions(rid);
+    }
+
+    /**
+     * Returns the record with id rid as transaction sees it, or null if there
+     * is none.
+     */
+    private synchronized Record getVisibleRecord(BaseTransaction transaction, RecordId rid) {
+        Page page = allocator.fetchPage(transaction, rid.getPageNum());
+        Record record = readSlot(transaction, page, rid.getEntryNum());
+        if (isSnapshot(transaction)) {
+            record = versions.read(rid, record, transaction.getSnapshotTimestamp());
+        }
+        return record;
+    }
 
-        int offset = bitmapSizeInBytes + (rid.getEntryNum() * schema.getSizeInBytes());
+    /**
+     * Returns the record in slot entryNum of page, or null if the slot is empty.
+     */
+    private Record readSlot(BaseTransaction transaction, Page page, int entryNum) {
+        byte[] bitmap = getBitMap(transaction, page);
+        if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ZERO) {
+            return null;
+        }
+        int offset = bitmapSizeInBytes + (entryNum * schema.getSizeInBytes());
         Buffer buf = page.getBuffer(transaction);
         buf.position(offset);
         return Record.fromBytes(buf, schema);
     }
 
+    /**
+     * Ensures that transaction can access data page pageNum with lockType.
+     * The methods of a table lock the pages they access before synchronizing
+     * on the table: a transaction waiting for a lock while synchronized on the
+     * table would keep the lock's holder from using the table until it ends.
+     */
+    private void lockPage(BaseTransaction transaction, int pageNum, LockType lockType) {
+        LockUtil.requestLocks(transaction, lockContext.childContext(pageNum), lockType);
+    }
+
+    private boolean isSnapshot(BaseTransaction transaction) {
+        return versions != null && transaction != null && transaction.isReadOnly();
+    }
+
+    /**
+     * Returns the id and record of every record on the data page `page`,
+     * decoded from a single copy of the page. Unlike getRecord, this does not
+     * synchronize on the table, so that several pages can be read at once (see
+     * IndexBuilder); the caller must make sure that the page is not modified
+     * while it is being read.
+     */
+    public List<Pair<RecordId, Record>> getPageRecords(BaseTransaction transaction, Page page) {
+        Buffer buf = ByteBuffer.wrap(page.readBytes(transaction));
+        byte[] bitmap = new byte[bitmapSizeInBytes];
+        buf.get(bitmap);
+
+        List<Pair<RecordId, Record>> records = new ArrayList<>();
+        for (short i = 0; i < numRecordsPerPage; ++i) {
+            if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
+                buf.position(bitmapSizeInBytes + (i * schema.getSizeInBytes()));
+                records.add(new Pair<>(new RecordId(page.getPageNum(), i), Record.fromBytes(buf, schema)));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns the data pages of the table, in order.
+     */
+    public List<Page> getDataPages(BaseTransaction transaction) {
+        List<Page> pages = new ArrayList<>();
+        Iterator<Page> iter = Table.iteratorSkipPage(allocator.iterator(transaction));
+        while (iter.hasNext()) {
+            pages.add(iter.next());
+        }
+        return pages;
+    }
+
+    /**
+     * Returns what reader reads from the records on the data page `page` that
+     * satisfy predicate, skipping the records it reads null from, in order.
+     * The page is S locked, before the table is synchronized (see lockPage),
+     * and copied once, while the table is not being modified. Several pages
+     * can be read at once by workers that share a transaction (see
+     * MorselExecutor), as long as it already holds an S lock on the table,
+     * so that the workers do not race to lock the table's pages.
+     */
+    public <T> List<T> readPage(BaseTransaction transaction, Page page, RecordPredicate predicate,
+                                RecordReader<T> reader) {
+        lockPage(transaction, page.getPageNum(), LockType.S);
+        byte[] bytes;
+        synchronized (this) {
+            bytes = page.readBytes(transaction);
+        }
+        Buffer buf = ByteBuffer.wrap(bytes);
+        List<T> records = new ArrayList<>();
+        int recordSize = schema.getSizeInBytes();
+        for (int i = 0; i < numRecordsPerPage; ++i) {
+            // The bitmap is at the start of the page.
+            if (Bits.getBit(bytes[i / 8], i % 8) == Bits.Bit.ONE) {
+                int offset = bitmapSizeInBytes + (i * recordSize);
+                if (predicate.test(buf, offset)) {
+                    T record = reader.read(buf, offset);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
     /**
      * Overwrites an existing record with new values and returns the existing
      * record. stats is updated accordingly. An exception is thrown if rid does
      * not correspond to an existing record in the table.
      */
-    public synchronized Record updateRecord(BaseTransaction transaction, List<DataBox> values,
-                                            RecordId rid) throws DatabaseException {
+    public Record updateRecord(BaseTransaction transaction, List<DataBox> values,
+                               RecordId rid) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
         validateRecordId(rid);
         Record newRecord = schema.verify(values);
-        Record oldRecord = getRecord(transaction, rid);
+        lockPage(transaction, rid.getPageNum(), LockType.X);
+        synchronized (this) {
+            Record oldRecord = getRecord(transaction, rid);
+            if (versions != null) {
+                versions.recordWrite(transaction, rid, oldRecord);
+            }
 
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        insertRecord(transaction, page, rid.getEntryNum(), newRecord);
-        this.stats.removeRecord(oldRecord);
-        this.stats.addRecord(newRecord);
-        return oldRecord;
+            Page page = allocator.fetchPage(transaction, rid.getPageNum());
+            insertRecord(transaction, page, rid.getEntryNum(), newRecord);
+            this.stats.removeRecord(oldRecord);
+            this.stats.addRecord(newRecord);
+            return oldRecord;
+        }
     }
 
     /**
@@ -360,21 +534,66 @@ public class Table implements Closeable {
      * stats, freePageNums, and numRecords as necessary. An exception is thrown
      * if rid does not correspond to an existing record in the table.
      */
-    public synchronized Record deleteRecord(BaseTransaction transaction,
-                                            RecordId rid) throws DatabaseException {
+    public Record deleteRecord(BaseTransaction transaction,
+                               RecordId rid) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
         validateRecordId(rid);
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        Record record = getRecord(transaction, rid);
-        Bits.setBit(page.getBuffer(transaction), rid.getEntryNum(), Bits.Bit.ZERO);
+        lockPage(transaction, rid.getPageNum(), LockType.X);
+        synchronized (this) {
+            Page page = allocator.fetchPage(transaction, rid.getPageNum());
+            Record record = getRecord(transaction, rid);
+            if (versions != null) {
+                versions.recordWrite(transaction, rid, record);
+            }
+            Bits.setBit(page.getBuffer(transaction), rid.getEntryNum(), Bits.Bit.ZERO);
 
-        stats.removeRecord(record);
-        if(numRecordsOnPage(transaction, page) == numRecordsPerPage - 1) {
-            freePageNums.add(page.getPageNum());
+            stats.removeRecord(record);
+            if(numRecordsOnPage(transaction, page) == numRecordsPerPage - 1) {
+                freePageNums.add(page.getPageNum());
+            }
+            numRecords--;
+
+            return record;
         }
-        numRecords--;
+    }
 
-        return record;
+    /**
+     * Undoes the writes of transaction to this table: every record it added,
+     * updated or deleted is restored to what it was before the transaction
+     * first wrote it. Returns, by record id, the record the transaction had
+     * left (or null if it had deleted it) and the restored record (or null if
+     * the transaction had added it). The transaction must still hold its
+     * locks. Tables that are not versioned cannot be rolled back.
+     */
+    public synchronized Map<RecordId, Pair<Record, Record>> rollback(BaseTransaction transaction) {
+        Map<RecordId, Pair<Record, Record>> undone = new HashMap<>();
+        if (versions == null) {
+            return undone;
+        }
+        for (Pair<RecordId, Record> version : versions.rollback(transaction)) {
+            RecordId rid = version.getFirst();
+            Record before = version.getSecond();
+            Page page = allocator.fetchPage(transaction, rid.getPageNum());
+            Record written = readSlot(transaction, page, rid.getEntryNum());
+            if (written != null) {
+                Bits.setBit(page.getBuffer(transaction), rid.getEntryNum(), Bits.Bit.ZERO);
+                stats.removeRecord(written);
+                numRecords--;
+            }
+            if (before != null) {
+                insertRecord(transaction, page, rid.getEntryNum(), before);
+                Bits.setBit(page.getBuffer(transaction), rid.getEntryNum(), Bits.Bit.ONE);
+                stats.addRecord(before);
+                numRecords++;
+            }
+            if (numRecordsOnPage(transaction, page) == numRecordsPerPage) {
+                freePageNums.remove(page.getPageNum());
+            } else {
+                freePageNums.add(page.getPageNum());
+            }
+            undone.put(rid, new Pair<>(written, before));
+        }
+        return undone;
     }
 
     /**
@@ -386,6 +605,7 @@ public class Table implements Closeable {
             allocator.freePage(transaction, pageNum);
         }
         freePageNums.clear();
+        lockContext.capacity(getNumDataPages());
     }
 
     public void close() {
@@ -471,10 +691,24 @@ public class Table implements Closeable {
         return new TableIterator(transaction);
     }
 
-    public RecordIterator iterator(BaseTransaction transaction) {
+    /**
+     * Returns an iterator over the record ids of every record in the table.
+     * Unlike ridIterator, the record ids are all read up front.
+     */
+    public BacktrackingIterator<RecordId> recordIdIterator(BaseTransaction transaction) {
         List<RecordId> rids = getAllRecordIds(transaction);
-        BacktrackingIterator<RecordId> iter = new ArrayBacktrackingIterator<RecordId>(rids.toArray(
-                    new RecordId[rids.size()]));
+        return new ArrayBacktrackingIterator<RecordId>(rids.toArray(new RecordId[rids.size()]));
+    }
+
+    public RecordIterator iterator(BaseTransaction transaction) {
+        if (isSnapshot(transaction)) {
+            // Snapshots read the table without locks, and so without the
+            // page iterators below.
+            List<RecordId> rids = getSnapshotRecordIds(transaction);
+            return new RecordIterator(transaction, this,
+                    new ArrayBacktrackingIterator<>(rids.toArray(new RecordId[rids.size()])));
+        }
+        BacktrackingIterator<RecordId> iter = recordIdIterator(transaction);
         // Placeholder to call ridIterator anyways (since the normal version includes a call to ridIterator)
         try {
             ridIterator(transaction);
@@ -485,6 +719,84 @@ public class Table implements Closeable {
         */
     }
 
+    /**
+     * Returns an iterator over the records of the table that satisfy
+     * predicate. Each data page is locked and copied once, and predicate is
+     * evaluated on the bytes of its records, so that only the records that
+     * satisfy it are decoded. Read-only transactions filter the records of
+     * their snapshot instead, whose versions may not be on the pages.
+     */
+    public Iterator<Record> iterator(BaseTransaction transaction, RecordPredicate predicate) {
+        if (isSnapshot(transaction)) {
+            RecordIterator records = iterator(transaction);
+            return new Iterator<Record>() {
+                private Record next = null;
+
+                public boolean hasNext() {
+                    while (next == null && records.hasNext()) {
+                        Record record = records.next();
+                        if (predicate.test(record)) {
+                            next = record;
+                        }
+                    }
+                    return next != null;
+                }
+
+                public Record next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Record record = next;
+                    next = null;
+                    return record;
+                }
+            };
+        }
+        return new FilteredPageIterator<>(transaction, predicate, (buf, offset) -> {
+            buf.position(offset);
+            return Record.fromBytes(buf, schema);
+        });
+    }
+
+    /**
+     * Returns an iterator over what reader reads from the records of the
+     * table that satisfy predicate, skipping the records it reads null from.
+     * Pages are read as by iterator(BaseTransaction, RecordPredicate), but
+     * reader is given the bytes of each record that satisfies predicate
+     * instead of the decoded record, so that it only decodes the fields it
+     * needs. The records of the snapshot of a read-only transaction are
+     * serialized for reader.
+     */
+    public <T> Iterator<T> iterator(BaseTransaction transaction, RecordPredicate predicate,
+                                    RecordReader<T> reader) {
+        if (isSnapshot(transaction)) {
+            RecordIterator records = iterator(transaction);
+            return new Iterator<T>() {
+                private T next = null;
+
+                public boolean hasNext() {
+                    while (next == null && records.hasNext()) {
+                        Buffer buf = ByteBuffer.wrap(records.next().toBytes(schema));
+                        if (predicate.test(buf, 0)) {
+                            next = reader.read(buf, 0);
+                        }
+                    }
+                    return next != null;
+                }
+
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    T result = next;
+                    next = null;
+                    return result;
+                }
+            };
+        }
+        return new FilteredPageIterator<>(transaction, predicate, reader);
+    }
+
     public BacktrackingIterator<Record> blockIterator(BaseTransaction transaction, Page[] block) {
         return new RecordIterator(transaction, this, new RIDBlockIterator(transaction, block));
     }
@@ -711,6 +1023,94 @@ public class Table implements Closeable {
         }
     }
 
+    /**
+     * An iterator over the records of the table that satisfy a predicate,
+     * which reads the table a page at a time.
+     */
+    private class FilteredPageIterator<T> implements Iterator<T> {
+        private BaseTransaction transaction;
+        private RecordPredicate predicate;
+        private RecordReader<T> reader;
+        private Iterator<Page> pages;
+        // What was read from the records of the current page that satisfy the
+        // predicate.
+        private Iterator<T> records = Collections.emptyIterator();
+
+        FilteredPageIterator(BaseTransaction transaction, RecordPredicate predicate, RecordReader<T> reader) {
+            this.transaction = transaction;
+            this.predicate = predicate;
+            this.reader = reader;
+            this.pages = Table.iteratorSkipPage(Table.this.allocator.iterator(transaction));
+        }
+
+        public boolean hasNext() {
+            while (!this.records.hasNext() && this.pages.hasNext()) {
+                this.records = Table.this.readPage(this.transaction, this.pages.next(), this.predicate,
+                                                   this.reader).iterator();
+            }
+            return this.records.hasNext();
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.records.next();
+        }
+    }
+
+    /**
+     * Returns the ids of the records of the table as of the snapshot of a
+     * read-only transaction: those in the slots that hold a record now or held
+     * one in the past, and are not empty as of the snapshot. The table is read
+     * a page at a time, each page copied while the table is not being
+     * modified, as in readPage.
+     */
+    private List<RecordId> getSnapshotRecordIds(BaseTransaction transaction) {
+        long snapshot = transaction.getSnapshotTimestamp();
+        List<RecordId> res = new ArrayList<>();
+        Iterator<Page> pageIterator = allocator.iterator(transaction);
+        pageIterator.next(); // Skip the header page.
+        while (pageIterator.hasNext()) {
+            Page page = pageIterator.next();
+            byte[] bytes;
+            synchronized (this) {
+                bytes = page.readBytes(transaction);
+            }
+            // Writers record a version before they change a slot, so reading
+            // the versions after the page finds every record the snapshot can
+            // see.
+            Iterator<RecordId> versioned = versions.getRecordIds(page.getPageNum()).iterator();
+            RecordId nextVersioned = versioned.hasNext() ? versioned.next() : null;
+
+            Buffer buf = ByteBuffer.wrap(bytes);
+            for (short i = 0; i < numRecordsPerPage; ++i) {
+                boolean hasVersions = nextVersioned != null && nextVersioned.getEntryNum() == i;
+                if (hasVersions) {
+                    nextVersioned = versioned.hasNext() ? versioned.next() : null;
+                }
+                boolean occupied = Bits.getBit(bytes[i / 8], i % 8) == Bits.Bit.ONE;
+                RecordId rid = new RecordId(page.getPageNum(), i);
+                if (!hasVersions) {
+                    // No writes to undo: the slot is as the snapshot saw it.
+                    if (occupied) {
+                        res.add(rid);
+                    }
+                    continue;
+                }
+                Record current = null;
+                if (occupied) {
+                    buf.position(bitmapSizeInBytes + (i * schema.getSizeInBytes()));
+                    current = Record.fromBytes(buf, schema);
+                }
+                if (versions.read(rid, current, snapshot) != null) {
+                    res.add(rid);
+                }
+            }
+        }
+        return res;
+    }
+
     /**
      * A helper method that returns every record id (and assumes no deletes have happened).
      */
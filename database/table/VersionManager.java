@@ -0,0 +1,149 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionManager keeps the commit timestamps of a database for multi-version
+ * concurrency control.
+ *
+ * Every table keeps a VersionStore with the before-images of the records
+ * written by transactions that have not committed, or that committed after a
+ * snapshot still in use. A read-only transaction takes a snapshot timestamp
+ * when it begins, and reads every record as it was when the last transaction
+ * committed before the snapshot, without acquiring any locks: a version is
+ * visible to a snapshot exactly when its writer's commit timestamp is no
+ * later than the snapshot.
+ *
+ * Versions are discarded once no active snapshot can see past them.
+ */
+public class VersionManager {
+    // The commit timestamp of a transaction that has not committed yet.
+    static final long UNCOMMITTED = Long.MAX_VALUE;
+
+    /**
+     * A transaction that has written to a versioned table.
+     */
+    static class Writer {
+        final long transNum;
+        // The commit timestamp, or UNCOMMITTED.
+        volatile long commitTimestamp = UNCOMMITTED;
+        // The version stores that hold versions written by this transaction.
+        final Set<VersionStore> stores = ConcurrentHashMap.newKeySet();
+
+        Writer(long transNum) {
+            this.transNum = transNum;
+        }
+    }
+
+    // The timestamp of the last commit. Guarded by this.
+    private long clock = 0;
+    // The number of active snapshots taken at each timestamp. Guarded by this.
+    private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+    // The transactions that have written versions and not committed yet.
+    private final Map<Long, Writer> writers = new ConcurrentHashMap<>();
+    // The version stores of all the versioned tables.
+    private final Set<VersionStore> stores = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the version store of a table.
+     */
+    public VersionStore createStore() {
+        VersionStore store = new VersionStore(this);
+        stores.add(store);
+        return store;
+    }
+
+    /**
+     * Forgets about the version store of a table that has been deleted.
+     */
+    public void dropStore(VersionStore store) {
+        stores.remove(store);
+    }
+
+    /**
+     * Begins a snapshot, and returns its timestamp. Every snapshot must be
+     * ended with endSnapshot.
+     */
+    public synchronized long beginSnapshot() {
+        activeSnapshots.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /**
+     * Ends a snapshot, and discards the versions it was the last to need.
+     */
+    public void endSnapshot(long snapshot) {
+        synchronized (this) {
+            if (activeSnapshots.computeIfPresent(snapshot, (k, n) -> n == 1 ? null : n - 1) != null ||
+                    (!activeSnapshots.isEmpty() && activeSnapshots.firstKey() < snapshot)) {
+                // An older snapshot still needs the same versions.
+                return;
+            }
+        }
+        long oldest = oldestSnapshot();
+        for (VersionStore store : stores) {
+            store.prune(oldest);
+        }
+    }
+
+    /**
+     * Commits the versions written by transaction transNum, so that they are
+     * visible to the snapshots taken from now on.
+     */
+    public void commit(long transNum) {
+        Writer writer = writers.remove(transNum);
+        if (writer == null) {
+            return;
+        }
+        synchronized (this) {
+            writer.commitTimestamp = ++clock;
+        }
+        long oldest = oldestSnapshot();
+        for (VersionStore store : writer.stores) {
+            store.commit(writer);
+            store.prune(oldest);
+        }
+    }
+
+    /**
+     * Forgets the versions written by transaction transNum, once the tables
+     * it wrote have been rolled back (see Table#rollback).
+     */
+    public void rollback(long transNum) {
+        writers.remove(transNum);
+    }
+
+    /**
+     * Returns the number of versions kept across all tables.
+     */
+    public long getNumVersions() {
+        long numVersions = 0;
+        for (VersionStore store : stores) {
+            numVersions += store.getNumVersions();
+        }
+        return numVersions;
+    }
+
+    Writer getWriter(long transNum) {
+        return writers.computeIfAbsent(transNum, Writer::new);
+    }
+
+    /**
+     * Returns the writer of transaction transNum, or null if it has not
+     * written any versions.
+     */
+    Writer findWriter(long transNum) {
+        return writers.get(transNum);
+    }
+
+    /**
+     * Returns the timestamp of the oldest active snapshot. Every snapshot
+     * begun later has a timestamp at least as large as this.
+     */
+    private synchronized long oldestSnapshot() {
+        return activeSnapshots.isEmpty() ? clock : activeSnapshots.firstKey();
+    }
+}
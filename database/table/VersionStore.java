@@ -0,0 +1,177 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.berkeley.cs186.database.BaseTransaction;
+import edu.berkeley.cs186.database.common.Pair;
+
+/**
+ * VersionStore is the undo store of a single table (see VersionManager).
+ *
+ * Before a transaction first overwrites a record (or inserts into or deletes
+ * from a slot), the table records the slot's previous contents here. The
+ * versions of a record form a chain from newest to oldest; a snapshot reads a
+ * record by starting from its current contents and undoing every version
+ * whose writer is not visible to the snapshot.
+ */
+public class VersionStore {
+    private static class Version {
+        final RecordId rid;
+        // The record before the write, or null if the slot was empty.
+        final Record before;
+        final VersionManager.Writer writer;
+        // The previous version of the record, or null.
+        Version older;
+
+        Version(RecordId rid, Record before, VersionManager.Writer writer, Version older) {
+            this.rid = rid;
+            this.before = before;
+            this.writer = writer;
+            this.older = older;
+        }
+    }
+
+    private final VersionManager manager;
+    // The newest version of each record that has any, by record id, so that
+    // the versions of a page are together.
+    private final TreeMap<RecordId, Version> chains = new TreeMap<>();
+    // The versions written by each transaction that has not committed.
+    private final Map<VersionManager.Writer, List<Version>> uncommitted = new HashMap<>();
+    // The versions written by committed transactions, in commit order.
+    private final Deque<Version> committed = new ArrayDeque<>();
+    private int numVersions = 0;
+
+    VersionStore(VersionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Records that TRANSACTION is about to overwrite the slot RID, which
+     * contains BEFORE (or null if it is empty). Only the first write of a
+     * transaction to a slot is recorded.
+     */
+    synchronized void recordWrite(BaseTransaction transaction, RecordId rid, Record before) {
+        VersionManager.Writer writer = manager.getWriter(transaction.getTransNum());
+        Version newest = chains.get(rid);
+        if (newest != null && newest.writer == writer) {
+            return;
+        }
+        Version version = new Version(rid, before, writer, newest);
+        chains.put(rid, version);
+        uncommitted.computeIfAbsent(writer, w -> new ArrayList<>()).add(version);
+        writer.stores.add(this);
+        numVersions++;
+    }
+
+    /**
+     * Returns the contents of the slot RID as of SNAPSHOT, given its CURRENT
+     * contents (or null if it is empty).
+     */
+    synchronized Record read(RecordId rid, Record current, long snapshot) {
+        Record record = current;
+        for (Version v = chains.get(rid); v != null && v.writer.commitTimestamp > snapshot;
+                v = v.older) {
+            record = v.before;
+        }
+        return record;
+    }
+
+    /**
+     * Returns the ids of the records with versions on page PAGENUM, in order.
+     * Together with the records currently on the page, these are all the
+     * records of the page any snapshot can see.
+     */
+    synchronized List<RecordId> getRecordIds(int pageNum) {
+        return new ArrayList<>(chains.subMap(new RecordId(pageNum, (short) 0),
+                                             new RecordId(pageNum + 1, (short) 0)).keySet());
+    }
+
+    /**
+     * Returns the ids of all the records with versions, in order: the records
+     * some snapshot may see differently from how they are now.
+     */
+    synchronized List<RecordId> getRecordIds() {
+        return new ArrayList<>(chains.keySet());
+    }
+
+    /** Returns whether the record RID has any versions. */
+    synchronized boolean hasVersions(RecordId rid) {
+        return chains.containsKey(rid);
+    }
+
+    public synchronized int getNumVersions() {
+        return numVersions;
+    }
+
+    /**
+     * Discards the versions written by TRANSACTION, which is being rolled
+     * back, and returns the id and before-image of every record it wrote, in
+     * the order they were first written.
+     */
+    synchronized List<Pair<RecordId, Record>> rollback(BaseTransaction transaction) {
+        List<Pair<RecordId, Record>> undone = new ArrayList<>();
+        VersionManager.Writer writer = manager.findWriter(transaction.getTransNum());
+        List<Version> versions = writer == null ? null : uncommitted.remove(writer);
+        if (versions == null) {
+            return undone;
+        }
+        for (Version version : versions) {
+            Version newest = chains.get(version.rid);
+            if (newest == version) {
+                if (version.older == null) {
+                    chains.remove(version.rid);
+                } else {
+                    chains.put(version.rid, version.older);
+                }
+            } else {
+                while (newest != null && newest.older != version) {
+                    newest = newest.older;
+                }
+                if (newest != null) {
+                    newest.older = version.older;
+                }
+            }
+            numVersions--;
+            undone.add(new Pair<>(version.rid, version.before));
+        }
+        return undone;
+    }
+
+    synchronized void commit(VersionManager.Writer writer) {
+        Collection<Version> versions = uncommitted.remove(writer);
+        if (versions != null) {
+            committed.addAll(versions);
+        }
+    }
+
+    /**
+     * Discards the versions that no snapshot at or after OLDEST needs, i.e.
+     * those written by transactions that committed at or before OLDEST.
+     */
+    synchronized void prune(long oldest) {
+        while (!committed.isEmpty() && committed.peekFirst().writer.commitTimestamp <= oldest) {
+            Version version = committed.removeFirst();
+            numVersions--;
+            // Unlink the version, along with any older versions of the record,
+            // which no snapshot needs either.
+            Version newest = chains.get(version.rid);
+            if (newest == version) {
+                chains.remove(version.rid);
+                continue;
+            }
+            while (newest != null && newest.older != version) {
+                newest = newest.older;
+            }
+            if (newest != null) {
+                newest.older = null;
+            }
+        }
+    }
+}
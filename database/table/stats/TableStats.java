@@ -118,7 +118,28 @@ public class TableStats {
         return histograms;
     }
 
+    /**
+     * Returns the estimated fraction of the records of the table whose value
+     * in column fulfills predicate relative to d.
+     */
+    public float getReductionFactor(int column, PredicateOperator predicate, DataBox d) {
+        return histograms.get(column).computeReductionFactor(predicate, d);
+    }
+
     // Copiers ///////////////////////////////////////////////////////////////////
+    /**
+     * Estimates the table statistics for the table that would be produced after
+     * keeping a fraction reductionFactor of the records of this table, chosen
+     * independently of their values.
+     */
+    public TableStats copyWithReduction(float reductionFactor) {
+        List<Histogram> copyHistograms = new ArrayList<>();
+        for (Histogram histogram : histograms) {
+            copyHistograms.add(histogram.copyWithReduction(reductionFactor));
+        }
+        return new TableStats(this.tableSchema, Math.round(this.numRecords * reductionFactor), copyHistograms);
+    }
+
     /**
      * Estimates the table statistics for the table that would be produced after
      * filtering column `i` with `predicate` and `value`. For simplicity, we
@@ -249,4 +270,21 @@ public class TableStats {
 
         return new TableStats(joinedSchema, outputSize, copyHistograms);
     }
+
+    /**
+     * Creates a new TableStats which is the statistics for the table that
+     * results from keeping only the given columns of this table, in the given
+     * order. The number of records is unchanged.
+     *
+     * @param columns the indices of the columns to keep
+     * @param schema the schema of the resulting table
+     * @return new TableStats based off of this and params
+     */
+    public TableStats copyWithProjection(List<Integer> columns, Schema schema) {
+        List<Histogram> copyHistograms = new ArrayList<Histogram>();
+        for (int i : columns) {
+            copyHistograms.add(this.histograms.get(i));
+        }
+        return new TableStats(schema, this.numRecords, copyHistograms);
+    }
 }